@@ -0,0 +1,193 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class gives the benchmarks (in simir.bench) access to the stages of Retrieval and kNN
+/// on the synthetic corpus (see simir.bench.Stages for what each method measures).
+public class BenchStages implements simir.bench.Stages {
+
+    /// number of test documents scored in advance for selectTopK() and categorize()
+    static final int PREPARED = 16;
+
+    /// number of (term, document) pairs in the sample of weights()
+    static final int SAMPLE = 4096;
+
+    IndexReader index;
+    int [] trainTag;
+    String [] queries;
+    String [] testDocs;
+    IndexReader.Entry [] queryTerms; // the distinct terms of all the queries
+
+    Retrieval.Searcher searcher, wandSearcher;
+    kNN.Classifier classifier, wandClassifier;
+    Retrieval.Searcher [] scored; // accumulators filled with the scores of test document i
+    kNN.Classifier [] ranked; // topK filled with the nearest labeled documents of test document i
+
+    // the sample for weights(): the constants of the term, its count and the norm of the document
+    ScoringModel.Term [] sampleTerms = new ScoringModel.Term[SAMPLE];
+    int [] rawTF = new int[SAMPLE];
+    double [] norm = new double[SAMPLE];
+
+    public void setUp(String dir, int numDocs, int vocabulary, long seed, int resultCount, int numK) throws IOException {
+	String indexName = SyntheticCorpus.prepare(new File(dir), numDocs, vocabulary, seed);
+	FileSystem fs = FileSystem.getLocal(new Configuration());
+	index = new IndexReader(fs, indexName);
+	trainTag = kNN.loadTrainTags(fs, new Path(dir, "train.txt"), index);
+	queries = readLines(new File(dir, "queries.txt"));
+	testDocs = readLines(new File(dir, "test.txt"));
+
+	// Retrieval and kNN report every query on the standard error
+	System.setErr(new PrintStream(new OutputStream() {
+		public void write(byte [] b, int off, int len) {}
+		public void write(int b) {}
+	    }));
+
+	double param = 0.5;
+	searcher = new Retrieval.Searcher(index, resultCount, param, false);
+	wandSearcher = new Retrieval.Searcher(index, resultCount, param, true);
+	classifier = new kNN.Classifier(index, trainTag, numK, param, false);
+	wandClassifier = new kNN.Classifier(index, trainTag, numK, param, true);
+
+	scored = new Retrieval.Searcher[PREPARED];
+	ranked = new kNN.Classifier[PREPARED];
+	for (int i=0; i<PREPARED; i++) {
+	    scored[i] = new Retrieval.Searcher(index, resultCount, param, false);
+	    accumulate(scored[i], testDocs[i]);
+	    ranked[i] = new kNN.Classifier(index, trainTag, numK, param, false);
+	    ranked[i].process(testDocs[i]);
+	}
+
+	LinkedHashMap<String,IndexReader.Entry> terms = new LinkedHashMap<String,IndexReader.Entry>();
+	for (String q : queries) {
+	    StringTokenizer st = new StringTokenizer(q);
+	    st.nextToken();
+	    while (st.hasMoreTokens()) {
+		String term = st.nextToken();
+		IndexReader.Entry entry = index.getEntry(term);
+		if (entry != null) {
+		    terms.put(term, entry);
+		}
+	    }
+	}
+	queryTerms = terms.values().toArray(new IndexReader.Entry[terms.size()]);
+
+	if (queryTerms.length == 0) {
+	    throw new IOException("none of the query terms is in the index");
+	}
+
+	// take the sample from the first block of every query term in turn
+	ScoringModel model = ScoringModel.create("tfidf", index, param);
+	PostingCursor cursor = index.openCursor();
+	int n = 0;
+	while (n < SAMPLE) {
+	    for (IndexReader.Entry entry : queryTerms) {
+		cursor.open(entry);
+		ScoringModel.Term term = model.term(entry, 1);
+		int len = cursor.nextBlock();
+		for (int j=0; j<len && n<SAMPLE; j++, n++) {
+		    sampleTerms[n] = term;
+		    rawTF[n] = cursor.freqs[j];
+		    norm[n] = model.norms[cursor.docs[j]];
+		}
+	    }
+	}
+    }
+
+    public void tearDown() throws IOException {
+	index.close();
+    }
+
+    static String [] readLines(File file) throws IOException {
+	ArrayList<String> lines = new ArrayList<String>();
+	BufferedReader in = new BufferedReader(new FileReader(file));
+	String t;
+	while ((t = in.readLine()) != null) {
+	    lines.add(t);
+	}
+	in.close();
+	return lines.toArray(new String[lines.size()]);
+    }
+
+    /// score a test document term at a time, as kNN does, into the accumulators of "evaluator"
+    static int accumulate(QueryEvaluator evaluator, String doc) throws IOException {
+	HashMap<String,Integer> qTermFreq = new HashMap<String,Integer>();
+	StringTokenizer st = new StringTokenizer(doc);
+	st.nextToken();
+	while (st.hasMoreTokens()) {
+	    String term = st.nextToken();
+	    Integer freq = qTermFreq.get(term);
+	    qTermFreq.put(term, freq == null ? 1 : freq + 1);
+	}
+	evaluator.clear();
+	for (Map.Entry<String,Integer> e : qTermFreq.entrySet()) {
+	    IndexReader.Entry entry = evaluator.index.getEntry(e.getKey());
+	    if (entry != null) {
+		evaluator.addTerm(entry, e.getValue());
+	    }
+	}
+	return evaluator.touchedCount;
+    }
+
+    public int numQueries() {
+	return queries.length;
+    }
+
+    public int numTestDocs() {
+	return testDocs.length;
+    }
+
+    public int numWeights() {
+	return SAMPLE;
+    }
+
+    public double weights() {
+	double sum = 0;
+	for (int i=0; i<SAMPLE; i++) {
+	    sum += sampleTerms[i].weight(rawTF[i], norm[i]);
+	}
+	return sum;
+    }
+
+    public long decodePostings() throws IOException {
+	PostingCursor cursor = searcher.cursor;
+	long total = 0;
+	for (IndexReader.Entry entry : queryTerms) {
+	    cursor.open(entry);
+	    int n;
+	    while ((n = cursor.nextBlock()) > 0) {
+		total += n;
+	    }
+	}
+	return total;
+    }
+
+    public int accumulate(int i) throws IOException {
+	return accumulate(searcher, testDocs[i % testDocs.length]);
+    }
+
+    public int selectTopK(int i) {
+	Retrieval.Searcher s = scored[i % PREPARED];
+	s.topK.clear();
+	for (int j=0; j<s.touchedCount; j++) {
+	    s.topK.offer(s.touchedDocs[j], s.acc[s.touchedDocs[j]]);
+	}
+	return s.topK.sort();
+    }
+
+    public int categorize(int i) {
+	kNN.Classifier c = ranked[i % PREPARED];
+	return kNN.categorization(c.topK, trainTag, c.numK);
+    }
+
+    public String retrieve(int i, boolean wand) throws IOException {
+	return (wand ? wandSearcher : searcher).process(queries[i % queries.length]);
+    }
+
+    public String classify(int i, boolean wand) throws IOException {
+	return (wand ? wandClassifier : classifier).process(testDocs[i % testDocs.length]);
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.*;
+import java.util.*;
+
+
+/// This application generates a synthetic collection and indexes it with IndexGeneration,
+/// so that the benchmarks (and anyone else) can get a realistic index without a cluster.
+/// The same parameters always give the same files.
+///
+/// Usage: java SyntheticCorpus out-dir [numDocs [vocabulary [seed]]]
+/// It writes into out-dir:
+///         raw.txt: the raw inverted index, as InvertedIndex would write it (sorted by term)
+///         index.lex, index.pos, index.docs, index.dlen, index.stats, index.doclen: the index
+///         train.txt: the class tag of every document (Train_List for kNN)
+///         test.txt: test documents of the same classes (Test_List for kNN)
+///         queries.txt: short queries (for Retrieval)
+///
+/// The words of a document follow a Zipf distribution over the vocabulary, except that a
+/// tenth of them are drawn from a few hundred words specific to the class of the document,
+/// which gives kNN something to find. The lengths of the documents vary around AVG_DOC_LEN.
+public class SyntheticCorpus {
+
+    public static final int DEFAULT_DOCS = 20000;
+    public static final int DEFAULT_VOCABULARY = 50000;
+    public static final long DEFAULT_SEED = 410;
+
+    static final int AVG_DOC_LEN = 200;
+    static final int CLASS_WORDS = 300; // number of words specific to a class
+    static final double CLASS_RATE = 0.1; // fraction of the words of a document drawn from its class words
+    static final int TEST_DOCS = 500;
+    static final int QUERIES = 200;
+
+    int numDocs;
+    int vocabulary;
+    Random random;
+    double [] zipf; // cumulative probability of words 0, 1, 2, ...
+
+    SyntheticCorpus(int numDocs, int vocabulary, long seed) {
+	this.numDocs = numDocs;
+	this.vocabulary = vocabulary;
+	random = new Random(seed);
+	zipf = new double[vocabulary];
+	double sum = 0;
+	for (int i=0; i<vocabulary; i++) {
+	    sum += 1.0 / (i+1);
+	    zipf[i] = sum;
+	}
+	for (int i=0; i<vocabulary; i++) {
+	    zipf[i] /= sum;
+	}
+    }
+
+    /// the name of word i (all the same length, so that the order of the names is the order of i)
+    static String word(int i) {
+	String s = Integer.toString(i, 36);
+	return "w" + "00000".substring(Math.min(5, s.length())) + s;
+    }
+
+    /// a random word from the Zipf distribution
+    int zipfWord() {
+	int i = Arrays.binarySearch(zipf, random.nextDouble());
+	return Math.min(i < 0 ? -i-1 : i, vocabulary-1);
+    }
+
+    /// a random document of a class, as the list of its words
+    int [] document(int tag, int numClasses) {
+	int len = Math.max(10, (int) (AVG_DOC_LEN * (0.5 + random.nextDouble())));
+	int [] words = new int[len];
+	for (int i=0; i<len; i++) {
+	    if (random.nextDouble() < CLASS_RATE) {
+		// the class words are spread over the middle of the vocabulary, interleaved with the other classes
+		words[i] = 100 + (random.nextInt(CLASS_WORDS) * numClasses + tag) % (vocabulary - 100);
+	    } else {
+		words[i] = zipfWord();
+	    }
+	}
+	return words;
+    }
+
+    /// generate all the files into "dir" and build the index
+    void generate(File dir) throws IOException {
+	dir.mkdirs();
+	int numClasses = kNN.TOTALCLASS;
+
+	// the collection, kept as postings: for every word, the list of (docID, count)
+	StringBuilder [] postings = new StringBuilder[vocabulary];
+	PrintWriter dlen = new PrintWriter(new FileWriter(new File(dir, "index.dlen")));
+	PrintWriter train = new PrintWriter(new FileWriter(new File(dir, "train.txt")));
+	int [] counts = new int[vocabulary];
+	for (int d=0; d<numDocs; d++) {
+	    String docID = "doc" + d;
+	    int tag = d % numClasses;
+	    int [] words = document(tag, numClasses);
+	    for (int w : words) {
+		counts[w]++;
+	    }
+	    for (int w : words) {
+		if (counts[w] > 0) {
+		    if (postings[w] == null) {
+			postings[w] = new StringBuilder();
+		    }
+		    postings[w].append(' ').append(docID).append(' ').append(counts[w]);
+		    counts[w] = 0;
+		}
+	    }
+	    dlen.println(docID + "\t" + words.length);
+	    train.println(tag + " " + docID);
+	}
+	dlen.close();
+	train.close();
+
+	PrintWriter raw = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, "raw.txt"))));
+	for (int w=0; w<vocabulary; w++) {
+	    if (postings[w] != null) {
+		raw.println(word(w) + "\t" + postings[w].substring(1));
+	    }
+	}
+	raw.close();
+	postings = null;
+
+	PrintWriter test = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, "test.txt"))));
+	for (int i=0; i<TEST_DOCS; i++) {
+	    StringBuilder line = new StringBuilder("test" + i);
+	    for (int w : document(random.nextInt(numClasses), numClasses)) {
+		line.append(' ').append(word(w));
+	    }
+	    test.println(line);
+	}
+	test.close();
+
+	// queries have 2 to 5 words, avoiding the most frequent ones
+	PrintWriter queries = new PrintWriter(new FileWriter(new File(dir, "queries.txt")));
+	for (int i=0; i<QUERIES; i++) {
+	    StringBuilder line = new StringBuilder("q" + i);
+	    int len = 2 + random.nextInt(4);
+	    for (int j=0; j<len; j++) {
+		int w;
+		do {
+		    w = zipfWord();
+		} while (w < 50);
+		line.append(' ').append(word(w));
+	    }
+	    queries.println(line);
+	}
+	queries.close();
+
+	// build the index (IndexGeneration prints a lot, which we don't need)
+	PrintStream out = System.out;
+	System.setOut(new PrintStream(new ByteArrayOutputStream() {
+		public void write(byte [] b, int off, int len) {}
+		public void write(int b) {}
+	    }));
+	try {
+	    IndexGeneration.main(new String[] { new File(dir, "raw.txt").getAbsolutePath(),
+						new File(dir, "index").getAbsolutePath() });
+	} finally {
+	    System.setOut(out);
+	}
+    }
+
+    /// make sure that "dir" has the corpus generated with these parameters, and return the name of its index
+    public static String prepare(File dir, int numDocs, int vocabulary, long seed) throws IOException {
+	String params = numDocs + " " + vocabulary + " " + seed;
+	File done = new File(dir, "corpus.done");
+	if (done.exists()) {
+	    BufferedReader in = new BufferedReader(new FileReader(done));
+	    String line = in.readLine();
+	    in.close();
+	    if (params.equals(line)) {
+		return new File(dir, "index").getAbsolutePath();
+	    }
+	    done.delete();
+	}
+	new SyntheticCorpus(numDocs, vocabulary, seed).generate(dir);
+	PrintWriter out = new PrintWriter(new FileWriter(done));
+	out.println(params);
+	out.close();
+	return new File(dir, "index").getAbsolutePath();
+    }
+
+    public static void main(String [] args) throws IOException {
+	if (args.length < 1) {
+	    System.out.println("usage: SyntheticCorpus out-dir [numDocs [vocabulary [seed]]]");
+	    System.exit(1);
+	}
+	int numDocs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DOCS;
+	int vocabulary = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_VOCABULARY;
+	long seed = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SEED;
+	System.out.println("index: " + prepare(new File(args[0]), numDocs, vocabulary, seed));
+    }
+}
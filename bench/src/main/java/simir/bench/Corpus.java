@@ -0,0 +1,52 @@
+package simir.bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The synthetic corpus and its index, shared by all the threads of a benchmark.
+ *
+ * The corpus is generated once into the directory given by the system property
+ * "simir.bench.dir" (target/corpus by default) and reused as long as the parameters
+ * don't change. The parameters can be changed from the command line, e.g.
+ * java -jar bench/target/benchmarks.jar -p numDocs=100000
+ */
+@State(Scope.Benchmark)
+public class Corpus {
+
+  @Param({"20000"})
+  public int numDocs;
+
+  @Param({"50000"})
+  public int vocabulary;
+
+  @Param({"410"})
+  public long seed;
+
+  /** number of results of a Retrieval query (as in Retrieval) */
+  @Param({"1000"})
+  public int resultCount;
+
+  /** k of kNN */
+  @Param({"5"})
+  public int numK;
+
+  public Stages stages;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    stages = (Stages) Class.forName(Stages.IMPLEMENTATION).newInstance();
+    stages.setUp(System.getProperty("simir.bench.dir", "target/corpus"), numDocs, vocabulary, seed, resultCount, numK);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    stages.tearDown();
+  }
+}
@@ -0,0 +1,45 @@
+package simir.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end latency of one query: a short Retrieval query, or a kNN test document
+ * (a long query), from the query line to the output line(s).
+ * The queries are taken in turn from the synthetic queries and test documents.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryLatencyBenchmarks {
+
+  /** evaluate document at a time with WAND instead of term at a time */
+  @Param({"false", "true"})
+  public boolean wand;
+
+  int next = 0;
+
+  @Benchmark
+  public String retrieval(Corpus corpus) throws IOException {
+    return corpus.stages.retrieve(next++, wand);
+  }
+
+  @Benchmark
+  public String knn(Corpus corpus) throws IOException {
+    return corpus.stages.classify(next++, wand);
+  }
+}
@@ -0,0 +1,67 @@
+package simir.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The stages of query evaluation, one at a time:
+ * weighting, posting decoding, accumulator updates, top-k selection and kNN voting.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StageBenchmarks {
+
+  /** number of weights in the sample of Stages.weights() (checked in weight()) */
+  static final int WEIGHTS = 4096;
+
+  int next = 0; // the test document for the next invocation
+
+  /** time per weight */
+  @Benchmark
+  @OperationsPerInvocation(WEIGHTS)
+  public double weight(Corpus corpus) {
+    if (corpus.stages.numWeights() != WEIGHTS) {
+      throw new IllegalStateException("the sample has " + corpus.stages.numWeights() + " weights");
+    }
+    return corpus.stages.weights();
+  }
+
+  /** time to decode the postings of all the query terms */
+  @Benchmark
+  public long decodePostings(Corpus corpus) throws IOException {
+    return corpus.stages.decodePostings();
+  }
+
+  /** time to add all the terms of a test document to the accumulators */
+  @Benchmark
+  public int accumulate(Corpus corpus) throws IOException {
+    return corpus.stages.accumulate(next++);
+  }
+
+  /** time to select the top results out of the accumulators of a test document */
+  @Benchmark
+  public int selectTopK(Corpus corpus) {
+    return corpus.stages.selectTopK(next++);
+  }
+
+  /** time for the nearest neighbors of a test document to vote */
+  @Benchmark
+  public int categorize(Corpus corpus) {
+    return corpus.stages.categorize(next++);
+  }
+}
@@ -0,0 +1,56 @@
+package simir.bench;
+
+import java.io.IOException;
+
+/**
+ * The stages of query evaluation measured by the benchmarks.
+ *
+ * The index code lives in the default package, which a named package can't import,
+ * and JMH doesn't accept benchmarks in the default package. So the benchmarks call the
+ * index code through this interface, implemented by the class BenchStages (in the
+ * default package) and loaded by name.
+ */
+public interface Stages {
+
+  /** name of the class that implements this interface */
+  String IMPLEMENTATION = "BenchStages";
+
+  /**
+   * Generate the synthetic corpus in "dir" (unless it is already there) and open its index.
+   * @param resultCount the number of results of a Retrieval query
+   * @param numK the k of kNN
+   */
+  void setUp(String dir, int numDocs, int vocabulary, long seed, int resultCount, int numK) throws IOException;
+
+  void tearDown() throws IOException;
+
+  /** number of queries for retrieve() */
+  int numQueries();
+
+  /** number of test documents for classify() */
+  int numTestDocs();
+
+  /** number of weights computed by weights() */
+  int numWeights();
+
+  /** the TF-IDF weight (ScoringModel.Term.weight) for a fixed sample of (term, document) pairs; returns the sum */
+  double weights();
+
+  /** decode all the postings of the query terms block by block; returns the number of postings */
+  long decodePostings() throws IOException;
+
+  /** clear the accumulators and add all the terms of test document i (term at a time); returns the number of documents touched */
+  int accumulate(int i) throws IOException;
+
+  /** select the top results from the accumulators of one of a few test documents scored in advance; returns their number */
+  int selectTopK(int i);
+
+  /** kNN.categorization of one of a few test documents ranked in advance; returns the tag */
+  int categorize(int i);
+
+  /** Retrieval of query i, end to end (parse, score, select, format) */
+  String retrieve(int i, boolean wand) throws IOException;
+
+  /** kNN classification of test document i, end to end */
+  String classify(int i, boolean wand) throws IOException;
+}
@@ -0,0 +1,203 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The stages measured by the benchmarks (see BenchStages) compute the results of the original Retrieval and kNN:
+/// on a small synthetic corpus, they are compared with the exhaustive TF-IDF ranking computed from raw.txt,
+/// rawTF * log((1+N)/(0.5+df)) for every occurrence of a term in the query, by decreasing score.
+public class BenchStagesTest {
+
+    static final int NUM_DOCS = 600;
+    static final int VOCABULARY = 3000;
+    static final int RESULTS = 20;
+    static final int NUM_K = 5;
+
+    /// the largest relative difference between two scores that are the same, up to the order of the additions
+    static final double EPSILON = 1e-9;
+
+    static BenchStages stages;
+    static HashMap<String, HashMap<String, Integer>> postings = new HashMap<String, HashMap<String, Integer>>(); // term -> docID -> count
+    static HashMap<String, Integer> tags = new HashMap<String, Integer>();
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	File dir = new File("target/test-corpus").getAbsoluteFile();
+	stages = new BenchStages();
+	stages.setUp(dir.getPath(), NUM_DOCS, VOCABULARY, 7, RESULTS, NUM_K);
+
+	BufferedReader in = new BufferedReader(new FileReader(new File(dir, "raw.txt")));
+	for (String line; (line = in.readLine()) != null; ) {
+	    String [] f = line.split("[\t ]");
+	    HashMap<String, Integer> list = new HashMap<String, Integer>();
+	    for (int i=1; i<f.length; i+=2) {
+		list.put(f[i], Integer.parseInt(f[i+1]));
+	    }
+	    postings.put(f[0], list);
+	}
+	in.close();
+	for (String line : BenchStages.readLines(new File(dir, "train.txt"))) {
+	    String [] f = line.split(" ");
+	    tags.put(f[1], Integer.parseInt(f[0]));
+	}
+	assertEquals(NUM_DOCS, tags.size());
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	stages.tearDown();
+    }
+
+    /// the scores of the documents that match a query line (or a test document)
+    static HashMap<String, Double> reference(String line) {
+	HashMap<String, Double> acc = new HashMap<String, Double>();
+	StringTokenizer st = new StringTokenizer(line);
+	st.nextToken();
+	while (st.hasMoreTokens()) {
+	    HashMap<String, Integer> list = postings.get(st.nextToken());
+	    if (list == null) {
+		continue;
+	    }
+	    double idf = Math.log((1.0+NUM_DOCS)/(0.5+list.size()));
+	    for (Map.Entry<String, Integer> p : list.entrySet()) {
+		Double s = acc.get(p.getKey());
+		double w = p.getValue()*idf;
+		acc.put(p.getKey(), s == null ? w : s + w);
+	    }
+	}
+	return acc;
+    }
+
+    /// the scores of a reference ranking, best first
+    static double [] sorted(HashMap<String, Double> acc) {
+	double [] scores = new double[acc.size()];
+	int i = 0;
+	for (double s : acc.values()) {
+	    scores[i++] = -s;
+	}
+	Arrays.sort(scores);
+	for (i=0; i<scores.length; i++) {
+	    scores[i] = -scores[i];
+	}
+	return scores;
+    }
+
+    static boolean same(double a, double b) {
+	return Math.abs(a - b) <= EPSILON * Math.max(1, Math.abs(a));
+    }
+
+    /// check the top k (names[i] with scores[i], best first) against the reference ranking
+    static void assertRanking(String what, HashMap<String, Double> acc, int k, String [] names, double [] scores) {
+	double [] expected = sorted(acc);
+	assertEquals(what + ": number of results", Math.min(k, expected.length), names.length);
+	HashSet<String> seen = new HashSet<String>();
+	for (int i=0; i<names.length; i++) {
+	    assertTrue(what + ": " + names[i] + " is ranked twice", seen.add(names[i]));
+	    Double score = acc.get(names[i]);
+	    assertNotNull(what + ": " + names[i] + " doesn't match the query", score);
+	    assertTrue(what + ": score of " + names[i], same(score, scores[i]));
+	    assertTrue(what + ": score at rank " + (i+1), same(expected[i], scores[i]));
+	}
+    }
+
+    /// the tag of the original kNN: the smallest of the tags with the most votes among the NUM_K best documents
+    /// (null when the NUM_K-th and the next document have the same score, since either could vote)
+    static Integer referenceTag(String testDoc) {
+	final HashMap<String, Double> acc = reference(testDoc);
+	String [] names = acc.keySet().toArray(new String[acc.size()]);
+	Arrays.sort(names, new Comparator<String>() {
+		public int compare(String a, String b) {
+		    return Double.compare(acc.get(b), acc.get(a));
+		}
+	    });
+	if (names.length > NUM_K && same(acc.get(names[NUM_K-1]), acc.get(names[NUM_K]))) {
+	    return null;
+	}
+	int [] counts = new int[kNN.TOTALCLASS];
+	for (int i=0; i<Math.min(NUM_K, names.length); i++) {
+	    counts[tags.get(names[i])]++;
+	}
+	int maxClass = -1;
+	int maxCount = 0;
+	for (int j=0; j<counts.length; j++) {
+	    if (counts[j] > maxCount) {
+		maxCount = counts[j];
+		maxClass = j;
+	    }
+	}
+	return maxClass;
+    }
+
+    @Test
+    public void retrieve() throws IOException {
+	for (boolean wand : new boolean[] { false, true }) {
+	    for (int i=0; i<stages.numQueries(); i++) {
+		String [] lines = stages.retrieve(i, wand).split("\n");
+		String [] names = new String[lines.length];
+		double [] scores = new double[lines.length];
+		for (int j=0; j<lines.length; j++) {
+		    String [] f = lines[j].split(" ");
+		    assertEquals("q" + i, f[0]);
+		    names[j] = f[1];
+		    scores[j] = Double.parseDouble(f[2]);
+		}
+		assertRanking("wand=" + wand + " q" + i, reference(stages.queries[i]), RESULTS, names, scores);
+	    }
+	}
+    }
+
+    @Test
+    public void accumulateAndSelect() throws IOException {
+	for (int i=0; i<BenchStages.PREPARED; i++) {
+	    HashMap<String, Double> acc = reference(stages.testDocs[i]);
+	    assertEquals("test" + i, acc.size(), stages.accumulate(i));
+	    int n = stages.selectTopK(i);
+	    Retrieval.Searcher s = stages.scored[i];
+	    String [] names = new String[n];
+	    for (int j=0; j<n; j++) {
+		names[j] = stages.index.docs.name(s.topK.docs[j]);
+	    }
+	    assertRanking("test" + i, acc, RESULTS, names, Arrays.copyOf(s.topK.scores, n));
+	}
+    }
+
+    @Test
+    public void classify() throws IOException {
+	int checked = 0;
+	for (int i=0; i<stages.numTestDocs(); i++) {
+	    Integer tag = referenceTag(stages.testDocs[i]);
+	    if (tag == null) {
+		continue;
+	    }
+	    checked++;
+	    assertEquals("test" + i, tag + " test" + i + "\n", stages.classify(i, false));
+	    assertEquals("test" + i, tag + " test" + i + "\n", stages.classify(i, true));
+	    if (i < BenchStages.PREPARED) {
+		assertEquals("test" + i, tag.intValue(), stages.categorize(i));
+	    }
+	}
+	assertTrue(checked > stages.numTestDocs() / 2);
+    }
+
+    @Test
+    public void decodePostings() throws IOException {
+	HashSet<String> terms = new HashSet<String>();
+	for (String q : stages.queries) {
+	    StringTokenizer st = new StringTokenizer(q);
+	    st.nextToken();
+	    while (st.hasMoreTokens()) {
+		terms.add(st.nextToken());
+	    }
+	}
+	long total = 0;
+	for (String term : terms) {
+	    if (postings.containsKey(term)) {
+		total += postings.get(term).size();
+	    }
+	}
+	assertEquals(total, stages.decodePostings());
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class holds the collection statistics and the document lengths of an index.
+/// IndexGeneration computes them once from the document length table of ComputeDocLen
+/// and writes them in binary, so that the query programs can load them without parsing anything:
+///                 + InvertedIndexFileName.stats: int numDocs, int totalDocCount, long totalDocLen,
+///                                                int minDocLen, long totalTermCount
+///                 + InvertedIndexFileName.doclen: the length of document 0, 1, 2, ... (one int each)
+/// numDocs is the number of documents with a document number (i.e., with at least one posting), while
+/// totalDocCount and totalDocLen cover all the documents of the length table.
+/// The text table (InvertedIndexFileName.dlen) is only parsed by the index build, and by IndexReader
+/// for an index built without it.
+public class CollectionStats {
+
+    public int [] dlen; // document lengths, indexed by document number
+    public int totalDocCount = 0; // number of documents in the collection (including those without postings)
+    public long totalDocLen = 0; // the sum of the lengths of all these documents
+    public int minDocLen = Integer.MAX_VALUE; // length of the shortest document with a document number
+    public long totalTermCount = 0; // the sum of the total count of *all* the terms in the collection
+    int numDocs; // the number of documents with a document number, as read from the .stats file
+
+    /// average document length
+    public double avgDocLen() {
+	return (double) totalDocLen / totalDocCount;
+    }
+
+    /// compute the statistics from a document length table generated by ComputeDocLen
+    /// text: the whole table, each line has: docID docLength
+    /// docNum: the document number of every document that has one
+    public static CollectionStats parse(ByteBuffer text, Map<String,Integer> docNum, int numDocs) throws IOException {
+	CollectionStats stats = new CollectionStats();
+	stats.dlen = new int[numDocs];
+	byte [] line = new byte[256];
+	while (text.hasRemaining()) {
+	    int n = 0;
+	    byte b;
+	    while (text.hasRemaining() && (b = text.get()) != '\n') {
+		if (n == line.length) {
+		    line = Arrays.copyOf(line, 2*n);
+		}
+		line[n++] = b;
+	    }
+	    StringTokenizer st = new StringTokenizer(new String(line, 0, n, "UTF-8"));
+	    if (!st.hasMoreTokens()) {
+		continue;
+	    }
+	    String docID = st.nextToken();
+	    int docLen = Integer.parseInt(st.nextToken().trim());
+	    Integer d = docNum.get(docID);
+	    if (d != null) {
+		// documents without any posting don't have a number, but still count for the statistics below
+		stats.dlen[d] = docLen;
+		stats.minDocLen = Math.min(stats.minDocLen, docLen);
+	    }
+	    stats.totalDocLen += docLen;
+	    stats.totalDocCount++;
+	}
+	return stats;
+    }
+
+    /// write the .stats and .doclen files of the index "indexName"
+    public void write(FileSystem fs, String indexName) throws IOException {
+	FSDataOutputStream out = fs.create(new Path(indexName + ".stats"));
+	out.writeInt(dlen.length);
+	out.writeInt(totalDocCount);
+	out.writeLong(totalDocLen);
+	out.writeInt(minDocLen);
+	out.writeLong(totalTermCount);
+	out.close();
+
+	DataOutputStream lengths = new DataOutputStream(new BufferedOutputStream(fs.create(new Path(indexName + ".doclen"))));
+	for (int i=0; i<dlen.length; i++) {
+	    lengths.writeInt(dlen[i]);
+	}
+	lengths.close();
+    }
+
+    /// load the .stats and .doclen files of the index "indexName" (null if the index has no .stats file)
+    /// local: true if the files are on the local file system (they are mapped)
+    public static CollectionStats read(FileSystem fs, String indexName, boolean local) throws IOException {
+	CollectionStats stats = readTotals(fs, indexName, local);
+	if (stats == null) {
+	    return null;
+	}
+	int numDocs = stats.numDocs;
+	ByteBuffer buf = IndexReader.readFile(fs, new Path(indexName + ".doclen"), local);
+	if (buf.remaining() != 4L*numDocs) {
+	    throw new IOException(indexName + ".doclen doesn't match " + indexName + ".stats; please rebuild the index with IndexGeneration");
+	}
+	stats.dlen = new int[numDocs];
+	buf.asIntBuffer().get(stats.dlen);
+	return stats;
+    }
+
+    /// load only the .stats file of the index "indexName" (null if there is none): the totals, without the
+    /// document lengths (dlen is null), e.g., the statistics of the whole collection of a sharded index (see GlobalStats)
+    public static CollectionStats readTotals(FileSystem fs, String indexName, boolean local) throws IOException {
+	Path path = new Path(indexName + ".stats");
+	if (!fs.exists(path)) {
+	    return null;
+	}
+	CollectionStats stats = new CollectionStats();
+	ByteBuffer buf = IndexReader.readFile(fs, path, local);
+	stats.numDocs = buf.getInt();
+	stats.totalDocCount = buf.getInt();
+	stats.totalDocLen = buf.getLong();
+	stats.minDocLen = buf.getInt();
+	stats.totalTermCount = buf.getLong();
+	return stats;
+    }
+}
@@ -23,6 +23,7 @@ import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -31,8 +32,9 @@ import org.apache.hadoop.util.ToolRunner;
  * the "raw inverted index" (i.e., output generated by "InvertedIndex").  
  *
  * To run: hadoop jar simir.jar ComputeDocLen 
- *            [-m <i>maps</i>] [-r <i>reduces</i>] <i>in-dir</i> <i>out-dir</i> 
+ *            [-m <i>maps</i>] [-r <i>reduces</i>] [-seq] <i>in-dir</i> <i>out-dir</i> 
  *   "in-dir" has all the raw inverted index files generated by "InvertedIndex"
+ *   (use "-seq" if they were generated with "InvertedIndex -seq")
  *   "out-dir" is the directory to put the document length table. 
  */
 public class ComputeDocLen extends Configured implements Tool {
@@ -69,6 +71,28 @@ public class ComputeDocLen extends Configured implements Tool {
     }
   }
   
+  /**
+   * The same as MapClass for the SequenceFile output of InvertedIndex: each record is a term
+   * and its list of postings, and for each posting (docID, termCount)
+   * emit (<b>docID</b>, <b>termCount</b>).
+   */
+  public static class SeqMapClass extends MapReduceBase
+    implements Mapper<Text, PostingListWritable, Text, Text> {
+
+    private Text word = new Text();
+    private Text did = new Text();
+
+    public void map(Text key, PostingListWritable value,
+                    OutputCollector<Text, Text> output,
+                    Reporter reporter) throws IOException {
+      for (int i=0; i<value.size(); i++) {
+        did.set(value.docID(i));
+        word.set(Integer.toString(value.count(i)));
+        output.collect(did, word);
+      }
+    }
+  }
+
   /**
    * A reducer class that just emits the sum of the input values.
    */
@@ -91,7 +115,7 @@ public class ComputeDocLen extends Configured implements Tool {
   }
   
   static int printUsage() {
-    System.out.println("ComputeDocLen [-m <maps>] [-r <reduces>] <input> <output>");
+    System.out.println("ComputeDocLen [-m <maps>] [-r <reduces>] [-seq] <input> <output>");
     ToolRunner.printGenericCommandUsage(System.out);
     return -1;
   }
@@ -122,6 +146,9 @@ public class ComputeDocLen extends Configured implements Tool {
           conf.setNumMapTasks(Integer.parseInt(args[++i]));
         } else if ("-r".equals(args[i])) {
           conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+        } else if ("-seq".equals(args[i])) {
+          conf.setInputFormat(SequenceFileInputFormat.class);
+          conf.setMapperClass(SeqMapClass.class);
         } else {
           other_args.add(args[i]);
         }
@@ -0,0 +1,194 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+
+/// This class is the document table of an index (IndexFileName.docs): the original docID of every
+/// document number, and the document number of a docID.
+///
+/// Nothing is kept on the Java heap: the names stay in the file as IndexWriter wrote them (DataOutput.writeUTF,
+/// one after the other), which is mapped when it is on the local file system (or copied to a direct buffer),
+/// the position of every name is in a direct buffer, and so is the hash table that finds the number of a
+/// docID (open addressing with linear probing over the bytes of the names, built the first time find() is
+/// called: only kNN needs it, to load the training tags). So a table of millions of documents costs
+/// 4 bytes per document on top of the names (12 with the hash table), and no object at all for the
+/// garbage collector; a name is only decoded when it is printed.
+///
+/// The table is never modified once it is built, so it can be shared by all the threads.
+public class DocTable {
+
+    ByteBuffer names; // the names, in the format of the .docs file
+    IntBuffer offsets; // the position of the name of document d in "names"
+    int size;
+    volatile IntBuffer slots = null; // the hash table: document number + 1 (0 for an empty slot)
+    int mask; // the number of slots - 1 (a power of 2)
+
+    /// the table of a .docs file
+    public DocTable(ByteBuffer file) {
+	if (!file.isDirect()) {
+	    ByteBuffer copy = ByteBuffer.allocateDirect(file.remaining());
+	    copy.put(file.duplicate());
+	    copy.flip();
+	    file = copy;
+	}
+	names = file;
+	ByteBuffer in = file.duplicate();
+	int n = 0;
+	while (in.hasRemaining()) {
+	    in.position(in.position() + 2 + (in.getShort(in.position()) & 0xFFFF));
+	    n++;
+	}
+	size = n;
+	offsets = ByteBuffer.allocateDirect(4 * n).asIntBuffer();
+	for (int d=0, p=file.position(); d<n; d++) {
+	    offsets.put(d, p);
+	    p += 2 + (file.getShort(p) & 0xFFFF);
+	}
+    }
+
+    /// the table of an index with segments: the documents of every segment in turn
+    public DocTable(DocTable [] parts) throws IOException {
+	long bytes = 0;
+	for (DocTable part : parts) {
+	    bytes += part.names.remaining();
+	}
+	if (bytes > Integer.MAX_VALUE) {
+	    throw new IOException("the document table of the segments is too large (more than 2GB)");
+	}
+	ByteBuffer all = ByteBuffer.allocateDirect((int) bytes);
+	for (DocTable part : parts) {
+	    all.put(part.names.duplicate());
+	}
+	all.flip();
+	names = all;
+	for (DocTable part : parts) {
+	    size += part.size;
+	}
+	offsets = ByteBuffer.allocateDirect(4 * size).asIntBuffer();
+	int d = 0;
+	int base = 0;
+	for (DocTable part : parts) {
+	    for (int i=0; i<part.size; i++) {
+		offsets.put(d++, base + part.offsets.get(i) - part.names.position());
+	    }
+	    base += part.names.remaining();
+	}
+    }
+
+    /// the number of documents
+    public int size() {
+	return size;
+    }
+
+    /// the original docID of document d
+    public String name(int d) {
+	ByteBuffer in = names.duplicate();
+	in.position(offsets.get(d));
+	return IndexReader.readUTF(in);
+    }
+
+    /// the number of the document with this docID (-1 if it is not in the table)
+    public int find(String docID) {
+	IntBuffer table = slots;
+	if (table == null) {
+	    buildHash();
+	    table = slots;
+	}
+	byte [] key = encode(docID);
+	for (int s = hash(key, key.length) & mask; ; s = (s + 1) & mask) {
+	    int d = table.get(s) - 1;
+	    if (d < 0) {
+		return -1;
+	    }
+	    if (equals(d, key)) {
+		return d;
+	    }
+	}
+    }
+
+    /// fill the hash table, with at least twice as many slots as documents
+    synchronized void buildHash() {
+	if (slots != null) {
+	    return;
+	}
+	int capacity = Integer.highestOneBit(Math.max(2, 2 * size - 1)) << 1;
+	IntBuffer table = ByteBuffer.allocateDirect(4 * capacity).asIntBuffer();
+	int m = capacity - 1;
+	byte [] name = new byte[256];
+	for (int d=0; d<size; d++) {
+	    int p = offsets.get(d);
+	    int len = names.getShort(p) & 0xFFFF;
+	    if (len > name.length) {
+		name = new byte[len];
+	    }
+	    for (int i=0; i<len; i++) {
+		name[i] = names.get(p + 2 + i);
+	    }
+	    int s = hash(name, len) & m;
+	    while (table.get(s) != 0) {
+		s = (s + 1) & m;
+	    }
+	    table.put(s, d + 1);
+	}
+	mask = m;
+	slots = table; // last, so another thread sees either no table or a full one
+    }
+
+    /// true if the name of document d has these bytes
+    boolean equals(int d, byte [] key) {
+	int p = offsets.get(d);
+	if ((names.getShort(p) & 0xFFFF) != key.length) {
+	    return false;
+	}
+	for (int i=0; i<key.length; i++) {
+	    if (names.get(p + 2 + i) != key[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /// FNV-1a over the bytes, then mixed (the finalizer of MurmurHash3), so the low bits can index the table
+    static int hash(byte [] bytes, int len) {
+	return hash(bytes, 0, len);
+    }
+
+    /// the hash of bytes[off..off+len-1]
+    static int hash(byte [] bytes, int off, int len) {
+	int h = 0x811c9dc5;
+	for (int i=off; i<off+len; i++) {
+	    h = (h ^ (bytes[i] & 0xFF)) * 0x01000193;
+	}
+	h ^= h >>> 16;
+	h *= 0x85ebca6b;
+	h ^= h >>> 13;
+	h *= 0xc2b2ae35;
+	h ^= h >>> 16;
+	return h;
+    }
+
+    /// the bytes of a string as DataOutput.writeUTF writes them (without the length)
+    static byte [] encode(String s) {
+	int len = 0;
+	for (int i=0; i<s.length(); i++) {
+	    char c = s.charAt(i);
+	    len += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+	}
+	byte [] bytes = new byte[len];
+	int n = 0;
+	for (int i=0; i<s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c >= 0x0001 && c <= 0x007F) {
+		bytes[n++] = (byte) c;
+	    } else if (c <= 0x07FF) {
+		bytes[n++] = (byte) (0xC0 | (c >> 6));
+		bytes[n++] = (byte) (0x80 | (c & 0x3F));
+	    } else {
+		bytes[n++] = (byte) (0xE0 | (c >> 12));
+		bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+		bytes[n++] = (byte) (0x80 | (c & 0x3F));
+	    }
+	}
+	return bytes;
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.*;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class holds the statistics of the whole collection of a sharded index (see Shards), with which
+/// every shard scores its documents, so that the scores of the shards can be compared (and are the same
+/// as with a single index): the document frequency, the total count and the maxTF of every term in all
+/// the shards, and the number of documents, their total length and the total count of all the terms.
+///
+/// They are the lexicon and the .stats file of the whole index, which Shards.split keeps when it moves
+/// the postings and the documents to the shards. A shard names the whole index in ShardFileName.global
+/// (a name in the same directory), and IndexReader opens its GlobalStats when that file is there.
+/// The lexicon is looked up in the file, as for any index (see Lexicon and TermHash), so the statistics
+/// take no room on the Java heap. They are never modified, so they can be shared by all the threads.
+public class GlobalStats {
+
+    Lexicon lex;
+    TermHash termHash = null;
+    CollectionStats totals; // without the document lengths
+
+    /// open the statistics of the whole index "indexName" (including the path)
+    public GlobalStats(FileSystem fs, String indexName) throws IOException {
+	boolean local = fs instanceof LocalFileSystem;
+	lex = new Lexicon(IndexReader.readFile(fs, new Path(indexName + ".lex"), local));
+	Path hash = new Path(indexName + ".lexh");
+	if (fs.exists(hash)) {
+	    termHash = new TermHash(IndexReader.readFile(fs, hash, local), lex, hash.toString());
+	}
+	totals = CollectionStats.readTotals(fs, indexName, local);
+	if (totals == null) {
+	    throw new IOException(indexName + ".stats is missing: please split the index into shards again with IndexGeneration -shards");
+	}
+    }
+
+    /// the statistics of the collection of the shard "shardName", if it is a shard of a sharded index (null otherwise)
+    public static GlobalStats forShard(FileSystem fs, String shardName) throws IOException {
+	Path path = new Path(shardName + ".global");
+	if (!fs.exists(path)) {
+	    return null;
+	}
+	FSDataInputStream in = fs.open(path);
+	String name;
+	try {
+	    name = new BufferedReader(new InputStreamReader(in, "UTF-8")).readLine();
+	} finally {
+	    in.close();
+	}
+	if (name == null) {
+	    throw new IOException(path + " doesn't name the whole index");
+	}
+	Path dir = path.getParent();
+	return new GlobalStats(fs, dir == null ? name.trim() : new Path(dir, name.trim()).toString());
+    }
+
+    /// the entry of a term in the whole collection (null if no shard has it): pos and length are meaningless
+    public IndexReader.Entry get(String term) {
+	return termHash != null ? termHash.get(term) : lex.get(term);
+    }
+
+    public int totalDocCount() {
+	return totals.totalDocCount;
+    }
+
+    public double avgDocLen() {
+	return totals.avgDocLen();
+    }
+
+    public long totalTermCount() {
+	return totals.totalTermCount;
+    }
+}
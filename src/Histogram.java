@@ -0,0 +1,108 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/// This class counts the values recorded in log-linear buckets, like an HDR histogram, to give their
+/// percentiles (e.g., the p99 of the latency of the queries) with a bounded relative error,
+/// whatever the range of the values, in a fixed amount of memory.
+///
+/// The values from 0 to 2*HALF-1 have a bucket each. Above, every power of two [2^e, 2^(e+1)) is cut into
+/// HALF buckets of equal width, so a value is known to within 1/HALF of itself (less than 1%).
+/// A percentile is reported as the largest value of its bucket (never more than the largest value recorded).
+///
+/// record() only increments a few counters atomically, so one histogram can be shared by all the threads
+/// without locking. The other methods read the counters while they may still change: their results are
+/// only consistent once the recording has stopped, which is good enough for monitoring.
+public class Histogram {
+
+    static final int HALF = 128; // buckets per power of two
+    static final int SHIFT = 7; // log2(HALF)
+    static final int SIZE = 2*HALF + (63 - SHIFT - 1) * HALF; // enough for any positive long
+
+    final AtomicLongArray counts = new AtomicLongArray(SIZE);
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong sum = new AtomicLong();
+    final AtomicLong max = new AtomicLong();
+
+    /// count a value (negative values count as 0)
+    public void record(long value) {
+	if (value < 0) {
+	    value = 0;
+	}
+	counts.incrementAndGet(bucket(value));
+	count.incrementAndGet();
+	sum.addAndGet(value);
+	long m;
+	while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+	}
+    }
+
+    /// the bucket of a value >= 0
+    static int bucket(long value) {
+	if (value < 2*HALF) {
+	    return (int) value;
+	}
+	int shift = 63 - Long.numberOfLeadingZeros(value) - SHIFT; // >= 1: value >>> shift is in [HALF, 2*HALF)
+	return 2*HALF + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /// the largest value that falls into bucket b
+    static long highest(int b) {
+	if (b < 2*HALF) {
+	    return b;
+	}
+	int shift = (b - 2*HALF) / HALF + 1;
+	long top = (b - 2*HALF) % HALF + HALF;
+	return ((top + 1) << shift) - 1;
+    }
+
+    public long count() {
+	return count.get();
+    }
+
+    public long sum() {
+	return sum.get();
+    }
+
+    public long max() {
+	return max.get();
+    }
+
+    public double mean() {
+	long n = count.get();
+	return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /// the value below which p percent of the values fall (0 if nothing was recorded)
+    public long percentile(double p) {
+	long n = count.get();
+	if (n == 0) {
+	    return 0;
+	}
+	long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+	long seen = 0;
+	for (int b=0; b<SIZE; b++) {
+	    seen += counts.get(b);
+	    if (seen >= rank) {
+		return Math.min(highest(b), max.get());
+	    }
+	}
+	return max.get();
+    }
+
+    /// the summary of the values as a JSON object, with the values divided by "unit"
+    /// (e.g., 1000 to show nanoseconds as microseconds)
+    public String toJson(double unit) {
+	return String.format(Locale.ROOT,
+			     "{\"count\": %d, \"mean\": %s, \"p50\": %s, \"p90\": %s, \"p99\": %s, \"p999\": %s, \"max\": %s, \"total\": %s}",
+			     count(), number(mean() / unit), number(percentile(50) / unit), number(percentile(90) / unit),
+			     number(percentile(99) / unit), number(percentile(99.9) / unit), number(max() / unit),
+			     number(sum() / unit));
+    }
+
+    /// a number for JSON: no decimals for an integer
+    static String number(double x) {
+	return x == Math.rint(x) && Math.abs(x) < 1e15 ? Long.toString((long) x) : String.format(Locale.ROOT, "%.3f", x);
+    }
+}
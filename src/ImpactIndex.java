@@ -0,0 +1,214 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class is the impact-ordered copy of the postings of an index, for score-at-a-time evaluation
+/// (see QueryEvaluator.scoreAtATime). IndexGeneration builds it with "-impact model" (see build()).
+///
+/// The weight of every posting is computed once with a ScoringModel (with a query term count of 1)
+/// and quantised to an integer "impact" from 1 to LEVELS: impact = ceil(weight/scale), where scale is
+/// the largest weight any posting can have (the upper bound of WAND, see QueryEvaluator.upperBound)
+/// divided by LEVELS. The postings of a term are then grouped by impact, the largest impact first,
+/// so a query can start with the postings that matter most and stop whenever it wants.
+/// A posting whose weight is not positive can't help a document, so it is left out.
+///
+/// Files:
+///                 + IndexFileName.imp: the impact lists of all the terms, one after the other.
+///                   The list of a term is vbyte(number of groups), then for every group (by decreasing impact):
+///                   vbyte(impact), vbyte(number of postings), vbyte(number of bytes of the documents), and
+///                   the document numbers in increasing order, as gaps in variable-byte code (see PostingFormat)
+///                 + IndexFileName.impx: int MAGIC, int VERSION, UTF model name, double param, int levels,
+///                   double scale, int number of terms, then for every term (in the order of the lexicon)
+///                   the position of its postings in IndexFileName.pos (long; it identifies the term),
+///                   and finally the position of the impact list of every term in IndexFileName.imp
+///                   (long), plus the end of the file.
+/// The impact lists are only for a single index: an index with segments (see IndexUpdate) has none.
+/// The positions are loaded when the index is opened (16 bytes per term), and the impact file is mapped
+/// (or read in one go when it is not on the local file system), so it must be smaller than 2GB.
+/// Nothing is modified after the index is opened, so one ImpactIndex can be shared by all the threads
+/// (each with its own view of the lists, see lists()).
+public class ImpactIndex {
+
+    public static final int MAGIC = 0x53494d50; // "SIMP"
+    public static final int VERSION = 1;
+
+    /// the number of impact values (8 bits)
+    public static final int LEVELS = 255;
+
+    public String modelName; // the retrieval model the impacts were computed with (see ScoringModel)
+    public double param; // and its parameter
+    public int levels;
+    public double scale; // the weight of one unit of impact
+
+    long [] keys; // the position in the posting file of the postings of every term, in increasing order
+    long [] offsets; // the impact list of term i is at offsets[i]..offsets[i+1]-1 in the impact file
+    ByteBuffer lists; // the impact file
+
+    /// open the impact lists of the index "indexName"
+    public ImpactIndex(FileSystem fs, String indexName) throws IOException {
+	DataInputStream din = new DataInputStream(new BufferedInputStream(fs.open(new Path(indexName + ".impx"))));
+	try {
+	    if (din.readInt() != MAGIC || din.readInt() != VERSION) {
+		throw new IOException(indexName + ".impx: unsupported format; please rebuild the index with IndexGeneration -impact");
+	    }
+	    modelName = din.readUTF();
+	    param = din.readDouble();
+	    levels = din.readInt();
+	    scale = din.readDouble();
+	    int n = din.readInt();
+	    keys = new long[n];
+	    for (int i=0; i<n; i++) {
+		keys[i] = din.readLong();
+	    }
+	    offsets = new long[n+1];
+	    for (int i=0; i<=n; i++) {
+		offsets[i] = din.readLong();
+	    }
+	} finally {
+	    din.close();
+	}
+	if (offsets[offsets.length-1] > Integer.MAX_VALUE) {
+	    throw new IOException(indexName + ".imp is larger than 2GB");
+	}
+	lists = IndexReader.readFile(fs, new Path(indexName + ".imp"), fs instanceof LocalFileSystem);
+    }
+
+    /// the retrieval model of the impacts, for the index they were built from
+    public ScoringModel model(IndexReader index) throws IOException {
+	if (index.segments != null) {
+	    throw new IOException("the index has segments (see IndexUpdate): its impact lists are out of date");
+	}
+	return ScoringModel.create(modelName, index, param);
+    }
+
+    /// a view of the impact file, with its own position (a ByteBuffer can't be shared by several threads)
+    public ByteBuffer lists() {
+	return lists.duplicate();
+    }
+
+    /// the position of the impact list of a term in the impact file
+    public int find(IndexReader.Entry entry) throws IOException {
+	int i = Arrays.binarySearch(keys, entry.pos);
+	if (i < 0) {
+	    throw new IOException("no impact list for the term at position " + entry.pos + "; the impacts don't match the index");
+	}
+	return (int) offsets[i];
+    }
+
+
+    /// compute the impacts of all the postings of the index "indexName" with a retrieval model and write the impact lists
+    public static void build(FileSystem fs, String indexName, String modelName, double param, IndexGeneration.Progress progress)
+	throws IOException {
+	IndexReader index = new IndexReader(fs, indexName);
+	try {
+	    if (index.segments != null) {
+		throw new IOException(indexName + " has segments: impacts can only be computed for a single index");
+	    }
+	    ScoringModel model = ScoringModel.create(modelName, index, param);
+	    if (model.adjusts()) {
+		throw new IOException("impacts can't be computed with " + model + ": its scores are adjusted after the weights are added");
+	    }
+
+	    // the scale: the largest weight of any posting, from the bounds of the terms
+	    double max = 0;
+	    Lexicon.Scanner s = index.lex.scan();
+	    while (s.next()) {
+		max = Math.max(max, model.term(s.entry, 1).weight(s.entry.maxTF, model.norm(index.minDocLen)));
+	    }
+	    double scale = max > 0 ? max / LEVELS : 1;
+
+	    int n = index.lex.size();
+	    long [] keys = new long[n];
+	    long [] offsets = new long[n+1];
+	    FSDataOutputStream out = fs.create(new Path(indexName + ".imp"), true);
+	    DataOutputStream imp = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+	    try {
+		PostingCursor cursor = index.openCursor();
+		double [] norms = model.norms;
+		long [] postings = new long[1024]; // (LEVELS - impact) << 32 | doc, to sort by impact then document
+		ByteArrayOutputStream list = new ByteArrayOutputStream(); // the impact list of the current term
+		ByteArrayOutputStream group = new ByteArrayOutputStream();
+		long pos = 0;
+		s = index.lex.scan();
+		for (int t=0; s.next(); t++) {
+		    IndexReader.Entry entry = s.entry;
+		    keys[t] = entry.pos;
+		    offsets[t] = pos;
+		    if (postings.length < entry.df) {
+			postings = new long[entry.df];
+		    }
+		    ScoringModel.Term term = model.term(entry, 1);
+		    int m = 0;
+		    cursor.open(entry);
+		    for (int len; (len = cursor.nextBlock()) > 0; ) {
+			for (int i=0; i<len; i++) {
+			    int doc = cursor.docs[i];
+			    double w = term.weight(cursor.freqs[i], norms[doc]);
+			    if (w > 0) {
+				int impact = (int) Math.min(LEVELS, Math.max(1, Math.ceil(w / scale)));
+				postings[m++] = (long) (LEVELS - impact) << 32 | doc;
+			    }
+			}
+		    }
+		    Arrays.sort(postings, 0, m);
+
+		    int groups = 0;
+		    for (int i=0; i<m; i++) {
+			if (i == 0 || (postings[i] >>> 32) != (postings[i-1] >>> 32)) {
+			    groups++;
+			}
+		    }
+		    list.reset();
+		    PostingFormat.writeVByte(list, groups);
+		    for (int start=0, end; start<m; start=end) {
+			long impact = postings[start] >>> 32;
+			group.reset();
+			int prev = 0;
+			for (end=start; end<m && (postings[end] >>> 32) == impact; end++) {
+			    int doc = (int) postings[end];
+			    PostingFormat.writeVByte(group, doc - prev);
+			    prev = doc;
+			}
+			PostingFormat.writeVByte(list, LEVELS - (int) impact);
+			PostingFormat.writeVByte(list, end - start);
+			PostingFormat.writeVByte(list, group.size());
+			group.writeTo(list);
+		    }
+		    list.writeTo(imp);
+		    pos += list.size();
+		    progress.add(1);
+		}
+		offsets[n] = pos;
+	    } finally {
+		imp.close();
+	    }
+
+	    DataOutputStream impx = new DataOutputStream(new BufferedOutputStream(fs.create(new Path(indexName + ".impx"), true)));
+	    try {
+		impx.writeInt(MAGIC);
+		impx.writeInt(VERSION);
+		impx.writeUTF(model.toString());
+		impx.writeDouble(model.param());
+		impx.writeInt(LEVELS);
+		impx.writeDouble(scale);
+		impx.writeInt(n);
+		for (long key : keys) {
+		    impx.writeLong(key);
+		}
+		for (long offset : offsets) {
+		    impx.writeLong(offset);
+		}
+	    } finally {
+		impx.close();
+	    }
+	} finally {
+	    index.close();
+	}
+    }
+}
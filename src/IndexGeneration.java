@@ -2,12 +2,13 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel; 
 import java.util.*;
+import java.util.concurrent.*;
 
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 
 
@@ -20,105 +21,340 @@ import org.apache.hadoop.fs.Path;
 /// and rewrite the postings to a new file and record the starting points of entries for each term
 /// in the term lexicon.
 ///
-/// Note that the generated posting file is actually very similar to the original inverted index file,
-/// so we could have kept the original inverted index file as the posting file, but in a polished
-/// inverted index, we would represent everything as integers and compress them, so this extra 
-/// step is conceptually necessary. 
+/// The generated posting file represents everything as integers and compresses them:
+/// every document is assigned a dense integer ID (0, 1, 2, ...) in the order it is first seen,
+/// and the postings of each term are sorted by this ID and stored as gaps in variable-byte code
+/// (see PostingFormat for the exact layout).
+/// The mapping back to the original document IDs is written to a separate table, so that
+/// the retrieval programs can use plain arrays indexed by document number.
+/// The lexicon is sorted by term with a sparse index (see Lexicon), so the retrieval programs
+/// can look up the query terms without loading it.
 ///
-/// usage: hadoop jar simir.jar IndexGeneration Path-to-rawPosting IndexFileName
-/// "path-to-rawposting" points to a raw inverted index/posting file generated by InvertedIndex
-/// (the current implementation can only take one file)
+/// usage: hadoop jar simir.jar IndexGeneration [-t threads] [-impact model [-param value]] [-bands b [-rows r]] [-hash] [-shards N] Path-to-rawPosting IndexFileName [Path-to-docLength]
+/// "path-to-rawposting" points to a raw inverted index/posting file generated by InvertedIndex (text or SequenceFile),
+/// whose lines must be sorted by term, as InvertedIndex writes them, or to the output directory of InvertedIndex
+/// or IndexJob. With a directory, every part-* file is turned into an index of its own, "threads" of them at
+/// the same time (by default, as many as there are processors), and these indexes are merged into one
+/// (see IndexMerger); the documents are then numbered in the order of the parts.
 ///  "IndexFileName" is the name (including the path) for the inverted index to be created.
-/// Two files will be generated: "IndexFileName.lex" for the lexicon and "IndexFileName.pos" for postings.
+/// Three files will be generated: "IndexFileName.lex" for the lexicon, "IndexFileName.pos" for postings
+/// and "IndexFileName.docs" for the document table (the original ID of document 0, 1, 2, ... in order).
+/// "Path-to-docLength" points to the document length table generated by ComputeDocLen, or to the
+/// output directory of ComputeDocLen or IndexJob (by default, "IndexFileName.dlen" if it exists).
+/// From it, two more files are generated:
+/// "IndexFileName.stats" with the collection statistics and "IndexFileName.doclen" with the length
+/// of every document in binary (see CollectionStats), so the retrieval programs don't have to parse it.
+/// With "-impact model", the weight of every posting is also computed with the retrieval model "model"
+/// (tfidf, bm25 or pivoted, see ScoringModel; "value" is its parameter, by default its default value)
+/// and the postings are copied in decreasing order of weight to "IndexFileName.imp" and "IndexFileName.impx",
+/// for score-at-a-time evaluation in Retrieval and kNN (see ImpactIndex).
+/// With "-bands b", the MinHash signatures of the documents are computed as well, in b bands of r rows
+/// (2 by default), and their keys are written to "IndexFileName.lsh", to find the candidates of kNN -lsh
+/// (see MinHashIndex).
+/// With "-hash", a hash table of the terms is written to "IndexFileName.lexh", so the retrieval programs
+/// look up the query terms in it instead of searching the lexicon (see TermHash).
+/// With "-shards N", the index is then split into N shards of documents, "IndexFileName.shard0" to
+/// "IndexFileName.shard<N-1>", which Retrieval and kNN -shards evaluate in parallel (see Shards and ShardCoordinator).
+/// "IndexFileName" keeps the lexicon and the statistics of the whole collection, with which every shard scores.
+/// "-shards" can't be combined with "-impact" or "-bands".
  
 public class IndexGeneration {
 
+    /// print the progress at most this often (in milliseconds)
+    static final long PROGRESS_INTERVAL = 10000;
+
     public static void main (String [] args) throws IOException {
 
 	/// the following is basic setup needed to access HDFS files
 	Configuration conf = new Configuration();
 	FileSystem fs = FileSystem.get(conf);
-	FSDataInputStream fin;
-	FSDataOutputStream foutposting, foutlexicon; 
+
+	// "-t threads": number of parts converted at the same time
+	int threads = 0;
+	String impactModel = null; // "-impact model": compute the impact lists with this model
+	double impactParam = Double.NaN; // "-param value": and this parameter
+	int bands = 0; // "-bands b": compute the MinHash signatures with b bands
+	int rows = 2; // "-rows r": of r rows
+	boolean termHash = false; // "-hash": write the hash table of the lexicon
+	int shards = 0; // "-shards N": split the index into N shards
+	while (args.length > 1 && args[0].startsWith("-")) {
+	    if (args[0].equals("-hash")) {
+		termHash = true;
+		args = Arrays.copyOfRange(args, 1, args.length);
+		continue;
+	    } else if (args[0].equals("-t")) {
+		threads = Integer.parseInt(args[1]);
+	    } else if (args[0].equals("-impact")) {
+		impactModel = args[1];
+	    } else if (args[0].equals("-param")) {
+		impactParam = Double.parseDouble(args[1]);
+	    } else if (args[0].equals("-bands")) {
+		bands = Integer.parseInt(args[1]);
+	    } else if (args[0].equals("-rows")) {
+		rows = Integer.parseInt(args[1]);
+	    } else if (args[0].equals("-shards")) {
+		shards = Integer.parseInt(args[1]);
+	    } else {
+		break;
+	    }
+	    args = Arrays.copyOfRange(args, 2, args.length);
+	}
+
+	if (shards > 0 && (impactModel != null || bands > 0)) {
+	    System.out.println("-shards can't be combined with -impact or -bands");
+	    System.exit(1);
+	}
 
 	try { 
-	    fin = fs.open(new Path(args[0] ));  // args[0] has the path to the raw inverted index
-	    foutposting = fs.create(new Path(args[1] + ".pos" )); // posting file with name in args[1]
-	    foutlexicon = fs.create(new Path(args[1] + ".lex")); // term lexicon with name in args[1]
-	    char c;
-	    String t=null;
-	    int progress=0;
-	    int freq;
-	    String x="";
-	    BufferedReader reader = new BufferedReader(new InputStreamReader(fin));
-	    while ((t=reader.readLine()) != null) {
-		//System.out.println(t);
-		// each line corresponds to all the entries for a different term
-		// it starts with the term itself with a sequence of (docID, termFreq) pairs 
-		// representing the documents containing the term as well as the corresponding term counts. 
-		StringTokenizer st = new StringTokenizer(t);
-		x = st.nextToken();
-		//System.out.println(x);
-		foutlexicon.writeUTF(x);  // fetch the first string (which is the term) and
-		// write it to the lexicon
-
-		int df=0; 
-		int count=0;
-		long pos = foutposting.getPos(); 
-		// remember the current position in the new posting file  
-		// so that we can easily calculate the span of the postings for this term later
-
-		while (st.hasMoreTokens()) {
-		    // iterate over all the (docID count) pairs and copy them to foutposting. 
-		    // first, copy the docID using foutposting.writeUTF. 
-		    x=st.nextToken();
-		    System.out.println(x);
-		    foutposting.writeUTF(x);
-		    
-		    if (st.hasMoreTokens()) {
-			// we should expect another token for the term frequency/count
-			freq = Integer.parseInt(st.nextToken().trim()); 
-			//#########################################################//
-			// add a statement here so that in the end of the loop "count" would have the total 
-			// count of the term in all the documents
-			// Hint: how to update "count"? 
-			// 
-			//#########################################################//
-			count = count + freq;
-			foutposting.writeInt(freq); // copy the term frequency/count to foutposting
-		    } else {
-			System.err.println("Term frequency is expected");
-		    }
+	    Path [] parts = rawParts(fs, new Path(args[0])); // args[0] has the path to the raw inverted index
+	    if (parts.length == 0) {
+		throw new IOException("no raw inverted index in " + args[0]);
+	    }
+	    Progress progress = new Progress("terms processed");
+	    IndexWriter index;
+	    if (parts.length == 1) {
+		index = new IndexWriter(fs, args[1]); // the index files with name in args[1]
+		convert(fs, conf, parts[0], index, progress);
+		index.close();
+	    } else {
+		// convert every part into an index of its own, several at a time, then merge them
+		String [] segments = new String[parts.length];
+		for (int i=0; i<parts.length; i++) {
+		    segments[i] = args[1] + ".seg" + i;
+		}
+		if (threads <= 0) {
+		    threads = Runtime.getRuntime().availableProcessors();
+		}
+		convertAll(fs, conf, parts, segments, Math.min(threads, parts.length), progress);
+		System.out.println(parts.length + " parts converted");
 
-		    //#########################################################//
-		    // add a statement here to use "df" to count how many documents contain the term 
-		    // Hint: how to update "df"? 
-		    // 
-		    //#########################################################//
-		    df = df + 1;
+		index = new IndexWriter(fs, args[1]);
+		IndexMerger.merge(fs, segments, index, new Progress("terms merged"));
+		index.close();
+		for (String segment : segments) {
+		    for (String ext : new String[] { ".pos", ".lex", ".docs" }) {
+			fs.delete(new Path(segment + ext), false);
+		    }
 		}
-		int len= new Long(foutposting.getPos()-pos).intValue(); // this tells us the span of the postering entries for this term
-
-		// the following four statements write out df, count, pos, and len to foutlexicon 
-		// recall that the term was already written to foutlexicon. 
-		foutlexicon.writeInt(df);
-		foutlexicon.writeInt(count);
-		foutlexicon.writeLong(pos);
-		foutlexicon.writeInt(len);
-		progress++;
-		System.out.println(df + " " + count);
-		if (progress % 5000 ==0) {
-		    System.out.println(progress + " terms processed"); 
+	    }
+	    System.out.println(index.numDocs() + " documents indexed");
+	    // a new index replaces the segments an earlier IndexUpdate may have added
+	    // (and the hash table of an earlier lexicon, which IndexReader would open)
+	    // (and the shards of an earlier index)
+	    fs.delete(new Path(args[1] + ".segments"), false);
+	    fs.delete(new Path(args[1] + ".lexh"), false);
+	    Shards.delete(fs, args[1]);
+
+	    // precompute the collection statistics and the document lengths
+	    Path docLength = new Path(args.length > 2 ? args[2] : args[1] + ".dlen");
+	    if (fs.exists(docLength)) {
+		CollectionStats stats = CollectionStats.parse(readDocLengths(fs, docLength), index.docNum, index.numDocs());
+		stats.totalTermCount = index.totalTermCount();
+		stats.write(fs, args[1]);
+		System.out.println(stats.totalDocCount + " document lengths stored");
+	    } else {
+		System.out.println("no document length table (" + docLength + "): the retrieval programs will read " + args[1] + ".dlen");
+	    }
+
+	    if (impactModel != null) {
+		ImpactIndex.build(fs, args[1], impactModel, impactParam, new Progress("impact lists written"));
+		System.out.println("impact lists written with " + impactModel);
+	    } else {
+		// impact lists of an earlier index would not match this one
+		fs.delete(new Path(args[1] + ".imp"), false);
+		fs.delete(new Path(args[1] + ".impx"), false);
+	    }
+	    if (termHash) {
+		TermHash.build(fs, args[1], new Progress("terms hashed"));
+		System.out.println("hash table of the lexicon written");
+	    }
+	    if (bands > 0) {
+		MinHashIndex.build(fs, args[1], bands, rows, new Progress("terms hashed"));
+		System.out.println("signatures written with " + bands + " bands of " + rows + " rows");
+	    } else {
+		fs.delete(new Path(args[1] + ".lsh"), false);
+	    }
+	    if (shards > 0) {
+		Segments list = Shards.split(fs, args[1], shards, new Progress("terms split"));
+		if (termHash) {
+		    for (int s=0; s<list.size(); s++) {
+			TermHash.build(fs, list.path(s), new Progress("terms hashed"));
+		    }
 		}
+		System.out.println("index split into " + list.size() + " shards");
 	    }
-	    foutlexicon.close();
-	    foutposting.close(); 
 	} catch (IOException ioe) {
+	    System.out.println(ioe.getMessage());
 	    System.out.println("can't open file "+args[0] + " or can't create the term index lexicon:"  + args[1]); 
             System.exit(1);
 	}
 	
 	
     }
+
+    /// go through a raw inverted index file sequentially and add the terms to "index"
+    static void convert(FileSystem fs, Configuration conf, Path raw, IndexWriter index, Progress progress) throws IOException {
+	RawPostingReader fin = RawPostingReader.open(fs, raw, conf);
+	int freq;
+	String x="";
+	// the postings of the current term, packed as (docID << 32 | freq) so that they can be sorted by docID
+	long [] postings = new long[1024];
+	while (fin.next()) {
+	    // each entry corresponds to all the entries for a different term:
+	    // the term itself with a sequence of (docID, termFreq) pairs 
+	    // representing the documents containing the term as well as the corresponding term counts. 
+	    String term = fin.term;
+	    //System.out.println(term);
+
+	    int df=0; 
+	    int count=0;
+	    int maxTF=0; // the largest count of the term in a single document
+
+	    if (postings.length < fin.df) {
+		postings = new long[fin.df];
+	    }
+	    for (int i=0; i<fin.df; i++) {
+		// iterate over all the (docID count) pairs and collect them in "postings". 
+		// first, look up (or assign) the integer ID of the document. 
+		x=fin.docs[i];
+		int d = index.docNumber(x);
+		    
+		freq = fin.freqs[i];
+		//#########################################################//
+		// add a statement here so that in the end of the loop "count" would have the total 
+		// count of the term in all the documents
+		// Hint: how to update "count"? 
+		// 
+		//#########################################################//
+		count = count + freq;
+		maxTF = Math.max(maxTF, freq);
+		postings[df] = ((long) d << 32) | freq; 
+
+		//#########################################################//
+		// add a statement here to use "df" to count how many documents contain the term 
+		// Hint: how to update "df"? 
+		// 
+		//#########################################################//
+		df = df + 1;
+	    }
+
+	    // the raw index is sorted by term, which is the order the lexicon needs
+	    index.addTerm(term, postings, df, count, maxTF);
+	    progress.add(1);
+	}
+	fin.close();
+    }
+
+    /// convert parts[i] into the index segments[i], "threads" parts at a time
+    static void convertAll(final FileSystem fs, final Configuration conf, Path [] parts, String [] segments,
+			   int threads, final Progress progress) throws IOException {
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    ArrayList<Future<?>> done = new ArrayList<Future<?>>();
+	    for (int i=0; i<parts.length; i++) {
+		final Path part = parts[i];
+		final String segment = segments[i];
+		done.add(pool.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+			    IndexWriter index = new IndexWriter(fs, segment);
+			    convert(fs, conf, part, index, progress);
+			    index.close();
+			    return null;
+			}
+		    }));
+	    }
+	    for (Future<?> f : done) {
+		try {
+		    f.get();
+		} catch (ExecutionException e) {
+		    if (e.getCause() instanceof IOException) {
+			throw (IOException) e.getCause();
+		    }
+		    throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+		    throw new InterruptedIOException("interrupted while converting " + parts.length + " parts");
+		}
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+    }
+
+    /// the raw inverted index files: "path" itself, or the part-* files of an output directory
+    /// of InvertedIndex or IndexJob (the named outputs of IndexJob are left out)
+    static Path [] rawParts(FileSystem fs, Path path) throws IOException {
+	if (!fs.getFileStatus(path).isDir()) {
+	    return new Path[] { path };
+	}
+	ArrayList<Path> files = new ArrayList<Path>();
+	for (FileStatus file : fs.listStatus(path)) {
+	    if (!file.isDir() && file.getPath().getName().startsWith("part-")) {
+		files.add(file.getPath());
+	    }
+	}
+	Collections.sort(files, BY_NAME);
+	return files.toArray(new Path[files.size()]);
+    }
+
+    /// This class counts the terms processed (by one or several threads) and
+    /// prints how many there are at most once every PROGRESS_INTERVAL
+    public static class Progress {
+
+	String what;
+	long count = 0;
+	long last = System.currentTimeMillis();
+
+	public Progress(String what) {
+	    this.what = what;
+	}
+
+	public synchronized void add(int n) {
+	    count += n;
+	    long now = System.currentTimeMillis();
+	    if (now - last >= PROGRESS_INTERVAL) {
+		last = now;
+		System.out.println(count + " " + what);
+	    }
+	}
+    }
+
+    /// the order of the part files (Path is a raw Comparable in this version of Hadoop)
+    static final Comparator<Path> BY_NAME = new Comparator<Path>() {
+	public int compare(Path a, Path b) {
+	    return a.toString().compareTo(b.toString());
+	}
+    };
+
+    /// read the whole document length table: "path" is either a file, or a directory with the
+    /// doclen-* files of IndexJob (or, if there are none, the part-* files of ComputeDocLen)
+    static ByteBuffer readDocLengths(FileSystem fs, Path path) throws IOException {
+	boolean local = fs instanceof LocalFileSystem;
+	if (!fs.getFileStatus(path).isDir()) {
+	    return IndexReader.readFile(fs, path, local);
+	}
+	ArrayList<Path> files = new ArrayList<Path>();
+	for (String prefix : new String[] { IndexJob.DOCLEN + "-", "part-" }) {
+	    for (FileStatus file : fs.listStatus(path)) {
+		if (!file.isDir() && file.getPath().getName().startsWith(prefix)) {
+		    files.add(file.getPath());
+		}
+	    }
+	    if (!files.isEmpty()) {
+		break;
+	    }
+	}
+	Collections.sort(files, BY_NAME);
+	ByteArrayOutputStream all = new ByteArrayOutputStream();
+	for (Path file : files) {
+	    ByteBuffer buf = IndexReader.readFile(fs, file, local);
+	    byte [] bytes = new byte[buf.remaining()];
+	    buf.get(bytes);
+	    all.write(bytes);
+	    if (bytes.length > 0 && bytes[bytes.length-1] != '\n') {
+		all.write('\n');
+	    }
+	}
+	return ByteBuffer.wrap(all.toByteArray());
+    }
     
 }
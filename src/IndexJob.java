@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This is InvertedIndex and ComputeDocLen in a single pass over the collection:
+ * the mapper already counts the words of every document, so it can write the
+ * document lengths at the same time, and the reducer, which sees all the postings
+ * of a term, writes its document frequency and total count (cf).
+ *
+ * To run: hadoop jar simir.jar IndexJob
+ *            [-m <i>maps</i>] [-r <i>reduces</i>] [-seq] [-lower] [-stop <i>file</i>] <i>in-dir</i> <i>out-dir</i>
+ * The input and the options are the same as for InvertedIndex.
+ * The "out-dir" must not already exist; it gets three kinds of files:
+ *   part-NNNNN: the raw inverted index, as written by InvertedIndex
+ *   doclen-m-NNNNN: the document length table ("docID length" lines), as written by ComputeDocLen
+ *   termstats-r-NNNNN: "term df cf" lines
+ * and the index can be generated with
+ *   hadoop jar simir.jar IndexGeneration out-dir IndexFileName out-dir
+ * (IndexGeneration reads all the part-* files and the doclen-* files of the directory).
+ */
+public class IndexJob extends Configured implements Tool {
+
+  /** the named output of the document lengths */
+  public static final String DOCLEN = "doclen";
+  /** the named output of the term statistics */
+  public static final String TERMSTATS = "termstats";
+
+  /**
+   * The Mapper of InvertedIndex, which also emits
+   * (<b>document ID</b>, <b>length</b>) to the named output "doclen".
+   */
+  public static class MapClass extends InvertedIndex.MapClass {
+
+    MultipleOutputs mos;
+    private Text did = new Text();
+    private IntWritable len = new IntWritable();
+
+    public void configure(JobConf job) {
+      super.configure(job);
+      mos = new MultipleOutputs(job);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void endDocument(byte [] docID, int start, int end, int length, Reporter reporter) throws IOException {
+      did.set(docID, start, end - start);
+      len.set(length);
+      mos.getCollector(DOCLEN, reporter).collect(did, len);
+    }
+
+    public void close() throws IOException {
+      try {
+        mos.close();
+      } finally {
+        super.close();
+      }
+    }
+  }
+
+  /**
+   * The Reducer of InvertedIndex, which also emits
+   * (<b>term</b>, <b>df cf</b>) to the named output "termstats".
+   * (InvertedIndex.Reduce is still the combiner: it only sees a part of the postings.)
+   */
+  public static class Reduce extends InvertedIndex.Reduce {
+
+    MultipleOutputs mos;
+    private Text stats = new Text();
+
+    public void configure(JobConf job) {
+      super.configure(job);
+      mos = new MultipleOutputs(job);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void reduce(Text key, Iterator<PostingListWritable> values,
+                       OutputCollector<Text, PostingListWritable> output,
+                       Reporter reporter) throws IOException {
+      super.reduce(key, values, output, reporter);
+      long cf = 0;
+      for (int i=0; i<sum.size(); i++) {
+        cf += sum.count(i);
+      }
+      stats.set(sum.size() + "\t" + cf);
+      mos.getCollector(TERMSTATS, reporter).collect(key, stats);
+    }
+
+    public void close() throws IOException {
+      try {
+        mos.close();
+      } finally {
+        super.close();
+      }
+    }
+  }
+
+  static int printUsage() {
+    System.out.println("IndexJob [-m <maps>] [-r <reduces>] [-seq] [-lower] [-stop <file>] <input> <output>");
+    ToolRunner.printGenericCommandUsage(System.out);
+    return -1;
+  }
+
+  /**
+   * The main driver for the single-pass indexing map/reduce program.
+   * Invoke this method to submit the map/reduce job.
+   * @throws IOException When there is communication problems with the
+   *                     job tracker.
+   */
+  public int run(String[] args) throws Exception {
+    JobConf conf = new JobConf(getConf(), IndexJob.class);
+    conf.setJobName("indexjob");
+
+    // the keys are words (strings)
+    conf.setOutputKeyClass(Text.class);
+    // the values are lists of postings
+    conf.setOutputValueClass(PostingListWritable.class);
+
+    conf.setMapperClass(MapClass.class);
+    conf.setCombinerClass(InvertedIndex.Reduce.class);
+    conf.setReducerClass(Reduce.class);
+
+    MultipleOutputs.addNamedOutput(conf, DOCLEN, TextOutputFormat.class, Text.class, IntWritable.class);
+    MultipleOutputs.addNamedOutput(conf, TERMSTATS, TextOutputFormat.class, Text.class, Text.class);
+
+    List<String> other_args = new ArrayList<String>();
+    for(int i=0; i < args.length; ++i) {
+      try {
+        if ("-m".equals(args[i])) {
+          conf.setNumMapTasks(Integer.parseInt(args[++i]));
+        } else if ("-r".equals(args[i])) {
+          conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+        } else if ("-seq".equals(args[i])) {
+          conf.setOutputFormat(SequenceFileOutputFormat.class);
+        } else if ("-lower".equals(args[i])) {
+          conf.setBoolean(InvertedIndex.LOWERCASE, true);
+        } else if ("-stop".equals(args[i])) {
+          conf.set(InvertedIndex.STOPWORDS, args[++i]);
+        } else {
+          other_args.add(args[i]);
+        }
+      } catch (NumberFormatException except) {
+        System.out.println("ERROR: Integer expected instead of " + args[i]);
+        return printUsage();
+      } catch (ArrayIndexOutOfBoundsException except) {
+        System.out.println("ERROR: Required parameter missing from " +
+                           args[i-1]);
+        return printUsage();
+      }
+    }
+    // Make sure there are exactly 2 parameters left.
+    if (other_args.size() != 2) {
+      System.out.println("ERROR: Wrong number of parameters: " +
+                         other_args.size() + " instead of 2.");
+      return printUsage();
+    }
+    FileInputFormat.setInputPaths(conf, other_args.get(0));
+    FileOutputFormat.setOutputPath(conf, new Path(other_args.get(1)));
+
+    JobClient.runJob(conf);
+    return 0;
+  }
+
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new IndexJob(), args);
+    System.exit(res);
+  }
+
+}
@@ -0,0 +1,146 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableComparator;
+
+
+/// This class merges several indexes (the .pos, .lex and .docs files written by IndexWriter) into one.
+///
+/// The lexicons are sorted, so they are merged like sorted lists: every index is read one term at a time
+/// (see Lexicon.Scanner) and the smallest term of all of them is written next. The postings of a term
+/// that is in several indexes are put together.
+/// The documents are numbered again in the merged index: first those of inputs[0] in their order,
+/// then those of inputs[1] that were not in inputs[0], and so on. Since the document numbers change,
+/// the postings are decoded and compressed again (see PostingFormat); nothing else is ever decoded.
+/// A document in several inputs gets a single number, and if a term has postings for the same
+/// document in several inputs, their counts are added.
+public class IndexMerger {
+
+    /// one of the indexes being merged
+    static class Segment {
+	Lexicon.Scanner terms;
+	FSDataInputStream postings;
+	int [] docMap; // docMap[d] is the number of document d in the merged index
+	int blockSize;
+    }
+
+    /// merge the indexes "inputs" (names including the path) into "out"
+    /// progress: counts the terms written (may be null)
+    public static void merge(FileSystem fs, String [] inputs, IndexWriter out, IndexGeneration.Progress progress) throws IOException {
+	boolean local = fs instanceof LocalFileSystem;
+	Segment [] segments = new Segment[inputs.length];
+	PriorityQueue<Segment> queue = new PriorityQueue<Segment>(Math.max(1, inputs.length), new Comparator<Segment>() {
+		public int compare(Segment a, Segment b) {
+		    return WritableComparator.compareBytes(a.terms.bytes, 0, a.terms.length, b.terms.bytes, 0, b.terms.length);
+		}
+	    });
+	try {
+	    for (int s=0; s<inputs.length; s++) {
+		Segment seg = new Segment();
+		segments[s] = seg;
+		seg.postings = fs.open(new Path(inputs[s] + ".pos"));
+		seg.blockSize = PostingFormat.readHeader(seg.postings);
+
+		// give the documents of this index their number in the merged index
+		ByteBuffer buf = IndexReader.readFile(fs, new Path(inputs[s] + ".docs"), local);
+		int [] docMap = new int[1024];
+		int n = 0;
+		while (buf.hasRemaining()) {
+		    if (n == docMap.length) {
+			docMap = Arrays.copyOf(docMap, 2*n);
+		    }
+		    docMap[n++] = out.docNumber(IndexReader.readUTF(buf));
+		}
+		seg.docMap = docMap;
+
+		seg.terms = new Lexicon(IndexReader.readFile(fs, new Path(inputs[s] + ".lex"), local)).scan();
+		if (seg.terms.next()) {
+		    queue.add(seg);
+		}
+	    }
+
+	    ArrayList<Segment> same = new ArrayList<Segment>();
+	    long [] postings = new long[1024];
+	    int [] docs = new int[1024];
+	    int [] freqs = new int[1024];
+	    byte [] bytes = new byte[1024];
+	    while (!queue.isEmpty()) {
+		// take all the indexes whose current term is the smallest one
+		same.clear();
+		same.add(queue.poll());
+		while (!queue.isEmpty() && queue.comparator().compare(queue.peek(), same.get(0)) == 0) {
+		    same.add(queue.poll());
+		}
+		String term = same.get(0).terms.term;
+
+		// collect their postings, packed as (docID << 32 | freq) with the new document numbers
+		int df = 0;
+		for (Segment seg : same) {
+		    IndexReader.Entry entry = seg.terms.entry;
+		    if (bytes.length < entry.length) {
+			bytes = new byte[Math.max(2*bytes.length, entry.length)];
+		    }
+		    seg.postings.readFully(entry.pos, bytes, 0, entry.length);
+		    ByteBuffer in = ByteBuffer.wrap(bytes, 0, entry.length);
+		    if (postings.length < df + entry.df) {
+			postings = Arrays.copyOf(postings, Math.max(2*postings.length, df + entry.df));
+		    }
+		    if (docs.length < seg.blockSize) {
+			docs = new int[seg.blockSize];
+			freqs = new int[seg.blockSize];
+		    }
+		    int last = 0;
+		    for (int left=entry.df; left>0; left-=seg.blockSize) {
+			int n = Math.min(seg.blockSize, left);
+			last = PostingFormat.readBlock(in, last, n, docs, freqs);
+			for (int i=0; i<n; i++) {
+			    postings[df++] = ((long) seg.docMap[docs[i]] << 32) | freqs[i];
+			}
+		    }
+		}
+
+		// add the counts of the same document in different indexes
+		if (same.size() > 1) {
+		    Arrays.sort(postings, 0, df);
+		    int m = 0;
+		    for (int i=0; i<df; i++) {
+			if (m > 0 && (postings[m-1] >>> 32) == (postings[i] >>> 32)) {
+			    postings[m-1] += (int) postings[i];
+			} else {
+			    postings[m++] = postings[i];
+			}
+		    }
+		    df = m;
+		}
+		int count = 0;
+		int maxTF = 0;
+		for (int i=0; i<df; i++) {
+		    int freq = (int) postings[i];
+		    count += freq;
+		    maxTF = Math.max(maxTF, freq);
+		}
+		out.addTerm(term, postings, df, count, maxTF);
+		if (progress != null) {
+		    progress.add(1);
+		}
+
+		for (Segment seg : same) {
+		    if (seg.terms.next()) {
+			queue.add(seg);
+		    }
+		}
+	    }
+	} finally {
+	    for (Segment seg : segments) {
+		if (seg != null && seg.postings != null) {
+		    seg.postings.close();
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class opens an inverted index generated by IndexGeneration (plus the document length
+/// table generated by ComputeDocLen) and gives access to it. It is shared by Retrieval and kNN.
+///
+/// The index files are:
+///                 + InvertedIndexFileName.lex: lexicon
+///                 + InvertedIndexFileName.pos: posting
+///                 + InvertedIndexFileName.dlen: doc length
+///                 + InvertedIndexFileName.docs: document table (integer ID -> original doc ID)
+///                 + InvertedIndexFileName.stats and .doclen: collection statistics and doc lengths in binary
+///                   (see CollectionStats; when they are missing, the text .dlen is parsed instead)
+///                 + InvertedIndexFileName.lexh: a hash table of the terms, if IndexGeneration built one (see TermHash)
+///
+/// When the index is on the local file system, the files are memory-mapped with FileChannel.map,
+/// and the postings are decoded directly from the mapped pages (nothing is copied).
+/// Otherwise (e.g., the index is on HDFS), the small files are read in one go, and the postings
+/// of a term are fetched with a single positional read when they are needed.
+///
+/// The lexicon is not loaded: terms are looked up in the file (see Lexicon), or in its hash table when
+/// there is one (see TermHash), so opening an index takes about the same time and memory whatever the
+/// size of the vocabulary. The document table stays in its file as well (see DocTable): only the document
+/// lengths are loaded on the Java heap, as one array of ints.
+///
+/// An index updated with IndexUpdate has several segments (listed in InvertedIndexFileName.segments,
+/// see Segments), and every segment is opened as an index of its own. The document numbers of the
+/// segments follow each other, the collection statistics are those of all the segments together, and
+/// the lexicon entry of a term adds up its entries in the segments, so the scores are the same
+/// as with a single index of all the documents (see MultiPostingCursor for the postings).
+/// The shards of a sharded index (see Shards) are opened in the same way, when the whole index is opened.
+///
+/// A shard opened on its own (e.g., by ShardCoordinator) scores its documents with the statistics of the
+/// whole collection (see GlobalStats): totalDocCount, avgDocLen and totalTermCount are those of all the
+/// shards, and getEntry() returns the entries of the shard with the entry of the term in the whole collection
+/// (see Entry.stats()), even for a term that has no postings in the shard.
+///
+/// The document table and the statistics are loaded once and never modified,
+/// so one IndexReader can be used by several threads, as long as every thread has its own
+/// PostingCursor (see openCursor()).
+public class IndexReader {
+
+    /// This class defines the type Entry to pack all the information about a term stored in a lexicon entry.
+    public static class Entry {
+	public int df; // document frequency
+	public int count; // term count in the collection
+	public long pos; // start position of entries in the posting file
+	public int length; // span of postering entries
+	public int maxTF; // the largest count of the term in a single document
+	Entry [] segments; // the entry of the term in every segment (null where it has no postings), in an index with segments
+	Entry global = null; // the entry of the term in the whole collection, in a shard of a sharded index
+	Entry(int d, int c, long p, int l, int m) {
+	    pos=p;
+	    length = l;
+	    df =d;
+	    count=c;
+	    maxTF=m;
+	}
+
+	/// the entry with the statistics of the term in the whole collection (df and count), to score it:
+	/// its entry in all the shards for a shard of a sharded index, this entry otherwise
+	public Entry stats() {
+	    return global != null ? global : this;
+	}
+    }
+
+    /// a mapped file is split into chunks of this size, since one mapping can't exceed 2GB
+    static final long CHUNK_SIZE = 1L << 30;
+
+    // the lexicon: terms are looked up in the file when they are needed (in its hash table if there is one)
+    Lexicon lex;
+    TermHash termHash = null;
+
+    // Table of the original docIDs: docs.name(d) is the docID of document number d
+    public DocTable docs;
+
+    // Document lengths, indexed by document number
+    public int [] dlen;
+
+    public int totalDocCount = 0; // number of documents in the collection (including those without postings)
+    public double avgDocLen = 0; // average document length
+    public int minDocLen = Integer.MAX_VALUE; // length of the shortest document with a document number
+    public long totalTermCount = 0; // the sum of the total count of *all* the terms in the collection
+
+    int blockSize; // number of postings in a block of the posting file
+
+    // the posting file, either mapped (postingChunks[i] starts at offset i*CHUNK_SIZE) or opened as a stream
+    ByteBuffer [] postingChunks = null;
+    FSDataInputStream finposting = null;
+
+    // the segments of an index updated with IndexUpdate (null for a single index)
+    IndexReader [] segments = null;
+    int [] bases; // the documents of segment i have the numbers bases[i] to bases[i+1]-1
+
+    // the statistics of the whole index
+    CollectionStats stats;
+
+    // the statistics of the whole collection, for a shard of a sharded index (null otherwise)
+    GlobalStats global = null;
+
+    // the decoded posting lists of the most used terms (null if there is no cache)
+    PostingCache postingCache = null;
+
+    /// open the index with the name "indexName" (including the path)
+    public IndexReader(FileSystem fs, String indexName) throws IOException {
+	this(fs, indexName, list(fs, indexName));
+    }
+
+    /// the segments of an index updated with IndexUpdate, or the shards of a sharded index
+    /// (null for a single index)
+    static Segments list(FileSystem fs, String indexName) throws IOException {
+	Segments list = Segments.read(fs, indexName);
+	return list != null ? list : Segments.read(fs, indexName, Segments.SHARDS);
+    }
+
+    /// open an index; if "list" is not null, the index is made of its segments
+    IndexReader(FileSystem fs, String indexName, Segments list) throws IOException {
+	if (list != null) {
+	    openSegments(fs, list);
+	    return;
+	}
+	boolean local = fs instanceof LocalFileSystem;
+
+	// check the version of the index before reading anything else
+	Path posting = new Path(indexName + ".pos");
+	finposting = fs.open(posting);
+	blockSize = PostingFormat.readHeader(finposting);
+
+	// open the lexicon (nothing is loaded until terms are looked up)
+	lex = new Lexicon(readFile(fs, new Path(indexName + ".lex"), local));
+	int maxLength = lex.maxLength;
+	Path hash = new Path(indexName + ".lexh");
+	if (fs.exists(hash)) {
+	    termHash = new TermHash(readFile(fs, hash, local), lex, hash.toString());
+	}
+
+	// open the document table
+	docs = new DocTable(readFile(fs, new Path(indexName + ".docs"), local));
+
+	// load the document lengths and the collection statistics, precomputed by IndexGeneration if it could
+	CollectionStats stats = CollectionStats.read(fs, indexName, local);
+	if (stats == null) {
+	    // an index built without the document length table: compute them from the table now
+	    stats = CollectionStats.parse(readFile(fs, new Path(indexName + ".dlen"), local), docNumbers(), docs.size());
+	    stats.totalTermCount = lex.totalTermCount;
+	} else if (stats.dlen.length != docs.size()) {
+	    throw new IOException(indexName + ".stats doesn't match the document table; please rebuild the index with IndexGeneration");
+	}
+	setStats(stats);
+
+	// a shard scores its documents with the statistics of all the shards
+	// (minDocLen stays that of the shard: it only bounds the weights of its own documents, see QueryEvaluator.wand)
+	global = GlobalStats.forShard(fs, indexName);
+	if (global != null) {
+	    totalDocCount = global.totalDocCount();
+	    avgDocLen = global.avgDocLen();
+	    totalTermCount = global.totalTermCount();
+	}
+
+	// map the postings if we can; otherwise we keep reading them from finposting
+	if (local && CHUNK_SIZE + maxLength <= Integer.MAX_VALUE) {
+	    // every chunk overlaps the next one by the longest posting list,
+	    // so the postings of a term can always be found in the chunk where they start
+	    RandomAccessFile file = new RandomAccessFile(((LocalFileSystem) fs).pathToFile(posting), "r");
+	    FileChannel channel = file.getChannel();
+	    long size = channel.size();
+	    postingChunks = new ByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+	    for (int i=0; i<postingChunks.length; i++) {
+		long start = i*CHUNK_SIZE;
+		postingChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size-start, CHUNK_SIZE+maxLength));
+	    }
+	    file.close(); // the mappings stay valid after the file is closed
+	    finposting.close();
+	    finposting = null;
+	}
+    }
+
+    /// open the segments of an index and put their documents and statistics together
+    void openSegments(FileSystem fs, Segments list) throws IOException {
+	segments = new IndexReader[list.size()];
+	bases = new int[list.size() + 1];
+	CollectionStats all = new CollectionStats();
+	DocTable [] tables = new DocTable[segments.length];
+	int numDocs = 0;
+	try {
+	    for (int i=0; i<segments.length; i++) {
+		segments[i] = new IndexReader(fs, list.path(i), null);
+		IndexReader seg = segments[i];
+		bases[i] = numDocs;
+		tables[i] = seg.docs;
+		numDocs += seg.numDocs();
+		blockSize = Math.max(blockSize, seg.blockSize);
+		all.totalDocCount += seg.stats.totalDocCount;
+		all.totalDocLen += seg.stats.totalDocLen;
+		all.minDocLen = Math.min(all.minDocLen, seg.stats.minDocLen);
+		all.totalTermCount += seg.stats.totalTermCount;
+	    }
+	} catch (IOException e) {
+	    close();
+	    throw e;
+	}
+	bases[segments.length] = numDocs;
+	docs = new DocTable(tables);
+	all.dlen = new int[numDocs];
+	for (int i=0; i<segments.length; i++) {
+	    System.arraycopy(segments[i].dlen, 0, all.dlen, bases[i], segments[i].dlen.length);
+	}
+	setStats(all);
+    }
+
+    void setStats(CollectionStats stats) {
+	this.stats = stats;
+	dlen = stats.dlen;
+	totalDocCount = stats.totalDocCount;
+	avgDocLen = stats.avgDocLen();
+	minDocLen = stats.minDocLen;
+	totalTermCount = stats.totalTermCount;
+    }
+
+    /// fetch the lexicon entry for a term (null if the term is not in the collection)
+    public Entry getEntry(String term) {
+	if (segments == null) {
+	    Entry e = termHash != null ? termHash.get(term) : lex.get(term);
+	    if (global == null) {
+		return e;
+	    }
+	    // a shard: a term of the collection is scored (and counted in the query) even without postings here
+	    Entry g = global.get(term);
+	    if (g == null) {
+		return null;
+	    }
+	    if (e == null) {
+		e = new Entry(0, 0, 0, 0, 0);
+	    }
+	    e.global = g;
+	    return e;
+	}
+	Entry sum = null;
+	Entry [] parts = new Entry[segments.length];
+	for (int i=0; i<segments.length; i++) {
+	    Entry e = segments[i].getEntry(term);
+	    if (e != null) {
+		if (sum == null) {
+		    sum = new Entry(0, 0, 0, 0, 0);
+		    sum.segments = parts;
+		}
+		parts[i] = e;
+		sum.df += e.df;
+		sum.count += e.count;
+		sum.length += e.length;
+		sum.maxTF = Math.max(sum.maxTF, e.maxTF);
+	    }
+	}
+	return sum;
+    }
+
+    /// number of documents with a document number (i.e., the size of arrays indexed by document number)
+    public int numDocs() {
+	return docs.size();
+    }
+
+    /// number of postings in a block of the posting file
+    public int blockSize() {
+	return blockSize;
+    }
+
+    /// build a hash table mapping the original docID to the document number
+    /// this is only meant to be used while loading an index without its statistics (see docs.find() otherwise)
+    public HashMap<String,Integer> docNumbers() {
+	HashMap<String,Integer> docNum = new HashMap<String,Integer>(2*numDocs());
+	for (int d=0; d<numDocs(); d++) {
+	    docNum.put(docs.name(d), d);
+	}
+	return docNum;
+    }
+
+    /// keep the decoded posting lists in "cache" (shared by all the cursors of the index), or
+    /// stop caching them (null)
+    public void setPostingCache(PostingCache cache) {
+	postingCache = cache;
+	if (segments != null) {
+	    for (IndexReader seg : segments) {
+		seg.setPostingCache(cache);
+	    }
+	}
+    }
+
+    /// create a new cursor to iterate over posting lists
+    /// a cursor must not be shared by several threads
+    public PostingCursor openCursor() {
+	return segments == null ? new PostingCursor(this) : new MultiPostingCursor(this);
+    }
+
+    public void close() throws IOException {
+	if (segments != null) {
+	    for (IndexReader seg : segments) {
+		if (seg != null) {
+		    seg.close();
+		}
+	    }
+	}
+	if (finposting != null) {
+	    finposting.close();
+	}
+	postingChunks = null;
+    }
+
+    /// read a whole index file; it is mapped if it is on the local file system
+    static ByteBuffer readFile(FileSystem fs, Path path, boolean local) throws IOException {
+	if (local) {
+	    RandomAccessFile file = new RandomAccessFile(((LocalFileSystem) fs).pathToFile(path), "r");
+	    try {
+		FileChannel channel = file.getChannel();
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	    } finally {
+		file.close();
+	    }
+	}
+	FSDataInputStream in = fs.open(path);
+	try {
+	    long size = fs.getFileStatus(path).getLen();
+	    byte [] bytes = new byte[(int) size];
+	    in.readFully(0, bytes);
+	    return ByteBuffer.wrap(bytes);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /// decode a string written with DataOutput.writeUTF (a 2-byte length followed by modified UTF-8)
+    static String readUTF(ByteBuffer buf) {
+	int len = buf.getShort() & 0xFFFF;
+	char [] chars = new char[len];
+	int n = 0;
+	int end = buf.position() + len;
+	while (buf.position() < end) {
+	    int b = buf.get() & 0xFF;
+	    if (b < 0x80) {
+		chars[n++] = (char) b;
+	    } else if ((b & 0xE0) == 0xC0) {
+		chars[n++] = (char) (((b & 0x1F) << 6) | (buf.get() & 0x3F));
+	    } else {
+		int b2 = buf.get() & 0x3F;
+		chars[n++] = (char) (((b & 0x0F) << 12) | (b2 << 6) | (buf.get() & 0x3F));
+	    }
+	}
+	return new String(chars, 0, n);
+    }
+}
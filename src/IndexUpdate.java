@@ -0,0 +1,388 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableComparator;
+
+
+/// This application adds documents to an index without rebuilding it.
+/// The new documents are indexed in memory and written as a new segment: a small index of their own
+/// with its lexicon, postings, document table, document lengths and statistics (see Segments).
+/// Retrieval and kNN open all the segments of the index as one index, with the statistics
+/// (df, avgDocLen, ...) of all the documents (see IndexReader).
+///
+/// Since every update adds a segment, the segments are then merged with a tiered policy: a segment with
+/// less than MIN_SEGMENT*factor^(t+1) documents is in tier t, and when "factor" adjacent segments are in
+/// the same tier, they are merged into one segment of a higher tier, which takes their place (see IndexMerger).
+/// So a document is merged about log(number of documents) times, and the documents keep their order.
+/// The command waits for the merges before it exits (a program that keeps an IndexUpdate open can merge
+/// in the background instead, see mergeInBackground()), but the searches never wait: a merged segment
+/// replaces the old ones in the list of segments only once it is complete, and the old ones are deleted
+/// afterwards (a Retrieval or kNN that started before keeps reading them from its mapped files).
+///
+/// usage: hadoop jar simir.jar IndexUpdate [-f factor] IndexFileName Path-to-documents
+/// "IndexFileName" is the name (including the path) of an index generated by IndexGeneration
+/// (or of a new index, which is created).
+/// "Path-to-documents" has one document per line, as the input of InvertedIndex: the document ID
+/// followed by the words of the document. Documents whose ID is already in the index are skipped.
+/// To use new labeled documents with kNN, add their "docID tag" lines to the training list.
+/// "factor" is the number of segments of a tier that are merged together (10 by default).
+/// Only one IndexUpdate can run on an index at a time (IndexFileName.lock is held while it runs).
+public class IndexUpdate {
+
+    /// segments with less documents than this are all in the lowest tier
+    public static final int MIN_SEGMENT = 1000;
+
+    /// the files of a segment
+    static final String [] EXTENSIONS = { ".pos", ".lex", ".docs", ".stats", ".doclen" };
+
+    FileSystem fs;
+    String indexName;
+    int factor;
+    Path lock;
+    Segments current; // the list of segments, as in the file
+    DocTable [] tables; // the documents of the segments when the index was opened (off-heap, see DocTable.find)
+    HashSet<String> added = new HashSet<String>(); // and the documents added since
+    ExecutorService merger = Executors.newSingleThreadExecutor();
+    Future<?> merging = null;
+
+    /// open the index "indexName" for updates ("factor" is the number of segments merged together)
+    public IndexUpdate(FileSystem fs, String indexName, int factor) throws IOException {
+	this.fs = fs;
+	this.indexName = indexName;
+	this.factor = Math.max(2, factor);
+	lock = new Path(indexName + ".lock");
+	if (!fs.createNewFile(lock)) {
+	    merger.shutdown();
+	    throw new IOException("the index " + indexName + " is already being updated (if no IndexUpdate is running, delete " + lock + ")");
+	}
+	try {
+	    if (fs.exists(new Path(indexName + Segments.SHARDS))) {
+		throw new IOException(indexName + " is split into shards: it can't be updated (please build it again with IndexGeneration)");
+	    }
+	    current = Segments.read(fs, indexName);
+	    if (current == null) {
+		// the first update: the index itself (if there is one) becomes the first segment
+		current = new Segments(indexName);
+		if (fs.exists(new Path(indexName + ".pos"))) {
+		    IndexReader index = new IndexReader(fs, indexName, null);
+		    if (!fs.exists(new Path(indexName + ".stats"))) {
+			index.stats.write(fs, indexName); // the segments all have their statistics in binary
+		    }
+		    current.add(0, indexName, index.numDocs());
+		    index.close();
+		}
+	    }
+	    // nothing is loaded: the tables are mapped, and their hash tables are only built by the first find()
+	    tables = new DocTable[current.size()];
+	    for (int i=0; i<tables.length; i++) {
+		tables[i] = new DocTable(IndexReader.readFile(fs, new Path(current.path(i) + ".docs"), fs instanceof LocalFileSystem));
+	    }
+	} catch (IOException e) {
+	    close();
+	    throw e;
+	}
+    }
+
+    /// index the documents of a file (one per line: docID word word ...) as a new segment
+    /// returns the number of documents added
+    public int add(Path documents) throws IOException {
+	// the postings of every term, in the order of the documents
+	HashMap<String,TermPostings> terms = new HashMap<String,TermPostings>();
+	ArrayList<String> newDocs = new ArrayList<String>();
+	ArrayList<Integer> lengths = new ArrayList<Integer>();
+	CollectionStats stats = new CollectionStats();
+	HashMap<String,Integer> wordcount = new HashMap<String,Integer>();
+
+	FSDataInputStream fin = fs.open(documents);
+	BufferedReader in = new BufferedReader(new InputStreamReader(fin, "UTF-8"));
+	String line;
+	while ((line = in.readLine()) != null) {
+	    // the same tokens as InvertedIndex.MapClass (without -lower or -stop)
+	    StringTokenizer itr = new StringTokenizer(line);
+	    if (!itr.hasMoreTokens()) {
+		continue;
+	    }
+	    String docID = itr.nextToken();
+	    if (contains(docID) || !added.add(docID)) {
+		System.err.println("document " + docID + " is already in the index: skipped");
+		continue;
+	    }
+	    wordcount.clear();
+	    int length = 0;
+	    while (itr.hasMoreTokens()) {
+		String term = itr.nextToken();
+		length++;
+		Integer c = wordcount.get(term);
+		wordcount.put(term, c == null ? 1 : c + 1);
+	    }
+	    stats.totalDocCount++;
+	    stats.totalDocLen += length;
+	    if (length == 0) {
+		continue; // no postings, so no document number (as with IndexGeneration)
+	    }
+	    int d = newDocs.size();
+	    newDocs.add(docID);
+	    lengths.add(length);
+	    stats.minDocLen = Math.min(stats.minDocLen, length);
+	    for (Map.Entry<String,Integer> e : wordcount.entrySet()) {
+		TermPostings p = terms.get(e.getKey());
+		if (p == null) {
+		    p = new TermPostings();
+		    terms.put(e.getKey(), p);
+		}
+		p.add(d, e.getValue());
+	    }
+	}
+	in.close();
+	if (stats.totalDocCount == 0) {
+	    return 0;
+	}
+
+	// the lexicon needs the terms in the order of their UTF-8 bytes
+	final String [] sorted = terms.keySet().toArray(new String[terms.size()]);
+	final byte [][] bytes = new byte[sorted.length][];
+	Integer [] order = new Integer[sorted.length];
+	for (int i=0; i<sorted.length; i++) {
+	    bytes[i] = Lexicon.utf8(sorted[i]);
+	    order[i] = i;
+	}
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return WritableComparator.compareBytes(bytes[a], 0, bytes[a].length, bytes[b], 0, bytes[b].length);
+		}
+	    });
+
+	String segment;
+	synchronized (this) {
+	    segment = current.newSegment(indexName);
+	}
+	IndexWriter out = new IndexWriter(fs, segment);
+	for (String docID : newDocs) {
+	    out.docNumber(docID);
+	}
+	for (Integer i : order) {
+	    TermPostings p = terms.get(sorted[i]);
+	    out.addTerm(sorted[i], p.postings, p.df, p.count, p.maxTF);
+	}
+	out.close();
+	stats.dlen = new int[lengths.size()];
+	for (int i=0; i<stats.dlen.length; i++) {
+	    stats.dlen[i] = lengths.get(i);
+	}
+	stats.totalTermCount = out.totalTermCount();
+	stats.write(fs, segment);
+
+	synchronized (this) {
+	    current.add(current.size(), segment, newDocs.size());
+	    current.write(fs, indexName);
+	}
+	return stats.totalDocCount;
+    }
+
+    /// is a document already in the index?
+    boolean contains(String docID) {
+	for (DocTable table : tables) {
+	    if (table.find(docID) >= 0) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /// the postings of a term in the new documents, packed as (docID << 32 | freq)
+    static class TermPostings {
+	long [] postings = new long[4];
+	int df = 0;
+	int count = 0;
+	int maxTF = 0;
+
+	void add(int d, int freq) {
+	    if (df == postings.length) {
+		postings = Arrays.copyOf(postings, 2*df);
+	    }
+	    postings[df++] = ((long) d << 32) | freq;
+	    count += freq;
+	    maxTF = Math.max(maxTF, freq);
+	}
+    }
+
+    /// the tier of a segment with n documents
+    int tier(int n) {
+	int t = 0;
+	for (long size = (long) MIN_SEGMENT*factor; n >= size; size *= factor) {
+	    t++;
+	}
+	return t;
+    }
+
+    /// choose the segments to merge next: the first "factor" adjacent segments of the lowest tier that has
+    /// that many in a row (null if no tier has)
+    /// Only adjacent segments are merged, so the merged segment takes their place in the list and every
+    /// document keeps its place in the order of the documents (and so do the ties between their scores).
+    int [] findMerge(Segments list) {
+	int best = Integer.MAX_VALUE;
+	int bestStart = -1;
+	int run = 0;
+	for (int i=0; i<list.size(); i++) {
+	    int t = tier(list.numDocs.get(i));
+	    run = i > 0 && t == tier(list.numDocs.get(i-1)) ? run + 1 : 1;
+	    if (run >= factor && t < best) {
+		best = t;
+		bestStart = i - factor + 1;
+	    }
+	}
+	if (bestStart < 0) {
+	    return null;
+	}
+	int [] merge = new int[factor];
+	for (int i=0; i<factor; i++) {
+	    merge[i] = bestStart + i;
+	}
+	return merge;
+    }
+
+    /// merge segments as long as the policy asks for it
+    /// returns the number of merges
+    public int mergeSegments() throws IOException {
+	int merges = 0;
+	while (true) {
+	    Segments list;
+	    synchronized (this) {
+		list = current.copy();
+	    }
+	    int [] merge = findMerge(list);
+	    if (merge == null) {
+		return merges;
+	    }
+	    String [] inputs = new String[merge.length];
+	    for (int i=0; i<merge.length; i++) {
+		inputs[i] = list.path(merge[i]);
+	    }
+	    String segment;
+	    synchronized (this) {
+		segment = current.newSegment(indexName);
+	    }
+
+	    // the documents are numbered in the order of the segments, so their lengths just follow each other
+	    IndexWriter out = new IndexWriter(fs, segment);
+	    IndexMerger.merge(fs, inputs, out, null);
+	    out.close();
+	    CollectionStats stats = new CollectionStats();
+	    stats.dlen = new int[out.numDocs()];
+	    int n = 0;
+	    for (String input : inputs) {
+		CollectionStats s = CollectionStats.read(fs, input, false);
+		if (s == null || n + s.dlen.length > stats.dlen.length) {
+		    throw new IOException("can't merge " + input + ": no statistics or documents in several segments");
+		}
+		System.arraycopy(s.dlen, 0, stats.dlen, n, s.dlen.length);
+		n += s.dlen.length;
+		stats.totalDocCount += s.totalDocCount;
+		stats.totalDocLen += s.totalDocLen;
+		stats.minDocLen = Math.min(stats.minDocLen, s.minDocLen);
+	    }
+	    stats.totalTermCount = out.totalTermCount();
+	    stats.write(fs, segment);
+
+	    // replace the merged segments with the new one (the list may have new segments by now,
+	    // but only merges remove segments, and they are done one at a time)
+	    synchronized (this) {
+		int first = current.names.indexOf(list.names.get(merge[0]));
+		for (int i=merge.length-1; i>=0; i--) {
+		    current.remove(current.names.indexOf(list.names.get(merge[i])));
+		}
+		current.add(first, segment, out.numDocs());
+		current.write(fs, indexName);
+	    }
+	    for (String input : inputs) {
+		for (String ext : EXTENSIONS) {
+		    fs.delete(new Path(input + ext), false);
+		}
+	    }
+	    merges++;
+	}
+    }
+
+    /// start merging the segments in the background (if a merge is not already running)
+    public synchronized void mergeInBackground() {
+	if (merging == null || merging.isDone()) {
+	    merging = merger.submit(new Callable<Integer>() {
+		    public Integer call() throws IOException {
+			return mergeSegments();
+		    }
+		});
+	}
+    }
+
+    /// wait for the background merges to finish
+    public void waitForMerges() throws IOException {
+	Future<?> f;
+	synchronized (this) {
+	    f = merging;
+	}
+	if (f == null) {
+	    return;
+	}
+	try {
+	    f.get();
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof IOException) {
+		throw (IOException) e.getCause();
+	    }
+	    throw new RuntimeException(e.getCause());
+	} catch (InterruptedException e) {
+	    throw new InterruptedIOException("interrupted while merging the segments of " + indexName);
+	}
+    }
+
+    /// wait for the merges and release the index
+    public void close() throws IOException {
+	try {
+	    waitForMerges();
+	} finally {
+	    merger.shutdown();
+	    fs.delete(lock, false);
+	}
+    }
+
+    public static void main (String [] args) throws IOException {
+	Configuration conf = new Configuration();
+	FileSystem fs = FileSystem.get(conf);
+
+	int factor = 10;
+	if (args.length > 1 && args[0].equals("-f")) {
+	    factor = Integer.parseInt(args[1]);
+	    args = Arrays.copyOfRange(args, 2, args.length);
+	}
+	if (args.length != 2) {
+	    System.out.println("usage: IndexUpdate [-f factor] IndexFileName Path-to-documents");
+	    System.exit(1);
+	}
+
+	try {
+	    long start = System.currentTimeMillis();
+	    IndexUpdate update = new IndexUpdate(fs, args[0], factor);
+	    try {
+		int n = update.add(new Path(args[1]));
+		System.out.println(n + " documents added in " + (System.currentTimeMillis() - start) + " ms");
+		start = System.currentTimeMillis();
+		int merges = update.mergeSegments();
+		System.out.println(merges + " merges in " + (System.currentTimeMillis() - start) + " ms");
+	    } finally {
+		update.close();
+	    }
+	    System.out.println(update.current.size() + " segments");
+	} catch (IOException ioe) {
+	    System.out.println(ioe.getMessage());
+	    System.out.println("can't update the index " + args[0] + " with " + args[1]);
+	    System.exit(1);
+	}
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class writes the posting file, the lexicon and the document table of an index
+/// (IndexFileName.pos, IndexFileName.lex and IndexFileName.docs; see PostingFormat and Lexicon).
+/// It is used by IndexGeneration, which adds the terms of a raw inverted index, and by
+/// IndexMerger, which adds the terms of several indexes.
+///
+/// Every document gets a dense integer ID (0, 1, 2, ...) the first time docNumber() sees it,
+/// and the terms must be added in sorted order (see Lexicon).
+/// An IndexWriter must only be used by one thread.
+public class IndexWriter {
+
+    FSDataOutputStream foutposting, foutlexicon, foutdocs;
+    Lexicon.Writer lexicon;
+
+    // map from the original (string) document ID to the dense integer ID assigned to it
+    HashMap<String,Integer> docNum = new HashMap<String,Integer>();
+
+    int [] docs = new int[1024];
+    int [] freqs = new int[1024];
+    ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+
+    /// create the files of the index "indexName" (including the path)
+    public IndexWriter(FileSystem fs, String indexName) throws IOException {
+	foutposting = fs.create(new Path(indexName + ".pos" )); // posting file
+	foutlexicon = fs.create(new Path(indexName + ".lex")); // term lexicon
+	foutdocs = fs.create(new Path(indexName + ".docs")); // document table
+	PostingFormat.writeHeader(foutposting, PostingFormat.DEFAULT_BLOCK_SIZE);
+	lexicon = new Lexicon.Writer(foutlexicon);
+    }
+
+    /// the integer ID of a document; the first time we see a document, it gets the next free number
+    /// and its original ID is recorded in the document table
+    public int docNumber(String docID) throws IOException {
+	Integer d = docNum.get(docID);
+	if (d == null) {
+	    d = docNum.size();
+	    docNum.put(docID, d);
+	    foutdocs.writeUTF(docID);
+	}
+	return d;
+    }
+
+    /// number of documents with an integer ID
+    public int numDocs() {
+	return docNum.size();
+    }
+
+    /// the sum of the total counts of the terms added so far
+    public long totalTermCount() {
+	return lexicon.totalTermCount;
+    }
+
+    /// write the postings of the next term and its lexicon entry
+    /// postings[0..df-1]: the postings packed as (docID << 32 | freq), in any order (they are sorted here)
+    /// count: the total count of the term, maxTF: its largest count in a single document
+    public void addTerm(String term, long [] postings, int df, int count, int maxTF) throws IOException {
+	long pos = foutposting.getPos();
+	// remember the current position in the new posting file
+	// so that we can easily calculate the span of the postings for this term later
+
+	// sort the postings by docID and write them out in the compressed format
+	Arrays.sort(postings, 0, df);
+	if (docs.length < df) {
+	    docs = new int[postings.length];
+	    freqs = new int[postings.length];
+	}
+	for (int j=0; j<df; j++) {
+	    docs[j] = (int) (postings[j] >>> 32);
+	    freqs[j] = (int) postings[j];
+	}
+	PostingFormat.writePostings(foutposting, docs, freqs, df, PostingFormat.DEFAULT_BLOCK_SIZE, scratch);
+	int len = (int) (foutposting.getPos() - pos); // this tells us the span of the postering entries for this term
+
+	// the following statement writes out the term with df, count, pos, len and maxTF to the lexicon
+	// (the terms are added in sorted order, which is the order the lexicon needs for binary search)
+	// maxTF gives an upper bound of the weight of the term in any document, which lets
+	// Retrieval and kNN skip documents that can't make it into the top k (see QueryEvaluator.wand).
+	lexicon.add(term, df, count, pos, len, maxTF);
+    }
+
+    public void close() throws IOException {
+	lexicon.finish();
+	foutlexicon.close();
+	foutposting.close();
+	foutdocs.close();
+    }
+}
@@ -1,16 +1,14 @@
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.StringTokenizer;
-
-import java.util.HashMap;
 
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
@@ -22,6 +20,7 @@ import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -30,102 +29,136 @@ import org.apache.hadoop.util.ToolRunner;
  * the "standard" WordCount.java example. 
  *
  * To run: hadoop jar simir.jar InvertedIndex
- *            [-m <i>maps</i>] [-r <i>reduces</i>] <i>in-dir</i> <i>out-dir</i> 
+ *            [-m <i>maps</i>] [-r <i>reduces</i>] [-seq] [-lower] [-stop <i>file</i>] <i>in-dir</i> <i>out-dir</i> 
  * All the files in "in-dir" will be indexed
  * The "out-dir" must not already exist (it will be created as a result of running this program.
  * The output will be written into the "out-dir" with a name like "part-00000".  
+ * Each line of the output has a term followed by its postings "docID count", sorted by docID.
+ * With "-seq", the output is a SequenceFile of (term, PostingListWritable) instead, which
+ * is smaller and doesn't need to be parsed (IndexGeneration and ComputeDocLen read both).
+ * With "-lower", the ASCII letters of the words are lowercased (not those of the document IDs),
+ * and with "-stop", the words of the file (whitespace-separated) are left out of the index and
+ * of the document lengths. The queries are not normalized by Retrieval or kNN: they must be
+ * lowercased and stripped of the stopwords in the same way.
  */
 
 public class InvertedIndex extends Configured implements Tool {
   
+  /** the configuration key of the lowercasing of the terms (see "-lower") */
+  public static final String LOWERCASE = "invertedindex.lowercase";
+  /** the configuration key of the file of stopwords (see "-stop") */
+  public static final String STOPWORDS = "invertedindex.stopwords";
+
   /**
    * Each line represents a document with the first string being the document ID and the rest, words in the document
    * The Mapper function counts the words in each line (i.e., each document) and 
    * emit 
-   * (<b>word</b>, <b>document ID</b>,<b> count</b>).
+   * (<b>word</b>, <b>document ID</b>,<b> count</b>)
+   * (the document ID and the count are sent as a list of a single posting).
+   * The line is tokenized and its words counted on the bytes of the Text (see TermCounter),
+   * in tables that are reused from one line to the next, and so are the emitted Writables,
+   * so there is no object created per word, or even per line.
    */
   public static class MapClass extends MapReduceBase
-    implements Mapper<LongWritable, Text, Text, Text> {
+    implements Mapper<LongWritable, Text, Text, PostingListWritable> {
     
-    private final static IntWritable one = new IntWritable(1);
     private Text word = new Text();
-      private Text did = new Text(); 
-    
+      private PostingListWritable did = new PostingListWritable(); 
+    private TermCounter wordcount = new TermCounter(); // the counts of the words of the current line
+
+    public void configure(JobConf job) {
+      boolean lowercase = job.getBoolean(LOWERCASE, false);
+      wordcount.setLowercase(lowercase);
+      String stopwords = job.get(STOPWORDS);
+      if (stopwords != null) {
+        try {
+          wordcount.setStopwords(readStopwords(job, stopwords, lowercase));
+        } catch (IOException e) {
+          throw new RuntimeException("can't read the stopwords from " + stopwords, e);
+        }
+      }
+    }
+
     public void map(LongWritable key, Text value, 
-                    OutputCollector<Text, Text> output, 
+                    OutputCollector<Text, PostingListWritable> output, 
                     Reporter reporter) throws IOException {
-      String line = value.toString();
-      StringTokenizer itr = new StringTokenizer(line);
-      String docID ="";
-      String term ="";
-      HashMap<String, Integer> wordcount = new HashMap<String, Integer>();
-      /// Hash table to store and accumulate the counts. 
-      if (itr.hasMoreTokens()) {
-	  docID=itr.nextToken();
-	  while (itr.hasMoreTokens()) {
-	      term = itr.nextToken(); // fetch a term in the document
-	      if (wordcount.containsKey(term)) { 
-		  // we've seen this term before, so the term is already in the hash table and we should increase its count by one
-		  //#########################################################//
-		  // Add one missing statement here to increase the counter by one
-		  // Hint:  wordcount.put(???) 
-		  //#########################################################//
-		  wordcount.put(term, wordcount.get(term) + 1);
-		  
-	      } else { 
-		  // this is first time we see this word, set value '1'
-		  //#########################################################//
-		  // Add one missing statement here to set the counter to 1
-		  // Hint: wordcount.put(???) 
-		  //#########################################################//
-		  wordcount.put(term, 1);
-	      } 
-	  }
-	  for (String s : wordcount.keySet()) {
-	      word.set(s); 
-	      // how to set the value for "did" appropriately so that the emitted pair "word" and "did" would 
-	      // represent what we'd like to pass to the Reducer? 
-	      //#########################################################//
-	      // Add one missing statement here to set the right value for "did"
-	      // Hint:  did.set(???) 
-	      //#########################################################//
-	      did.set(docID+" "+Integer.toString(wordcount.get(s)));
+      byte [] line = value.getBytes();
+      int end = value.getLength();
+      int start = TermCounter.skipSeparators(line, 0, end);
+      if (start < end) {
+	  int docIDEnd = TermCounter.skipTerm(line, start, end); // the document ID is line[start..docIDEnd-1]
+	  wordcount.clear();
+	  wordcount.addAll(line, docIDEnd, end - docIDEnd);
+	  byte [] words = wordcount.bytes();
+	  for (int i=0; i<wordcount.size(); i++) {
+	      word.set(words, wordcount.start(i), wordcount.length(i));
+	      did.clear();
+	      did.add(line, start, docIDEnd - start, wordcount.count(i));
 	      output.collect(word, did); 
 	  } 
+	  endDocument(line, start, docIDEnd, wordcount.total(), reporter);
+      }
+    }
+
+    /**
+     * Called after the postings of each document have been emitted, with the UTF-8 bytes of its ID
+     * (docID[start..end-1], which may be overwritten afterwards) and the number of words in it
+     * (without the stopwords). This does nothing here; IndexJob uses it to write the document lengths.
+     */
+    protected void endDocument(byte [] docID, int start, int end, int length, Reporter reporter) throws IOException {
+    }
+  }
+
+  /**
+   * Read a file of stopwords (whitespace-separated, usually one per line), lowercased if the terms are.
+   */
+  static TermCounter readStopwords(JobConf job, String file, boolean lowercase) throws IOException {
+    Path path = new Path(file);
+    FSDataInputStream in = path.getFileSystem(job).open(path);
+    try {
+      TermCounter stopwords = new TermCounter();
+      stopwords.setLowercase(lowercase);
+      byte [] b = new byte[4096];
+      int n = 0;
+      for (int r; (r = in.read(b, n, b.length - n)) > 0; ) {
+        n += r;
+        if (n == b.length) {
+          b = Arrays.copyOf(b, 2*n);
+        }
       }
+      stopwords.addAll(b, 0, n);
+      return stopwords;
+    } finally {
+      in.close();
     }
   }
   
 
   /**
-   * A reducer class that just emits the concatenation of the input values for each key
+   * A reducer class that just emits the concatenation of the input values for each key,
+   * sorted by document ID.
+   * The postings are appended to a single list, which takes time linear in their number
+   * (the same class is used as the combiner, so the lists of a term may already be long).
    */
   public static class Reduce extends MapReduceBase
-    implements Reducer<Text, Text, Text, Text> {
+    implements Reducer<Text, PostingListWritable, Text, PostingListWritable> {
     
-      Text s= new Text(); 
-    public void reduce(Text key, Iterator<Text> values,
-                       OutputCollector<Text, Text> output, 
+      PostingListWritable sum = new PostingListWritable(); 
+    public void reduce(Text key, Iterator<PostingListWritable> values,
+                       OutputCollector<Text, PostingListWritable> output, 
                        Reporter reporter) throws IOException {
-	String sum = "";
+	sum.clear();
 	while (values.hasNext()) { // what should we do for each value fecthed? 
-	    //#########################################################//
-	    // add one line to use "sum" to form a concatenation of all the values
-	    // Hint: use "values.next().toString()" to obtain the value
-	    // 
-
-	    //#########################################################//
-	   sum = sum + values.next().toString()+" ";
+	    // append its postings (the value object is reused by Hadoop, so they are copied)
+	    sum.addAll(values.next());
 	}
-	Text t = new Text(); 
-	t.set(key); 
-	s.set(sum );
-	output.collect(t, s);
+	sum.sort();
+	output.collect(key, sum);
     }
   }
   
   static int printUsage() {
-    System.out.println("InvertedIndex [-m <maps>] [-r <reduces>] <input> <output>");
+    System.out.println("InvertedIndex [-m <maps>] [-r <reduces>] [-seq] [-lower] [-stop <file>] <input> <output>");
     ToolRunner.printGenericCommandUsage(System.out);
     return -1;
   }
@@ -142,8 +175,8 @@ public class InvertedIndex extends Configured implements Tool {
  
     // the keys are words (strings)
     conf.setOutputKeyClass(Text.class);
-    // the values are also strings
-    conf.setOutputValueClass(Text.class);
+    // the values are lists of postings
+    conf.setOutputValueClass(PostingListWritable.class);
     
     conf.setMapperClass(MapClass.class);        
     conf.setCombinerClass(Reduce.class);
@@ -156,6 +189,12 @@ public class InvertedIndex extends Configured implements Tool {
           conf.setNumMapTasks(Integer.parseInt(args[++i]));
         } else if ("-r".equals(args[i])) {
           conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+        } else if ("-seq".equals(args[i])) {
+          conf.setOutputFormat(SequenceFileOutputFormat.class);
+        } else if ("-lower".equals(args[i])) {
+          conf.setBoolean(LOWERCASE, true);
+        } else if ("-stop".equals(args[i])) {
+          conf.set(STOPWORDS, args[++i]);
         } else {
           other_args.add(args[i]);
         }
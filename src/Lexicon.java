@@ -0,0 +1,296 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/// This class is the term lexicon of an index (IndexFileName.lex): it maps a term to its
+/// lexicon entry (document frequency, term count, maxTF and the location of its postings).
+///
+/// The terms are stored sorted (by their UTF-8 bytes, i.e., in the order of the keys of InvertedIndex)
+/// and looked up with a binary search directly in the file, which is mapped (or read in one go when
+/// it is not on the local file system). Nothing is decoded when the index is opened, so opening
+/// an index takes the same time whatever the size of the vocabulary, and only the pages of the
+/// terms actually looked up are ever read.
+///
+/// Layout of the file:
+///         block 0, block 1, ..., block index, trailer
+/// A block has up to BLOCK_TERMS consecutive terms:
+///         long pos (the start of the postings of the first term of the block), then for every term:
+///         vbyte(shared), vbyte(suffix length), suffix, vbyte(df), vbyte(count), vbyte(length), vbyte(maxTF)
+/// where the term is the first "shared" bytes of the previous term followed by the suffix (front coding;
+/// the first term of a block is always complete, so a block can be decoded on its own).
+/// The postings of a term start where those of the previous term end, so only the first pos is stored.
+/// The block index has the offset (long) of every block in the file, and the trailer is
+///         long index offset, int number of blocks, int number of terms, long totalTermCount, int maxLength
+/// (maxLength is the largest span of the postings of a term).
+///
+/// The lexicon is never modified after it is opened, and get() doesn't change the position of the
+/// shared buffer, so one Lexicon can be used by several threads.
+/// The whole file must be smaller than 2GB (about 100 million terms).
+public class Lexicon {
+
+    /// number of terms in a block: a lookup decodes half a block on average
+    public static final int BLOCK_TERMS = 32;
+
+    static final int TRAILER_SIZE = 8 + 4 + 4 + 8 + 4;
+
+    ByteBuffer buf; // the whole file
+    int indexStart; // offset of the block index
+    int numBlocks;
+    int numTerms;
+    public long totalTermCount; // the sum of the total count of *all* the terms in the collection
+    public int maxLength; // the largest span of the postings of a term
+
+    public Lexicon(ByteBuffer buf) throws IOException {
+	this.buf = buf;
+	if (buf.limit() < TRAILER_SIZE) {
+	    throw new IOException("the lexicon is truncated; please rebuild the index with IndexGeneration");
+	}
+	int trailer = buf.limit() - TRAILER_SIZE;
+	indexStart = (int) buf.getLong(trailer);
+	numBlocks = buf.getInt(trailer + 8);
+	numTerms = buf.getInt(trailer + 12);
+	totalTermCount = buf.getLong(trailer + 16);
+	maxLength = buf.getInt(trailer + 24);
+	if (indexStart < 0 || indexStart + 8L*numBlocks != trailer) {
+	    throw new IOException("the lexicon is corrupt; please rebuild the index with IndexGeneration");
+	}
+    }
+
+    /// number of terms in the lexicon
+    public int size() {
+	return numTerms;
+    }
+
+    /// fetch the lexicon entry for a term (null if the term is not in the collection)
+    public IndexReader.Entry get(String term) {
+	byte [] key = utf8(term);
+	ByteBuffer in = buf.duplicate(); // a private position, so that several threads can look up terms
+
+	// find the last block whose first term is not after the key
+	int lo = 0;
+	int hi = numBlocks - 1;
+	int block = -1;
+	while (lo <= hi) {
+	    int mid = (lo + hi) >>> 1;
+	    in.position(blockStart(mid) + 8);
+	    PostingFormat.readVByte(in); // always 0 for the first term of a block
+	    int len = PostingFormat.readVByte(in);
+	    int c = compare(key, in, len);
+	    if (c == 0) {
+		block = mid;
+		break;
+	    } else if (c > 0) {
+		block = mid;
+		lo = mid + 1;
+	    } else {
+		hi = mid - 1;
+	    }
+	}
+	if (block < 0) {
+	    return null; // before the first term
+	}
+
+	// scan the block
+	int end = block + 1 < numBlocks ? blockStart(block + 1) : indexStart;
+	in.position(blockStart(block));
+	long pos = in.getLong();
+	byte [] bytes = new byte[Math.max(16, key.length)];
+	int len = 0;
+	while (in.position() < end) {
+	    int shared = PostingFormat.readVByte(in);
+	    int suffix = PostingFormat.readVByte(in);
+	    if (shared + suffix > bytes.length) {
+		bytes = Arrays.copyOf(bytes, shared + suffix);
+	    }
+	    in.get(bytes, shared, suffix);
+	    len = shared + suffix;
+	    int df = PostingFormat.readVByte(in);
+	    int count = PostingFormat.readVByte(in);
+	    int length = PostingFormat.readVByte(in);
+	    int maxTF = PostingFormat.readVByte(in);
+	    int c = compare(key, bytes, len);
+	    if (c == 0) {
+		return new IndexReader.Entry(df, count, pos, length, maxTF);
+	    } else if (c < 0) {
+		return null; // the terms are sorted, so the key is not in the block
+	    }
+	    pos += length;
+	}
+	return null;
+    }
+
+    /// offset of a block in the file
+    int blockStart(int block) {
+	return (int) buf.getLong(indexStart + 8*block);
+    }
+
+    static byte [] utf8(String term) {
+	try {
+	    return term.getBytes("UTF-8");
+	} catch (UnsupportedEncodingException e) {
+	    throw new RuntimeException(e); // UTF-8 is always supported
+	}
+    }
+
+    /// compare the key with the "len" bytes at the position of "in" (as unsigned bytes, like Text does)
+    static int compare(byte [] key, ByteBuffer in, int len) {
+	int p = in.position();
+	int n = Math.min(key.length, len);
+	for (int i=0; i<n; i++) {
+	    int c = (key[i] & 0xFF) - (in.get(p+i) & 0xFF);
+	    if (c != 0) {
+		return c;
+	    }
+	}
+	return key.length - len;
+    }
+
+    static int compare(byte [] key, byte [] term, int len) {
+	int n = Math.min(key.length, len);
+	for (int i=0; i<n; i++) {
+	    int c = (key[i] & 0xFF) - (term[i] & 0xFF);
+	    if (c != 0) {
+		return c;
+	    }
+	}
+	return key.length - len;
+    }
+
+
+    /// go through all the terms of the lexicon in order (see Scanner)
+    public Scanner scan() {
+	return new Scanner();
+    }
+
+    /// This class goes through the terms of a lexicon in order, e.g., to merge several indexes:
+    ///         Lexicon.Scanner s = lexicon.scan();
+    ///         while (s.next()) {
+    ///             // s.term has the lexicon entry s.entry; its UTF-8 bytes are s.bytes[0..s.length-1]
+    ///         }
+    /// Every Scanner has its own position, so it doesn't disturb get() or other Scanners.
+    public class Scanner {
+
+	public String term;
+	public IndexReader.Entry entry;
+	public byte [] bytes = new byte[16];
+	public int length;
+
+	ByteBuffer in = buf.duplicate();
+	int block = -1;
+	int end = 0; // end of the current block
+	long pos;
+
+	/// move to the next term; returns false after the last one
+	public boolean next() throws IOException {
+	    if (block < 0 || in.position() >= end) {
+		if (block + 1 >= numBlocks) {
+		    return false;
+		}
+		block++;
+		in.position(blockStart(block));
+		end = block + 1 < numBlocks ? blockStart(block + 1) : indexStart;
+		pos = in.getLong();
+	    }
+	    int shared = PostingFormat.readVByte(in);
+	    int suffix = PostingFormat.readVByte(in);
+	    if (shared + suffix > bytes.length) {
+		bytes = Arrays.copyOf(bytes, Math.max(2*bytes.length, shared + suffix));
+	    }
+	    in.get(bytes, shared, suffix);
+	    length = shared + suffix;
+	    int df = PostingFormat.readVByte(in);
+	    int count = PostingFormat.readVByte(in);
+	    int len = PostingFormat.readVByte(in);
+	    int maxTF = PostingFormat.readVByte(in);
+	    term = new String(bytes, 0, length, "UTF-8");
+	    entry = new IndexReader.Entry(df, count, pos, len, maxTF);
+	    pos += len;
+	    return true;
+	}
+    }
+
+
+    /// This class writes a lexicon; the terms must be added in sorted order
+    /// (IndexWriter adds them in the order of the raw index, which InvertedIndex sorts by term, or of the merged lexicons).
+    public static class Writer {
+
+	DataOutputStream out;
+	ByteArrayOutputStream block = new ByteArrayOutputStream(); // the current block
+	long offset = 0; // offset of the current block in the file
+	long [] blockStarts = new long[1024];
+	int numBlocks = 0;
+	int numTerms = 0;
+	long totalTermCount = 0;
+	int maxLength = 0;
+	byte [] prev = new byte[0]; // the previous term
+	long nextPos = 0; // where the postings of the next term must start
+
+	public Writer(DataOutputStream out) {
+	    this.out = out;
+	}
+
+	/// add the entry of the next term
+	public void add(String term, int df, int count, long pos, int length, int maxTF) throws IOException {
+	    byte [] bytes = utf8(term);
+	    if (numTerms > 0 && compare(bytes, prev, prev.length) <= 0) {
+		throw new IOException("the terms of the lexicon must be sorted and unique: \"" + term
+				      + "\" comes after \"" + new String(prev, "UTF-8") + "\"");
+	    }
+	    int shared = 0;
+	    if (numTerms % BLOCK_TERMS == 0) {
+		// start a new block with the complete term
+		flushBlock();
+		if (numBlocks == blockStarts.length) {
+		    blockStarts = Arrays.copyOf(blockStarts, 2*numBlocks);
+		}
+		blockStarts[numBlocks++] = offset;
+		new DataOutputStream(block).writeLong(pos);
+	    } else {
+		if (pos != nextPos) {
+		    throw new IOException("the postings of \"" + term + "\" don't follow those of the previous term");
+		}
+		int n = Math.min(bytes.length, prev.length);
+		while (shared < n && bytes[shared] == prev[shared]) {
+		    shared++;
+		}
+	    }
+	    PostingFormat.writeVByte(block, shared);
+	    PostingFormat.writeVByte(block, bytes.length - shared);
+	    block.write(bytes, shared, bytes.length - shared);
+	    PostingFormat.writeVByte(block, df);
+	    PostingFormat.writeVByte(block, count);
+	    PostingFormat.writeVByte(block, length);
+	    PostingFormat.writeVByte(block, maxTF);
+
+	    prev = bytes;
+	    nextPos = pos + length;
+	    numTerms++;
+	    totalTermCount += count;
+	    maxLength = Math.max(maxLength, length);
+	}
+
+	void flushBlock() throws IOException {
+	    block.writeTo(out);
+	    offset += block.size();
+	    block.reset();
+	}
+
+	/// write the block index and the trailer (this doesn't close the stream)
+	public void finish() throws IOException {
+	    flushBlock();
+	    long indexStart = offset;
+	    for (int i=0; i<numBlocks; i++) {
+		out.writeLong(blockStarts[i]);
+	    }
+	    if (indexStart + 8L*numBlocks + TRAILER_SIZE > Integer.MAX_VALUE) {
+		throw new IOException("the lexicon is too large (more than 2GB)");
+	    }
+	    out.writeLong(indexStart);
+	    out.writeInt(numBlocks);
+	    out.writeInt(numTerms);
+	    out.writeLong(totalTermCount);
+	    out.writeInt(maxLength);
+	}
+    }
+}
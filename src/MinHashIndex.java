@@ -0,0 +1,178 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class is a locality-sensitive hash (LSH) index of the documents of an index, to find the documents
+/// that are likely to be similar to a query document without scoring all the documents that share a term
+/// with it (see kNN -lsh). IndexGeneration builds it with "-bands b" (see build()).
+///
+/// Every document gets a MinHash signature of its set of distinct terms: for each of bands*rows hash
+/// functions, the smallest hash of its terms. Two documents have the same value for a hash function with
+/// a probability equal to the Jaccard similarity s of their sets of terms. The signature is cut into "bands"
+/// bands of "rows" values, and the values of every band are hashed into one key: the documents with the same
+/// key in at least one band are the candidates, with a probability of 1 - (1 - s^rows)^bands. More rows
+/// make the candidates fewer and more similar; more bands find more of the similar documents.
+/// The terms are hashed from their characters, so the signature of a query computed from its terms
+/// can be compared to those of the documents (only the terms of the index should be used).
+///
+/// File IndexFileName.lsh: int MAGIC, int VERSION, int bands, int rows, int numDocs, then the keys of the
+/// bands of document 0, 1, 2, ... (bands ints each). When the index is opened, the keys of every band are
+/// sorted with their documents, so the documents with a key are found with a binary search.
+/// Nothing is modified after that, so one MinHashIndex can be shared by all the threads.
+public class MinHashIndex {
+
+    public static final int MAGIC = 0x53494c53; // "SILS"
+    public static final int VERSION = 1;
+
+    public int bands;
+    public int rows;
+    public int numDocs; // the number of documents of the index when the signatures were computed
+    long [][] buckets; // buckets[b]: (key << 32 | doc) for the key of band b of every document, sorted
+
+    /// open the LSH index of the index "indexName"
+    public MinHashIndex(FileSystem fs, String indexName) throws IOException {
+	ByteBuffer buf = IndexReader.readFile(fs, new Path(indexName + ".lsh"), fs instanceof LocalFileSystem);
+	if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+	    throw new IOException(indexName + ".lsh: unsupported format; please rebuild the index with IndexGeneration -bands");
+	}
+	bands = buf.getInt();
+	rows = buf.getInt();
+	numDocs = buf.getInt();
+	buckets = new long[bands][numDocs];
+	for (int d=0; d<numDocs; d++) {
+	    for (int b=0; b<bands; b++) {
+		buckets[b][d] = (long) buf.getInt() << 32 | d;
+	    }
+	}
+	for (int b=0; b<bands; b++) {
+	    Arrays.sort(buckets[b]);
+	}
+    }
+
+    /// the keys of the bands of a document (or query) with the terms terms[0..n-1]
+    /// (the signature is kept in "signature", of length bands*rows, to avoid allocating one for every query)
+    public void keys(String [] terms, int n, int [] signature, int [] keys) {
+	Arrays.fill(signature, Integer.MAX_VALUE);
+	for (int j=0; j<n; j++) {
+	    long h = termHash(terms[j]);
+	    for (int i=0; i<signature.length; i++) {
+		signature[i] = Math.min(signature[i], hash(h, i));
+	    }
+	}
+	bandKeys(signature, keys);
+    }
+
+    /// the position in buckets[band] of the first document with this key (buckets[band].length if there is none)
+    int first(int band, int key) {
+	long [] bucket = buckets[band];
+	int i = Arrays.binarySearch(bucket, (long) key << 32);
+	if (i < 0) {
+	    i = -i - 1; // no document has number 0 with this key: the insertion point is the first one with the key
+	}
+	return i < bucket.length && (int) (bucket[i] >> 32) == key ? i : bucket.length;
+    }
+
+    /// the keys of the bands of a signature
+    void bandKeys(int [] signature, int [] keys) {
+	for (int b=0; b<bands; b++) {
+	    long h = b;
+	    for (int r=0; r<rows; r++) {
+		h = mix(h * 31 + signature[b*rows + r]);
+	    }
+	    keys[b] = (int) (h >>> 32);
+	}
+    }
+
+    /// a 64-bit hash of a term (FNV-1a over its characters, then mixed)
+    static long termHash(String term) {
+	long h = 0xcbf29ce484222325L;
+	for (int i=0; i<term.length(); i++) {
+	    h = (h ^ term.charAt(i)) * 0x100000001b3L;
+	}
+	return mix(h);
+    }
+
+    /// the value of hash function i for a term whose hash is h
+    static int hash(long h, int i) {
+	return (int) (mix(h + (i + 1) * 0x9e3779b97f4a7c15L) >>> 33);
+    }
+
+    /// the finalizer of MurmurHash3: every bit of the result depends on every bit of x
+    static long mix(long x) {
+	x ^= x >>> 33;
+	x *= 0xff51afd7ed558ccdL;
+	x ^= x >>> 33;
+	x *= 0xc4ceb9fe1a85ec53L;
+	x ^= x >>> 33;
+	return x;
+    }
+
+
+    /// compute the signatures of all the documents of the index "indexName" and write their band keys
+    public static void build(FileSystem fs, String indexName, int bands, int rows, IndexGeneration.Progress progress)
+	throws IOException {
+	IndexReader index = new IndexReader(fs, indexName);
+	try {
+	    int numDocs = index.numDocs();
+	    int h = bands * rows;
+	    int [] signatures = new int[numDocs * h]; // the signature of document d is at d*h
+	    Arrays.fill(signatures, Integer.MAX_VALUE);
+	    int [] values = new int[h]; // the hashes of the current term
+	    PostingCursor cursor = index.openCursor();
+	    Lexicon.Scanner s = index.lex.scan();
+	    while (s.next()) {
+		long th = termHash(s.term);
+		for (int i=0; i<h; i++) {
+		    values[i] = hash(th, i);
+		}
+		cursor.open(s.entry);
+		for (int n; (n = cursor.nextBlock()) > 0; ) {
+		    for (int j=0; j<n; j++) {
+			int start = cursor.docs[j] * h;
+			for (int i=0; i<h; i++) {
+			    if (values[i] < signatures[start + i]) {
+				signatures[start + i] = values[i];
+			    }
+			}
+		    }
+		}
+		progress.add(1);
+	    }
+
+	    MinHashIndex lsh = new MinHashIndex(bands, rows);
+	    int [] signature = new int[h];
+	    int [] keys = new int[bands];
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(new Path(indexName + ".lsh"), true)));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(bands);
+		out.writeInt(rows);
+		out.writeInt(numDocs);
+		for (int d=0; d<numDocs; d++) {
+		    System.arraycopy(signatures, d*h, signature, 0, h);
+		    lsh.bandKeys(signature, keys);
+		    for (int b=0; b<bands; b++) {
+			out.writeInt(keys[b]);
+		    }
+		}
+	    } finally {
+		out.close();
+	    }
+	} finally {
+	    index.close();
+	}
+    }
+
+    /// an index without documents, to compute band keys
+    MinHashIndex(int bands, int rows) {
+	this.bands = bands;
+	this.rows = rows;
+    }
+}
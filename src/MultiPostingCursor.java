@@ -0,0 +1,111 @@
+import java.io.*;
+
+
+/// This class iterates over the posting list of a term in an index with several segments (see IndexReader).
+/// It goes through the postings of the term in every segment in turn, with a PostingCursor for each
+/// segment, and adds the number of the first document of the segment to the document numbers.
+/// The documents of a segment all come before those of the next one, so the postings are still sorted.
+/// It is used exactly like a PostingCursor.
+public class MultiPostingCursor extends PostingCursor {
+
+    PostingCursor [] cursors; // one per segment, created when the term first has postings there
+    IndexReader.Entry [] parts; // the entries of the current term in every segment
+    int seg; // the current segment
+
+    MultiPostingCursor(IndexReader index) {
+	super(index);
+	cursors = new PostingCursor[index.segments.length];
+    }
+
+    /// position the cursor at the beginning of the posting list of a term
+    public void open(IndexReader.Entry entry) throws IOException {
+	parts = entry.segments;
+	for (int i=0; i<parts.length; i++) {
+	    if (parts[i] != null) {
+		if (cursors[i] == null) {
+		    cursors[i] = index.segments[i].openCursor();
+		}
+		cursors[i].open(parts[i]);
+	    }
+	}
+	seg = 0;
+	blockLen = 0;
+	blockPos = 0;
+	doc = -1;
+	freq = 0;
+    }
+
+    /// decode the next block of postings into docs and freqs
+    /// returns the number of postings in the block (0 when the posting list is exhausted)
+    public int nextBlock() {
+	for (; seg < parts.length; seg++) {
+	    if (parts[seg] != null) {
+		int n = cursors[seg].nextBlock();
+		if (n > 0) {
+		    copyBlock(cursors[seg], n);
+		    return n;
+		}
+	    }
+	}
+	return 0;
+    }
+
+    /// the postings decoded by the cursors of the segments so far
+    public long postingsDecoded() {
+	long n = 0;
+	for (PostingCursor c : cursors) {
+	    if (c != null) {
+		n += c.postingsDecoded();
+	    }
+	}
+	return n;
+    }
+
+    public long bytesRead() {
+	long n = 0;
+	for (PostingCursor c : cursors) {
+	    if (c != null) {
+		n += c.bytesRead();
+	    }
+	}
+	return n;
+    }
+
+    /// move to the first document >= target; returns it (END if there is none)
+    public int advance(int target) {
+	if (doc >= target) {
+	    return doc;
+	}
+	if (blockLen > 0 && target <= docs[blockLen-1]) {
+	    while (docs[blockPos] < target) {
+		blockPos++;
+	    }
+	    freq = freqs[blockPos];
+	    return doc = docs[blockPos];
+	}
+	// skip the segments that end before the target, then let the cursor of the segment skip the blocks
+	for (; seg < parts.length; seg++) {
+	    if (parts[seg] != null && target < index.bases[seg+1]) {
+		PostingCursor c = cursors[seg];
+		if (c.advance(Math.max(0, target - index.bases[seg])) != END) {
+		    copyBlock(c, c.blockLen);
+		    blockPos = c.blockPos;
+		    freq = freqs[blockPos];
+		    return doc = docs[blockPos];
+		}
+	    }
+	}
+	blockLen = 0;
+	return doc = END;
+    }
+
+    /// copy the current block of the cursor of the current segment, with the numbers of the whole index
+    void copyBlock(PostingCursor c, int n) {
+	int base = index.bases[seg];
+	for (int i=0; i<n; i++) {
+	    docs[i] = c.docs[i] + base;
+	    freqs[i] = c.freqs[i];
+	}
+	blockLen = n;
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.*;
+
+
+/// This class keeps decoded posting lists in memory, so that the posting list of a term that occurs in
+/// many queries (typically a frequent term, with a long list) is read and decoded only once.
+/// PostingCursor looks up the list of a term here before reading the posting file, and decodes the
+/// whole list and adds it here when it is not found (see IndexReader.setPostingCache), unless
+/// the list is too large to be kept, in which case it is decoded block by block as without a cache.
+///
+/// A list takes 8 bytes per posting (the document number and the count) plus OVERHEAD bytes, and the
+/// lists never take more than the budget: when a new list doesn't fit, the least recently used lists
+/// are evicted. A list larger than the whole budget is never kept.
+/// All the methods are synchronized, so one cache can be shared by all the threads, and by all the
+/// segments of an index (the lists are found by segment and position in the posting file).
+public class PostingCache {
+
+    /// the memory taken by a list, besides the postings (the arrays, the key and the entry in the map)
+    static final int OVERHEAD = 128;
+
+    /// the decoded postings of a term
+    public static class Postings {
+	public final int [] docs;
+	public final int [] freqs;
+
+	public Postings(int [] docs, int [] freqs) {
+	    this.docs = docs;
+	    this.freqs = freqs;
+	}
+
+	long bytes() {
+	    return PostingCache.bytes(docs.length);
+	}
+    }
+
+    /// the memory taken by a list of n postings
+    static long bytes(int n) {
+	return 8L*n + OVERHEAD;
+    }
+
+    /// a posting list is identified by the index (or segment) and its position in the posting file
+    static class Key {
+	Object index;
+	long pos;
+
+	Key(Object index, long pos) {
+	    this.index = index;
+	    this.pos = pos;
+	}
+
+	public boolean equals(Object o) {
+	    return o instanceof Key && ((Key) o).index == index && ((Key) o).pos == pos;
+	}
+
+	public int hashCode() {
+	    return System.identityHashCode(index) * 31 + (int) (pos ^ (pos >>> 32));
+	}
+    }
+
+    long budget; // in bytes
+    long bytes = 0; // taken by the lists in the cache
+    LinkedHashMap<Key,Postings> lists = new LinkedHashMap<Key,Postings>(1024, 0.75f, true); // in the order of use
+
+    public long hits = 0;
+    public long misses = 0;
+    public long evictions = 0;
+
+    /// budget: the largest number of bytes the lists can take
+    public PostingCache(long budget) {
+	this.budget = budget;
+    }
+
+    /// the postings at position "pos" of the posting file of "index" (null if they are not in the cache)
+    public synchronized Postings get(Object index, long pos) {
+	Postings p = lists.get(new Key(index, pos));
+	if (p == null) {
+	    misses++;
+	} else {
+	    hits++;
+	}
+	return p;
+    }
+
+    /// whether a list of n postings can be kept at all (PostingCursor doesn't decode the other lists in advance)
+    public boolean admits(int n) {
+	return bytes(n) <= budget;
+    }
+
+    /// keep the postings at position "pos" of the posting file of "index", evicting the least recently used
+    /// lists if needed
+    public synchronized void put(Object index, long pos, Postings p) {
+	if (p.bytes() > budget) {
+	    return;
+	}
+	Postings old = lists.put(new Key(index, pos), p);
+	if (old != null) {
+	    bytes -= old.bytes(); // another thread decoded the same list at the same time
+	}
+	bytes += p.bytes();
+	Iterator<Postings> lru = lists.values().iterator();
+	while (bytes > budget) {
+	    bytes -= lru.next().bytes();
+	    lru.remove();
+	    evictions++;
+	}
+    }
+
+    /// the counters, for the log
+    public synchronized String toString() {
+	return "posting cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+	    + lists.size() + " lists in " + bytes + " bytes";
+    }
+}
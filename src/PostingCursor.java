@@ -0,0 +1,191 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+
+/// This class iterates over the posting list of a term.
+/// It can be used in two ways. To go through all the postings one block at a time (term at a time):
+///         cursor.open(entry);
+///         while ((n = cursor.nextBlock()) > 0) {
+///             // cursor.docs[0..n-1] and cursor.freqs[0..n-1] have the next n (docID, termCount) pairs
+///         }
+/// or to move from document to document (document at a time), possibly skipping some:
+///         cursor.open(entry);
+///         cursor.next(); // or cursor.advance(target)
+///         while (cursor.doc != PostingCursor.END) {
+///             // cursor.doc and cursor.freq are the current (docID, termCount) pair
+///             cursor.next(); // or cursor.advance(target)
+///         }
+/// (the two ways should not be mixed on the same posting list).
+/// advance() skips whole blocks without decoding them when they end before the target document.
+///
+/// When the posting file is memory-mapped, the blocks are decoded straight from the mapped
+/// buffer; otherwise the postings of the term are fetched with one positional read into a
+/// buffer owned by the cursor. Positional reads don't move the shared stream, so several
+/// cursors (one per thread) can read from the same IndexReader at the same time.
+/// When the index has a PostingCache, the whole list of a term is decoded the first time it is opened
+/// and kept in the cache, and the blocks are then copied from the cache (see IndexReader.setPostingCache).
+/// A list larger than the budget of the cache is never decoded in advance, so advance() still skips its blocks.
+public class PostingCursor {
+
+    /// the value of "doc" once all the postings have been visited
+    public static final int END = Integer.MAX_VALUE;
+
+    public int [] docs; // document numbers of the current block
+    public int [] freqs; // term counts of the current block
+
+    public int doc; // the current document (document at a time only)
+    public int freq; // the count of the term in the current document
+
+    IndexReader index;
+    ByteBuffer [] views; // our own views of the mapped chunks (a ByteBuffer has a position, so it can't be shared)
+    byte [] buffer = null; // holds the postings of the current term when the posting file is not mapped
+    ByteBuffer buf; // the postings of the current term
+    int remaining; // number of postings not decoded yet
+    int lastDoc; // the last document number of the last block decoded or skipped
+    int blockLen; // number of postings in the current block
+    int blockPos; // position of the current document in the current block
+    PostingCache.Postings cached = null; // the postings of the current term, if they come from the cache
+    int cachedPos; // number of cached postings already decoded or skipped
+
+    // what the cursor has done since it was created, for QueryStats: the postings decoded (or copied from
+    // the cache), and the bytes of the posting file read (or visited in the mapped file)
+    long postingsDecoded = 0;
+    long bytesRead = 0;
+
+    PostingCursor(IndexReader index) {
+	this.index = index;
+	docs = new int[index.blockSize];
+	freqs = new int[index.blockSize];
+	if (index.postingChunks != null) {
+	    views = new ByteBuffer[index.postingChunks.length];
+	}
+    }
+
+    /// position the cursor at the beginning of the posting list of a term
+    public void open(IndexReader.Entry entry) throws IOException {
+	cached = null;
+	PostingCache cache = index.postingCache;
+	if (cache != null) {
+	    cached = cache.get(index, entry.pos);
+	}
+	if (cached != null) {
+	    // nothing to read
+	} else if (views != null) {
+	    int chunk = (int) (entry.pos / IndexReader.CHUNK_SIZE);
+	    if (views[chunk] == null) {
+		views[chunk] = index.postingChunks[chunk].duplicate();
+	    }
+	    buf = views[chunk];
+	    int start = (int) (entry.pos - chunk*IndexReader.CHUNK_SIZE);
+	    buf.limit(start + entry.length);
+	    buf.position(start);
+	    bytesRead += entry.length;
+	} else {
+	    if (buffer == null || buffer.length < entry.length) {
+		buffer = new byte[entry.length];
+		buf = ByteBuffer.wrap(buffer);
+	    }
+	    index.finposting.readFully(entry.pos, buffer, 0, entry.length); // read all the postings of this term at once
+	    buf.limit(entry.length);
+	    buf.position(0);
+	    bytesRead += entry.length;
+	}
+	remaining = entry.df;
+	lastDoc = 0;
+	blockLen = 0;
+	blockPos = 0;
+	doc = -1;
+	freq = 0;
+	cachedPos = 0;
+	if (cache != null && cached == null && cache.admits(entry.df)) {
+	    // decode the whole list for the cache
+	    int [] allDocs = new int[entry.df];
+	    int [] allFreqs = new int[entry.df];
+	    for (int start=0, n; (n = nextBlock()) > 0; start += n) {
+		System.arraycopy(docs, 0, allDocs, start, n);
+		System.arraycopy(freqs, 0, allFreqs, start, n);
+	    }
+	    cached = new PostingCache.Postings(allDocs, allFreqs);
+	    cache.put(index, entry.pos, cached);
+	    remaining = entry.df;
+	    lastDoc = 0;
+	}
+    }
+
+    /// decode the next block of postings into docs and freqs
+    /// returns the number of postings in the block (0 when the posting list is exhausted)
+    public int nextBlock() {
+	if (remaining == 0) {
+	    return 0;
+	}
+	int n = Math.min(docs.length, remaining);
+	if (cached != null) {
+	    System.arraycopy(cached.docs, cachedPos, docs, 0, n);
+	    System.arraycopy(cached.freqs, cachedPos, freqs, 0, n);
+	    cachedPos += n;
+	    lastDoc = docs[n-1];
+	} else {
+	    lastDoc = PostingFormat.readBlock(buf, lastDoc, n, docs, freqs);
+	}
+	remaining -= n;
+	postingsDecoded += n;
+	return n;
+    }
+
+    /// the postings decoded by the cursor so far
+    public long postingsDecoded() {
+	return postingsDecoded;
+    }
+
+    /// the bytes of postings read by the cursor so far
+    public long bytesRead() {
+	return bytesRead;
+    }
+
+    /// move to the next document; returns it (END if there is none)
+    public int next() {
+	if (++blockPos >= blockLen) {
+	    blockLen = nextBlock();
+	    blockPos = 0;
+	    if (blockLen == 0) {
+		return doc = END;
+	    }
+	}
+	freq = freqs[blockPos];
+	return doc = docs[blockPos];
+    }
+
+    /// move to the first document >= target; returns it (END if there is none)
+    public int advance(int target) {
+	if (doc >= target) {
+	    return doc;
+	}
+	if (blockLen == 0 || target > lastDoc) {
+	    // the target is beyond the current block: skip the blocks that end before it
+	    while (remaining > 0) {
+		int n = Math.min(docs.length, remaining);
+		int last = cached != null ? cached.docs[cachedPos + n - 1] : PostingFormat.peekBlockLast(buf, lastDoc);
+		if (last >= target) {
+		    break;
+		}
+		lastDoc = last;
+		if (cached != null) {
+		    cachedPos += n;
+		} else {
+		    PostingFormat.skipBlock(buf);
+		}
+		remaining -= n;
+	    }
+	    blockLen = nextBlock();
+	    blockPos = 0;
+	    if (blockLen == 0) {
+		return doc = END;
+	    }
+	}
+	while (docs[blockPos] < target) {
+	    blockPos++; // the last document of the block is >= target, so this stops within the block
+	}
+	freq = freqs[blockPos];
+	return doc = docs[blockPos];
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+
+/// This class defines the binary layout of the posting file (IndexFileName.pos) and
+/// contains the code to write and read it. It is shared by IndexGeneration (which writes
+/// the postings) and by Retrieval and kNN (which read them).
+///
+/// The posting file starts with a small header:
+///         int MAGIC, int version, int blockSize
+/// followed by the postings of all the terms. The lexicon entry of a term points to the
+/// first byte of its postings and records how many bytes they span.
+/// The version number covers the whole index, i.e., the layout of the lexicon as well (see Lexicon).
+///
+/// The postings of a term are sorted by (integer) document ID and cut into blocks of
+/// blockSize postings (the last block may be shorter; df tells how many postings there are).
+/// Each block is stored as
+///         vbyte(lastDoc - lastDoc of previous block), vbyte(number of bytes in the payload), payload
+/// where the payload has the gaps between consecutive document IDs followed by the term
+/// frequencies, all in variable-byte code. The block header lets a reader skip a block
+/// without decoding it when it is not interested in any document up to lastDoc.
+///
+/// Variable-byte code: an integer is written 7 bits at a time, lowest bits first,
+/// and the high bit of a byte is set when more bytes follow.
+/// Small numbers (i.e., most gaps and term frequencies) take a single byte.
+
+public class PostingFormat {
+
+    public static final int MAGIC = 0x53495053; // "SIPS"
+    public static final int VERSION = 4; // version 1 was the uncompressed (docID, freq) int pairs, version 2 had no maxTF in the lexicon,
+                                         // version 3 had an unsorted lexicon of fixed records that had to be loaded into a hash table
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+
+    /// write the header of a posting file
+    public static void writeHeader(DataOutput out, int blockSize) throws IOException {
+	out.writeInt(MAGIC);
+	out.writeInt(VERSION);
+	out.writeInt(blockSize);
+    }
+
+    /// read the header of a posting file and return the block size
+    /// it fails if the file was not written with this version of the format
+    public static int readHeader(DataInput in) throws IOException {
+	int magic = in.readInt();
+	int version = in.readInt();
+	if (magic != MAGIC || version != VERSION) {
+	    throw new IOException("unsupported posting file format (version " + version
+				  + "); please rebuild the index with IndexGeneration");
+	}
+	return in.readInt();
+    }
+
+    /// write the n postings of a term to "out"
+    /// docs: the document IDs, sorted in increasing order
+    /// freqs: the term frequencies, freqs[i] is the count of the term in docs[i]
+    /// scratch: a buffer used to build the payload of each block (it is reset here)
+    public static void writePostings(DataOutputStream out, int [] docs, int [] freqs, int n, int blockSize,
+				     ByteArrayOutputStream scratch) throws IOException {
+	int prevLast = 0;
+	for (int start=0; start<n; start+=blockSize) {
+	    int end = Math.min(n, start+blockSize);
+	    scratch.reset();
+	    int prev = prevLast;
+	    for (int i=start; i<end; i++) {
+		writeVByte(scratch, docs[i]-prev);
+		prev = docs[i];
+	    }
+	    for (int i=start; i<end; i++) {
+		writeVByte(scratch, freqs[i]);
+	    }
+	    writeVByte(out, docs[end-1]-prevLast);
+	    writeVByte(out, scratch.size());
+	    scratch.writeTo(out);
+	    prevLast = docs[end-1];
+	}
+    }
+
+    /// decode one block starting at the current position of "buf" into docs[0..n-1] and freqs[0..n-1]
+    /// prevLast: the last document ID of the previous block (0 for the first block)
+    /// n: the number of postings in this block
+    /// returns the last document ID of this block
+    public static int readBlock(ByteBuffer buf, int prevLast, int n, int [] docs, int [] freqs) {
+	readVByte(buf); // last document of the block (the same as docs[n-1] after decoding)
+	readVByte(buf); // payload length (only needed to skip the block)
+	int doc = prevLast;
+	for (int i=0; i<n; i++) {
+	    doc += readVByte(buf);
+	    docs[i] = doc;
+	}
+	for (int i=0; i<n; i++) {
+	    freqs[i] = readVByte(buf);
+	}
+	return doc;
+    }
+
+    /// return the last document ID of the block starting at the current position of "buf"
+    /// without moving the position
+    /// prevLast: the last document ID of the previous block (0 for the first block)
+    public static int peekBlockLast(ByteBuffer buf, int prevLast) {
+	int mark = buf.position();
+	int last = prevLast + readVByte(buf);
+	buf.position(mark);
+	return last;
+    }
+
+    /// move the position of "buf" past the block starting there, without decoding it
+    public static void skipBlock(ByteBuffer buf) {
+	readVByte(buf);
+	int len = readVByte(buf);
+	buf.position(buf.position() + len);
+    }
+
+    /// write an integer >= 0 in variable-byte code
+    public static void writeVByte(OutputStream out, int v) throws IOException {
+	while ((v & ~0x7F) != 0) {
+	    out.write((v & 0x7F) | 0x80);
+	    v >>>= 7;
+	}
+	out.write(v);
+    }
+
+    /// read an integer in variable-byte code from the current position of "buf"
+    public static int readVByte(ByteBuffer buf) {
+	int b = buf.get();
+	int v = b & 0x7F;
+	for (int shift=7; (b & 0x80) != 0; shift+=7) {
+	    b = buf.get();
+	    v |= (b & 0x7F) << shift;
+	}
+	return v;
+    }
+}
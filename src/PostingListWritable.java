@@ -0,0 +1,198 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A list of postings (<b>document ID</b>, <b>count</b>) of a term, in binary:
+ * the number of postings, then for every posting the document ID (a VInt length and
+ * its UTF-8 bytes, like Text) and the count (a VInt).
+ *
+ * This is the value type of InvertedIndex. The document IDs of all the postings are kept
+ * in a single byte array, so adding postings doesn't create any object, and a whole list
+ * can be appended to another one in linear time (see addAll()). toString() gives the text
+ * format of the raw inverted index ("docID count docID count ... "), so the text output of
+ * InvertedIndex doesn't change.
+ */
+public class PostingListWritable implements Writable {
+
+  int size = 0; // number of postings
+  byte [] bytes = new byte[64]; // the document IDs, one after the other
+  int [] starts = new int[9]; // document ID i is bytes[starts[i]..starts[i+1]-1]
+  int [] counts = new int[8];
+
+  public PostingListWritable() {
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String docID(int i) {
+    try {
+      return new String(bytes, starts[i], starts[i+1] - starts[i], "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // UTF-8 is always supported
+    }
+  }
+
+  public int count(int i) {
+    return counts[i];
+  }
+
+  /** add a posting at the end of the list */
+  public void add(String docID, int count) {
+    try {
+      byte [] b = docID.getBytes("UTF-8");
+      add(b, 0, b.length, count);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // UTF-8 is always supported
+    }
+  }
+
+  /** add a posting, given the UTF-8 bytes of its document ID, at the end of the list */
+  public void add(byte [] b, int off, int len, int count) {
+    if (size == counts.length) {
+      counts = Arrays.copyOf(counts, 2*size);
+      starts = Arrays.copyOf(starts, 2*size + 1);
+    }
+    int end = starts[size];
+    if (end + len > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(2*bytes.length, end + len));
+    }
+    System.arraycopy(b, off, bytes, end, len);
+    counts[size] = count;
+    starts[++size] = end + len;
+  }
+
+  /** append all the postings of another list */
+  public void addAll(PostingListWritable other) {
+    for (int i=0; i<other.size; i++) {
+      add(other.bytes, other.starts[i], other.starts[i+1] - other.starts[i], other.counts[i]);
+    }
+  }
+
+  /**
+   * sort the postings by document ID (by their UTF-8 bytes, like Text).
+   * The list is cut into runs that are already sorted, and the runs are merged two by two,
+   * so a list made of a few sorted lists (e.g., the outputs of the combiners) is sorted in
+   * almost linear time.
+   */
+  public void sort() {
+    if (size < 2) {
+      return;
+    }
+    int [] order = new int[size];
+    int [] tmp = new int[size];
+    int [] runs = new int[size + 1]; // run r is order[runs[r]..runs[r+1]-1]
+    int numRuns = 0;
+    for (int i=0; i<size; i++) {
+      order[i] = i;
+      if (i == 0 || compare(i-1, i) > 0) {
+        runs[numRuns++] = i;
+      }
+    }
+    if (numRuns == 1) {
+      return; // already sorted
+    }
+    runs[numRuns] = size;
+    while (numRuns > 1) {
+      int merged = 0;
+      for (int r=0; r<numRuns; r+=2) {
+        int lo = runs[r];
+        if (r + 1 == numRuns) {
+          System.arraycopy(order, lo, tmp, lo, size - lo);
+        } else {
+          merge(order, lo, runs[r+1], runs[r+2], tmp);
+        }
+        runs[merged++] = lo;
+      }
+      runs[merged] = size;
+      numRuns = merged;
+      int [] t = order;
+      order = tmp;
+      tmp = t;
+    }
+
+    // rearrange the postings in this order
+    byte [] sortedBytes = new byte[bytes.length];
+    int [] sortedStarts = new int[starts.length];
+    int [] sortedCounts = new int[counts.length];
+    for (int i=0; i<size; i++) {
+      int p = order[i];
+      int len = starts[p+1] - starts[p];
+      System.arraycopy(bytes, starts[p], sortedBytes, sortedStarts[i], len);
+      sortedStarts[i+1] = sortedStarts[i] + len;
+      sortedCounts[i] = counts[p];
+    }
+    bytes = sortedBytes;
+    starts = sortedStarts;
+    counts = sortedCounts;
+  }
+
+  /** merge order[lo..mid-1] and order[mid..hi-1] into tmp[lo..hi-1] (ties keep their order) */
+  void merge(int [] order, int lo, int mid, int hi, int [] tmp) {
+    int i = lo;
+    int j = mid;
+    for (int k=lo; k<hi; k++) {
+      if (j == hi || (i < mid && compare(order[i], order[j]) <= 0)) {
+        tmp[k] = order[i++];
+      } else {
+        tmp[k] = order[j++];
+      }
+    }
+  }
+
+  /** compare the document IDs of postings a and b */
+  int compare(int a, int b) {
+    return WritableComparator.compareBytes(bytes, starts[a], starts[a+1] - starts[a],
+                                           bytes, starts[b], starts[b+1] - starts[b]);
+  }
+
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, size);
+    for (int i=0; i<size; i++) {
+      WritableUtils.writeVInt(out, starts[i+1] - starts[i]);
+      out.write(bytes, starts[i], starts[i+1] - starts[i]);
+      WritableUtils.writeVInt(out, counts[i]);
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    clear();
+    int n = WritableUtils.readVInt(in);
+    if (counts.length < n) {
+      counts = new int[n];
+      starts = new int[n + 1];
+    }
+    for (int i=0; i<n; i++) {
+      int len = WritableUtils.readVInt(in);
+      int end = starts[i];
+      if (end + len > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(2*bytes.length, end + len));
+      }
+      in.readFully(bytes, end, len);
+      starts[i+1] = end + len;
+      counts[i] = WritableUtils.readVInt(in);
+    }
+    size = n;
+  }
+
+  /** the postings in the text format of the raw inverted index: "docID count docID count ... " */
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    for (int i=0; i<size; i++) {
+      s.append(docID(i)).append(' ').append(counts[i]).append(' ');
+    }
+    return s.toString();
+  }
+}
@@ -0,0 +1,150 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/// This class runs a batch of queries (one per line of the query file) on several threads.
+/// Every thread gets its own Worker (created by the WorkerFactory the first time the thread
+/// needs one), so a Worker never has to be thread-safe; whatever the workers share
+/// (e.g., the IndexReader) must only be read.
+///
+/// The output of each line is written in the same order as the input, no matter in which
+/// order the threads finish: at most a few lines per thread are in flight, and the output
+/// of a line is written as soon as all the lines before it are done.
+/// With a single thread, the lines are simply processed one after the other in the calling thread.
+///
+/// A BatchWorker can also be given several lines at once ("batch" lines, see run()), e.g., to read
+/// the postings of a term only once for all the queries of the batch that contain it.
+public class QueryBatch {
+
+    /// processes one line of the query file and returns its output (including the line breaks)
+    public interface Worker {
+	String process(String line) throws IOException;
+    }
+
+    /// processes several lines of the query file at once and returns their output, in the same order
+    public interface BatchWorker extends Worker {
+	String process(List<String> lines) throws IOException;
+    }
+
+    public interface WorkerFactory {
+	Worker newWorker() throws IOException;
+    }
+
+    /// number of lines in flight per thread
+    static final int LINES_PER_THREAD = 16;
+
+    public static void run(BufferedReader reader, PrintStream out, int threads, final WorkerFactory factory) throws IOException {
+	run(reader, out, threads, 1, factory);
+    }
+
+    /// run the queries "batch" lines at a time: with batch > 1, the workers must be BatchWorkers
+    /// (the last batch may be shorter)
+    public static void run(BufferedReader reader, PrintStream out, int threads, int batch, final WorkerFactory factory)
+	throws IOException {
+	if (batch > 1) {
+	    runBatches(reader, out, threads, batch, factory);
+	    return;
+	}
+	String t=null;
+	if (threads <= 1) {
+	    Worker worker = factory.newWorker();
+	    while ((t=reader.readLine()) != null) {
+		out.print(worker.process(t));
+	    }
+	    return;
+	}
+
+	final ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+	try {
+	    while ((t=reader.readLine()) != null) {
+		final String line = t;
+		pending.addLast(pool.submit(new Callable<String>() {
+			public String call() throws IOException {
+			    Worker worker = workers.get();
+			    if (worker == null) {
+				worker = factory.newWorker();
+				workers.set(worker);
+			    }
+			    return worker.process(line);
+			}
+		    }));
+		if (pending.size() >= threads*LINES_PER_THREAD) {
+		    out.print(result(pending.removeFirst()));
+		}
+	    }
+	    while (!pending.isEmpty()) {
+		out.print(result(pending.removeFirst()));
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+    }
+
+    /// like run(), with a task of "batch" lines instead of a line
+    static void runBatches(BufferedReader reader, PrintStream out, int threads, int batch, final WorkerFactory factory)
+	throws IOException {
+	if (threads <= 1) {
+	    BatchWorker worker = (BatchWorker) factory.newWorker();
+	    List<String> lines;
+	    while (!(lines = readLines(reader, batch)).isEmpty()) {
+		out.print(worker.process(lines));
+	    }
+	    return;
+	}
+
+	final ThreadLocal<BatchWorker> workers = new ThreadLocal<BatchWorker>();
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+	try {
+	    List<String> lines;
+	    while (!(lines = readLines(reader, batch)).isEmpty()) {
+		final List<String> task = lines;
+		pending.addLast(pool.submit(new Callable<String>() {
+			public String call() throws IOException {
+			    BatchWorker worker = workers.get();
+			    if (worker == null) {
+				worker = (BatchWorker) factory.newWorker();
+				workers.set(worker);
+			    }
+			    return worker.process(task);
+			}
+		    }));
+		if (pending.size() >= 2*threads) {
+		    out.print(result(pending.removeFirst()));
+		}
+	    }
+	    while (!pending.isEmpty()) {
+		out.print(result(pending.removeFirst()));
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+    }
+
+    /// read up to n lines (none at the end of the input)
+    static List<String> readLines(BufferedReader reader, int n) throws IOException {
+	List<String> lines = new ArrayList<String>(n);
+	String t;
+	while (lines.size() < n && (t=reader.readLine()) != null) {
+	    lines.add(t);
+	}
+	return lines;
+    }
+
+    /// wait for the output of a line (or any other task)
+    static <T> T result(Future<T> future) throws IOException {
+	try {
+	    return future.get();
+	} catch (InterruptedException e) {
+	    throw new InterruptedIOException("interrupted while waiting for a query");
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof IOException) {
+		throw (IOException) e.getCause();
+	    }
+	    throw new RuntimeException(e.getCause());
+	}
+    }
+}
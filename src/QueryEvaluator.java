@@ -0,0 +1,455 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/// This class holds what is needed to score queries against an inverted index:
+/// posting cursors, the score accumulators and the top k of the current query.
+/// The IndexReader is only read, so it can be shared, but the rest is private to one
+/// query at a time: a program that scores several queries in parallel creates one
+/// QueryEvaluator per thread.
+///
+/// The weight of a matched query term comes from a ScoringModel, which is shared by all the threads.
+/// Subclasses (Retrieval.Searcher and kNN.Classifier) decide what to do with the scores.
+///
+/// There are two ways to evaluate a query:
+/// -- term at a time (exhaustive): clear(), then addTerm() for every query term adds the weights
+///    of all its postings to the accumulators; the caller then picks the top k from the accumulators.
+/// -- document at a time with WAND: wand() walks the posting lists of all the query terms together
+///    and fully scores only the documents that could still get into the top k, given the upper
+///    bounds of the term weights (see upperBound()). The results go straight into topK.
+///    This gives exactly the same top k, as long as the weight of a term never increases when the
+///    document gets longer and never decreases when the term count gets larger (true for TF-IDF,
+///    BM25 or pivoted normalization), and no score adjustment is made after the sum of the weights
+///    (so the callers don't use WAND when ScoringModel.adjusts(), e.g., with the Dirichlet prior).
+/// Term at a time, the number of accumulators can also be limited (see accLimit and addTerms()):
+/// this bounds the work done for a long query, such as a whole document in kNN, but the scores
+/// are approximate then.
+/// -- score at a time: with the impact lists of the index (see ImpactIndex), scoreAtATime() takes the
+///    groups of postings of all the query terms from the largest impact to the smallest, and can stop
+///    after a number of postings or an amount of time (see postingBudget and timeBudget), so the
+///    time taken by a query doesn't depend on the length of its posting lists. The scores are the
+///    quantised weights of the model the impacts were computed with.
+public abstract class QueryEvaluator {
+
+    protected IndexReader index;
+    protected PostingCursor cursor;
+    protected ScoringModel model;
+    protected double param; // the retrieval parameter of the model
+
+    // Score accumulators, indexed by document number.
+    // The arrays are allocated once and reused for all queries: touchedDocs lists the documents
+    // whose accumulator is in use, so that only those have to be reset for the next query.
+    public double [] acc;
+    boolean [] touched;
+    public int [] touchedDocs;
+    public int touchedCount = 0;
+    int sortedCount = 0; // touchedDocs[0..sortedCount-1] are sorted (see continueTerm())
+
+    // The accumulator limit (Moffat and Zobel's quit and continue strategies): once accLimit documents
+    // have an accumulator, addTerm() doesn't create any new one. With "continue", the next terms still
+    // add their weights to the documents that have one; with "quit" (quitAtLimit), addTerms() stops there.
+    public int accLimit = Integer.MAX_VALUE;
+    public boolean quitAtLimit = false;
+
+    // the best scoring documents of a query
+    public TopK topK;
+
+    // one cursor per query term for wand(), with the constants of its weight and their upper bound,
+    // and the order of the cursors by current document
+    PostingCursor [] cursors = new PostingCursor[0];
+    ScoringModel.Term [] weights = new ScoringModel.Term[0];
+    double [] bounds = new double[0];
+    int [] order = new int[0];
+
+    // the impact lists, if the queries are evaluated score at a time
+    public ImpactIndex impacts = null;
+    public long postingBudget = Long.MAX_VALUE; // the most postings scored for a query
+    public long timeBudget = 0; // the most time spent on a query (in nanoseconds; 0 for no limit)
+    public long postingsScored = 0; // the number of postings scored for the last query
+
+    // our view of the impact lists, and the groups of postings of the query terms (see scoreAtATime())
+    ByteBuffer impactLists = null;
+    int [] groupImpact = new int[0]; // the impact of the group, multiplied by the count of the term in the query
+    int [] groupCount = new int[0]; // its number of postings
+    int [] groupPos = new int[0]; // and where its documents start in the impact file
+    long [] groupOrder = new long[0]; // (Integer.MAX_VALUE - impact) << 32 | group, to sort the groups by decreasing impact
+    long impactPostingsRead = 0; // the postings and bytes of the impact lists read so far (for the stats)
+    long impactBytesRead = 0;
+
+    // the measures of the queries (shared by all the threads), if any, and those of the current query:
+    // the time spent in every phase so far (see QueryStats.PHASES), when the query and the current phase
+    // started, the postings and bytes read before it, the accumulators used when its scoring phases ended
+    // and the number of results it gave
+    public QueryStats stats = null;
+    long [] phaseTimes = new long[QueryStats.PHASES.length];
+    long queryStart;
+    long phaseStart;
+    long startPostings;
+    long startBytes;
+    long accumulatorsUsed;
+    long resultSize;
+
+    /// a document is scored by wand() if the sum of the upper bounds of its terms is at least the
+    /// score it must beat, minus this (relative) slack: sums added in a different order may differ
+    /// in the last bits, and scoring a few more documents than necessary is harmless
+    static final double BOUND_SLACK = 1e-9;
+
+    public QueryEvaluator(IndexReader index, int k, ScoringModel model) {
+	this.index = index;
+	this.model = model;
+	this.param = model.param();
+	cursor = index.openCursor();
+	acc = new double[index.numDocs()];
+	touched = new boolean[index.numDocs()];
+	touchedDocs = new int[index.numDocs()];
+	topK = new TopK(k);
+    }
+
+    /// clear the score accumulators used by the previous query to prepare for storing new scores for this query
+    public void clear() {
+	for (int i=0; i<touchedCount; i++) {
+	    acc[touchedDocs[i]] = 0;
+	    touched[touchedDocs[i]] = false;
+	}
+	touchedCount = 0;
+	sortedCount = 0;
+    }
+
+    /// start measuring a query (nothing is measured without stats)
+    public void startQuery() {
+	if (stats == null) {
+	    return;
+	}
+	Arrays.fill(phaseTimes, 0);
+	startPostings = postingsRead();
+	startBytes = bytesRead();
+	accumulatorsUsed = 0;
+	resultSize = 0;
+	queryStart = phaseStart = System.nanoTime();
+    }
+
+    /// add the time since the end of the previous phase (or the start of the query) to a phase (see QueryStats)
+    /// (at the end of a scoring phase, the documents that have an accumulator are counted too)
+    public void endPhase(int phase) {
+	if (stats == null) {
+	    return;
+	}
+	long now = System.nanoTime();
+	phaseTimes[phase] += now - phaseStart;
+	phaseStart = now;
+	if (phase == QueryStats.SCORE) {
+	    accumulatorsUsed += touchedCount;
+	}
+    }
+
+    /// add the measures of the queries since startQuery() to the stats: "queries" queries that shared
+    /// the work equally (more than one for a batch of test documents, see kNN.Classifier.process(List))
+    public void endQuery(int queries) {
+	if (stats == null) {
+	    return;
+	}
+	long nanos = System.nanoTime() - queryStart;
+	long postings = postingsRead() - startPostings;
+	long bytes = bytesRead() - startBytes;
+	if (queries > 1) {
+	    nanos /= queries;
+	    postings /= queries;
+	    bytes /= queries;
+	    accumulatorsUsed /= queries;
+	    resultSize /= queries;
+	    for (int p=0; p<phaseTimes.length; p++) {
+		phaseTimes[p] /= queries;
+	    }
+	}
+	for (int q=0; q<queries; q++) {
+	    stats.record(nanos, phaseTimes, postings, bytes, accumulatorsUsed, resultSize);
+	}
+    }
+
+    /// the postings decoded by all our cursors (and read from the impact lists) so far
+    long postingsRead() {
+	long n = cursor.postingsDecoded() + impactPostingsRead;
+	for (PostingCursor c : cursors) {
+	    n += c.postingsDecoded();
+	}
+	return n;
+    }
+
+    /// the bytes of postings (and impact lists) read by all our cursors so far
+    long bytesRead() {
+	long n = cursor.bytesRead() + impactBytesRead;
+	for (PostingCursor c : cursors) {
+	    n += c.bytesRead();
+	}
+	return n;
+    }
+
+    /// add the weights of a query term to the accumulators of all the documents that contain it
+    /// termEntry: the lexicon entry of the term
+    /// qtf: the number of times the term occurs in the query (the weight is multiplied by it)
+    public void addTerm(IndexReader.Entry termEntry, int qtf) throws IOException {
+	int df = termEntry.df;
+	// df tells us how many pairs (docID termCount) for this term we have in the posting file
+
+	cursor.open(termEntry); // position the cursor at the posting entries for this term
+
+	ScoringModel.Term term = model.term(termEntry, qtf); // everything that doesn't depend on the document
+	double [] norms = model.norms; // and what only depends on the document
+	if (touchedCount >= accLimit) {
+	    continueTerm(term, df);
+	    return;
+	}
+	int n;
+	while ((n = cursor.nextBlock()) > 0) { // decode the df pairs block by block
+	    for (int i=0; i<n; i++) {
+		int docID = cursor.docs[i]; // the document number
+		int termFreq = cursor.freqs[i]; // the term Count
+		double tmpWeight = term.weight(termFreq, norms[docID]);
+		// compute the weight of this matched term (multiplied by qtf)
+
+		if (touched[docID]) {
+		    // this means that the docID already has an entry in the accumulator, i.e., the docID already matched a previous query term
+		    acc[docID] += tmpWeight;
+
+		} else if (touchedCount < accLimit) {
+		    // otherwise, we need to start the score accumulator for this docID and set the score appropriately.
+		    touched[docID] = true;
+		    touchedDocs[touchedCount++] = docID;
+		    acc[docID] = tmpWeight;
+		}
+	    }
+	}
+    }
+
+    /// add the weights of a term to the documents that already have an accumulator (the limit is reached)
+    void continueTerm(ScoringModel.Term term, int df) {
+	double [] norms = model.norms;
+	if (touchedCount < df) {
+	    // fewer accumulators than postings: look up the documents in the posting list, in order,
+	    // so that the cursor skips the blocks between them without decoding them
+	    if (sortedCount != touchedCount) {
+		Arrays.sort(touchedDocs, 0, touchedCount);
+		sortedCount = touchedCount;
+	    }
+	    cursor.next();
+	    for (int i=0; i<touchedCount && cursor.doc != PostingCursor.END; i++) {
+		int docID = touchedDocs[i];
+		if (cursor.advance(docID) == docID) {
+		    acc[docID] += term.weight(cursor.freq, norms[docID]);
+		}
+	    }
+	    return;
+	}
+	int n;
+	while ((n = cursor.nextBlock()) > 0) {
+	    for (int i=0; i<n; i++) {
+		int docID = cursor.docs[i];
+		if (touched[docID]) {
+		    acc[docID] += term.weight(cursor.freqs[i], norms[docID]);
+		}
+	    }
+	}
+    }
+
+    /// add the weights of the query terms terms[0..n-1], whose counts in the query are qtfs[0..n-1],
+    /// to the accumulators (see addTerm()), with the accumulator limit if there is one:
+    /// the terms are then added by increasing document frequency (the rarest, most discriminating
+    /// terms first, while new documents can still get an accumulator), and if quitAtLimit, the terms
+    /// left when the limit is reached are ignored. The arrays are reordered in that case.
+    /// Without a limit, the terms are added in the given order.
+    public void addTerms(IndexReader.Entry [] terms, int [] qtfs, int n) throws IOException {
+	if (accLimit < Integer.MAX_VALUE) {
+	    // insertion sort by df (a query has a few hundred distinct terms at most)
+	    for (int i=1; i<n; i++) {
+		IndexReader.Entry e = terms[i];
+		int q = qtfs[i];
+		int j = i-1;
+		while (j >= 0 && terms[j].df > e.df) {
+		    terms[j+1] = terms[j];
+		    qtfs[j+1] = qtfs[j];
+		    j--;
+		}
+		terms[j+1] = e;
+		qtfs[j+1] = q;
+	    }
+	}
+	for (int j=0; j<n; j++) {
+	    if (quitAtLimit && touchedCount >= accLimit) {
+		break;
+	    }
+	    addTerm(terms[j], qtfs[j]);
+	}
+    }
+
+    /// the largest weight a query term can have in any document: the weight of the largest count
+    /// of the term in one document (maxTF, stored in the lexicon by IndexGeneration) in the shortest
+    /// document of the collection
+    public double upperBound(IndexReader.Entry termEntry, int qtf) {
+	return model.term(termEntry, qtf).weight(termEntry.maxTF, model.norm(index.minDocLen));
+    }
+
+    /// evaluate a query document at a time with WAND and offer the scored documents to topK
+    /// (the caller clears topK before and sorts it after)
+    /// terms[0..n-1]: the lexicon entries of the query terms, qtfs[0..n-1]: the number of times each occurs in the query
+    ///     (the weights of a document are added in this order, as addTerm() would, so the scores are the same)
+    /// labels: if not null, only the documents d with labels[d] >= 0 are ranked (kNN only ranks labeled documents)
+    public void wand(IndexReader.Entry [] terms, int [] qtfs, int n, int [] labels) throws IOException {
+	if (topK.capacity() == 0) {
+	    return;
+	}
+	if (cursors.length < n) {
+	    int old = cursors.length;
+	    cursors = Arrays.copyOf(cursors, n);
+	    for (int j=old; j<n; j++) {
+		cursors[j] = index.openCursor();
+	    }
+	    weights = new ScoringModel.Term[n];
+	    bounds = new double[n];
+	    order = new int[n];
+	}
+	for (int j=0; j<n; j++) {
+	    cursors[j].open(terms[j]);
+	    cursors[j].next();
+	    weights[j] = model.term(terms[j], qtfs[j]);
+	    // a negative weight can only lower the score, so 0 is a valid bound in that case
+	    bounds[j] = Math.max(0, weights[j].weight(terms[j].maxTF, model.norm(index.minDocLen)));
+	    order[j] = j;
+	}
+	sortCursors(n);
+
+	double [] norms = model.norms;
+	while (true) {
+	    // the score a document must reach to get into the top k
+	    double threshold = Double.NEGATIVE_INFINITY;
+	    if (topK.isFull()) {
+		threshold = topK.minScore() - BOUND_SLACK * Math.abs(topK.minScore());
+	    }
+
+	    // find the pivot: the first document (in the order of the cursors) whose terms can reach the threshold
+	    // no document before it can get into the top k
+	    double sum = 0;
+	    int p = 0;
+	    while (p < n && cursors[order[p]].doc != PostingCursor.END) {
+		sum += bounds[order[p]];
+		if (sum >= threshold) {
+		    break;
+		}
+		p++;
+	    }
+	    if (p == n || cursors[order[p]].doc == PostingCursor.END) {
+		break; // no document left can get into the top k
+	    }
+	    int pivot = cursors[order[p]].doc;
+
+	    if (cursors[order[0]].doc == pivot) {
+		// all the cursors up to the pivot are on the pivot document: score it
+		if (labels == null || labels[pivot] >= 0) {
+		    double score = 0;
+		    for (int j=0; j<n; j++) {
+			if (cursors[j].doc == pivot) {
+			    score += weights[j].weight(cursors[j].freq, norms[pivot]);
+			}
+		    }
+		    topK.offer(pivot, score);
+		}
+		for (int i=0; i<n && cursors[order[i]].doc == pivot; i++) {
+		    cursors[order[i]].next();
+		}
+	    } else {
+		// the documents before the pivot can't make it: move the cursors before the pivot up to it
+		for (int i=0; i<p; i++) {
+		    cursors[order[i]].advance(pivot);
+		}
+	    }
+	    sortCursors(n);
+	}
+    }
+
+    /// add the impacts of the query terms terms[0..n-1], whose counts in the query are qtfs[0..n-1], to the
+    /// accumulators, the groups with the largest impact first, until the impact lists are exhausted or
+    /// the budget is spent (a group may be cut short), then multiply the sums by the scale of the impacts
+    /// (the accumulator limit applies as in addTerm(), but the order of the terms doesn't matter here)
+    public void scoreAtATime(IndexReader.Entry [] terms, int [] qtfs, int n) throws IOException {
+	long deadline = timeBudget > 0 ? System.nanoTime() + timeBudget : Long.MAX_VALUE;
+	if (impactLists == null) {
+	    impactLists = impacts.lists();
+	}
+	ByteBuffer buf = impactLists;
+
+	// list the groups of the impact lists of all the terms
+	int groups = 0;
+	for (int j=0; j<n; j++) {
+	    buf.position(impacts.find(terms[j]));
+	    int count = PostingFormat.readVByte(buf);
+	    if (groupImpact.length < groups + count) {
+		int size = Math.max(groups + count, 2*groupImpact.length);
+		groupImpact = Arrays.copyOf(groupImpact, size);
+		groupCount = Arrays.copyOf(groupCount, size);
+		groupPos = Arrays.copyOf(groupPos, size);
+		groupOrder = Arrays.copyOf(groupOrder, size);
+	    }
+	    for (int i=0; i<count; i++, groups++) {
+		groupImpact[groups] = PostingFormat.readVByte(buf) * qtfs[j];
+		groupCount[groups] = PostingFormat.readVByte(buf);
+		int bytes = PostingFormat.readVByte(buf);
+		groupPos[groups] = buf.position();
+		buf.position(buf.position() + bytes);
+		groupOrder[groups] = (long) (Integer.MAX_VALUE - groupImpact[groups]) << 32 | groups;
+	    }
+	}
+	Arrays.sort(groupOrder, 0, groups); // by decreasing impact, then in the order of the terms
+
+	// the impacts are integers, so the sums don't depend on the order in which they are added
+	long scored = 0;
+    scoring:
+	for (int o=0; o<groups && scored < postingBudget; o++) {
+	    if (System.nanoTime() > deadline) {
+		break;
+	    }
+	    int g = (int) groupOrder[o];
+	    buf.position(groupPos[g]);
+	    int count = (int) Math.min(groupCount[g], postingBudget - scored);
+	    double impact = groupImpact[g];
+	    int docID = 0;
+	    for (int i=0; i<count; i++) {
+		docID += PostingFormat.readVByte(buf);
+		if (touched[docID]) {
+		    acc[docID] += impact;
+		} else if (touchedCount < accLimit) {
+		    touched[docID] = true;
+		    touchedDocs[touchedCount++] = docID;
+		    acc[docID] = impact;
+		}
+		if ((i & 4095) == 4095 && deadline != Long.MAX_VALUE && System.nanoTime() > deadline) {
+		    scored += i+1;
+		    impactBytesRead += buf.position() - groupPos[g];
+		    break scoring;
+		}
+	    }
+	    scored += count;
+	    impactBytesRead += buf.position() - groupPos[g];
+	}
+	postingsScored = scored;
+	impactPostingsRead += scored;
+
+	for (int i=0; i<touchedCount; i++) {
+	    acc[touchedDocs[i]] *= impacts.scale;
+	}
+    }
+
+    /// sort order[0..n-1] by the current document of the cursors
+    /// (insertion sort: only a few cursors move at each step, so the order is nearly sorted already)
+    void sortCursors(int n) {
+	for (int i=1; i<n; i++) {
+	    int c = order[i];
+	    int doc = cursors[c].doc;
+	    int j = i-1;
+	    while (j >= 0 && cursors[order[j]].doc > doc) {
+		order[j+1] = order[j];
+		j--;
+	    }
+	    order[j+1] = c;
+	}
+    }
+}
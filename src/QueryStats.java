@@ -0,0 +1,149 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class collects the measures of the queries evaluated by Retrieval, kNN and SearchServer
+/// (see QueryEvaluator.startQuery() and endQuery()): for every query, the time taken by each phase,
+/// the postings decoded, the bytes of posting lists read, the documents that got a score accumulator
+/// and the number of results. Each measure goes into a Histogram, so the percentiles can be reported.
+///
+/// The phases of a query are:
+/// -- parse: tokenizing the query and looking up its terms in the lexicon (and in the result cache)
+/// -- score: reading the posting lists and adding up the weights (including WAND and the score adjustment)
+/// -- select: picking and sorting the top documents
+/// -- output: formatting the results (Retrieval) or letting the neighbors vote (kNN)
+///
+/// A query only costs a few calls to System.nanoTime() and a few atomic increments, so the measures
+/// are always collected. They can be read while the program runs through JMX (see register(), e.g.,
+/// with jconsole: the MBean simir:type=QueryStats), or written as JSON at the end (see write()).
+/// One QueryStats is shared by all the threads.
+public class QueryStats implements QueryStatsMBean {
+
+    public static final String [] PHASES = { "parse", "score", "select", "output" };
+    public static final int PARSE = 0;
+    public static final int SCORE = 1;
+    public static final int SELECT = 2;
+    public static final int OUTPUT = 3;
+
+    String name; // the program or the kind of request
+    long started = System.currentTimeMillis();
+    public long loadTime = 0; // the time taken to open the index before the first query (in nanoseconds)
+
+    Histogram latency = new Histogram(); // in nanoseconds
+    Histogram [] phases = new Histogram[PHASES.length];
+    Histogram postings = new Histogram();
+    Histogram bytes = new Histogram();
+    Histogram accumulators = new Histogram();
+    Histogram results = new Histogram();
+
+    public QueryStats(String name) {
+	this.name = name;
+	for (int p=0; p<phases.length; p++) {
+	    phases[p] = new Histogram();
+	}
+    }
+
+    /// count a query that took "nanos" nanoseconds in all, phaseTimes[p] in phase p
+    public void record(long nanos, long [] phaseTimes, long postingsRead, long bytesRead, long accumulatorsUsed, long resultSize) {
+	latency.record(nanos);
+	for (int p=0; p<phases.length; p++) {
+	    phases[p].record(phaseTimes[p]);
+	}
+	postings.record(postingsRead);
+	bytes.record(bytesRead);
+	accumulators.record(accumulatorsUsed);
+	results.record(resultSize);
+    }
+
+    public long getQueries() {
+	return latency.count();
+    }
+
+    public double getMeanLatencyMicros() {
+	return latency.mean() / 1000;
+    }
+
+    public long getLatencyP50Micros() {
+	return latency.percentile(50) / 1000;
+    }
+
+    public long getLatencyP99Micros() {
+	return latency.percentile(99) / 1000;
+    }
+
+    public long getLatencyP999Micros() {
+	return latency.percentile(99.9) / 1000;
+    }
+
+    public long getPostingsRead() {
+	return postings.sum();
+    }
+
+    public long getBytesRead() {
+	return bytes.sum();
+    }
+
+    public String getJson() {
+	return toJson();
+    }
+
+    /// all the measures as a JSON object (the times in microseconds)
+    public String toJson() {
+	StringBuilder out = new StringBuilder();
+	out.append("{\n");
+	out.append("  \"name\": \"").append(name).append("\",\n");
+	out.append("  \"queries\": ").append(latency.count()).append(",\n");
+	out.append(String.format(Locale.ROOT, "  \"load_ms\": %.3f,\n", loadTime / 1e6));
+	out.append("  \"elapsed_ms\": ").append(System.currentTimeMillis() - started).append(",\n");
+	out.append("  \"latency_us\": ").append(latency.toJson(1000)).append(",\n");
+	out.append("  \"phases_us\": {\n");
+	for (int p=0; p<phases.length; p++) {
+	    out.append("    \"").append(PHASES[p]).append("\": ").append(phases[p].toJson(1000))
+		.append(p+1 < phases.length ? ",\n" : "\n");
+	}
+	out.append("  },\n");
+	out.append("  \"postings\": ").append(postings.toJson(1)).append(",\n");
+	out.append("  \"bytes\": ").append(bytes.toJson(1)).append(",\n");
+	out.append("  \"accumulators\": ").append(accumulators.toJson(1)).append(",\n");
+	out.append("  \"results\": ").append(results.toJson(1)).append("\n");
+	out.append("}\n");
+	return out.toString();
+    }
+
+    /// write the measures as JSON to a file
+    public void write(FileSystem fs, String file) throws IOException {
+	Writer out = new OutputStreamWriter(fs.create(new Path(file), true), "UTF-8");
+	try {
+	    out.write(toJson());
+	} finally {
+	    out.close();
+	}
+    }
+
+    /// make the measures visible through JMX, as the MBean simir:type=QueryStats,name=<name>
+    /// (or <name>-2, <name>-3... when the name is already taken in this JVM, e.g., by another evaluator);
+    /// if it can't be registered, the queries run without it
+    public void register() {
+	try {
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    for (int i=1; ; i++) {
+		try {
+		    server.registerMBean(this, new ObjectName("simir:type=QueryStats,name=" + (i == 1 ? name : name + "-" + i)));
+		    return;
+		} catch (InstanceAlreadyExistsException e) {
+		    // try the next name
+		}
+	    }
+	} catch (Exception e) {
+	    System.err.println("the query statistics are not visible through JMX: " + e);
+	}
+    }
+}
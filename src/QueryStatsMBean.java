@@ -0,0 +1,11 @@
+/// This interface is what JMX shows of a QueryStats (the times are in microseconds).
+public interface QueryStatsMBean {
+    long getQueries();
+    double getMeanLatencyMicros();
+    long getLatencyP50Micros();
+    long getLatencyP99Micros();
+    long getLatencyP999Micros();
+    long getPostingsRead();
+    long getBytesRead();
+    String getJson();
+}
@@ -0,0 +1,116 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+
+/// This class reads a raw inverted index file generated by InvertedIndex one term at a time.
+/// The file can be in either output format of InvertedIndex:
+/// -- text (the default): each line has a term followed by its (docID count) pairs
+/// -- a SequenceFile of (Text term, PostingListWritable postings) ("-seq"): nothing needs to be parsed
+/// The format is recognized from the first bytes of the file.
+///
+/// Usage:
+///         RawPostingReader in = RawPostingReader.open(fs, path, conf);
+///         while (in.next()) {
+///             // in.term has the postings in.docs[0..in.df-1], in.freqs[0..in.df-1]
+///         }
+///         in.close();
+public class RawPostingReader implements Closeable {
+
+    public String term; // the current term
+    public int df; // number of postings of the current term
+    public String [] docs = new String[1024]; // their document IDs
+    public int [] freqs = new int[1024]; // and the counts of the term in these documents
+
+    BufferedReader text = null;
+    SequenceFile.Reader seq = null;
+    Text key;
+    PostingListWritable value;
+
+    /// open a raw inverted index file
+    public static RawPostingReader open(FileSystem fs, Path path, Configuration conf) throws IOException {
+	RawPostingReader in = new RawPostingReader();
+	FSDataInputStream fin = fs.open(path);
+	byte [] magic = new byte[4];
+	int n = 0;
+	int r;
+	while (n < magic.length && (r = fin.read(magic, n, magic.length - n)) > 0) {
+	    n += r;
+	}
+	if (n == magic.length && magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q' && magic[3] < ' ') {
+	    // "SEQ" and a version byte can't be the beginning of a line of text
+	    fin.close();
+	    in.seq = new SequenceFile.Reader(fs, path, conf);
+	    in.key = new Text();
+	    in.value = new PostingListWritable();
+	} else {
+	    fin.seek(0);
+	    in.text = new BufferedReader(new InputStreamReader(fin, "UTF-8"));
+	}
+	return in;
+    }
+
+    /// move to the next term; returns false at the end of the file
+    public boolean next() throws IOException {
+	if (seq != null) {
+	    if (!seq.next(key, value)) {
+		return false;
+	    }
+	    term = key.toString();
+	    df = 0;
+	    grow(value.size());
+	    for (int i=0; i<value.size(); i++) {
+		docs[df] = value.docID(i);
+		freqs[df] = value.count(i);
+		df++;
+	    }
+	    return true;
+	}
+
+	String t = text.readLine();
+	if (t == null) {
+	    return false;
+	}
+	// each line corresponds to all the entries for a different term
+	// it starts with the term itself with a sequence of (docID, termFreq) pairs
+	StringTokenizer st = new StringTokenizer(t);
+	term = st.nextToken();
+	df = 0;
+	while (st.hasMoreTokens()) {
+	    String docID = st.nextToken();
+	    if (st.hasMoreTokens()) {
+		// we should expect another token for the term frequency/count
+		grow(df + 1);
+		docs[df] = docID;
+		freqs[df] = Integer.parseInt(st.nextToken().trim());
+		df++;
+	    } else {
+		System.err.println("Term frequency is expected");
+	    }
+	}
+	return true;
+    }
+
+    void grow(int n) {
+	if (n > docs.length) {
+	    int size = Math.max(n, 2*docs.length);
+	    docs = Arrays.copyOf(docs, size);
+	    freqs = Arrays.copyOf(freqs, size);
+	}
+    }
+
+    public void close() throws IOException {
+	if (seq != null) {
+	    seq.close();
+	}
+	if (text != null) {
+	    text.close();
+	}
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.*;
+
+
+/// This class remembers the results of the last queries, so that a query that comes again is not evaluated again.
+/// A query is identified by its term frequency vector: its distinct terms with the number of times each occurs,
+/// sorted by term, so the order of the terms in the query doesn't matter (see key()), and by the parameters
+/// that change the results (the retrieval parameter, the number of results, ...).
+/// When the cache is full, the least recently used result is evicted.
+/// All the methods are synchronized, so one cache can be shared by all the threads.
+public class ResultCache<V> {
+
+    int capacity; // the largest number of results kept
+    LinkedHashMap<String,V> results = new LinkedHashMap<String,V>(256, 0.75f, true); // in the order of use
+
+    public long hits = 0;
+    public long misses = 0;
+    public long evictions = 0;
+
+    public ResultCache(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /// the key of a query with these term frequencies and parameters
+    public static String key(Map<String,Integer> termFreqs, Object... params) {
+	String [] terms = termFreqs.keySet().toArray(new String[termFreqs.size()]);
+	Arrays.sort(terms);
+	StringBuilder key = new StringBuilder();
+	for (Object p : params) {
+	    key.append(p).append(' ');
+	}
+	for (String term : terms) {
+	    key.append('|').append(term).append(' ').append(termFreqs.get(term));
+	}
+	return key.toString();
+    }
+
+    /// the result of the query with this key (null if it is not in the cache)
+    public synchronized V get(String key) {
+	V result = results.get(key);
+	if (result == null) {
+	    misses++;
+	} else {
+	    hits++;
+	}
+	return result;
+    }
+
+    public synchronized void put(String key, V result) {
+	if (capacity <= 0) {
+	    return;
+	}
+	results.put(key, result);
+	if (results.size() > capacity) {
+	    Iterator<V> lru = results.values().iterator();
+	    lru.next();
+	    lru.remove();
+	    evictions++;
+	}
+    }
+
+    /// the counters, for the log
+    public synchronized String toString() {
+	return "result cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+	    + results.size() + " results";
+    }
+}
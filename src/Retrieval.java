@@ -15,12 +15,14 @@ import org.apache.hadoop.fs.Path;
 /// This application uses an HDFS inverted index to rank documents for a set of 
 /// queries. 
 /// Usage:
-/// hadoop jar simir.jar Retrieval InvertedIndexFileName QueryFile [parameter value]
+/// hadoop jar simir.jar Retrieval [-t threads] [-wand] [-model name] [-cache MB] [-results N] [-impact [-budget N] [-ms T]] [-shards local|procs] [-stats file] InvertedIndexFileName QueryFile [parameter value]
 /// -- "InvertedIndexFileName" is the name (including path) of the HDFS inverted file
-///     (Make sure that you have all the three files: 
+///     (Make sure that you have all these files: 
 ///                 + InvertedIndexFileName.lex: lexicon
 ///                 + InvertedIndexFileName.pos: posting
-///                 + InvertedIndexFileName.dlen: doc length
+///                 + InvertedIndexFileName.dlen: doc length (not needed if IndexGeneration has
+///                   generated InvertedIndexFileName.stats and InvertedIndexFileName.doclen from it)
+///                 + InvertedIndexFileName.docs: document table (integer ID -> original doc ID)
 /// -- "QueryFile" is the name (including path) of the query file
 ///                  It has the following format (each query at a separate line)
 //         QueryID1 queryterm1 queryterm2 ... querytermN
@@ -30,234 +32,348 @@ import org.apache.hadoop.fs.Path;
 ///      would take whatever default value hard-coded in the program. 
 ///     For example, if the retrieval model is Dirichlet prior, this may be the smoothing parameter
 ///      while if it's BM25, this may be parameter "b" for length normalization. 
+/// -- "-model name" is optional: the retrieval model, one of tfidf (the default), bm25, dirichlet
+///     or pivoted (see ScoringModel). With dirichlet, "-wand" is ignored: WAND can't be used
+///     when the scores are adjusted after the weights are added.
+/// -- "-t threads" is optional: the number of queries processed in parallel (1 by default).
+///     The results are printed in the order of the query file in any case.
+/// -- "-wand" is optional: evaluate the queries document at a time with WAND, which skips the documents
+///     that can't make it into the top results (see QueryEvaluator); the results are the same.
+/// -- "-cache MB" is optional: keep up to MB megabytes of decoded posting lists in memory for all the
+///     queries, so the lists of the terms used again are not read again (see PostingCache).
+/// -- "-results N" is optional: remember the results of the last N distinct queries, so a query that
+///     comes again (with the same terms, in any order) is not evaluated again (see ResultCache).
+///     The hits, misses and evictions of the caches are reported on the standard error at the end.
+/// -- "-impact" is optional: evaluate the queries score at a time with the impact lists built by
+///     IndexGeneration -impact (see ImpactIndex): the postings with the largest weights are scored first,
+///     and with "-budget N", a query stops after N postings, and with "-ms T", after T milliseconds.
+///     The scores are then the quantised weights of the model the impact lists were built with
+///     ("-model", "-wand" and the parameter value are ignored), and the results may be approximate.
+/// -- "-shards local" or "-shards procs" is optional: evaluate every query on all the shards of an index split by
+///     IndexGeneration -shards at the same time, by threads of this process ("local") or by a process per shard
+///     and per thread ("procs"), and merge their top results (see ShardCoordinator). The results are those of the
+///     whole index. "-impact" can't be used with it, and "-results" is ignored.
+/// -- "-stats file" is optional: write the measures of the queries to "file" at the end, as JSON: the percentiles
+///     (p50, p99, p999...) of the time taken by a query and by each of its phases, of the postings and bytes read,
+///     of the documents scored and of the number of results (see QueryStats). The measures are always collected,
+///     and can also be read through JMX while the queries run (the MBean simir:type=QueryStats,name=Retrieval).
 	
 
-/// This is an auxiliary class for sorting documents based on their scores. 
-class ValueComparator implements Comparator { 
- 
-    Map base; 
-    public ValueComparator(Map base) { 
-	this.base = base; 
-    } 
-    
-    public int compare(Object a, Object b) { 
-	
-	if((Double)base.get(a) < (Double)base.get(b)) { 
-	    return 1; 
-	} else if((Double)base.get(a) == (Double)base.get(b)) { 
-	    return 0; 
-	} else { 
-	    return -1; 
-	} 
-    } 
-}
-
-    
-
 /// This is the main class for retrieval.
 public class Retrieval {
 
-    /// This function returns the weight of a matched query term for a document
-    /// rawTF: raw count of the matched query term in the document
-    /// docFreq: document frequency of the matched term (i.e.., total number of documents in the collection
-    ///                 that contain the term
-    /// docCountTotal: total number of documents in the collection
-    /// termCount: the total count of the term in the whole collection
-    /// totalTermCount: the sum of the total count of *all* the terms in the collection
-    /// docLength: length of the document (number of words)
-    /// avgDocLength: average document length in the collection
-    /// param: a retrieval parameter that can be set to any value through the third argument when executing "Retrieval" 
-    static double weight(int rawTF, int docFreq, int docCountTotal, int termCount,int totalTermCount, int docLength, double avgDocLength, double param) {
-	double idf = Math.log((1.0+docCountTotal)/(0.5+docFreq));
-	return (rawTF*idf); 
-	// this is the raw TF-IDF weighting, which ignored a lot of information 
-	// passed to this weighitng function; you may explore different ways of 
-	// exploiting all the information to see if you can improve retrieval accuracy.
-	// BM25, Dirichlet prior, and Pivoted length normalization are obvious choices, 
-	// but you are encouraged to think about other choices. 
-    }
-    
-
-
-    public static void main (String [] args) throws IOException {
-	
-
-	/// This class defines the type Entry to pack all the information about a term stored in a lexicon entry. 
-	class Entry {
-	    public int df; // document frequency
-	    public int count; // term count in the collection
-	    public long pos; // start position of entries in the posting file
-	    public int length; // span of postering entries 
-	    Entry(int d, int c, long p, int l) {
-		pos=p;
-		length = l;
-		df =d;
-		count=c;
-	    }
-	}
-	
-	double retrievalModelParam = 0.5; // default retrieval parameter; this should be set to a meaningful value
-	// for the retrieval model actually implemented. 
-
-	// the following is standard HDFS setup 
-	Configuration conf = new Configuration();
-	FileSystem fs = FileSystem.get(conf);
-	FSDataInputStream finlexicon=null;
-	FSDataInputStream  finposting=null, findoclen=null, finquery=null; 
-
-	//Hash table for the lexicon:key is a term, value is an object of class Entry
-	HashMap<String,Entry> lex= new HashMap<String,Entry>();
+    /// This class scores the queries of one thread: it parses a query line, accumulates the weights
+    /// of the query terms, and formats the top N results.
+    static class Searcher extends QueryEvaluator implements QueryBatch.Worker {
 
-	// Hash table for the score accumulators: key is docID, value is score.
-	HashMap<String,Double> acc = new HashMap<String,Double>();
+	boolean useWand; // evaluate document at a time with WAND instead of scoring every posting
 
-	// Hash table for storing document length: key is docID, value is doc length
-	HashMap<String,Integer> dlen = new HashMap<String,Integer>(); 
+	// the query terms found in the lexicon, for WAND
+	IndexReader.Entry [] queryTerms = new IndexReader.Entry[16];
+	int [] queryTermFreqs = new int[16];
 
+	ResultCache<Result> results = null; // the results of the last queries (shared by all the threads), if any
 
-	Entry termEntry = null;
-	byte [] buffer = null; 
-	String docID =null;
-	int termFreq; 
-	StringTokenizer st=null;
-	String term =null;
-	int i; 
-	double s; 
-
-	int resultCount=1000; // this is the maximum number of results to return for each query
-
-	if (args.length>=3) {
-	    retrievalModelParam = Double.parseDouble(args[2]); // parse the provided parameter value if available.
+	/// a Searcher with TF-IDF weighting and no result cache
+	Searcher(IndexReader index, int resultCount, double param, boolean useWand) throws IOException {
+	    this(index, resultCount, ScoringModel.create("tfidf", index, param), useWand, null);
 	}
 
-	String t=null;
-	BufferedReader reader = null;
-	try { 
-	    // open the three files for the index
-	    finposting = fs.open(new Path(args[0] + ".pos" ));
-	    finlexicon = fs.open(new Path(args[0] + ".lex"));
-	    findoclen = fs.open(new Path(args[0] + ".dlen"));
-
-
-	    // open the query file
-	    finquery = fs.open(new Path(args[1])); 
-	} catch (IOException ioe) {
-	    System.out.println("file operation error: " + "args[0]="+ args[0] + ";args[1]="+args[1]); 
-            System.exit(1);
+	Searcher(IndexReader index, int resultCount, ScoringModel model, boolean useWand, ResultCache<Result> results) {
+	    super(index, resultCount, model);
+	    this.useWand = useWand && !model.adjusts();
+	    this.results = results;
 	}
 
-	// load the lexicon 
-	int totalTermCount=0;
-	while (finlexicon.available()!=0) {
-	    term = finlexicon.readUTF(); 
-	    int docFreq = finlexicon.readInt();
-	    int termCount =finlexicon.readInt();
-	    long  startPos = finlexicon.readLong();
-	    int postingSpan = finlexicon.readInt();
-	    lex.put(term,new Entry(docFreq,termCount,startPos, postingSpan)); 
-	    totalTermCount += termCount;
-	}	    
-	finlexicon.close();
-	
-	// load doc length
-	double avgDocLen =0;
-	int totalDocCount=0;
-	reader = new BufferedReader(new InputStreamReader(findoclen));
-	while ((t=reader.readLine()) != null) {
-	    st = new StringTokenizer(t);	
-	    term = st.nextToken();
-	    int docLen = Integer.parseInt(st.nextToken().trim());
-	    dlen.put(term,docLen);
-
-	    // we'll use this opportunity to compute the average doc length and the total number of documents in the collection
-	    // note that it's better to precompute these values in the indexing stage and store them in a file
-	    avgDocLen += docLen;  
-	    totalDocCount++;
+	public String process(String t) throws IOException {
+	    startQuery();
+	    String out = search(t);
+	    endQuery(1);
+	    return out;
 	}
-	avgDocLen /= totalDocCount; 
-	findoclen.close(); 
 
-	// process queries 
-	reader = new BufferedReader(new InputStreamReader(finquery));
-	while ((t=reader.readLine()) != null) {
+	/// evaluate a query line and return its results
+	String search(String t) throws IOException {
 	    // each line has precisely one query: queryID term1 term 2.... 
 
-	    st = new StringTokenizer(t); // A StringTokenizer allows us to decompose a string into space-separated tokens
+	    StringTokenizer st = new StringTokenizer(t); // A StringTokenizer allows us to decompose a string into space-separated tokens
 	    String qid = st.nextToken(); // the first token should be the query ID
 	    System.err.println("Processing query:"+qid); 
 
-	    acc.clear(); // clear the score accumulator to prepare for storing new scores for this query
+	    return format(qid, rank(t));
+	}
+
+	/// evaluate a query line and return its ranked documents
+	/// (a shard of a sharded index only ranks its documents: see ShardCoordinator)
+	Result rank(String t) throws IOException {
+	    StringTokenizer st = new StringTokenizer(t);
+	    st.nextToken(); // the query ID
+
+	    String key = null;
+	    if (results != null) {
+		// the same terms with the same counts (in any order) give the same results
+		HashMap<String, Integer> qTermFreq = new HashMap<String, Integer>();
+		while (st.hasMoreTokens()) {
+		    String term = st.nextToken();
+		    Integer freq = qTermFreq.get(term);
+		    qTermFreq.put(term, freq == null ? 1 : freq + 1);
+		}
+		key = ResultCache.key(qTermFreq, model, param, topK.capacity(), impacts != null, postingBudget, timeBudget);
+		Result r = results.get(key);
+		if (r != null) {
+		    endPhase(QueryStats.PARSE);
+		    return r;
+		}
+		st = new StringTokenizer(t);
+		st.nextToken();
+	    }
+
+	    clear(); // clear the score accumulator to prepare for storing new scores for this query
 
 	    int qlen=0; // counter for computing the query length
 	    while (st.hasMoreTokens()) {
 		// read query terms 
-		term = st.nextToken(); // read a query term 
-		termEntry = lex.get(term); // fetch the lexicon entry for this query term 
+		String term = st.nextToken(); // read a query term 
+		IndexReader.Entry termEntry = index.getEntry(term); // fetch the lexicon entry for this query term 
 
 		if (termEntry != null) {
-		    qlen++; 
-		    int df = termEntry.df; 
-		    // df tells us how many pairs (docID termCount) for this term we have in the posting file 
-
-		    finposting.seek(termEntry.pos); // seek to the starting position of the posting entries for this term
-
-		    for (i=1; i<=df; i++) { // read in the df pairs 
-			docID = finposting.readUTF().trim(); // read in a document ID
-			termFreq = finposting.readInt(); // read in the term Count 
-			int doclen = dlen.get(docID).intValue(); // fetch the document length for this doc 
-			double tmpWeight = weight(termFreq,df,totalDocCount,termEntry.count,totalTermCount,doclen,avgDocLen, retrievalModelParam);
-			// compute the weight of this matched term
-
-			Double s1 = acc.get(docID); // get the current score for this docID in the accumulator if any
-			if (s1 != null) { 
-			    // this means that the docID already has an entry in the accumulator, i.e., the docID already matched a previous query term
-
-			    acc.put(docID, s1.doubleValue() + tmpWeight);
-			    
-			} else {
-			    // otherwise, we need to add a score accumulator for this docID and set the score appropriately.
-			    
-			    acc.put(docID, tmpWeight);
-			}
+		    // just remember the term: all the terms are evaluated together below
+		    if (qlen == queryTerms.length) {
+			queryTerms = Arrays.copyOf(queryTerms, 2*qlen);
+			queryTermFreqs = Arrays.copyOf(queryTermFreqs, 2*qlen);
 		    }
-		    
+		    queryTerms[qlen] = termEntry;
+		    queryTermFreqs[qlen] = 1;
+		    qlen++; 
 		} else{
 		    System.err.println("Skipping query term:"+term+ "(not in the collection)");
 		}
 	    }
-	    
+	    endPhase(QueryStats.PARSE);
+
+	    if (impacts != null) {
+		// score at a time: the impacts are added to the accumulators (no adjustment is needed)
+		scoreAtATime(queryTerms, queryTermFreqs, qlen);
+		endPhase(QueryStats.SCORE);
+		topK.clear();
+		for (int i=0; i<touchedCount; i++) {
+		    topK.offer(touchedDocs[i], acc[touchedDocs[i]]);
+		}
+		return result(key);
+	    }
+
+	    if (useWand) {
+		// WAND puts the top N results straight into topK
+		// (this assumes that the scores don't need the adjustment below)
+		topK.clear();
+		wand(queryTerms, queryTermFreqs, qlen, null);
+		endPhase(QueryStats.SCORE);
+		return result(key);
+	    }
+
+	    addTerms(queryTerms, queryTermFreqs, qlen); // add the weights of the terms to the accumulators of the documents containing them
 
 	    // At this point, we have iterated over all the query terms and updated the score accumulators appropriately
 	    // so the score accumulators should have a sum of weights for all the matched query terms. 
 	    // In some retrieval models, we may need to adjust this sum in some way, we can do it here
 
 	    // adjustment of scores for each document if necessary
-	    for (Map.Entry<String, Double> entry : acc.entrySet()) { 
-		// iterate over all accumulators and use "acc.put()" to update the score
-		// for example, the following statement would add |Q| log (mu/(mu+|D|)), which is needed for Dirichlet prior 
-		/* 
-		acc.put(entry.getKey(), entry.getValue().doubleValue()+
-		qlen*Math.log(retrievalModelParam/(retrievalModelParam+dlen.get(docID).intValue()))); */
+	    // for example, the Dirichlet prior adds |Q| log (mu/(mu+|D|)) to the score of every document
+	    model.adjust(acc, touchedDocs, touchedCount, qlen);
+	    endPhase(QueryStats.SCORE);
+
+	    // now we've finished scoring, and we'll select the top N results 
+	    // and format them for the standard output stream (System.out)
+	    topK.clear();
+	    for (int i=0; i<touchedCount; i++) {
+		topK.offer(touchedDocs[i], acc[touchedDocs[i]]);
 	    }
+	    return result(key);
+	}
 
-	    // now we've finished scoring, and we'll sort the scores and output the top N results 
-	    // to the standard output stream (System.out)
-	    ValueComparator bvc =  new ValueComparator(acc); 
-	    TreeMap<String,Double> sortedAcc = new TreeMap<String,Double>(bvc); 
- 	    sortedAcc.putAll(acc); 
-	    i=0;
-	    for (Map.Entry<String, Double> entry : sortedAcc.entrySet()) { 
-		String key = entry.getKey(); 
-		Double value = entry.getValue(); 
-		System.out.println(qid + " " +key + " " + value);
-		i++;
-		if (i>=resultCount) {
-		    break;
-		}
+	/// sort the results in topK and return them
+	/// (and keep them in the result cache with the key of the query, if there is one)
+	Result result(String key) {
+	    int n = topK.sort();
+	    endPhase(QueryStats.SELECT);
+	    Result r = new Result(Arrays.copyOf(topK.docs, n), Arrays.copyOf(topK.scores, n));
+	    if (key != null) {
+		results.put(key, r);
+	    }
+	    return r;
+	}
+
+	String format(String qid, Result r) {
+	    StringBuilder out = new StringBuilder();
+	    for (int i=0; i<r.docs.length; i++) { 
+		String key = index.docs.name(r.docs[i]); 
+		double value = r.scores[i]; 
+		out.append(qid + " " +key + " " + value).append('\n');
 	    } 
+	    resultSize = r.docs.length;
+	    endPhase(QueryStats.OUTPUT);
+	    return out.toString();
+	}
+    }
+
+    /// the ranked documents of a query and their scores, as kept in the result cache
+    static class Result {
+	final int [] docs;
+	final double [] scores;
 
+	Result(int [] docs, double [] scores) {
+	    this.docs = docs;
+	    this.scores = scores;
 	}
     }
-}
 
 
+    public static void main (String [] args) throws IOException {
+	long start = System.nanoTime();
+
+	double retrievalModelParam = Double.NaN; // the retrieval parameter; by default, the default value
+	// of the retrieval model (see ScoringModel)
+	String modelName = "tfidf"; // the retrieval model
+
+	// the following is standard HDFS setup 
+	Configuration conf = new Configuration();
+	FileSystem fs = FileSystem.get(conf);
+	FSDataInputStream finquery=null; 
+
+	// the inverted index: lexicon, document table, doc lengths and postings
+	IndexReader index = null;
+
+	int resultCount=1000; // this is the maximum number of results to return for each query
+	int threads = 1; // number of queries processed in parallel
+
+	boolean wand = false; // document-at-a-time evaluation with WAND
+	long cacheSize = 0; // megabytes of decoded posting lists kept in memory
+	int resultCacheSize = 0; // number of query results kept in memory
+	boolean impact = false; // score-at-a-time evaluation with the impact lists
+	long postingBudget = Long.MAX_VALUE; // the most postings scored for a query (score at a time)
+	long timeBudget = 0; // the most milliseconds spent on a query (score at a time; 0 for no limit)
+	String statsFile = null; // where to write the measures of the queries
+	String shardMode = null; // evaluate the shards of the index by threads ("local") or processes ("procs")
+
+	// "-t <threads>", "-wand", "-model <name>", "-cache <MB>", "-results <N>", "-impact", "-budget <N>", "-ms <T>",
+	// "-shards <mode>" and "-stats <file>" may come anywhere in the arguments
+	List<String> other_args = new ArrayList<String>();
+	for (int i=0; i < args.length; ++i) {
+	    if ("-t".equals(args[i]) && i+1 < args.length) {
+		threads = Integer.parseInt(args[++i]);
+	    } else if ("-cache".equals(args[i]) && i+1 < args.length) {
+		cacheSize = Long.parseLong(args[++i]);
+	    } else if ("-results".equals(args[i]) && i+1 < args.length) {
+		resultCacheSize = Integer.parseInt(args[++i]);
+	    } else if ("-model".equals(args[i]) && i+1 < args.length) {
+		modelName = args[++i];
+	    } else if ("-budget".equals(args[i]) && i+1 < args.length) {
+		postingBudget = Long.parseLong(args[++i]);
+	    } else if ("-ms".equals(args[i]) && i+1 < args.length) {
+		timeBudget = Long.parseLong(args[++i]);
+	    } else if ("-stats".equals(args[i]) && i+1 < args.length) {
+		statsFile = args[++i];
+	    } else if ("-shards".equals(args[i]) && i+1 < args.length) {
+		shardMode = args[++i];
+	    } else if ("-impact".equals(args[i])) {
+		impact = true;
+	    } else if ("-wand".equals(args[i])) {
+		wand = true;
+	    } else {
+		other_args.add(args[i]);
+	    }
+	}
+	args = other_args.toArray(new String[other_args.size()]);
+
+	if (args.length>=3) {
+	    retrievalModelParam = Double.parseDouble(args[2]); // parse the provided parameter value if available.
+	}
+
+	if (shardMode != null) {
+	    // every query goes to all the shards, which are opened by the coordinator
+	    if (impact) {
+		System.out.println("-impact can't be used with -shards");
+		System.exit(1);
+	    }
+	    ShardCoordinator.Settings settings = new ShardCoordinator.Settings();
+	    settings.k = resultCount;
+	    settings.modelName = modelName;
+	    settings.param = retrievalModelParam;
+	    settings.wand = wand;
+	    settings.cacheSize = cacheSize;
+	    ShardCoordinator.run(fs, args[0], args[1], settings, shardMode, threads, new QueryStats("Retrieval"), statsFile, start);
+	    return;
+	}
+
+	try { 
+	    // open the index
+	    index = new IndexReader(fs, args[0]);
+
+	    // open the query file
+	    finquery = fs.open(new Path(args[1])); 
+	} catch (IOException ioe) {
+	    ioe.printStackTrace();
+	    System.out.println("file operation error: " + "args[0]="+ args[0] + ";args[1]="+args[1]); 
+            System.exit(1);
+	}
+
+	// the retrieval model, with its norms of all the documents, is shared by all the threads
+	// (and so are the impact lists)
+	ScoringModel scoringModel = null;
+	ImpactIndex impactIndex = null;
+	try {
+	    if (impact) {
+		impactIndex = new ImpactIndex(fs, args[0]);
+		scoringModel = impactIndex.model(index);
+	    } else {
+		scoringModel = ScoringModel.create(modelName, index, retrievalModelParam);
+	    }
+	} catch (IOException ioe) {
+	    System.out.println(ioe.getMessage());
+	    System.exit(1);
+	}
+
+	// the caches are shared by all the threads
+	PostingCache postingCache = null;
+	if (cacheSize > 0) {
+	    postingCache = new PostingCache(cacheSize << 20);
+	    index.setPostingCache(postingCache);
+	}
+	final ResultCache<Result> results = resultCacheSize > 0 ? new ResultCache<Result>(resultCacheSize) : null;
+
+	// and so are the measures of the queries
+	final QueryStats stats = new QueryStats("Retrieval");
+	stats.loadTime = System.nanoTime() - start;
+	stats.register();
+
+	// process queries: every thread gets its own Searcher, which shares the index with the others
+	final IndexReader sharedIndex = index;
+	final int k = resultCount;
+	final ScoringModel model = scoringModel;
+	final boolean useWand = wand;
+	final ImpactIndex impacts = impactIndex;
+	final long budget = postingBudget;
+	final long nanos = timeBudget * 1000000;
+	BufferedReader reader = new BufferedReader(new InputStreamReader(finquery));
+	QueryBatch.run(reader, System.out, threads, new QueryBatch.WorkerFactory() {
+		public QueryBatch.Worker newWorker() {
+		    Searcher searcher = new Searcher(sharedIndex, k, model, useWand, results);
+		    searcher.impacts = impacts;
+		    searcher.postingBudget = budget;
+		    searcher.timeBudget = nanos;
+		    searcher.stats = stats;
+		    return searcher;
+		}
+	    });
+	System.out.flush();
+	if (postingCache != null) {
+	    System.err.println(postingCache);
+	}
+	if (results != null) {
+	    System.err.println(results);
+	}
+	if (statsFile != null) {
+	    stats.write(fs, statsFile);
+	}
+    }
+}
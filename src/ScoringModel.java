@@ -0,0 +1,246 @@
+import java.io.*;
+
+
+/// This class is a retrieval model: it gives the weight of a matched query term in a document,
+/// which Retrieval and kNN add up over the query terms to score the documents (see QueryEvaluator).
+///
+/// The weight of a term depends on
+///     rawTF: raw count of the matched query term in the document
+///     docFreq: document frequency of the matched term (i.e., total number of documents in the collection
+///              that contain the term)
+///     docCountTotal: total number of documents in the collection
+///     termCount: the total count of the term in the whole collection
+///     totalTermCount: the sum of the total count of *all* the terms in the collection
+///     docLength: length of the document (number of words)
+///     avgDocLength: average document length in the collection
+///     param: a retrieval parameter that can be set on the command line
+/// but most of it doesn't change from one posting to the next, so it is computed in three steps:
+/// -- once for the index: norms[d], whatever a model needs from the length of document d
+///    (e.g., the length normalization of BM25 or pivoted normalization)
+/// -- once per query term: term() returns a Term with everything that only depends on the term
+///    and the query (idf, the collection probability, the count in the query...)
+/// -- for each posting: Term.weight(rawTF, norms[d]), a few multiplications and additions
+/// After the weights of all the query terms are added up, adjust() can change the scores of the
+/// documents (e.g., the document part of the Dirichlet prior).
+///
+/// The statistics of a term are those of entry.stats(), so that the shards of a sharded index all score
+/// with the statistics of the whole collection (and so do the totals of the index, see IndexReader).
+///
+/// The built-in models are "tfidf" (the default), "bm25", "dirichlet" and "pivoted" (see create()).
+/// A model is never modified once it is created, so one model can be shared by all the threads.
+public abstract class ScoringModel {
+
+    /// the models that create() knows
+    public static final String [] NAMES = { "tfidf", "bm25", "dirichlet", "pivoted" };
+
+    protected IndexReader index;
+    protected double param;
+    public double [] norms; // norms[d] is the value of norm() for the length of document d
+
+    protected ScoringModel(IndexReader index, double param) {
+	this.index = index;
+	this.param = param;
+    }
+
+    /// compute the norms of all the documents (called by the constructors of the subclasses)
+    protected void computeNorms() {
+	norms = new double[index.dlen.length];
+	for (int d=0; d<norms.length; d++) {
+	    norms[d] = norm(index.dlen[d]);
+	}
+    }
+
+    /// the value of a term in a query, given its lexicon entry and its count in the query (qtf)
+    public static abstract class Term {
+	/// the weight of the term in a document where it occurs rawTF times, whose norm is "norm"
+	/// (the weight is already multiplied by the count of the term in the query)
+	public abstract double weight(int rawTF, double norm);
+    }
+
+    /// the norm of a document of length docLength
+    public abstract double norm(int docLength);
+
+    /// the constants of a query term
+    public abstract Term term(IndexReader.Entry entry, int qtf);
+
+    /// true if adjust() changes the scores: the top documents can't be found with WAND then
+    public boolean adjusts() {
+	return false;
+    }
+
+    /// change the scores of the documents after the weights of all the query terms have been added
+    /// acc[touchedDocs[0..touchedCount-1]]: the scores of the documents that match the query
+    /// qlen: the number of the query terms found in the collection (with repetitions)
+    public void adjust(double [] acc, int [] touchedDocs, int touchedCount, int qlen) {
+    }
+
+    /// the retrieval parameter to use when none is given on the command line
+    public abstract double defaultParam();
+
+    public double param() {
+	return param;
+    }
+
+    /// the name of the model, as given to create()
+    public abstract String toString();
+
+    /// create a model by name (see NAMES) for an index
+    /// param: the retrieval parameter of the model, or NaN for its default value
+    public static ScoringModel create(String name, IndexReader index, double param) throws IOException {
+	ScoringModel model;
+	if (name.equals("tfidf")) {
+	    model = new TfIdf(index);
+	} else if (name.equals("bm25")) {
+	    model = new BM25(index);
+	} else if (name.equals("dirichlet")) {
+	    model = new Dirichlet(index);
+	} else if (name.equals("pivoted")) {
+	    model = new Pivoted(index);
+	} else {
+	    throw new IOException("unknown retrieval model " + name + " (known models: tfidf, bm25, dirichlet, pivoted)");
+	}
+	model.param = Double.isNaN(param) ? model.defaultParam() : param;
+	model.computeNorms();
+	return model;
+    }
+
+
+    /// the raw TF-IDF weighting: rawTF * log((1+docCountTotal)/(0.5+docFreq)),
+    /// which ignores the length of the document (param isn't used)
+    public static class TfIdf extends ScoringModel {
+
+	TfIdf(IndexReader index) {
+	    super(index, 0);
+	}
+
+	public double norm(int docLength) {
+	    return 1;
+	}
+
+	public Term term(IndexReader.Entry entry, int qtf) {
+	    final double idf = Math.log((1.0+index.totalDocCount)/(0.5+entry.stats().df));
+	    final int q = qtf;
+	    return new Term() {
+		public double weight(int rawTF, double norm) {
+		    return rawTF*idf * q;
+		}
+	    };
+	}
+
+	public double defaultParam() {
+	    return 0.5;
+	}
+
+	public String toString() {
+	    return "tfidf";
+	}
+    }
+
+    /// Okapi BM25: idf * rawTF*(k1+1) / (rawTF + k1*(1-b+b*docLength/avgDocLength)), with k1 = 1.2,
+    /// b = param and idf = log(1 + (docCountTotal-docFreq+0.5)/(docFreq+0.5)) (always positive)
+    public static class BM25 extends ScoringModel {
+
+	static final double K1 = 1.2;
+
+	BM25(IndexReader index) {
+	    super(index, 0);
+	}
+
+	public double norm(int docLength) {
+	    return K1*(1 - param + param*docLength/index.avgDocLen);
+	}
+
+	public Term term(IndexReader.Entry entry, int qtf) {
+	    int df = entry.stats().df;
+	    double idf = Math.log(1 + (index.totalDocCount - df + 0.5)/(df + 0.5));
+	    final double c = idf*(K1 + 1)*qtf;
+	    return new Term() {
+		public double weight(int rawTF, double norm) {
+		    return c*rawTF/(rawTF + norm);
+		}
+	    };
+	}
+
+	public double defaultParam() {
+	    return 0.75;
+	}
+
+	public String toString() {
+	    return "bm25";
+	}
+    }
+
+    /// the query likelihood with a Dirichlet prior (mu = param):
+    /// the matched terms get log(1 + rawTF/(mu*p(w|C))), where p(w|C) = termCount/totalTermCount,
+    /// and adjust() adds qlen*log(mu/(mu+docLength)) to every document
+    public static class Dirichlet extends ScoringModel {
+
+	Dirichlet(IndexReader index) {
+	    super(index, 0);
+	}
+
+	/// the document part of the score of a query term: log(mu/(mu+docLength))
+	public double norm(int docLength) {
+	    return Math.log(param/(param + docLength));
+	}
+
+	public Term term(IndexReader.Entry entry, int qtf) {
+	    final double c = (double) index.totalTermCount/(param*entry.stats().count);
+	    final int q = qtf;
+	    return new Term() {
+		public double weight(int rawTF, double norm) {
+		    return q*Math.log(1 + rawTF*c);
+		}
+	    };
+	}
+
+	public boolean adjusts() {
+	    return true;
+	}
+
+	public void adjust(double [] acc, int [] touchedDocs, int touchedCount, int qlen) {
+	    for (int i=0; i<touchedCount; i++) {
+		int d = touchedDocs[i];
+		acc[d] += qlen*norms[d];
+	    }
+	}
+
+	public double defaultParam() {
+	    return 2000;
+	}
+
+	public String toString() {
+	    return "dirichlet";
+	}
+    }
+
+    /// pivoted length normalization (s = param):
+    /// (1+log(1+log(rawTF))) / ((1-s) + s*docLength/avgDocLength) * log((docCountTotal+1)/docFreq)
+    public static class Pivoted extends ScoringModel {
+
+	Pivoted(IndexReader index) {
+	    super(index, 0);
+	}
+
+	public double norm(int docLength) {
+	    return 1/(1 - param + param*docLength/index.avgDocLen);
+	}
+
+	public Term term(IndexReader.Entry entry, int qtf) {
+	    final double c = Math.log((index.totalDocCount + 1.0)/entry.stats().df)*qtf;
+	    return new Term() {
+		public double weight(int rawTF, double norm) {
+		    return c*(1 + Math.log(1 + Math.log(rawTF)))*norm;
+		}
+	    };
+	}
+
+	public double defaultParam() {
+	    return 0.2;
+	}
+
+	public String toString() {
+	    return "pivoted";
+	}
+    }
+}
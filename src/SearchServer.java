@@ -0,0 +1,361 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This application keeps an index in memory and answers Retrieval queries and kNN classifications over HTTP,
+/// so the index, the document lengths and the training tags are loaded only once, and the queries run
+/// in a JVM that is already warm.
+/// Usage:
+/// hadoop jar simir.jar SearchServer [-port P] [-t threads] [-batch B] [-wait ms] [-model name] [-cache MB] [-results N]
+///                                   [-stats file] InvertedIndexFileName [Train_List K] [parameter value]
+/// -- "InvertedIndexFileName", "-model", "-cache", "-results" and "parameter value" are as for Retrieval and kNN.
+/// -- "Train_List" and "K" are as for kNN; without them, the server only answers queries.
+/// -- "-port P": the port to listen to (8080 by default); the server only listens to the local host.
+/// -- "-t threads": the number of threads that evaluate the queries (1 by default).
+/// -- "-batch B" and "-wait ms": the queries that arrive at the same time are evaluated in batches of up to B
+///     (16 by default): a thread takes the first query waiting, then waits up to "ms" milliseconds (1 by default)
+///     for more. The test documents of a batch are classified with one scan of the posting lists of their
+///     terms (see kNN -batch); the queries of a batch are evaluated one after the other. When a test document
+///     of a batch fails, the batch is classified again one test document at a time, so only its request gets the error.
+/// -- "-stats file": when the server is stopped (but not killed with SIGKILL), write the measures of the queries
+///     and of the test documents to the local file "file" as JSON (see QueryStats).
+///
+/// Requests:
+/// -- POST /search: the body has queries in the format of the query file of Retrieval (one per line:
+///     QueryID term1 term2 ...), and the response has their results as Retrieval prints them
+///     (QueryID docID score, best first, at most 1000 per query).
+///     GET /search?q=QueryID+term1+term2... does the same for one query.
+/// -- POST /classify: the body has test documents in the format of the Test_List of kNN (one per line:
+///     DocumentID term1 term2 ...), and the response has their tags as kNN prints them (tag DocumentID).
+///     GET /classify?q=DocumentID+term1+term2... does the same for one test document.
+/// -- GET /stats: the measures of the queries and of the test documents so far, as JSON (see QueryStats);
+///     they can also be read through JMX (the MBeans simir:type=QueryStats,name=search and name=classify).
+/// The lines of the response are in the order of the request. An empty line in a request is ignored.
+/// The server runs until it is killed.
+public class SearchServer {
+
+    /// a line of a request, waiting for its output
+    static class Request {
+	final String line;
+	String output = null;
+	IOException error = null;
+	final CountDownLatch done = new CountDownLatch(1);
+
+	Request(String line) {
+	    this.line = line;
+	}
+
+	void finish(String output, IOException error) {
+	    this.output = output;
+	    this.error = error;
+	    done.countDown();
+	}
+    }
+
+    /// This class evaluates the lines of the requests in batches: every thread has its own Worker and takes
+    /// up to "batch" lines from the queue at a time (waiting up to "wait" nanoseconds after the first one).
+    static class Batcher {
+	final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+	final int batch;
+	final long wait;
+
+	Batcher(final QueryBatch.WorkerFactory factory, int threads, int batch, long wait) throws IOException {
+	    this.batch = batch;
+	    this.wait = wait;
+	    for (int i=0; i<threads; i++) {
+		final QueryBatch.Worker worker = factory.newWorker();
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+			    serve(worker);
+			}
+		    }, "batcher-" + i);
+		thread.setDaemon(true);
+		thread.start();
+	    }
+	}
+
+	/// take batches of lines from the queue and evaluate them, forever
+	void serve(QueryBatch.Worker worker) {
+	    List<Request> requests = new ArrayList<Request>(batch);
+	    List<String> lines = new ArrayList<String>(batch);
+	    while (true) {
+		requests.clear();
+		lines.clear();
+		try {
+		    requests.add(queue.take());
+		    long deadline = System.nanoTime() + wait;
+		    while (requests.size() < batch) {
+			Request r = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			if (r == null) {
+			    break;
+			}
+			requests.add(r);
+		    }
+		} catch (InterruptedException e) {
+		    return;
+		}
+		if (requests.size() > 1 && worker instanceof QueryBatch.BatchWorker) {
+		    // one output line per test document, in order
+		    for (Request r : requests) {
+			lines.add(r.line);
+		    }
+		    String [] outputs = null;
+		    try {
+			outputs = ((QueryBatch.BatchWorker) worker).process(lines).split("\n");
+		    } catch (Exception e) {
+			// a line of the batch failed: the lines are evaluated one at a time below,
+			// so the error only goes to the request it comes from
+		    }
+		    if (outputs != null && outputs.length == requests.size()) {
+			for (int i=0; i<requests.size(); i++) {
+			    requests.get(i).finish(outputs[i] + "\n", null);
+			}
+			continue;
+		    }
+		}
+		for (Request r : requests) {
+		    evaluate(worker, r);
+		}
+	    }
+	}
+
+	/// evaluate one line, and give it its output or its error
+	static void evaluate(QueryBatch.Worker worker, Request r) {
+	    try {
+		r.finish(worker.process(r.line), null);
+	    } catch (IOException e) {
+		r.finish(null, e);
+	    } catch (RuntimeException e) {
+		r.finish(null, new IOException(e.toString(), e));
+	    }
+	}
+    }
+
+    /// This class answers the requests of one kind (/search or /classify) with a Batcher
+    static class Handler implements HttpHandler {
+	final Batcher batcher;
+
+	Handler(Batcher batcher) {
+	    this.batcher = batcher;
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+	    try {
+		List<String> lines = new ArrayList<String>();
+		if ("POST".equals(exchange.getRequestMethod())) {
+		    BufferedReader body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+		    String t;
+		    while ((t = body.readLine()) != null) {
+			if (t.trim().length() > 0) {
+			    lines.add(t);
+			}
+		    }
+		} else {
+		    String query = exchange.getRequestURI().getRawQuery();
+		    if (query != null) {
+			for (String param : query.split("&")) {
+			    if (param.startsWith("q=") && param.length() > 2) {
+				lines.add(URLDecoder.decode(param.substring(2), "UTF-8"));
+			    }
+			}
+		    }
+		}
+		if (lines.isEmpty()) {
+		    reply(exchange, 400, "no query\n");
+		    return;
+		}
+
+		// submit all the lines before waiting for the first one, so they can get into the same batch
+		Request [] requests = new Request[lines.size()];
+		for (int i=0; i<requests.length; i++) {
+		    requests[i] = new Request(lines.get(i));
+		    batcher.queue.add(requests[i]);
+		}
+		StringBuilder out = new StringBuilder();
+		for (Request r : requests) {
+		    r.done.await();
+		    if (r.error != null) {
+			reply(exchange, 500, r.error.getMessage() + "\n");
+			return;
+		    }
+		    out.append(r.output);
+		}
+		reply(exchange, 200, out.toString());
+	    } catch (InterruptedException e) {
+		reply(exchange, 503, "interrupted\n");
+	    } finally {
+		exchange.close();
+	    }
+	}
+
+	static void reply(HttpExchange exchange, int status, String text) throws IOException {
+	    byte [] bytes = text.getBytes("UTF-8");
+	    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+	    exchange.sendResponseHeaders(status, bytes.length);
+	    OutputStream out = exchange.getResponseBody();
+	    out.write(bytes);
+	    out.close();
+	}
+    }
+
+
+    /// This class answers GET /stats with the measures of the requests of every kind
+    static class StatsHandler implements HttpHandler {
+	final List<QueryStats> stats = new ArrayList<QueryStats>();
+
+	public void handle(HttpExchange exchange) throws IOException {
+	    try {
+		Handler.reply(exchange, 200, toJson());
+	    } finally {
+		exchange.close();
+	    }
+	}
+
+	/// the measures of every kind of request, as a JSON object
+	String toJson() {
+	    StringBuilder out = new StringBuilder("{\n");
+	    for (int i=0; i<stats.size(); i++) {
+		out.append('"').append(stats.get(i).name).append("\": ").append(stats.get(i).toJson().trim())
+		    .append(i+1 < stats.size() ? ",\n" : "\n");
+	    }
+	    return out.append("}\n").toString();
+	}
+    }
+
+
+    public static void main (String [] args) throws IOException {
+	long start = System.nanoTime();
+	double retrievalModelParam = Double.NaN; // the retrieval parameter (by default, that of the model)
+	String modelName = "tfidf"; // the retrieval model
+	int port = 8080;
+	int threads = 1; // number of threads evaluating the queries
+	int batch = 16; // the most queries evaluated together
+	long wait = 1; // milliseconds to wait for more queries to put in a batch
+	long cacheSize = 0; // megabytes of decoded posting lists kept in memory
+	int resultCacheSize = 0; // number of results kept in memory (for each kind of request)
+	String statsFile = null; // where to write the measures of the requests when the server stops
+
+	List<String> other_args = new ArrayList<String>();
+	for (int i=0; i < args.length; ++i) {
+	    if ("-port".equals(args[i]) && i+1 < args.length) {
+		port = Integer.parseInt(args[++i]);
+	    } else if ("-t".equals(args[i]) && i+1 < args.length) {
+		threads = Integer.parseInt(args[++i]);
+	    } else if ("-batch".equals(args[i]) && i+1 < args.length) {
+		batch = Integer.parseInt(args[++i]);
+	    } else if ("-wait".equals(args[i]) && i+1 < args.length) {
+		wait = Long.parseLong(args[++i]);
+	    } else if ("-cache".equals(args[i]) && i+1 < args.length) {
+		cacheSize = Long.parseLong(args[++i]);
+	    } else if ("-results".equals(args[i]) && i+1 < args.length) {
+		resultCacheSize = Integer.parseInt(args[++i]);
+	    } else if ("-model".equals(args[i]) && i+1 < args.length) {
+		modelName = args[++i];
+	    } else if ("-stats".equals(args[i]) && i+1 < args.length) {
+		statsFile = args[++i];
+	    } else {
+		other_args.add(args[i]);
+	    }
+	}
+	args = other_args.toArray(new String[other_args.size()]);
+	if (args.length != 1 && args.length != 2 && args.length != 3 && args.length != 4) {
+	    System.out.println("usage: SearchServer [-port P] [-t threads] [-batch B] [-wait ms] [-model name] [-cache MB] [-results N]"
+			       + " [-stats file] InvertedIndexFileName [Train_List K] [parameter value]");
+	    System.exit(1);
+	}
+	if (args.length == 2 || args.length == 4) {
+	    retrievalModelParam = Double.parseDouble(args[args.length-1]);
+	}
+
+	Configuration conf = new Configuration();
+	FileSystem fs = FileSystem.get(conf);
+	final IndexReader index;
+	final ScoringModel model;
+	int [] trainTag = null;
+	int numK = 0;
+	try {
+	    index = new IndexReader(fs, args[0]);
+	    model = ScoringModel.create(modelName, index, retrievalModelParam);
+	    if (args.length >= 3) {
+		trainTag = kNN.loadTrainTags(fs, new Path(args[1]), index);
+		numK = Integer.parseInt(args[2]);
+	    }
+	} catch (IOException ioe) {
+	    System.out.println(ioe.getMessage());
+	    System.exit(1);
+	    return;
+	}
+	if (cacheSize > 0) {
+	    index.setPostingCache(new PostingCache(cacheSize << 20));
+	}
+
+	HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+	server.setExecutor(Executors.newCachedThreadPool()); // the handlers mostly wait for the batchers
+
+	final StatsHandler statsHandler = new StatsHandler();
+	final QueryStats searchStats = new QueryStats("search");
+	searchStats.loadTime = System.nanoTime() - start;
+	searchStats.register();
+	statsHandler.stats.add(searchStats);
+	final ResultCache<Retrieval.Result> results = resultCacheSize > 0 ? new ResultCache<Retrieval.Result>(resultCacheSize) : null;
+	server.createContext("/search", new Handler(new Batcher(new QueryBatch.WorkerFactory() {
+		public QueryBatch.Worker newWorker() {
+		    Retrieval.Searcher searcher = new Retrieval.Searcher(index, 1000, model, false, results);
+		    searcher.stats = searchStats;
+		    return searcher;
+		}
+	    }, threads, batch, wait * 1000000)));
+
+	if (trainTag != null) {
+	    final int [] tags = trainTag;
+	    final int k = numK;
+	    final QueryStats classifyStats = new QueryStats("classify");
+	    classifyStats.loadTime = searchStats.loadTime;
+	    classifyStats.register();
+	    statsHandler.stats.add(classifyStats);
+	    final ResultCache<Integer> classes = resultCacheSize > 0 ? new ResultCache<Integer>(resultCacheSize) : null;
+	    server.createContext("/classify", new Handler(new Batcher(new QueryBatch.WorkerFactory() {
+		    public QueryBatch.Worker newWorker() {
+			kNN.Classifier classifier = new kNN.Classifier(index, tags, k, model, false, classes);
+			classifier.stats = classifyStats;
+			return classifier;
+		    }
+		}, threads, batch, wait * 1000000)));
+	}
+	server.createContext("/stats", statsHandler);
+
+	if (statsFile != null) {
+	    // a local file: Hadoop closes its file systems in its own shutdown hook, which may run before this one
+	    final String file = statsFile;
+	    Runtime.getRuntime().addShutdownHook(new Thread() {
+		    public void run() {
+			try {
+			    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			    try {
+				out.write(statsHandler.toJson());
+			    } finally {
+				out.close();
+			    }
+			} catch (IOException e) {
+			    System.err.println("can't write the statistics to " + file + ": " + e.getMessage());
+			}
+		    }
+		});
+	}
+
+	server.start();
+	System.out.println("listening on localhost:" + port + " (" + index.numDocs() + " documents"
+			   + (trainTag != null ? ", classification with k=" + numK : "") + ")");
+    }
+}
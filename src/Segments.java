@@ -0,0 +1,145 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class is the list of the segments of an index updated with IndexUpdate (IndexFileName.segments).
+///
+/// A segment is a complete index of its own (.lex, .pos, .docs, .stats and .doclen, see IndexGeneration),
+/// and it is never modified once it is written: IndexUpdate adds documents by writing a new segment,
+/// and merges segments by writing a new one and removing them from the list.
+/// IndexReader opens all the segments of the list as a single index: the documents of the first segment
+/// get the first document numbers, then those of the second segment, and so on.
+///
+/// The file is a text file:
+///         next N                  (N is the number of the next new segment)
+///         name numDocs            (one line per segment, in order)
+/// where "name" is the name of the segment (without the extensions) in the directory of the index.
+/// The first segment of an index built by IndexGeneration is the index itself.
+///
+/// The shards of a sharded index (IndexFileName.shards, see Shards) are listed in the same format
+/// ("next" is then the number of shards), so IndexReader can also open them as the segments of one index.
+public class Segments {
+
+    public static final String SEGMENTS = ".segments";
+    public static final String SHARDS = ".shards";
+
+    public int next = 1; // number of the next new segment
+    public ArrayList<String> names = new ArrayList<String>(); // the segments, in the order of their document numbers
+    public ArrayList<Integer> numDocs = new ArrayList<Integer>(); // number of documents with a document number in each segment
+
+    Path dir; // directory of the index (null for the current directory)
+
+    public Segments(String indexName) {
+	dir = new Path(indexName).getParent();
+    }
+
+    Segments() {
+    }
+
+    /// number of segments
+    public int size() {
+	return names.size();
+    }
+
+    /// the name (including the path) of segment i, as given to IndexReader and IndexWriter
+    public String path(int i) {
+	return dir == null ? names.get(i) : new Path(dir, names.get(i)).toString();
+    }
+
+    /// the name of the next new segment of the index "indexName" (including the path); "next" is incremented
+    public String newSegment(String indexName) {
+	String name = new Path(indexName).getName() + "_" + next++;
+	return dir == null ? name : new Path(dir, name).toString();
+    }
+
+    public void add(int i, String path, int n) {
+	names.add(i, new Path(path).getName());
+	numDocs.add(i, n);
+    }
+
+    public void remove(int i) {
+	names.remove(i);
+	numDocs.remove(i);
+    }
+
+    public Segments copy() {
+	Segments s = new Segments();
+	s.dir = dir;
+	s.next = next;
+	s.names.addAll(names);
+	s.numDocs.addAll(numDocs);
+	return s;
+    }
+
+    /// load the list of segments of the index "indexName" (null if the index has no list)
+    public static Segments read(FileSystem fs, String indexName) throws IOException {
+	return read(fs, indexName, SEGMENTS);
+    }
+
+    /// load the list of the index "indexName" with the extension "ext" (SEGMENTS or SHARDS; null if there is none)
+    public static Segments read(FileSystem fs, String indexName, String ext) throws IOException {
+	Path path = new Path(indexName + ext);
+	if (!fs.exists(path)) {
+	    return null;
+	}
+	Segments s = new Segments(indexName);
+	FSDataInputStream fin = fs.open(path);
+	BufferedReader in = new BufferedReader(new InputStreamReader(fin, "UTF-8"));
+	try {
+	    String t = in.readLine();
+	    StringTokenizer st = new StringTokenizer(t == null ? "" : t);
+	    if (st.countTokens() != 2 || !st.nextToken().equals("next")) {
+		throw new IOException(path + " is not a list of segments");
+	    }
+	    s.next = Integer.parseInt(st.nextToken());
+	    while ((t = in.readLine()) != null) {
+		st = new StringTokenizer(t);
+		if (st.countTokens() != 2) {
+		    throw new IOException(path + " is not a list of segments: \"" + t + "\"");
+		}
+		s.names.add(st.nextToken());
+		s.numDocs.add(Integer.parseInt(st.nextToken()));
+	    }
+	} catch (NumberFormatException e) {
+	    throw new IOException(path + " is not a list of segments: " + e.getMessage());
+	} finally {
+	    in.close();
+	}
+	return s;
+    }
+
+    /// write the list of segments of the index "indexName"
+    /// the list is written to a temporary file first and then renamed, so the readers see either
+    /// the old list or the new one
+    public void write(FileSystem fs, String indexName) throws IOException {
+	write(fs, indexName, SEGMENTS);
+    }
+
+    /// write the list with the extension "ext" (SEGMENTS or SHARDS)
+    public void write(FileSystem fs, String indexName, String ext) throws IOException {
+	Path path = new Path(indexName + ext);
+	Path tmp = new Path(indexName + ext + ".tmp");
+	FSDataOutputStream fout = fs.create(tmp, true);
+	PrintWriter out = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
+	out.println("next " + next);
+	for (int i=0; i<names.size(); i++) {
+	    out.println(names.get(i) + " " + numDocs.get(i));
+	}
+	out.close();
+	if (out.checkError()) {
+	    throw new IOException("can't write " + tmp);
+	}
+	if (!fs.rename(tmp, path)) {
+	    // HDFS doesn't replace an existing file
+	    fs.delete(path, false);
+	    if (!fs.rename(tmp, path)) {
+		throw new IOException("can't write " + path);
+	    }
+	}
+    }
+}
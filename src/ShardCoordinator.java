@@ -0,0 +1,519 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class evaluates the queries of Retrieval, or the test documents of kNN, on all the shards of a sharded
+/// index at the same time (see Shards and "-shards" in Retrieval and kNN), and merges the results of the shards.
+///
+/// Every line is sent to all the shards (scatter), and every shard returns its best documents with their scores:
+/// the top k for Retrieval, the numK nearest labeled documents for kNN. The shards score with the statistics
+/// of the whole collection (see GlobalStats), so their scores can be compared, and their lists are merged
+/// (gather): a document of shard s is ranked with the number bases[s] + its number in the shard, which is its
+/// number in the whole index, so the ties are broken as with the whole index (see TopK.better), and the merged
+/// top k is exactly that of the whole index. For kNN, the numK nearest neighbors of all the shards then vote
+/// (see kNN.categorization).
+///
+/// The shards are evaluated either
+/// -- "local": by threads of this process, which opens all the shards (a Retrieval.Searcher or a
+///    kNN.Classifier per shard and per thread of the program), or
+/// -- "procs": by processes of their own (see ShardServer), started with the same Java and the same class path;
+///    every thread of the program gets one process per shard, which only evaluates its lines, so nothing is shared.
+///    The shards could be on other machines the same way (nothing but the lines and the results go through the pipes).
+/// Either way, a shard only has a fraction of the postings of a term, so the time taken by a query goes down
+/// with the number of shards, as long as there are processors for them.
+///
+/// Only the exact evaluations (term at a time, with WAND or with the accumulator limit of kNN) are distributed:
+/// the impact lists and the LSH signatures are built for a whole index, and the result cache of the program
+/// is not used.
+public class ShardCoordinator {
+
+    /// what the shards evaluate: the options of Retrieval or kNN that the shards use
+    public static class Settings {
+	public int k; // the number of results of a query (Retrieval) or of neighbors of a test document (kNN)
+	public String trainList = null; // the training list of kNN (null for Retrieval)
+	public String modelName = "tfidf";
+	public double param = Double.NaN; // the parameter of the model (NaN for its default)
+	public boolean wand = false;
+	public long cacheSize = 0; // megabytes of decoded posting lists kept in memory by every shard
+	public int accLimit = Integer.MAX_VALUE;
+	public boolean quit = false;
+
+	/// the options of ShardServer for these settings
+	List<String> args() {
+	    List<String> args = new ArrayList<String>();
+	    args.add("-k");
+	    args.add(Integer.toString(k));
+	    if (trainList != null) {
+		args.add("-train");
+		args.add(trainList);
+	    }
+	    args.add("-model");
+	    args.add(modelName);
+	    if (!Double.isNaN(param)) {
+		args.add("-param");
+		args.add(Double.toString(param));
+	    }
+	    if (wand) {
+		args.add("-wand");
+	    }
+	    if (cacheSize > 0) {
+		args.add("-cache");
+		args.add(Long.toString(cacheSize));
+	    }
+	    if (accLimit < Integer.MAX_VALUE) {
+		args.add("-acc");
+		args.add(Integer.toString(accLimit));
+	    }
+	    if (quit) {
+		args.add("-quit");
+	    }
+	    return args;
+	}
+
+	/// read the options written by args(); returns the other arguments
+	List<String> parse(String [] args) {
+	    List<String> other_args = new ArrayList<String>();
+	    for (int i=0; i < args.length; ++i) {
+		if ("-k".equals(args[i]) && i+1 < args.length) {
+		    k = Integer.parseInt(args[++i]);
+		} else if ("-train".equals(args[i]) && i+1 < args.length) {
+		    trainList = args[++i];
+		} else if ("-model".equals(args[i]) && i+1 < args.length) {
+		    modelName = args[++i];
+		} else if ("-param".equals(args[i]) && i+1 < args.length) {
+		    param = Double.parseDouble(args[++i]);
+		} else if ("-cache".equals(args[i]) && i+1 < args.length) {
+		    cacheSize = Long.parseLong(args[++i]);
+		} else if ("-acc".equals(args[i]) && i+1 < args.length) {
+		    accLimit = Integer.parseInt(args[++i]);
+		} else if ("-quit".equals(args[i])) {
+		    quit = true;
+		} else if ("-wand".equals(args[i])) {
+		    wand = true;
+		} else {
+		    other_args.add(args[i]);
+		}
+	    }
+	    return other_args;
+	}
+    }
+
+
+    /// the results of a line on one shard, best first: the documents (numbered in the shard) and their scores,
+    /// with their names (Retrieval) or their tags (kNN)
+    static class Hits {
+	int n;
+	int [] docs;
+	double [] scores;
+	String [] names = null; // the names, when they come from a process
+	DocTable table = null; // or the document table of the shard, when it is in this process
+	int [] tags = null;
+
+	String name(int i) {
+	    return names != null ? names[i] : table.name(docs[i]);
+	}
+    }
+
+
+    /// a shard opened in this process: its index, its model and the tags of its training documents
+    /// are shared by all the threads
+    static class Shard {
+	IndexReader index;
+	ScoringModel model;
+	int [] trainTag = null;
+	Settings settings;
+
+	Shard(FileSystem fs, String shardName, Settings settings) throws IOException {
+	    this.settings = settings;
+	    index = new IndexReader(fs, shardName);
+	    if (index.global == null) {
+		throw new IOException(shardName + " is not a shard of a sharded index (see IndexGeneration -shards)");
+	    }
+	    model = ScoringModel.create(settings.modelName, index, settings.param);
+	    if (settings.cacheSize > 0) {
+		index.setPostingCache(new PostingCache(settings.cacheSize << 20));
+	    }
+	    if (settings.trainList != null) {
+		// the training documents of the other shards are not found here
+		trainTag = kNN.loadTrainTags(fs, new Path(settings.trainList), index);
+	    }
+	}
+
+	/// a new evaluator of the shard, for one thread
+	QueryEvaluator evaluator() {
+	    if (trainTag == null) {
+		return new Retrieval.Searcher(index, settings.k, model, settings.wand, null);
+	    }
+	    kNN.Classifier classifier = new kNN.Classifier(index, trainTag, settings.k, model, settings.wand, null);
+	    classifier.accLimit = settings.accLimit;
+	    classifier.quitAtLimit = settings.quit;
+	    return classifier;
+	}
+
+	/// evaluate a query line (Retrieval) or a test document (kNN) with an evaluator of this shard
+	Hits evaluate(QueryEvaluator evaluator, String line) throws IOException {
+	    Hits hits = new Hits();
+	    if (trainTag == null) {
+		Retrieval.Result r = ((Retrieval.Searcher) evaluator).rank(line);
+		hits.n = r.docs.length;
+		hits.docs = r.docs;
+		hits.scores = r.scores;
+		hits.table = index.docs;
+	    } else {
+		StringTokenizer st = new StringTokenizer(line);
+		st.nextToken(); // the ID of the test document
+		hits.n = ((kNN.Classifier) evaluator).neighbors(st);
+		hits.docs = Arrays.copyOf(evaluator.topK.docs, hits.n);
+		hits.scores = Arrays.copyOf(evaluator.topK.scores, hits.n);
+		hits.tags = new int[hits.n];
+		for (int i=0; i<hits.n; i++) {
+		    hits.tags[i] = trainTag[hits.docs[i]];
+		}
+	    }
+	    return hits;
+	}
+    }
+
+
+    /// the way to one shard for one thread of the program: send() starts the evaluation of a line, and receive()
+    /// waits for its results, so all the shards work at the same time
+    static abstract class Connection {
+	abstract void send(String line) throws IOException;
+	abstract Hits receive() throws IOException;
+
+	/// the postings and bytes read so far, and the documents scored for the last line (0 if they are not known)
+	long postingsRead() {
+	    return 0;
+	}
+
+	long bytesRead() {
+	    return 0;
+	}
+
+	long accumulators() {
+	    return 0;
+	}
+
+	void close() throws IOException {
+	}
+    }
+
+    /// a shard evaluated by a thread of the pool
+    static class LocalConnection extends Connection {
+	final Shard shard;
+	final QueryEvaluator evaluator;
+	ExecutorService pool;
+	Future<Hits> pending;
+
+	LocalConnection(Shard shard, ExecutorService pool) {
+	    this.shard = shard;
+	    this.pool = pool;
+	    evaluator = shard.evaluator();
+	}
+
+	void send(final String line) {
+	    pending = pool.submit(new Callable<Hits>() {
+		    public Hits call() throws IOException {
+			return shard.evaluate(evaluator, line);
+		    }
+		});
+	}
+
+	Hits receive() throws IOException {
+	    return QueryBatch.result(pending);
+	}
+
+	long postingsRead() {
+	    return evaluator.postingsRead();
+	}
+
+	long bytesRead() {
+	    return evaluator.bytesRead();
+	}
+
+	long accumulators() {
+	    return evaluator.touchedCount;
+	}
+    }
+
+    /// a shard evaluated by a process of its own (see ShardServer)
+    static class ProcessConnection extends Connection {
+	String shardName;
+	Process process;
+	BufferedReader in;
+	Writer out;
+	boolean tags;
+
+	ProcessConnection(String shardName, Settings settings) throws IOException {
+	    this.shardName = shardName;
+	    tags = settings.trainList != null;
+	    List<String> command = new ArrayList<String>();
+	    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+	    command.add("-cp");
+	    command.add(classPath());
+	    command.add("ShardServer");
+	    command.addAll(settings.args());
+	    command.add(shardName);
+	    ProcessBuilder builder = new ProcessBuilder(command);
+	    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+	    process = builder.start();
+	    in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+	    out = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), "UTF-8"));
+	}
+
+	void send(String line) throws IOException {
+	    out.write(line);
+	    out.write('\n');
+	    out.flush();
+	}
+
+	Hits receive() throws IOException {
+	    String t = in.readLine();
+	    if (t == null) {
+		throw new IOException("the process of shard " + shardName + " stopped (see its errors above)");
+	    }
+	    Hits hits = new Hits();
+	    hits.n = Integer.parseInt(t.trim());
+	    hits.docs = new int[hits.n];
+	    hits.scores = new double[hits.n];
+	    if (tags) {
+		hits.tags = new int[hits.n];
+	    } else {
+		hits.names = new String[hits.n];
+	    }
+	    for (int i=0; i<hits.n; i++) {
+		// doc score name-or-tag
+		t = in.readLine();
+		if (t == null) {
+		    throw new IOException("the process of shard " + shardName + " stopped (see its errors above)");
+		}
+		int a = t.indexOf(' ');
+		int b = t.indexOf(' ', a+1);
+		hits.docs[i] = Integer.parseInt(t.substring(0, a));
+		hits.scores[i] = Double.parseDouble(t.substring(a+1, b));
+		if (tags) {
+		    hits.tags[i] = Integer.parseInt(t.substring(b+1));
+		} else {
+		    hits.names[i] = t.substring(b+1);
+		}
+	    }
+	    return hits;
+	}
+
+	void close() throws IOException {
+	    out.close(); // the process stops at the end of its input
+	    try {
+		process.waitFor();
+	    } catch (InterruptedException e) {
+		process.destroy();
+	    }
+	    in.close();
+	}
+
+	/// the class path of this program, for the processes: the jar (or the directory) of our classes first,
+	/// since "hadoop jar" loads them from a jar that is not on the class path of the JVM
+	static String classPath() {
+	    String path = System.getProperty("java.class.path");
+	    try {
+		String ours = new File(ShardServer.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		return ours + File.pathSeparator + path;
+	    } catch (Exception e) {
+		return path;
+	    }
+	}
+    }
+
+
+    /// This class evaluates the lines of one thread of the program on all the shards, and merges their results
+    class Worker implements QueryBatch.Worker {
+
+	Connection [] connections;
+	int [] next; // the position of the next result of every shard, while merging
+	int [] tags = new int[0]; // the tags of the merged neighbors (kNN)
+	long [] phaseTimes = new long[QueryStats.PHASES.length];
+
+	Worker(Connection [] connections) {
+	    this.connections = connections;
+	    next = new int[connections.length];
+	}
+
+	public String process(String line) throws IOException {
+	    long start = System.nanoTime();
+	    StringTokenizer st = new StringTokenizer(line);
+	    String qid = st.nextToken(); // the query ID or the ID of the test document
+	    System.err.println("Processing query:"+qid);
+	    long postings = 0;
+	    long bytes = 0;
+	    for (Connection c : connections) {
+		postings -= c.postingsRead();
+		bytes -= c.bytesRead();
+	    }
+	    long parsed = System.nanoTime();
+
+	    // scatter, then gather
+	    for (Connection c : connections) {
+		c.send(line);
+	    }
+	    Hits [] hits = new Hits[connections.length];
+	    long accumulators = 0;
+	    for (int s=0; s<connections.length; s++) {
+		hits[s] = connections[s].receive();
+		postings += connections[s].postingsRead();
+		bytes += connections[s].bytesRead();
+		accumulators += connections[s].accumulators();
+	    }
+	    long scored = System.nanoTime();
+
+	    // merge the lists of the shards, best first
+	    StringBuilder out = new StringBuilder();
+	    if (tags.length < settings.k) {
+		tags = new int[settings.k];
+	    }
+	    Arrays.fill(next, 0);
+	    int n = 0;
+	    for (; n<settings.k; n++) {
+		int best = -1;
+		int bestDoc = 0;
+		double bestScore = 0;
+		for (int s=0; s<hits.length; s++) {
+		    int i = next[s];
+		    if (i < hits[s].n) {
+			int doc = bases[s] + hits[s].docs[i];
+			if (best < 0 || TopK.better(doc, hits[s].scores[i], bestDoc, bestScore)) {
+			    best = s;
+			    bestDoc = doc;
+			    bestScore = hits[s].scores[i];
+			}
+		    }
+		}
+		if (best < 0) {
+		    break;
+		}
+		int i = next[best]++;
+		if (settings.trainList == null) {
+		    out.append(qid + " " + hits[best].name(i) + " " + bestScore).append('\n');
+		} else {
+		    tags[n] = hits[best].tags[i];
+		}
+	    }
+	    long merged = System.nanoTime();
+	    if (settings.trainList != null) {
+		out.append(kNN.categorization(tags, n, settings.k) + " " + qid + "\n");
+	    }
+	    long end = System.nanoTime();
+
+	    phaseTimes[QueryStats.PARSE] = parsed - start;
+	    phaseTimes[QueryStats.SCORE] = scored - parsed;
+	    phaseTimes[QueryStats.SELECT] = merged - scored;
+	    phaseTimes[QueryStats.OUTPUT] = end - merged;
+	    stats.record(end - start, phaseTimes, postings, bytes, accumulators, n);
+	    return out.toString();
+	}
+    }
+
+
+    FileSystem fs;
+    Segments list; // the shards
+    int [] bases; // the documents of shard s have the numbers bases[s] to bases[s+1]-1 in the whole index
+    Settings settings;
+    boolean processes; // evaluate every shard in a process of its own
+    Shard [] shards = null; // the shards opened in this process
+    ExecutorService pool = null; // and the threads that evaluate them
+    List<Connection> connections = Collections.synchronizedList(new ArrayList<Connection>());
+    QueryStats stats;
+
+    /// prepare to evaluate lines on the shards of the index "indexName", by threads (processes == false)
+    /// or by processes; the measures of the lines go to "stats"
+    public ShardCoordinator(FileSystem fs, String indexName, Settings settings, boolean processes, QueryStats stats) throws IOException {
+	this.fs = fs;
+	this.settings = settings;
+	this.processes = processes;
+	this.stats = stats;
+	list = Segments.read(fs, indexName, Segments.SHARDS);
+	if (list == null) {
+	    throw new IOException(indexName + " is not split into shards (see IndexGeneration -shards)");
+	}
+	bases = new int[list.size() + 1];
+	for (int s=0; s<list.size(); s++) {
+	    bases[s+1] = bases[s] + list.numDocs.get(s);
+	}
+	if (!processes) {
+	    shards = new Shard[list.size()];
+	    for (int s=0; s<shards.length; s++) {
+		shards[s] = new Shard(fs, list.path(s), settings);
+	    }
+	    pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "shard");
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+	}
+    }
+
+    /// the workers of QueryBatch: every thread of the program gets its own connections to all the shards
+    public QueryBatch.WorkerFactory workers() {
+	return new QueryBatch.WorkerFactory() {
+	    public QueryBatch.Worker newWorker() throws IOException {
+		Connection [] c = new Connection[list.size()];
+		for (int s=0; s<c.length; s++) {
+		    c[s] = processes ? new ProcessConnection(list.path(s), settings) : new LocalConnection(shards[s], pool);
+		    connections.add(c[s]);
+		}
+		return new Worker(c);
+	    }
+	};
+    }
+
+    /// stop the processes and the threads
+    public void close() throws IOException {
+	synchronized (connections) {
+	    for (Connection c : connections) {
+		c.close();
+	    }
+	}
+	if (pool != null) {
+	    pool.shutdownNow();
+	}
+	if (shards != null) {
+	    for (Shard shard : shards) {
+		shard.index.close();
+	    }
+	}
+    }
+
+    /// run Retrieval or kNN -shards: evaluate the lines of "queryFile" on the shards of "indexName", "threads" lines
+    /// at a time, and print their results in order on the standard output
+    /// mode: "local" (threads) or "procs" (processes), start: when the program started (System.nanoTime())
+    public static void run(FileSystem fs, String indexName, String queryFile, Settings settings, String mode, int threads,
+			   QueryStats stats, String statsFile, long start) throws IOException {
+	if (!mode.equals("local") && !mode.equals("procs")) {
+	    throw new IOException("unknown way to evaluate the shards: " + mode + " (local or procs)");
+	}
+	ShardCoordinator coordinator = new ShardCoordinator(fs, indexName, settings, mode.equals("procs"), stats);
+	try {
+	    stats.loadTime = System.nanoTime() - start;
+	    stats.register();
+	    FSDataInputStream in = fs.open(new Path(queryFile));
+	    BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+	    try {
+		QueryBatch.run(reader, System.out, threads, coordinator.workers());
+	    } finally {
+		reader.close();
+	    }
+	    System.out.flush();
+	} finally {
+	    coordinator.close();
+	}
+	System.err.println(coordinator.list.size() + " shards (" + mode + ")");
+	if (statsFile != null) {
+	    stats.write(fs, statsFile);
+	}
+    }
+}
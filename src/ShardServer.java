@@ -0,0 +1,55 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+
+
+/// This application evaluates the lines of a ShardCoordinator on one shard of a sharded index, in a process of its own
+/// (Retrieval -shards procs and kNN -shards procs start it, see ShardCoordinator).
+///
+/// Usage: ShardServer -k k [-train Train_List] [-model name] [-param value] [-wand] [-cache MB] [-acc N] [-quit] ShardFileName
+///
+/// It reads the query lines (Retrieval), or the test documents (kNN, with "-train"), on its standard input, one at
+/// a time, and writes the best results of every line on its standard output: their number n, then n lines
+/// "doc score name" (Retrieval) or "doc score tag" (kNN), best first, where doc is the number of the document in
+/// the shard. The scores are written by Double.toString, so the coordinator reads exactly the same numbers.
+/// It stops at the end of its input.
+public class ShardServer {
+
+    public static void main(String[] args) throws IOException {
+	ShardCoordinator.Settings settings = new ShardCoordinator.Settings();
+	List<String> other_args = settings.parse(args);
+	if (other_args.size() != 1 || settings.k <= 0) {
+	    System.err.println("Usage: ShardServer -k k [-train Train_List] [-model name] [-param value] [-wand] [-cache MB] [-acc N] [-quit] ShardFileName");
+	    System.exit(1);
+	}
+
+	Configuration conf = new Configuration();
+	FileSystem fs = FileSystem.get(conf);
+	ShardCoordinator.Shard shard = new ShardCoordinator.Shard(fs, other_args.get(0), settings);
+	QueryEvaluator evaluator = shard.evaluator();
+
+	BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+	Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+	String t;
+	while ((t = in.readLine()) != null) {
+	    ShardCoordinator.Hits hits = shard.evaluate(evaluator, t);
+	    StringBuilder response = new StringBuilder();
+	    response.append(hits.n).append('\n');
+	    for (int i=0; i<hits.n; i++) {
+		response.append(hits.docs[i]).append(' ').append(hits.scores[i]).append(' ');
+		if (hits.tags != null) {
+		    response.append(hits.tags[i]);
+		} else {
+		    response.append(hits.name(i));
+		}
+		response.append('\n');
+	    }
+	    out.write(response.toString());
+	    out.flush();
+	}
+	out.close();
+	shard.index.close();
+    }
+}
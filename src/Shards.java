@@ -0,0 +1,167 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class splits an index into document-partitioned shards (IndexGeneration -shards N), so that a query
+/// can be evaluated on all the shards at the same time, by threads or by processes of their own (see ShardCoordinator).
+///
+/// Every shard is a complete index of its own (IndexFileName.shard0, IndexFileName.shard1, ...: .lex, .pos, .docs,
+/// .stats and .doclen) with a range of the documents of the index: the first documents go to the first shard,
+/// the next ones to the second shard, and so on, so that the shards get about the same total length of documents
+/// (about the same number of postings, hence the same work for a query). The documents keep their order, so a
+/// document of shard s has the number bases[s] + its number in the shard, and ranking the documents of all the
+/// shards together gives exactly the ranking of the whole index (see TopK.better).
+///
+/// The whole index keeps its lexicon (and its .lexh) and its .stats file: these are the statistics of the whole
+/// collection (see GlobalStats), which every shard scores with, so the scores of the shards can be compared. Its
+/// postings, document table and document lengths are removed, since they are now in the shards. The shards are
+/// listed in IndexFileName.shards (see Segments), and every shard names the whole index in ShardFileName.global.
+/// The sharded index can still be opened as a single index by IndexReader (the shards are then its segments).
+public class Shards {
+
+    /// the files of a shard
+    static final String [] EXTENSIONS = { ".lex", ".pos", ".docs", ".stats", ".doclen", ".global" };
+
+    /// the name of shard s of the index "indexName"
+    public static String shardName(String indexName, int s) {
+	return indexName + ".shard" + s;
+    }
+
+    /// split the index "indexName" (built by IndexGeneration, without segments) into n shards
+    /// (fewer if it has fewer than n documents) and return their list
+    public static Segments split(FileSystem fs, String indexName, int n, IndexGeneration.Progress progress) throws IOException {
+	IndexReader index = new IndexReader(fs, indexName, null);
+	Segments list = new Segments(indexName);
+	try {
+	    int numDocs = index.numDocs();
+	    n = Math.max(1, Math.min(n, numDocs));
+
+	    // cut the documents into n ranges of about the same total length
+	    int [] bases = new int[n+1];
+	    long total = 0;
+	    for (int d=0; d<numDocs; d++) {
+		total += index.dlen[d];
+	    }
+	    long sum = 0;
+	    for (int d=0, s=1; d<numDocs && s<n; d++) {
+		// every shard gets at least one document
+		if (d > bases[s-1] && (sum*n >= total*s || numDocs - d == n - s)) {
+		    bases[s++] = d;
+		}
+		sum += index.dlen[d];
+	    }
+	    bases[n] = numDocs;
+
+	    IndexWriter [] shards = new IndexWriter[n];
+	    for (int s=0; s<n; s++) {
+		shards[s] = new IndexWriter(fs, shardName(indexName, s));
+		for (int d=bases[s]; d<bases[s+1]; d++) {
+		    shards[s].docNumber(index.docs.name(d)); // document d is number d - bases[s] in the shard
+		}
+	    }
+
+	    // split the postings of every term between the shards (they are sorted by document,
+	    // so the postings of a shard all come before those of the next one)
+	    long [][] postings = new long[n][16];
+	    int [] df = new int[n];
+	    int [] count = new int[n];
+	    int [] maxTF = new int[n];
+	    PostingCursor cursor = index.openCursor();
+	    Lexicon.Scanner terms = index.lex.scan();
+	    while (terms.next()) {
+		Arrays.fill(df, 0);
+		Arrays.fill(count, 0);
+		Arrays.fill(maxTF, 0);
+		cursor.open(terms.entry);
+		int s = 0;
+		for (int k; (k = cursor.nextBlock()) > 0; ) {
+		    for (int i=0; i<k; i++) {
+			int d = cursor.docs[i];
+			while (d >= bases[s+1]) {
+			    s++;
+			}
+			if (df[s] == postings[s].length) {
+			    postings[s] = Arrays.copyOf(postings[s], 2*df[s]);
+			}
+			int freq = cursor.freqs[i];
+			postings[s][df[s]++] = ((long) (d - bases[s]) << 32) | freq;
+			count[s] += freq;
+			maxTF[s] = Math.max(maxTF[s], freq);
+		    }
+		}
+		for (s=0; s<n; s++) {
+		    if (df[s] > 0) {
+			shards[s].addTerm(terms.term, postings[s], df[s], count[s], maxTF[s]);
+		    }
+		}
+		progress.add(1);
+	    }
+
+	    // the statistics of every shard: added up, they are those of the whole index
+	    // (the documents without postings, which have no number, count for the last shard)
+	    long docLen = 0;
+	    for (int s=0; s<n; s++) {
+		shards[s].close();
+		CollectionStats stats = new CollectionStats();
+		stats.dlen = Arrays.copyOfRange(index.dlen, bases[s], bases[s+1]);
+		for (int len : stats.dlen) {
+		    stats.totalDocLen += len;
+		    stats.minDocLen = Math.min(stats.minDocLen, len);
+		}
+		stats.totalDocCount = stats.dlen.length;
+		stats.totalTermCount = shards[s].totalTermCount();
+		docLen += stats.totalDocLen;
+		if (s == n-1) {
+		    stats.totalDocCount += index.stats.totalDocCount - numDocs;
+		    stats.totalDocLen += index.stats.totalDocLen - docLen;
+		}
+		String shard = shardName(indexName, s);
+		stats.write(fs, shard);
+		writeGlobal(fs, shard, indexName);
+		list.add(s, shard, stats.dlen.length);
+	    }
+	    list.next = n;
+
+	    // the totals of the whole collection, for GlobalStats (they are only missing for an index built without
+	    // the document length table, whose statistics were computed from its .dlen file)
+	    if (!fs.exists(new Path(indexName + ".stats"))) {
+		index.stats.write(fs, indexName);
+	    }
+	} finally {
+	    index.close();
+	}
+	list.write(fs, indexName, Segments.SHARDS);
+	for (String ext : new String[] { ".pos", ".docs", ".doclen" }) {
+	    fs.delete(new Path(indexName + ext), false);
+	}
+	return list;
+    }
+
+    /// name the whole index in the .global file of a shard (they are in the same directory)
+    static void writeGlobal(FileSystem fs, String shard, String indexName) throws IOException {
+	FSDataOutputStream out = fs.create(new Path(shard + ".global"), true);
+	try {
+	    out.write((new Path(indexName).getName() + "\n").getBytes("UTF-8"));
+	} finally {
+	    out.close();
+	}
+    }
+
+    /// remove the shards of the index "indexName" and their list, if it has any
+    public static void delete(FileSystem fs, String indexName) throws IOException {
+	Segments list = Segments.read(fs, indexName, Segments.SHARDS);
+	if (list == null) {
+	    return;
+	}
+	for (int s=0; s<list.size(); s++) {
+	    for (String ext : EXTENSIONS) {
+		fs.delete(new Path(list.path(s) + ext), false);
+	    }
+	}
+	fs.delete(new Path(indexName + Segments.SHARDS), false);
+    }
+}
@@ -0,0 +1,196 @@
+import java.util.Arrays;
+
+/**
+ * Splits a document into terms and counts them, directly on its UTF-8 bytes (e.g., those of a Text),
+ * without creating any object per term: this is the tokenizer of InvertedIndex.MapClass.
+ *
+ * The terms are separated by the same characters as with a StringTokenizer (space, tab, newline,
+ * carriage return and form feed), so the terms are the same as those of the String of the line.
+ * Optionally, the terms are lowercased (only the ASCII letters A-Z: the other bytes are kept as they are)
+ * and the stopwords are left out, in the same pass.
+ *
+ * The distinct terms are kept in an open-addressing hash table (linear probing) over their bytes,
+ * with their counts in an int array: all the arrays are reused from one document to the next
+ * (clear() only empties the slots that were used), so they only grow to the size of the longest document.
+ * The terms are numbered 0, 1, 2, ... in the order they first occur; term i is
+ * bytes()[start(i)..start(i)+length(i)-1].
+ * A TermCounter is not thread-safe (every mapper has its own).
+ */
+public class TermCounter {
+
+  boolean lowercase = false;
+  TermCounter stopwords = null; // the terms to leave out (already lowercased if needed)
+
+  byte [] bytes = new byte[1024]; // the bytes of the distinct terms, one after the other
+  int [] starts = new int[65]; // term i is bytes[starts[i]..starts[i+1]-1]
+  int [] counts = new int[64];
+  int [] hashes = new int[64];
+  int [] slotOf = new int[64]; // the slot of every term, to empty it in clear()
+  int size = 0; // number of distinct terms
+  int [] slots = new int[128]; // term number + 1 (0 for an empty slot); the number of slots is a power of 2
+  int total = 0; // number of terms, with repetitions
+
+  public TermCounter() {
+  }
+
+  /** lowercase the ASCII letters of the terms */
+  public void setLowercase(boolean lowercase) {
+    this.lowercase = lowercase;
+  }
+
+  /** leave out these terms (compared after lowercasing, if the terms are lowercased) */
+  public void setStopwords(TermCounter stopwords) {
+    this.stopwords = stopwords;
+  }
+
+  /** forget the terms of the previous document */
+  public void clear() {
+    for (int i=0; i<size; i++) {
+      slots[slotOf[i]] = 0;
+    }
+    size = 0;
+    total = 0;
+  }
+
+  /** count all the terms of b[off..off+len-1] */
+  public void addAll(byte [] b, int off, int len) {
+    int end = off + len;
+    int i = skipSeparators(b, off, end);
+    while (i < end) {
+      int start = i;
+      i = skipTerm(b, i, end);
+      add(b, start, i - start);
+      i = skipSeparators(b, i, end);
+    }
+  }
+
+  /** the position of the first byte of b[i..end-1] that is not a separator (end if there is none) */
+  public static int skipSeparators(byte [] b, int i, int end) {
+    while (i < end && isSeparator(b[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  /** the position of the first separator in b[i..end-1] (end if there is none): the end of the term at i */
+  public static int skipTerm(byte [] b, int i, int end) {
+    while (i < end && !isSeparator(b[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  /** the separators of StringTokenizer: " \t\n\r\f" */
+  static boolean isSeparator(byte c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+
+  /** count one occurrence of the term b[off..off+len-1] (unless it is a stopword) */
+  public void add(byte [] b, int off, int len) {
+    // copy the term after the known ones (lowercased if needed): it stays there if it is new
+    int start = starts[size];
+    if (start + len > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(2*bytes.length, start + len));
+    }
+    for (int i=0; i<len; i++) {
+      byte c = b[off + i];
+      bytes[start + i] = lowercase && c >= 'A' && c <= 'Z' ? (byte) (c + ('a' - 'A')) : c;
+    }
+    if (stopwords != null && stopwords.find(bytes, start, len) >= 0) {
+      return;
+    }
+    total++;
+
+    int h = DocTable.hash(bytes, start, len);
+    int mask = slots.length - 1;
+    int s = h & mask;
+    for (int t; (t = slots[s] - 1) >= 0; s = (s + 1) & mask) {
+      if (hashes[t] == h && equals(t, bytes, start, len)) {
+        counts[t]++;
+        return;
+      }
+    }
+
+    // a new term
+    if (size + 1 == counts.length) {
+      int n = 2*counts.length;
+      counts = Arrays.copyOf(counts, n);
+      hashes = Arrays.copyOf(hashes, n);
+      slotOf = Arrays.copyOf(slotOf, n);
+      starts = Arrays.copyOf(starts, n + 1);
+    }
+    counts[size] = 1;
+    hashes[size] = h;
+    slotOf[size] = s;
+    slots[s] = size + 1;
+    starts[++size] = start + len;
+    if (2*size > slots.length) {
+      rehash();
+    }
+  }
+
+  /** double the number of slots */
+  void rehash() {
+    slots = new int[2*slots.length];
+    int mask = slots.length - 1;
+    for (int t=0; t<size; t++) {
+      int s = hashes[t] & mask;
+      while (slots[s] != 0) {
+        s = (s + 1) & mask;
+      }
+      slots[s] = t + 1;
+      slotOf[t] = s;
+    }
+  }
+
+  /** the number of the term b[off..off+len-1], or -1 if it hasn't been counted */
+  public int find(byte [] b, int off, int len) {
+    int h = DocTable.hash(b, off, len);
+    int mask = slots.length - 1;
+    for (int s = h & mask, t; (t = slots[s] - 1) >= 0; s = (s + 1) & mask) {
+      if (hashes[t] == h && equals(t, b, off, len)) {
+        return t;
+      }
+    }
+    return -1;
+  }
+
+  boolean equals(int t, byte [] b, int off, int len) {
+    int start = starts[t];
+    if (starts[t+1] - start != len) {
+      return false;
+    }
+    for (int i=0; i<len; i++) {
+      if (bytes[start + i] != b[off + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** number of distinct terms */
+  public int size() {
+    return size;
+  }
+
+  /** number of terms counted, with repetitions (the length of the document) */
+  public int total() {
+    return total;
+  }
+
+  public byte [] bytes() {
+    return bytes;
+  }
+
+  public int start(int i) {
+    return starts[i];
+  }
+
+  public int length(int i) {
+    return starts[i+1] - starts[i];
+  }
+
+  public int count(int i) {
+    return counts[i];
+  }
+}
@@ -0,0 +1,152 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+
+/// This class is a hash table of the terms of a lexicon (IndexFileName.lexh), which IndexGeneration builds
+/// with "-hash" (see build()): when it is there, IndexReader looks up the query terms in it instead of
+/// searching the blocks of the lexicon. A lookup hashes the UTF-8 bytes of the term and compares them with
+/// those of one or two records, instead of a binary search over the blocks and the decoding of half a block.
+///
+/// The table uses open addressing with linear probing, with at least twice as many slots as terms.
+/// Layout of the file:
+///         int MAGIC, int VERSION, int number of terms, int number of slots, long totalTermCount,
+///         the slots: int hash of the term, int position of its record (0 for an empty slot),
+///         the records, in the order of the lexicon: int df, int count, long pos, int length, int maxTF,
+///         int number of bytes of the term, the UTF-8 bytes of the term
+/// The file is mapped (or copied to a direct buffer when it is not on the local file system), so it takes
+/// no room on the Java heap and nothing has to be decoded when the index is opened. It must be smaller
+/// than 2GB. The table is never modified, and get() doesn't change the position of the buffer, so it can
+/// be shared by all the threads.
+public class TermHash {
+
+    public static final int MAGIC = 0x53494c48; // "SILH"
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+    static final int RECORD_SIZE = 4 + 4 + 8 + 4 + 4 + 4; // without the bytes of the term
+
+    ByteBuffer buf; // the whole file
+    int numTerms;
+    int mask; // the number of slots - 1 (a power of 2)
+
+    /// the hash table in "file", for the lexicon "lex" (whose terms it must have)
+    public TermHash(ByteBuffer file, Lexicon lex, String name) throws IOException {
+	if (!file.isDirect()) {
+	    ByteBuffer copy = ByteBuffer.allocateDirect(file.remaining());
+	    copy.put(file.duplicate());
+	    copy.flip();
+	    file = copy;
+	}
+	buf = file;
+	if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+	    throw new IOException(name + ": unsupported format; please rebuild the index with IndexGeneration -hash");
+	}
+	numTerms = buf.getInt(8);
+	mask = buf.getInt(12) - 1;
+	if (numTerms != lex.size() || buf.getLong(16) != lex.totalTermCount) {
+	    throw new IOException(name + " doesn't match the lexicon; please rebuild the index with IndexGeneration -hash");
+	}
+    }
+
+    /// fetch the lexicon entry for a term (null if the term is not in the collection)
+    public IndexReader.Entry get(String term) {
+	byte [] key = Lexicon.utf8(term);
+	int h = hash(key, key.length);
+	for (int s = h & mask; ; s = (s + 1) & mask) {
+	    int slot = HEADER_SIZE + 8*s;
+	    int record = buf.getInt(slot + 4);
+	    if (record == 0) {
+		return null;
+	    }
+	    if (buf.getInt(slot) == h && equals(record, key)) {
+		return new IndexReader.Entry(buf.getInt(record), buf.getInt(record + 4), buf.getLong(record + 8),
+					     buf.getInt(record + 16), buf.getInt(record + 20));
+	    }
+	}
+    }
+
+    /// true if the term of the record at this position has these bytes
+    boolean equals(int record, byte [] key) {
+	if (buf.getInt(record + 24) != key.length) {
+	    return false;
+	}
+	int p = record + RECORD_SIZE;
+	for (int i=0; i<key.length; i++) {
+	    if (buf.get(p + i) != key[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /// the hash of the first len bytes of a term (see DocTable.hash)
+    static int hash(byte [] bytes, int len) {
+	return DocTable.hash(bytes, len);
+    }
+
+
+    /// write the hash table of the lexicon of the index "indexName"
+    public static void build(FileSystem fs, String indexName, IndexGeneration.Progress progress) throws IOException {
+	IndexReader index = new IndexReader(fs, indexName);
+	try {
+	    if (index.segments != null) {
+		throw new IOException(indexName + " has segments: the hash table can only be built for a single index");
+	    }
+	    Lexicon lex = index.lex;
+	    int n = lex.size();
+	    int capacity = Integer.highestOneBit(Math.max(2, 2 * n - 1)) << 1;
+
+	    // first, place the records in the slots
+	    int [] hashes = new int[capacity];
+	    int [] records = new int[capacity];
+	    long pos = HEADER_SIZE + 8L*capacity;
+	    Lexicon.Scanner s = lex.scan();
+	    while (s.next()) {
+		int h = hash(s.bytes, s.length);
+		int slot = h & (capacity - 1);
+		while (records[slot] != 0) {
+		    slot = (slot + 1) & (capacity - 1);
+		}
+		hashes[slot] = h;
+		records[slot] = (int) pos;
+		pos += RECORD_SIZE + s.length;
+		if (pos > Integer.MAX_VALUE) {
+		    throw new IOException("the hash table of the lexicon would be too large (more than 2GB)");
+		}
+	    }
+
+	    // then write them
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(new Path(indexName + ".lexh"), true), 1 << 16));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(n);
+		out.writeInt(capacity);
+		out.writeLong(lex.totalTermCount);
+		for (int i=0; i<capacity; i++) {
+		    out.writeInt(hashes[i]);
+		    out.writeInt(records[i]);
+		}
+		s = lex.scan();
+		while (s.next()) {
+		    IndexReader.Entry e = s.entry;
+		    out.writeInt(e.df);
+		    out.writeInt(e.count);
+		    out.writeLong(e.pos);
+		    out.writeInt(e.length);
+		    out.writeInt(e.maxTF);
+		    out.writeInt(s.length);
+		    out.write(s.bytes, 0, s.length);
+		    progress.add(1);
+		}
+	    } finally {
+		out.close();
+	    }
+	} finally {
+	    index.close();
+	}
+    }
+}
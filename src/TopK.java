@@ -0,0 +1,120 @@
+/// This class keeps the k best-scoring documents of a query.
+/// It replaces sorting all the score accumulators: documents are offered one at a time,
+/// and a bounded min-heap remembers the k best seen so far (the worst of them at the root),
+/// so selecting the top k out of n matched documents takes O(n log k) time and no extra memory.
+///
+/// A document is better than another if it has a higher score; documents with the same score
+/// are ordered by document number (the smaller number first), so the result doesn't depend on
+/// the order in which the documents are offered, and tied documents are never dropped arbitrarily.
+///
+/// Usage:
+///         topK.clear();
+///         for each matched document d: topK.offer(d, score of d);
+///         int n = topK.sort();
+///         // topK.docs[0..n-1] and topK.scores[0..n-1] are now the results, best first
+public class TopK {
+
+    public int [] docs; // document numbers in the heap (after sort(): the results, best first)
+    public double [] scores; // their scores
+    int size = 0;
+
+    public TopK(int k) {
+	docs = new int[k];
+	scores = new double[k];
+    }
+
+    /// the maximum number of documents kept
+    public int capacity() {
+	return docs.length;
+    }
+
+    /// number of documents currently kept
+    public int size() {
+	return size;
+    }
+
+    public void clear() {
+	size = 0;
+    }
+
+    /// true when k documents are kept, so that a new document has to beat the worst one to get in
+    public boolean isFull() {
+	return size == docs.length;
+    }
+
+    /// the score of the worst document kept (only meaningful when isFull())
+    public double minScore() {
+	return scores[0];
+    }
+
+    /// would a document with this score (and document number) get into the top k?
+    public boolean accepts(int doc, double score) {
+	return size < docs.length || (docs.length > 0 && better(doc, score, docs[0], scores[0]));
+    }
+
+    /// offer a document to the top k; returns true if it was kept
+    public boolean offer(int doc, double score) {
+	if (size < docs.length) {
+	    // there is still room: add it at the bottom of the heap and move it up
+	    int i = size++;
+	    while (i > 0) {
+		int parent = (i-1) >>> 1;
+		if (!better(docs[parent], scores[parent], doc, score)) {
+		    break;
+		}
+		docs[i] = docs[parent];
+		scores[i] = scores[parent];
+		i = parent;
+	    }
+	    docs[i] = doc;
+	    scores[i] = score;
+	    return true;
+	}
+	if (docs.length == 0 || !better(doc, score, docs[0], scores[0])) {
+	    return false;
+	}
+	// it beats the worst document kept, so it takes its place at the root
+	siftDown(0, doc, score, size);
+	return true;
+    }
+
+    /// sort the documents kept, best first, and return how many there are
+    /// (after this, the heap is no longer valid until the next clear())
+    public int sort() {
+	for (int n=size-1; n>0; n--) {
+	    // move the worst document of the heap to the end, and restore the heap for the rest
+	    int doc = docs[n];
+	    double score = scores[n];
+	    docs[n] = docs[0];
+	    scores[n] = scores[0];
+	    siftDown(0, doc, score, n);
+	}
+	return size;
+    }
+
+    /// put (doc, score) at position i of the heap with n entries and move it down to its place
+    void siftDown(int i, int doc, double score, int n) {
+	while (true) {
+	    int child = 2*i+1;
+	    if (child >= n) {
+		break;
+	    }
+	    if (child+1 < n && better(docs[child], scores[child], docs[child+1], scores[child+1])) {
+		child++; // the worse of the two children
+	    }
+	    if (!better(doc, score, docs[child], scores[child])) {
+		break;
+	    }
+	    docs[i] = docs[child];
+	    scores[i] = scores[child];
+	    i = child;
+	}
+	docs[i] = doc;
+	scores[i] = score;
+    }
+
+    /// is document a (with score sa) ranked above document b (with score sb)?
+    static boolean better(int a, double sa, int b, double sb) {
+	return sa > sb || (sa == sb && a < b);
+    }
+}
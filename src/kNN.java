@@ -16,12 +16,14 @@ import org.apache.hadoop.fs.Path;
 
 /// This application uses an HDFS inverted index to classify documents using kNN
 /// Usage:
-/// hadoop jar simir.jar kNN InvertedIndexFileName Train_List Test_List K
+/// hadoop jar simir.jar kNN [-t threads] [-wand] [-model name] [-cache MB] [-results N] [-acc N [-quit]] [-impact [-budget N] [-ms T]] [-lsh] [-check] [-batch B] [-shards local|procs] [-stats file] InvertedIndexFileName Train_List Test_List K [parameter value]
 /// -- "InvertedIndexFileName" is the name (including path) of the HDFS inverted file
-///     (Make sure that you have all the three files: 
+///     (Make sure that you have all these files: 
 ///                 + InvertedIndexFileName.lex: lexicon
 ///                 + InvertedIndexFileName.pos: posting
-///                 + InvertedIndexFileName.dlen: doc length
+///                 + InvertedIndexFileName.dlen: doc length (not needed if IndexGeneration has
+///                   generated InvertedIndexFileName.stats and InvertedIndexFileName.doclen from it)
+///                 + InvertedIndexFileName.docs: document table (integer ID -> original doc ID)
 /// -- "Train_List" is the name (including path) of the file which contains training documnet IDs and their class tag
 ///                 It has the following format (each document at a separate line)
 ///                 Tag1 DocumentID1
@@ -31,59 +33,56 @@ import org.apache.hadoop.fs.Path;
 ///        DocumentID1 term1 term2 ... termN
 ///        DocumentID2 termN+1 termN+2 ....
 /// -- "K" is the value for the parameter k in kNN algorithm 
+/// -- "[parameter value]" is an optional parameter to be passed to the retrieval model (see Retrieval)
+/// -- "-model name" is optional: the retrieval model, one of tfidf (the default), bm25, dirichlet
+///     or pivoted (see ScoringModel). With dirichlet, "-wand" is ignored (see Retrieval).
+/// -- "-t threads" is optional: the number of test documents classified in parallel (1 by default).
+///     The results are printed in the order of Test_List in any case.
+/// -- "-wand" is optional: find the nearest neighbors document at a time with WAND, which skips the
+///     documents that can't be among them (see QueryEvaluator); the results are the same.
+/// -- "-cache MB" is optional: keep up to MB megabytes of decoded posting lists in memory for all the
+///     test documents, so the lists of the frequent terms are read only once (see PostingCache).
+/// -- "-results N" is optional: remember the tags of the last N distinct test documents, so a test
+///     document with the same terms and counts as an earlier one is not classified again (see ResultCache).
+///     The hits, misses and evictions of the caches are reported on the standard error at the end.
+/// -- "-acc N" is optional: give at most N documents a score accumulator for a test document
+///     (Moffat and Zobel's accumulator limiting, see QueryEvaluator.addTerms). The terms of the test document
+///     are then processed from the rarest to the most frequent; once N documents have an accumulator, the
+///     next terms only add to their scores ("continue"), or are ignored with "-quit". This bounds the time
+///     and memory taken by a long test document, but the neighbors can differ from the exhaustive ones,
+///     and "-wand" is ignored.
+/// -- "-impact" is optional: score the training documents score at a time with the impact lists, and
+///     with "-budget N", stop after N postings for a test document, and with "-ms T", after T milliseconds
+///     (see Retrieval; "-model", "-wand" and the parameter value are ignored).
+/// -- "-lsh" is optional: only score the labeled documents that are likely to be similar to the test document,
+///     the candidates found with the MinHash signatures built by IndexGeneration -bands (see MinHashIndex).
+///     The candidates are scored exactly, but the nearest neighbors may not be among them. A test document
+///     with fewer than K labeled candidates is classified without the signatures, and the candidates that share
+///     no term with the test document don't vote. "-wand" is ignored.
+/// -- "-batch B" is optional: classify the test documents B at a time, reading the posting list of a term only once
+///     for all the test documents of the batch that contain it (see Classifier.process(List)). The scores are exact:
+///     "-wand", "-acc", "-impact" and "-lsh" are ignored. The number of posting lists read, and the number that
+///     would have been read one test document at a time, are reported on the standard error.
+/// -- "-check" is optional, with "-acc" or "-lsh": every test document is also classified exactly (without
+///     the limit and the signatures), and the number of test documents that get the same tag either way,
+///     with the documents scored and the time taken either way, are reported on the standard error.
+/// -- "-shards local" or "-shards procs" is optional: find the nearest neighbors of every test document on all the
+///     shards of an index split by IndexGeneration -shards at the same time, by threads or by processes, and merge
+///     them before they vote (see Retrieval and ShardCoordinator). "-impact" and "-lsh" can't be used with it,
+///     and "-results", "-batch" and "-check" are ignored.
+/// -- "-stats file" is optional: write the measures of the test documents to "file" at the end, as JSON
+///     (see Retrieval; the MBean is simir:type=QueryStats,name=kNN).
 	
 
-/// This is an auxiliary class for sorting documents based on their scores. 
-class ValueComparator implements Comparator { 
- 
-    Map base; 
-    public ValueComparator(Map base) { 
-	this.base = base; 
-    } 
-    
-    public int compare(Object a, Object b) { 
-	
-	if((Double)base.get(a) < (Double)base.get(b)) { 
-	    return 1; 
-	} else if((Double)base.get(a) == (Double)base.get(b)) { 
-	    return 0; 
-	} else { 
-	    return -1; 
-	} 
-    } 
-}
-
-    
-
 /// This is the main class for kNN.
 public class kNN {
 
     static int TOTALCLASS = 20;
-    /// This function returns the weight of a matched query term for a document
-    /// rawTF: raw count of the matched query term in the document
-    /// docFreq: document frequency of the matched term (i.e.., total number of documents in the collection
-    ///                 that contain the term
-    /// docCountTotal: total number of documents in the collection
-    /// termCount: the total count of the term in the whole collection
-    /// totalTermCount: the sum of the total count of *all* the terms in the collection
-    /// docLength: length of the document (number of words)
-    /// avgDocLength: average document length in the collection
-    /// param: a retrieval parameter that can be set to any value through the third argument when executing "Retrieval" 
-    static double weight(int rawTF, int docFreq, int docCountTotal, int termCount,int totalTermCount, int docLength, double avgDocLength, double param) {
-	double idf = Math.log((1.0+docCountTotal)/(0.5+docFreq));
-	return (rawTF*idf); 
-	// this is the raw TF-IDF weighting, which ignored a lot of information 
-	// passed to this weighitng function; you may explore different ways of 
-	// exploiting all the information to see if you can improve retrieval accuracy.
-	// BM25, Dirichlet prior, and Pivoted length normalization are obvious choices, 
-	// but you are encouraged to think about other choices. 
-    }
-    
     /// This is the core function of the kNN algorithm
-    /// sortedAcc: the ranked document list of the current test document, and the closet document ranks the highest
-    /// trainTag: this hashmap stores the document IDs and their category tags from the training data
+    /// ranked: the ranked document list of the current test document (after TopK.sort()), and the closet document ranks the highest
+    /// trainTag: this array stores the category tag of each document number from the training data (-1 if not labeled)
     /// numK: this is the k value for kNN
-    static int categorization(TreeMap<String, Double> sortedAcc, HashMap<String, Integer> trainTag, int numK){
+    static int categorization(TopK ranked, int [] trainTag, int numK){
 	/// initialize the vote counts for all the categories
 	int [] counts = new int[TOTALCLASS];
 	for(int j = 0; j < TOTALCLASS; j++){
@@ -92,12 +91,12 @@ public class kNN {
 
 	/// Look up from the top ranked results until we find numK labeled documents
 	int i=0;
-	for (Map.Entry<String, Double> entry : sortedAcc.entrySet()) { 
-	    String key = entry.getKey(); 
+	for (int r=0; r<ranked.size(); r++) { 
+	    int key = ranked.docs[r]; 
 
 	    /// Look up the tag of the document
-	    Integer currTag = trainTag.get(key);
-	    if(currTag != null){
+	    int currTag = trainTag[key];
+	    if(currTag >= 0){
 		//#########################################################//
 		// add statements here so that after the loop, counts would 
 		// have the votes from numK nearest neighbors for each category 
@@ -133,222 +132,815 @@ public class kNN {
 	}
 	
 	return maxClass;
-	
-    }
-
 
-    public static void main (String [] args) throws IOException {
-	
+    }
 
-	/// This class defines the type Entry to pack all the information about a term stored in a lexicon entry. 
-	class Entry {
-	    public int df; // document frequency
-	    public int count; // term count in the collection
-	    public long pos; // start position of entries in the posting file
-	    public int length; // span of postering entries 
-	    Entry(int d, int c, long p, int l) {
-		pos=p;
-		length = l;
-		df =d;
-		count=c;
+    /// the same vote for the nearest labeled documents of all the shards of a sharded index (see ShardCoordinator):
+    /// tags[0..n-1] are the tags of the merged neighbors, the closest first
+    static int categorization(int [] tags, int n, int numK) {
+	int [] counts = new int[TOTALCLASS];
+	for (int r=0; r<n && r<numK; r++) {
+	    counts[tags[r]]++;
+	}
+	int maxClass = -1;
+	int maxCount = 0;
+	for (int j=0; j<TOTALCLASS; j++) {
+	    if (counts[j] > maxCount) {
+		maxCount = counts[j];
+		maxClass = j;
 	    }
 	}
-	
-	double retrievalModelParam = 0.5; // default retrieval parameter; this should be set to a meaningful value
-	// for the retrieval model actually implemented. 
-
-	// the following is standard HDFS setup 
-	Configuration conf = new Configuration();
-	FileSystem fs = FileSystem.get(conf);
-	FSDataInputStream finlexicon=null, fintrain=null;
-	FSDataInputStream  finposting=null, findoclen=null, finquery=null; 
+	return maxClass;
+    }
 
-	//Hash table for the lexicon:key is a term, value is an object of class Entry
-	HashMap<String,Entry> lex= new HashMap<String,Entry>();
 
-	// Hash table for the score accumulators: key is docID, value is score.
-	HashMap<String,Double> acc = new HashMap<String,Double>();
+    /// This class counts how often the approximations (the accumulator limit or the LSH candidates) change the tag
+    /// of a test document, and what they save (for "-check")
+    static class ApproximationCheck {
+	long documents = 0; // test documents classified both ways
+	long same = 0; // and that got the same tag
+	long accumulators = 0; // the documents scored with the approximations
+	long exactAccumulators = 0; // and without
+	long time = 0; // the time (in nanoseconds) taken with the approximations
+	long exactTime = 0; // and without
+	long fallbacks = 0; // the test documents with too few LSH candidates
+
+	synchronized void add(int tag, int exactTag, int acc, int exactAcc, long nanos, long exactNanos) {
+	    documents++;
+	    if (tag == exactTag) {
+		same++;
+	    }
+	    accumulators += acc;
+	    exactAccumulators += exactAcc;
+	    time += nanos;
+	    exactTime += exactNanos;
+	}
 
-	// Hash table for storing document length: key is docID, value is doc length
-	HashMap<String,Integer> dlen = new HashMap<String,Integer>(); 
+	synchronized void fallback() {
+	    fallbacks++;
+	}
 
-	// Hash table for storing the tags of training documents
-	HashMap<String, Integer> trainTag = new HashMap<String, Integer>();
+	public synchronized String toString() {
+	    long n = Math.max(1, documents);
+	    return "approximate evaluation: " + same + " of " + documents + " test documents get the same tag as exact evaluation ("
+		+ String.format("%.2f", documents == 0 ? 100.0 : 100.0*same/documents) + "%), "
+		+ accumulators/n + " documents scored per test document instead of " + exactAccumulators/n + ", "
+		+ String.format("%.3f ms instead of %.3f ms", time/1e6/n, exactTime/1e6/n)
+		+ (fallbacks > 0 ? ", " + fallbacks + " test documents with too few candidates" : "");
+	}
+    }
 
-	Entry termEntry = null;
-	byte [] buffer = null; 
-	String docID =null;
-	int termFreq; 
-	StringTokenizer st=null;
-	String term =null;
-	int i; 
-	double s; 
 
-	int resultCount=1000; // this is the maximum number of results to return for each query
-	int numK = 0; //this is the value of k for the kNN algorithm
+    /// This class is a term of a batch of test documents, with the test documents that contain it
+    static class BatchTerm {
+	IndexReader.Entry entry;
+	int [] queries = new int[4]; // the test documents (by position in the batch)
+	int [] qtfs = new int[4]; // and the number of times they contain the term
+	int n = 0;
 
-	if (args.length>=5) {
-	    retrievalModelParam = Double.parseDouble(args[4]); // parse the provided parameter value if available.
+	BatchTerm(IndexReader.Entry entry) {
+	    this.entry = entry;
 	}
 
-	String t=null;
-	BufferedReader reader = null;
-	try { 
-	    // open the three files for the index
-	    finposting = fs.open(new Path(args[0] + ".pos" ));
-	    finlexicon = fs.open(new Path(args[0] + ".lex"));
-	    findoclen = fs.open(new Path(args[0] + ".dlen"));
+	void add(int query, int qtf) {
+	    if (n == queries.length) {
+		queries = Arrays.copyOf(queries, 2*n);
+		qtfs = Arrays.copyOf(qtfs, 2*n);
+	    }
+	    queries[n] = query;
+	    qtfs[n] = qtf;
+	    n++;
+	}
+    }
 
-	    // open the training tag file
-	    fintrain = fs.open(new Path(args[1]));
 
-	    // open the query file
-	    finquery = fs.open(new Path(args[2])); 
+    /// This class classifies the test documents of one thread: it turns a test document into a query,
+    /// accumulates the weights of its terms, and lets the nearest labeled documents vote.
+    static class Classifier extends QueryEvaluator implements QueryBatch.BatchWorker {
+
+	int [] trainTag; // shared by all the threads, never modified
+	int numK;
+
+	boolean useWand; // evaluate document at a time with WAND instead of scoring every posting
+
+	// the query terms found in the lexicon, for WAND
+	IndexReader.Entry [] queryTerms = new IndexReader.Entry[16];
+	int [] queryTermFreqs = new int[16];
+	String [] queryTermNames = new String[16];
+
+	// the LSH index of the documents (shared by all the threads) if only the candidates it finds are scored,
+	// and the signature and the band keys of the current test document
+	MinHashIndex lsh = null;
+	int [] signature;
+	int [] bandKeys;
+
+	ResultCache<Integer> results = null; // the tags of the last test documents (shared by all the threads), if any
+	ApproximationCheck check = null; // if not null, also classify exactly and count the differences
+
+	// the accumulators of a batch of test documents (see process(List)), a sparse matrix: the row of the labeled
+	// document rowDocs[r] is the list of the cells rowHead[r], cellNext[rowHead[r]], ... (-1 at the end), by
+	// increasing test document cellQuery[c], with the score cellScore[c]; rowOf[d] is the row of document d (-1 if none)
+	int [] rowOf = null;
+	int [] rowDocs;
+	int [] rowHead;
+	int [] cellQuery = new int[0];
+	int [] cellNext;
+	double [] cellScore;
+	int cells = 0;
+	long listsRead = 0; // the posting lists read for the batches
+	long postingsRead = 0; // and their postings
+	long pairs = 0; // the (test document, distinct term) pairs of the batches, i.e., the lists read one at a time
+	long pairPostings = 0; // and their postings
+
+	/// a Classifier with TF-IDF weighting and no result cache
+	Classifier(IndexReader index, int [] trainTag, int numK, double param, boolean useWand) throws IOException {
+	    this(index, trainTag, numK, ScoringModel.create("tfidf", index, param), useWand, null);
+	}
 
-	    // read the value of K
-	    numK = Integer.parseInt(args[3]);
-	} catch (IOException ioe) {
-	    ioe.printStackTrace();
-	    System.out.println("file operation error: " + "args[0]="+ args[0] + ";args[1]="+args[1]); 
-            System.exit(1);
+	Classifier(IndexReader index, int [] trainTag, int numK, ScoringModel model, boolean useWand, ResultCache<Integer> results) {
+	    super(index, numK, model);
+	    this.trainTag = trainTag;
+	    this.numK = numK;
+	    this.useWand = useWand && !model.adjusts();
+	    this.results = results;
 	}
 
-	// load the lexicon 
-	int totalTermCount=0;
-	while (finlexicon.available()!=0) {
-	    term = finlexicon.readUTF(); 
-	    int docFreq = finlexicon.readInt();
-	    int termCount =finlexicon.readInt();
-	    long  startPos = finlexicon.readLong();
-	    int postingSpan = finlexicon.readInt();
-	    lex.put(term,new Entry(docFreq,termCount,startPos, postingSpan)); 
-	    totalTermCount += termCount;
-	}	    
-	finlexicon.close();
-	
-	// load doc length
-	double avgDocLen =0;
-	int totalDocCount=0;
-	reader = new BufferedReader(new InputStreamReader(findoclen));
-	while ((t=reader.readLine()) != null) {
-	    st = new StringTokenizer(t);	
-	    term = st.nextToken();
-	    int docLen = Integer.parseInt(st.nextToken().trim());
-	    dlen.put(term,docLen);
-
-	    // we'll use this opportunity to compute the average doc length and the total number of documents in the collection
-	    // note that it's better to precompute these values in the indexing stage and store them in a file
-	    avgDocLen += docLen;  
-	    totalDocCount++;
-	}
-	avgDocLen /= totalDocCount; 
-	findoclen.close(); 
-
-	// load training tags
-	reader = new BufferedReader(new InputStreamReader(fintrain));
-	while ((t=reader.readLine()) != null) {
-	    st = new StringTokenizer(t);
-	    Integer currTag = Integer.parseInt(st.nextToken());
-	    trainTag.put(st.nextToken(), currTag);
-	}
-
-
-	// process queries 
-	reader = new BufferedReader(new InputStreamReader(finquery));
-	while ((t=reader.readLine()) != null) {
+	public String process(String t) throws IOException {
 	    // each line has precisely one query: queryID term1 term 2.... 
 
-	    st = new StringTokenizer(t); // A StringTokenizer allows us to decompose a string into space-separated tokens
+	    StringTokenizer st = new StringTokenizer(t); // A StringTokenizer allows us to decompose a string into space-separated tokens
 	    String qid = st.nextToken(); // the first token should be the query ID
 	    System.err.println("Processing query:"+qid); 
 
-	    acc.clear(); // clear the score accumulator to prepare for storing new scores for this query
+	    // the classification result
+	    startQuery();
+	    int tag = classify(st);
+	    endQuery(1);
+	    return tag + " " + qid + "\n";
+	}
 
-	    int qlen=0; // counter for computing the query length
+	/// classify one test document, given the tokenizer positioned after its ID, and return the predicted tag
+	/// (-1 if none of its terms occurs in a labeled document)
+	public int classify(StringTokenizer st) throws IOException {
+	    clear(); // clear the score accumulator to prepare for storing new scores for this query
 
 	    HashMap<String, Integer> qTermFreq = new HashMap<String, Integer>();
+	    // the lexicon entries of the terms in qTermFreq (each distinct term is looked up only once)
+	    HashMap<String, IndexReader.Entry> qTermEntry = new HashMap<String, IndexReader.Entry>();
+	    int qlen = parse(st, qTermFreq, qTermEntry);
+
+	    String key = null;
+	    if (results != null) {
+		// the same terms with the same counts (in any order) have the same neighbors
+		key = key(qTermFreq);
+		Integer tag = results.get(key);
+		if (tag != null) {
+		    endPhase(QueryStats.PARSE);
+		    return tag;
+		}
+	    }
+
+	    int n = queryTerms(qTermFreq, qTermEntry);
+	    endPhase(QueryStats.PARSE);
+
+	    if (useWand && accLimit == Integer.MAX_VALUE && impacts == null && lsh == null) {
+		// WAND evaluates all the terms together and puts the numK nearest labeled documents straight into topK
+		// (this assumes that the scores don't need the adjustment below)
+		topK.clear();
+		wand(queryTerms, queryTermFreqs, n, trainTag);
+		endPhase(QueryStats.SCORE);
+		resultSize += topK.sort();
+		endPhase(QueryStats.SELECT);
+		int tag = categorization(topK, trainTag, numK);
+		endPhase(QueryStats.OUTPUT);
+		return remember(key, tag);
+	    }
+
+	    if (check != null) {
+		// classify exactly first (addTerms() reorders the terms when there is a limit)
+		int limit = accLimit;
+		MinHashIndex candidates = lsh;
+		accLimit = Integer.MAX_VALUE;
+		lsh = null;
+		long start = System.nanoTime();
+		int exactTag = accumulate(n, qlen);
+		long exactTime = System.nanoTime() - start;
+		int exactCount = touchedCount;
+		accLimit = limit;
+		lsh = candidates;
+		clear();
+		start = System.nanoTime();
+		int tag = accumulate(n, qlen);
+		check.add(tag, exactTag, touchedCount, exactCount, System.nanoTime() - start, exactTime);
+		return remember(key, tag);
+	    }
+
+	    return remember(key, accumulate(n, qlen));
+	}
+
+	/// read the terms of a test document, given the tokenizer positioned after its ID, into qTermFreq (the number
+	/// of times every term occurs) and qTermEntry (its lexicon entry), and return its length
+	/// (the terms that are not in the collection are left out)
+	int parse(StringTokenizer st, HashMap<String, Integer> qTermFreq, HashMap<String, IndexReader.Entry> qTermEntry) {
+	    int qlen=0; // counter for computing the query length
 
 	    // trun the original query document into (term, freq) pairs
 	    // this is to make the calculation faster
 	    while (st.hasMoreTokens()) {
-		term = st.nextToken();
-		termEntry = lex.get(term);
+		String term = st.nextToken();
+		Integer currFreq = qTermFreq.get(term);
+		if (currFreq != null) {
+		    qlen++;
+		    qTermFreq.put(term, currFreq+1);
+		    continue;
+		}
+		IndexReader.Entry termEntry = index.getEntry(term);
 		
 		if (termEntry != null) {
 		    qlen++;
-		    Integer currFreq = qTermFreq.get(term);
-		    if(currFreq == null){
-			qTermFreq.put(term, 1);
-		    }else{
-			qTermFreq.put(term, currFreq+1);
-		    }
+		    qTermFreq.put(term, 1);
+		    qTermEntry.put(term, termEntry);
 		}
 	    }
+	    return qlen;
+	}
 
-	    // iterate over all the terms in the query document
-	    for(Map.Entry<String, Integer> entry : qTermFreq.entrySet()) {
-		term = entry.getKey();
-		termEntry = lex.get(term); // fetch the lexicon entry for this query term 
+	/// put the lexicon entries of the distinct terms of a test document, with their counts, in queryTerms,
+	/// queryTermFreqs and queryTermNames, and return their number
+	/// The terms are in lexicon order, the order in which process(List) adds the weights of a batch, so the
+	/// additions (which are not associative) give the same scores one test document at a time or in batches.
+	int queryTerms(HashMap<String, Integer> qTermFreq, HashMap<String, IndexReader.Entry> qTermEntry) {
+	    int n = 0;
+	    for(Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(qTermFreq).entrySet()) {
+		if (n == queryTerms.length) {
+		    queryTerms = Arrays.copyOf(queryTerms, 2*n);
+		    queryTermFreqs = Arrays.copyOf(queryTermFreqs, 2*n);
+		    queryTermNames = Arrays.copyOf(queryTermNames, 2*n);
+		}
+		queryTerms[n] = qTermEntry.get(entry.getKey());
+		queryTermFreqs[n] = entry.getValue();
+		queryTermNames[n] = entry.getKey();
+		n++;
+	    }
+	    return n;
+	}
 
-		if (termEntry != null) {
-		    qlen++; 
-		    int df = termEntry.df; 
-		    // df tells us how many pairs (docID termCount) for this term we have in the posting file 
-
-		    finposting.seek(termEntry.pos); // seek to the starting position of the posting entries for this term
-
-		    for (i=1; i<=df; i++) { // read in the df pairs 
-			docID = finposting.readUTF().trim(); // read in a document ID
-			termFreq = finposting.readInt(); // read in the term Count 
-			int doclen = dlen.get(docID).intValue(); // fetch the document length for this doc 
-			double tmpWeight = weight(termFreq,df,totalDocCount,termEntry.count,totalTermCount,doclen,avgDocLen, retrievalModelParam);
-			tmpWeight = tmpWeight * entry.getValue();
-			// compute the weight of this matched term
-
-			Double s1 = acc.get(docID); // get the current score for this docID in the accumulator if any
-			if (s1 != null) { 
-			    // this means that the docID already has an entry in the accumulator, i.e., the docID already matched a previous query term
-			    acc.put(docID, s1.doubleValue() + tmpWeight);
-			    
-			} else {
-			    // otherwise, we need to add a score accumulator for this docID and set the score appropriately.
-			    acc.put(docID, tmpWeight);
-			}
-		    }
-		    
-		} else{
-		    System.err.println("Skipping query term:"+term+ "(not in the collection)");
+	/// find the numK nearest labeled documents of a test document, given the tokenizer positioned after its ID,
+	/// and return their number: they are topK.docs[0..n-1], best first (for a shard of a sharded index, whose
+	/// neighbors ShardCoordinator merges with those of the other shards before they vote)
+	public int neighbors(StringTokenizer st) throws IOException {
+	    clear();
+	    HashMap<String, Integer> qTermFreq = new HashMap<String, Integer>();
+	    HashMap<String, IndexReader.Entry> qTermEntry = new HashMap<String, IndexReader.Entry>();
+	    int qlen = parse(st, qTermFreq, qTermEntry);
+	    int n = queryTerms(qTermFreq, qTermEntry);
+	    endPhase(QueryStats.PARSE);
+
+	    if (useWand && accLimit == Integer.MAX_VALUE && impacts == null && lsh == null) {
+		topK.clear();
+		wand(queryTerms, queryTermFreqs, n, trainTag);
+		endPhase(QueryStats.SCORE);
+		int k = topK.sort();
+		resultSize += k;
+		endPhase(QueryStats.SELECT);
+		return k;
+	    }
+	    score(n);
+	    return select(qlen);
+	}
+
+	/// the key of a test document with these terms and counts in the result cache
+	String key(HashMap<String, Integer> qTermFreq) {
+	    return ResultCache.key(qTermFreq, model, param, numK, accLimit, quitAtLimit, impacts != null, postingBudget, timeBudget,
+				   lsh != null);
+	}
+
+	/// score the documents term at a time for the query terms queryTerms[0..n-1] (qlen terms with repetitions),
+	/// and return the tag the nearest labeled documents vote for
+	int accumulate(int n, int qlen) throws IOException {
+	    score(n);
+	    return vote(qlen);
+	}
+
+	/// add the weights of the query terms queryTerms[0..n-1] to the accumulators of the documents
+	void score(int n) throws IOException {
+	    int limit = accLimit;
+	    boolean quit = quitAtLimit;
+	    boolean candidates = lsh != null && addCandidates(n) >= numK;
+	    if (candidates) {
+		// only the candidates have an accumulator: the terms add their weights to them, and to no other document
+		accLimit = touchedCount;
+		quitAtLimit = false;
+	    } else if (lsh != null) {
+		clear(); // too few candidates: score every document
+		if (check != null) {
+		    check.fallback();
+		}
+	    }
+
+	    // add the weights of all the terms in the query document to the accumulators of the documents containing them
+	    if (impacts != null) {
+		scoreAtATime(queryTerms, queryTermFreqs, n);
+	    } else {
+		addTerms(queryTerms, queryTermFreqs, n);
+	    }
+	    if (candidates) {
+		dropUnmatched();
+	    }
+	    accLimit = limit;
+	    quitAtLimit = quit;
+	}
+
+	/// remove the accumulators of the candidates that share no term with the test document (their score is
+	/// still 0), so only the documents that match a term vote, as when every document is scored
+	void dropUnmatched() {
+	    int k = 0;
+	    for (int i=0; i<touchedCount; i++) {
+		int docID = touchedDocs[i];
+		if (acc[docID] != 0) {
+		    touchedDocs[k++] = docID;
+		} else {
+		    touched[docID] = false;
 		}
 	    }
-	    
+	    touchedCount = k;
+	    sortedCount = 0;
+	}
 
+	/// the tag the nearest labeled documents vote for, once the accumulators have the scores of a test document
+	/// of length qlen
+	int vote(int qlen) {
+	    select(qlen);
+
+	    // call the core function of kNN algorithm
+	    int tag = categorization(topK, trainTag, numK);
+	    endPhase(QueryStats.OUTPUT);
+	    return tag;
+	}
+
+	/// put the numK nearest labeled documents in topK, best first, once the accumulators have the scores of a
+	/// test document of length qlen, and return their number
+	int select(int qlen) {
 	    // At this point, we have iterated over all the query terms and updated the score accumulators appropriately
 	    // so the score accumulators should have a sum of weights for all the matched query terms. 
 	    // In some retrieval models, we may need to adjust this sum in some way, we can do it here
 
 	    // adjustment of scores for each document if necessary
-	    for (Map.Entry<String, Double> entry : acc.entrySet()) { 
-		// iterate over all accumulators and use "acc.put()" to update the score
-		// for example, the following statement would add |Q| log (mu/(mu+|D|)), which is needed for Dirichlet prior 
-		/* 
-		acc.put(entry.getKey(), entry.getValue().doubleValue()+
-		qlen*Math.log(retrievalModelParam/(retrievalModelParam+dlen.get(docID).intValue()))); */
+	    // for example, the Dirichlet prior adds |Q| log (mu/(mu+|D|)) to the score of every document
+	    model.adjust(acc, touchedDocs, touchedCount, qlen);
+	    endPhase(QueryStats.SCORE);
+
+	    // now we've finished scoring, and we'll select the numK nearest labeled documents:
+	    // only those can vote in categorization, so unlabeled documents don't need to be ranked
+	    topK.clear();
+	    for (int i=0; i<touchedCount; i++) {
+		int docID = touchedDocs[i];
+		if (trainTag[docID] >= 0) {
+		    topK.offer(docID, acc[docID]);
+		}
 	    }
+	    int k = topK.sort();
+	    resultSize += k;
+	    endPhase(QueryStats.SELECT);
+	    return k;
+	}
 
-	    // now we've finished scoring, and we'll sort the scores and output the top N results 
-	    // to the standard output stream (System.out)
-	    ValueComparator bvc =  new ValueComparator(acc); 
-	    TreeMap<String,Double> sortedAcc = new TreeMap<String,Double>(bvc); 
- 	    sortedAcc.putAll(acc); 
+	/// give an accumulator (at 0) to the labeled documents that share the key of a band with the test document
+	/// (whose terms are queryTermNames[0..n-1]), and return their number
+	int addCandidates(int n) {
+	    if (signature == null) {
+		signature = new int[lsh.bands * lsh.rows];
+		bandKeys = new int[lsh.bands];
+	    }
+	    lsh.keys(queryTermNames, n, signature, bandKeys);
+	    for (int b=0; b<lsh.bands; b++) {
+		long [] bucket = lsh.buckets[b];
+		for (int i=lsh.first(b, bandKeys[b]); i<bucket.length && (int) (bucket[i] >> 32) == bandKeys[b]; i++) {
+		    int docID = (int) bucket[i];
+		    if (trainTag[docID] >= 0 && !touched[docID]) {
+			touched[docID] = true;
+			touchedDocs[touchedCount++] = docID;
+			acc[docID] = 0;
+		    }
+		}
+	    }
+	    return touchedCount;
+	}
 
-	    // call the core function of kNN algorithm
-	    int resTag = categorization(sortedAcc, trainTag, numK);
+	/// classify the test documents of a batch: the posting list of every term is read only once for all the
+	/// test documents of the batch that contain it, and its weights are added to a sparse matrix of accumulators
+	/// with a row for every labeled document found, and in that row a cell for every test document that
+	/// shares a term with it (so the matrix takes as much memory as the accumulators of all the test documents)
+	/// (the weights of every test document are added in the same order as one test document at a time, so the
+	/// scores, and the ties between them, are the same)
+	/// For the stats, every test document of the batch gets an equal share of the work.
+	public String process(List<String> lines) throws IOException {
+	    startQuery();
+	    int b = lines.size();
+	    String [] qids = new String[b];
+	    String [] keys = new String[b];
+	    int [] qlens = new int[b];
+	    int [] tags = new int[b];
+	    boolean [] done = new boolean[b]; // the test documents whose tag was in the result cache
+
+	    // the terms of all the test documents, with the test documents that contain them
+	    // (in lexicon order, the order of queryTerms())
+	    TreeMap<String, BatchTerm> batchTerms = new TreeMap<String, BatchTerm>();
+	    for (int q=0; q<b; q++) {
+		StringTokenizer st = new StringTokenizer(lines.get(q));
+		qids[q] = st.nextToken();
+		System.err.println("Processing query:"+qids[q]);
+		HashMap<String, Integer> qTermFreq = new HashMap<String, Integer>();
+		HashMap<String, IndexReader.Entry> qTermEntry = new HashMap<String, IndexReader.Entry>();
+		qlens[q] = parse(st, qTermFreq, qTermEntry);
+		if (results != null) {
+		    keys[q] = key(qTermFreq);
+		    Integer tag = results.get(keys[q]);
+		    if (tag != null) {
+			tags[q] = tag;
+			done[q] = true;
+			continue;
+		    }
+		}
+		for (Map.Entry<String, Integer> entry : qTermFreq.entrySet()) {
+		    BatchTerm bt = batchTerms.get(entry.getKey());
+		    if (bt == null) {
+			bt = new BatchTerm(qTermEntry.get(entry.getKey()));
+			batchTerms.put(entry.getKey(), bt);
+		    }
+		    bt.add(q, entry.getValue());
+		}
+	    }
+	    endPhase(QueryStats.PARSE);
+
+	    // scan the posting list of every term once
+	    if (rowOf == null) {
+		rowOf = new int[index.numDocs()];
+		Arrays.fill(rowOf, -1);
+		rowDocs = new int[1024];
+		rowHead = new int[1024];
+		cellQuery = new int[1024];
+		cellNext = new int[1024];
+		cellScore = new double[1024];
+	    }
+	    int rows = 0;
+	    cells = 0;
+	    try {
+		double [] norms = model.norms;
+		ScoringModel.Term [] weights = new ScoringModel.Term[b];
+		for (BatchTerm bt : batchTerms.values()) {
+		    for (int i=0; i<bt.n; i++) {
+			weights[i] = model.term(bt.entry, bt.qtfs[i]);
+		    }
+		    listsRead++;
+		    postingsRead += bt.entry.df;
+		    pairs += bt.n;
+		    pairPostings += (long) bt.entry.df * bt.n;
+		    cursor.open(bt.entry);
+		    int len;
+		    while ((len = cursor.nextBlock()) > 0) {
+			for (int j=0; j<len; j++) {
+			    int docID = cursor.docs[j];
+			    if (trainTag[docID] < 0) {
+				continue; // only the labeled documents can vote
+			    }
+			    int r = rowOf[docID];
+			    if (r < 0) {
+				if (rows == rowDocs.length) {
+				    rowDocs = Arrays.copyOf(rowDocs, 2*rows);
+				    rowHead = Arrays.copyOf(rowHead, 2*rows);
+				}
+				r = rowOf[docID] = rows++;
+				rowDocs[r] = docID;
+				rowHead[r] = -1;
+			    }
+			    int freq = cursor.freqs[j];
+			    double norm = norms[docID];
+			    // merge the test documents of the term (in increasing order) into the cells of the row
+			    int prev = -1;
+			    int c = rowHead[r];
+			    for (int i=0; i<bt.n; i++) {
+				int q = bt.queries[i];
+				while (c >= 0 && cellQuery[c] < q) {
+				    prev = c;
+				    c = cellNext[c];
+				}
+				double w = weights[i].weight(freq, norm);
+				if (c >= 0 && cellQuery[c] == q) {
+				    cellScore[c] += w;
+				} else {
+				    int cell = newCell(q, w, c);
+				    if (prev < 0) {
+					rowHead[r] = cell;
+				    } else {
+					cellNext[prev] = cell;
+				    }
+				    prev = cell;
+				}
+			    }
+			}
+		    }
+		}
+		endPhase(QueryStats.SCORE);
+
+		// then let the neighbors of every test document vote: the cells of test document q are the first
+		// cells left in the rows, since the cells of a row are in the order of the test documents
+		StringBuilder out = new StringBuilder();
+		for (int q=0; q<b; q++) {
+		    if (!done[q]) {
+			clear();
+			for (int r=0; r<rows; r++) {
+			    int c = rowHead[r];
+			    if (c >= 0 && cellQuery[c] == q) {
+				int docID = rowDocs[r];
+				touched[docID] = true;
+				touchedDocs[touchedCount++] = docID;
+				acc[docID] = cellScore[c];
+				rowHead[r] = cellNext[c];
+			    }
+			}
+			tags[q] = remember(keys[q], vote(qlens[q]));
+		    }
+		    out.append(tags[q] + " " + qids[q] + "\n");
+		}
+		endQuery(b);
+		return out.toString();
+	    } finally {
+		// even if a posting list couldn't be read, so that the next batch of this worker starts clean
+		clear();
+		for (int r=0; r<rows; r++) {
+		    rowOf[rowDocs[r]] = -1;
+		}
+	    }
+	}
 
-	    // print out the classification results
-	    System.out.println(resTag + " " + qid);
+	/// add a cell (test document q, with score w) to the matrix of a batch, before "next", and return it
+	int newCell(int q, double w, int next) throws IOException {
+	    if (cells == cellQuery.length) {
+		long grown = 2L*cells;
+		if (grown > Integer.MAX_VALUE - 8) {
+		    if (cells == Integer.MAX_VALUE - 8) {
+			throw new IOException("too many accumulators for a batch of test documents; please use a smaller -batch");
+		    }
+		    grown = Integer.MAX_VALUE - 8;
+		}
+		cellQuery = Arrays.copyOf(cellQuery, (int) grown);
+		cellNext = Arrays.copyOf(cellNext, (int) grown);
+		cellScore = Arrays.copyOf(cellScore, (int) grown);
+	    }
+	    cellQuery[cells] = q;
+	    cellScore[cells] = w;
+	    cellNext[cells] = next;
+	    return cells++;
+	}
 
-	}//end of a single query
+	/// keep the tag of a test document in the result cache (if there is one) and return it
+	int remember(String key, int tag) {
+	    if (key != null) {
+		results.put(key, tag);
+	    }
+	    return tag;
+	}
     }
-}
 
 
+    /// load the tags of the training documents from the training list (see the format above)
+    /// and return them indexed by document number (-1 for documents without a tag)
+    static int [] loadTrainTags(FileSystem fs, Path trainList, IndexReader index) throws IOException {
+	int [] trainTag = new int[index.numDocs()];
+	Arrays.fill(trainTag, -1);
+	BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(trainList)));
+	try {
+	    String t=null;
+	    while ((t=reader.readLine()) != null) {
+		StringTokenizer st = new StringTokenizer(t);
+		int currTag = Integer.parseInt(st.nextToken());
+		int d = index.docs.find(st.nextToken()); // the document number of the docID
+		if (d >= 0) {
+		    // a training document that is not in the index can never be retrieved, so it can be ignored
+		    trainTag[d] = currTag;
+		}
+	    }
+	} finally {
+	    reader.close();
+	}
+	return trainTag;
+    }
+
+
+    public static void main (String [] args) throws IOException {
+	long start = System.nanoTime();
+
+	double retrievalModelParam = Double.NaN; // the retrieval parameter; by default, the default value
+	// of the retrieval model (see ScoringModel)
+	String modelName = "tfidf"; // the retrieval model
+
+	// the following is standard HDFS setup 
+	Configuration conf = new Configuration();
+	FileSystem fs = FileSystem.get(conf);
+	FSDataInputStream finquery=null; 
+
+	// the inverted index: lexicon, document table, doc lengths and postings
+	IndexReader index = null;
+
+	// Tags of training documents, indexed by document number (-1 for documents without a tag)
+	int [] trainTag = null;
+
+	int numK = 0; //this is the value of k for the kNN algorithm
+	int threads = 1; // number of test documents classified in parallel
+
+	boolean wand = false; // document-at-a-time evaluation with WAND
+	long cacheSize = 0; // megabytes of decoded posting lists kept in memory
+	int resultCacheSize = 0; // number of tags of test documents kept in memory
+	int accLimit = Integer.MAX_VALUE; // the most accumulators for a test document
+	boolean quit = false; // stop at the accumulator limit instead of continuing with the documents that have one
+	boolean checkApproximations = false; // also classify exactly and report the differences
+	boolean impact = false; // score-at-a-time evaluation with the impact lists
+	long postingBudget = Long.MAX_VALUE; // the most postings scored for a test document (score at a time)
+	long timeBudget = 0; // the most milliseconds spent on a test document (score at a time; 0 for no limit)
+	boolean useLsh = false; // only score the candidates of the LSH index
+	int batch = 1; // number of test documents classified together, with one scan of the posting lists
+	String statsFile = null; // where to write the measures of the test documents
+	String shardMode = null; // evaluate the shards of the index by threads ("local") or processes ("procs")
+
+	// "-t <threads>", "-wand", "-model <name>", "-cache <MB>", "-results <N>", "-acc <N>", "-quit", "-check",
+	// "-impact", "-budget <N>", "-ms <T>", "-lsh", "-batch <B>", "-shards <mode>" and "-stats <file>" may come
+	// anywhere in the arguments
+	List<String> other_args = new ArrayList<String>();
+	for (int i=0; i < args.length; ++i) {
+	    if ("-t".equals(args[i]) && i+1 < args.length) {
+		threads = Integer.parseInt(args[++i]);
+	    } else if ("-cache".equals(args[i]) && i+1 < args.length) {
+		cacheSize = Long.parseLong(args[++i]);
+	    } else if ("-results".equals(args[i]) && i+1 < args.length) {
+		resultCacheSize = Integer.parseInt(args[++i]);
+	    } else if ("-model".equals(args[i]) && i+1 < args.length) {
+		modelName = args[++i];
+	    } else if ("-acc".equals(args[i]) && i+1 < args.length) {
+		accLimit = Integer.parseInt(args[++i]);
+	    } else if ("-quit".equals(args[i])) {
+		quit = true;
+	    } else if ("-check".equals(args[i])) {
+		checkApproximations = true;
+	    } else if ("-lsh".equals(args[i])) {
+		useLsh = true;
+	    } else if ("-batch".equals(args[i]) && i+1 < args.length) {
+		batch = Integer.parseInt(args[++i]);
+	    } else if ("-stats".equals(args[i]) && i+1 < args.length) {
+		statsFile = args[++i];
+	    } else if ("-shards".equals(args[i]) && i+1 < args.length) {
+		shardMode = args[++i];
+	    } else if ("-budget".equals(args[i]) && i+1 < args.length) {
+		postingBudget = Long.parseLong(args[++i]);
+	    } else if ("-ms".equals(args[i]) && i+1 < args.length) {
+		timeBudget = Long.parseLong(args[++i]);
+	    } else if ("-impact".equals(args[i])) {
+		impact = true;
+	    } else if ("-wand".equals(args[i])) {
+		wand = true;
+	    } else {
+		other_args.add(args[i]);
+	    }
+	}
+	args = other_args.toArray(new String[other_args.size()]);
+
+	if (shardMode != null) {
+	    // every test document goes to all the shards, which are opened by the coordinator
+	    if (impact || useLsh) {
+		System.out.println("-impact and -lsh can't be used with -shards");
+		System.exit(1);
+	    }
+	    ShardCoordinator.Settings settings = new ShardCoordinator.Settings();
+	    settings.k = Integer.parseInt(args[3]);
+	    settings.trainList = args[1];
+	    settings.modelName = modelName;
+	    settings.param = args.length>=5 ? Double.parseDouble(args[4]) : Double.NaN;
+	    settings.wand = wand;
+	    settings.cacheSize = cacheSize;
+	    settings.accLimit = accLimit;
+	    settings.quit = quit;
+	    ShardCoordinator.run(fs, args[0], args[2], settings, shardMode, threads, new QueryStats("kNN"), statsFile, start);
+	    return;
+	}
+
+	if (batch > 1) {
+	    // the batches are scored exactly, term at a time
+	    wand = false;
+	    accLimit = Integer.MAX_VALUE;
+	    impact = false;
+	    useLsh = false;
+	}
+
+	if (args.length>=5) {
+	    retrievalModelParam = Double.parseDouble(args[4]); // parse the provided parameter value if available.
+	}
+
+	BufferedReader reader = null;
+	try { 
+	    // open the index
+	    index = new IndexReader(fs, args[0]);
+
+	    // load training tags
+	    trainTag = loadTrainTags(fs, new Path(args[1]), index);
+
+	    // open the query file
+	    finquery = fs.open(new Path(args[2])); 
+
+	    // read the value of K
+	    numK = Integer.parseInt(args[3]);
+	} catch (IOException ioe) {
+	    ioe.printStackTrace();
+	    System.out.println("file operation error: " + "args[0]="+ args[0] + ";args[1]="+args[1]); 
+            System.exit(1);
+	}
+
+	// the retrieval model, with its norms of all the documents, is shared by all the threads
+	// (and so are the impact lists)
+	ScoringModel scoringModel = null;
+	ImpactIndex impactIndex = null;
+	MinHashIndex lshIndex = null;
+	try {
+	    if (useLsh) {
+		lshIndex = new MinHashIndex(fs, args[0]);
+		if (lshIndex.numDocs != index.numDocs()) {
+		    throw new IOException(args[0] + ".lsh is out of date (documents were added): please rebuild the index with IndexGeneration -bands");
+		}
+	    }
+	    if (impact) {
+		impactIndex = new ImpactIndex(fs, args[0]);
+		scoringModel = impactIndex.model(index);
+	    } else {
+		scoringModel = ScoringModel.create(modelName, index, retrievalModelParam);
+	    }
+	} catch (IOException ioe) {
+	    System.out.println(ioe.getMessage());
+	    System.exit(1);
+	}
+
+	// the caches are shared by all the threads
+	PostingCache postingCache = null;
+	if (cacheSize > 0) {
+	    postingCache = new PostingCache(cacheSize << 20);
+	    index.setPostingCache(postingCache);
+	}
+	final ResultCache<Integer> results = resultCacheSize > 0 ? new ResultCache<Integer>(resultCacheSize) : null;
+	final ApproximationCheck check = checkApproximations && (accLimit < Integer.MAX_VALUE || useLsh) ? new ApproximationCheck() : null;
+	final QueryStats stats = new QueryStats("kNN");
+	stats.loadTime = System.nanoTime() - start;
+	stats.register();
+
+	// process queries: every thread gets its own Classifier, which shares the index and the tags with the others
+	final IndexReader sharedIndex = index;
+	final int [] sharedTags = trainTag;
+	final int k = numK;
+	final ScoringModel model = scoringModel;
+	final boolean useWand = wand;
+	final int limit = accLimit;
+	final boolean quitAtLimit = quit;
+	final ImpactIndex impacts = impactIndex;
+	final MinHashIndex lsh = lshIndex;
+	final long budget = postingBudget;
+	final long nanos = timeBudget * 1000000;
+	final List<Classifier> classifiers = Collections.synchronizedList(new ArrayList<Classifier>());
+	reader = new BufferedReader(new InputStreamReader(finquery));
+	QueryBatch.run(reader, System.out, threads, batch, new QueryBatch.WorkerFactory() {
+		public QueryBatch.Worker newWorker() {
+		    Classifier classifier = new Classifier(sharedIndex, sharedTags, k, model, useWand, results);
+		    classifier.accLimit = limit;
+		    classifier.quitAtLimit = quitAtLimit;
+		    classifier.check = check;
+		    classifier.impacts = impacts;
+		    classifier.lsh = lsh;
+		    classifier.postingBudget = budget;
+		    classifier.timeBudget = nanos;
+		    classifier.stats = stats;
+		    classifiers.add(classifier);
+		    return classifier;
+		}
+	    });
+	System.out.flush();
+	if (postingCache != null) {
+	    System.err.println(postingCache);
+	}
+	if (results != null) {
+	    System.err.println(results);
+	}
+	if (check != null) {
+	    System.err.println(check);
+	}
+	if (batch > 1) {
+	    long lists = 0, postings = 0, pairs = 0, pairPostings = 0;
+	    for (Classifier c : classifiers) {
+		lists += c.listsRead;
+		postings += c.postingsRead;
+		pairs += c.pairs;
+		pairPostings += c.pairPostings;
+	    }
+	    System.err.println("batches of " + batch + ": " + lists + " posting lists read (" + postings + " postings) instead of "
+			       + pairs + " (" + pairPostings + " postings) for the test documents one at a time");
+	}
+	if (statsFile != null) {
+	    stats.write(fs, statsFile);
+	}
+    }
+}
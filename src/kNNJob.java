@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.NLineInputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This is the kNN classifier (see kNN.java) as a map/reduce job, so that
+ * the test documents are classified by the whole cluster.
+ *
+ * To run: hadoop jar simir.jar kNNJob
+ *            [-l <i>lines per map</i>] [-r <i>reduces</i>] [-wand] [-model <i>name</i>] [-cache <i>MB</i>] [-acc <i>N</i> [-quit]]
+ *            <i>InvertedIndexFileName</i> <i>Train_List</i> <i>Test_List</i> <i>K</i> <i>out-dir</i> [<i>parameter value</i>]
+ * The arguments are the same as for kNN, plus the output directory, which must not already exist.
+ * With "-cache", every map task keeps up to MB megabytes of decoded posting lists (see PostingCache);
+ * the hits, misses and evictions of the caches are added up in the counters of the job.
+ * The Test_List is split into pieces of "lines per map" test documents (1000 by default), one per map task.
+ * Every map task loads the index once, and then classifies its test documents one after the other.
+ * The index files (.lex, .pos, .docs, and .stats and .doclen or .dlen, or the list of segments and
+ * the files of every segment, see Segments, or the list of shards, the files of every shard and the
+ * statistics of the whole collection, see Shards) and the Train_List are shipped to the
+ * task nodes with the distributed cache, so the postings are read from the local disk
+ * (with the local job runner, the tasks read the original files instead).
+ *
+ * The output (in "out-dir", with a name like "part-00000") has one line "tag docID" per test document,
+ * sorted by docID, in the format expected by knneval.pl.
+ *
+ * To test in Hadoop local mode: hadoop jar simir.jar kNNJob -D mapred.job.tracker=local -D fs.default.name=file:/// ...
+ */
+
+public class kNNJob extends Configured implements Tool {
+
+  /// number of test documents classified by a map task, unless "-l" is given
+  static final int DEFAULT_LINES_PER_MAP = 1000;
+
+  // names of the index files and of the training list in the working directory of a task
+  // (the symbolic links created by the distributed cache)
+  static final String CACHED_INDEX = "index";
+  static final String CACHED_TRAIN = "train";
+
+  static enum Counter { CLASSIFIED, UNCLASSIFIED, CACHE_HITS, CACHE_MISSES, CACHE_EVICTIONS }
+
+  /**
+   * Each line of the input is a test document: the document ID followed by the words of the document.
+   * The Mapper classifies it and emits
+   * (<b>document ID</b>, <b>predicted tag</b>).
+   */
+  public static class MapClass extends MapReduceBase
+    implements Mapper<LongWritable, Text, Text, IntWritable> {
+
+    IndexReader index;
+    kNN.Classifier classifier;
+    PostingCache cache = null;
+    Reporter reporter = null; // to report the counters of the cache at the end
+
+    private Text did = new Text();
+    private IntWritable tag = new IntWritable();
+
+    /// load the index and the training tags once for all the test documents of the task
+    public void configure(JobConf job) {
+      try {
+        FileSystem fs;
+        String indexName;
+        Path trainList;
+        if (job.getBoolean("knn.cached", false)) {
+          // the files are in the distributed cache
+          fs = FileSystem.getLocal(job);
+          indexName = CACHED_INDEX;
+          trainList = new Path(CACHED_TRAIN);
+        } else {
+          // the local job runner: the original files are read directly (run() doesn't ship them)
+          fs = FileSystem.get(job);
+          indexName = job.get("knn.index");
+          trainList = new Path(job.get("knn.train"));
+        }
+        index = new IndexReader(fs, indexName);
+        if (job.getInt("knn.cache", 0) > 0) {
+          cache = new PostingCache((long) job.getInt("knn.cache", 0) << 20);
+          index.setPostingCache(cache);
+        }
+        int [] trainTag = kNN.loadTrainTags(fs, trainList, index);
+        String param = job.get("knn.param");
+        ScoringModel model = ScoringModel.create(job.get("knn.model", "tfidf"), index,
+                                                 param == null ? Double.NaN : Double.parseDouble(param));
+        classifier = new kNN.Classifier(index, trainTag, job.getInt("knn.k", 1), model,
+                                        job.getBoolean("knn.wand", false), null);
+        classifier.accLimit = job.getInt("knn.acc", Integer.MAX_VALUE);
+        classifier.quitAtLimit = job.getBoolean("knn.quit", false);
+      } catch (IOException e) {
+        throw new RuntimeException("cannot load the index " + job.get("knn.index"), e);
+      }
+    }
+
+    public void map(LongWritable key, Text value,
+                    OutputCollector<Text, IntWritable> output,
+                    Reporter reporter) throws IOException {
+      StringTokenizer st = new StringTokenizer(value.toString());
+      if (!st.hasMoreTokens()) {
+        return;
+      }
+      did.set(st.nextToken());
+      int resTag = classifier.classify(st);
+      reporter.incrCounter(resTag >= 0 ? Counter.CLASSIFIED : Counter.UNCLASSIFIED, 1);
+      tag.set(resTag);
+      output.collect(did, tag);
+      this.reporter = reporter;
+    }
+
+    public void close() throws IOException {
+      if (cache != null && reporter != null) {
+        reporter.incrCounter(Counter.CACHE_HITS, cache.hits);
+        reporter.incrCounter(Counter.CACHE_MISSES, cache.misses);
+        reporter.incrCounter(Counter.CACHE_EVICTIONS, cache.evictions);
+      }
+      if (index != null) {
+        index.close();
+      }
+    }
+  }
+
+
+  /**
+   * A reducer class that writes each (document ID, tag) pair as "tag docID", like kNN does
+   */
+  public static class Reduce extends MapReduceBase
+    implements Reducer<Text, IntWritable, IntWritable, Text> {
+
+    public void reduce(Text key, Iterator<IntWritable> values,
+                       OutputCollector<IntWritable, Text> output,
+                       Reporter reporter) throws IOException {
+      while (values.hasNext()) {
+        output.collect(values.next(), key);
+      }
+    }
+  }
+
+  static int printUsage() {
+    System.out.println("kNNJob [-l <lines per map>] [-r <reduces>] [-wand] [-model <name>] [-cache <MB>] [-acc <N> [-quit]] <index> <train list> <test list> <k> <output> [<parameter>]");
+    ToolRunner.printGenericCommandUsage(System.out);
+    return -1;
+  }
+
+  /// add a file to the distributed cache, linked as "link" in the working directory of the tasks
+  static void cache(JobConf conf, Path file, String link) throws IOException {
+    URI uri = file.getFileSystem(conf).makeQualified(file).toUri();
+    try {
+      DistributedCache.addCacheFile(new URI(uri.toString() + "#" + link), conf);
+    } catch (URISyntaxException e) {
+      throw new IOException("bad path " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * The main driver for the kNN map/reduce program.
+   * Invoke this method to submit the map/reduce job.
+   * @throws IOException When there is communication problems with the
+   *                     job tracker.
+   */
+  public int run(String[] args) throws Exception {
+    JobConf conf = new JobConf(getConf(), kNNJob.class);
+    conf.setJobName("knn");
+
+    conf.setInputFormat(NLineInputFormat.class);
+    conf.setInt("mapred.line.input.format.linespermap", DEFAULT_LINES_PER_MAP);
+
+    // the mapper emits (docID, tag); the output is (tag, docID)
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(IntWritable.class);
+    conf.setOutputKeyClass(IntWritable.class);
+    conf.setOutputValueClass(Text.class);
+
+    conf.setMapperClass(MapClass.class);
+    conf.setReducerClass(Reduce.class);
+
+    List<String> other_args = new ArrayList<String>();
+    for(int i=0; i < args.length; ++i) {
+      try {
+        if ("-l".equals(args[i])) {
+          conf.setInt("mapred.line.input.format.linespermap", Integer.parseInt(args[++i]));
+        } else if ("-r".equals(args[i])) {
+          conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+        } else if ("-wand".equals(args[i])) {
+          conf.setBoolean("knn.wand", true);
+        } else if ("-model".equals(args[i])) {
+          String name = args[++i];
+          if (!Arrays.asList(ScoringModel.NAMES).contains(name)) {
+            System.out.println("ERROR: Unknown retrieval model " + name);
+            return printUsage();
+          }
+          conf.set("knn.model", name);
+        } else if ("-cache".equals(args[i])) {
+          conf.setInt("knn.cache", Integer.parseInt(args[++i]));
+        } else if ("-acc".equals(args[i])) {
+          conf.setInt("knn.acc", Integer.parseInt(args[++i]));
+        } else if ("-quit".equals(args[i])) {
+          conf.setBoolean("knn.quit", true);
+        } else {
+          other_args.add(args[i]);
+        }
+      } catch (NumberFormatException except) {
+        System.out.println("ERROR: Integer expected instead of " + args[i]);
+        return printUsage();
+      } catch (ArrayIndexOutOfBoundsException except) {
+        System.out.println("ERROR: Required parameter missing from " +
+                           args[i-1]);
+        return printUsage();
+      }
+    }
+    // Make sure there are 5 or 6 parameters left.
+    if (other_args.size() != 5 && other_args.size() != 6) {
+      System.out.println("ERROR: Wrong number of parameters: " +
+                         other_args.size() + " instead of 5 or 6.");
+      return printUsage();
+    }
+    String indexName = other_args.get(0);
+    conf.set("knn.index", indexName);
+    conf.set("knn.train", other_args.get(1));
+    try {
+      conf.setInt("knn.k", Integer.parseInt(other_args.get(3)));
+      if (other_args.size() == 6) {
+        conf.set("knn.param", Double.toString(Double.parseDouble(other_args.get(5))));
+      }
+    } catch (NumberFormatException except) {
+      System.out.println("ERROR: Number expected instead of " + other_args.get(other_args.size() == 6 ? 5 : 3));
+      return printUsage();
+    }
+
+    // ship the index and the training list to the tasks (not with the local job runner,
+    // which doesn't create the links: its tasks read the original files)
+    if (!"local".equals(conf.get("mapred.job.tracker", "local"))) {
+      shipIndex(conf, indexName, other_args.get(1));
+    }
+
+    FileInputFormat.setInputPaths(conf, other_args.get(2));
+    FileOutputFormat.setOutputPath(conf, new Path(other_args.get(4)));
+
+    JobClient.runJob(conf);
+    return 0;
+  }
+
+  /// add the files of the index and the training list to the distributed cache; the tasks then open
+  /// them under the names of their links (see MapClass.configure)
+  static void shipIndex(JobConf conf, String indexName, String trainList) throws IOException {
+    String [] extensions = { ".lex", ".pos", ".docs", ".stats", ".doclen", ".dlen" };
+    FileSystem fs = FileSystem.get(conf);
+    Segments segments = Segments.read(fs, indexName);
+    Segments shards = Segments.read(fs, indexName, Segments.SHARDS);
+    if (segments == null && shards != null) {
+      // a sharded index: the list of shards and the shards under their own names, with the statistics
+      // of the whole collection under the name their .global files give (see Shards and GlobalStats)
+      cache(conf, new Path(indexName + Segments.SHARDS), CACHED_INDEX + Segments.SHARDS);
+      for (int i=0; i<shards.size(); i++) {
+        for (String ext : Shards.EXTENSIONS) {
+          cache(conf, new Path(shards.path(i) + ext), shards.names.get(i) + ext);
+        }
+        Path hash = new Path(shards.path(i) + ".lexh");
+        if (fs.exists(hash)) {
+          cache(conf, hash, shards.names.get(i) + ".lexh");
+        }
+      }
+      String global = new Path(indexName).getName();
+      for (String ext : new String[] { ".lex", ".stats", ".lexh" }) {
+        Path file = new Path(indexName + ext);
+        if (fs.exists(file)) { // .lexh is optional
+          cache(conf, file, global + ext);
+        }
+      }
+    } else if (segments == null) {
+      for (String ext : extensions) {
+        Path file = new Path(indexName + ext);
+        if (fs.exists(file)) { // an index has either .stats and .doclen or .dlen
+          cache(conf, file, CACHED_INDEX + ext);
+        }
+      }
+    } else {
+      // an index updated with IndexUpdate: the list of segments, and the segments under their own names
+      cache(conf, new Path(indexName + ".segments"), CACHED_INDEX + ".segments");
+      for (int i=0; i<segments.size(); i++) {
+        for (String ext : extensions) {
+          Path file = new Path(segments.path(i) + ext);
+          if (fs.exists(file)) {
+            cache(conf, file, segments.names.get(i) + ext);
+          }
+        }
+      }
+    }
+    cache(conf, new Path(trainList), CACHED_TRAIN);
+    DistributedCache.createSymlink(conf);
+    conf.setBoolean("knn.cached", true);
+  }
+
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new kNNJob(), args);
+    System.exit(res);
+  }
+
+}
@@ -0,0 +1,61 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// With a limit on the accumulators that is never reached (see QueryEvaluator.addTerms), kNN finds the
+/// exhaustive neighbors; with a tight limit, it still classifies every test document.
+public class AccumulatorLimitTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/acc"), 18);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    @Test
+    public void limitNotReached() throws IOException {
+	int [] trainTags = corpus.trainTags(index);
+	for (boolean quit : new boolean[] { false, true }) {
+	    kNN.Classifier classifier = new kNN.Classifier(index, trainTags, 5, Double.NaN, false);
+	    classifier.accLimit = TestCorpus.NUM_DOCS;
+	    classifier.quitAtLimit = quit;
+	    StringBuilder out = new StringBuilder();
+	    for (String t : corpus.testDocs) {
+		out.append(classifier.process(t));
+	    }
+	    corpus.assertTags("-acc " + TestCorpus.NUM_DOCS + (quit ? " -quit" : ""), 5, out.toString());
+	}
+    }
+
+    @Test
+    public void tightLimit() throws IOException {
+	String index = corpus.path("index");
+	String train = corpus.path("train.txt");
+	String test = corpus.path("test.txt");
+	for (String [] options : new String[][] { { "-acc", "20" }, { "-acc", "20", "-quit" }, { "-acc", "1", "-check" } }) {
+	    List<String> args = new ArrayList<String>(Arrays.asList(options));
+	    args.addAll(Arrays.asList(index, train, test, "5"));
+	    String [] lines = TestCorpus.kNN(args.toArray(new String[args.size()])).split("\n");
+	    assertEquals(TestCorpus.TEST_DOCS, lines.length);
+	    for (int i=0; i<lines.length; i++) {
+		String [] f = lines[i].split(" ");
+		assertEquals("test" + i, f[1]);
+		int tag = Integer.parseInt(f[0]);
+		assertTrue(tag >= -1 && tag < TestCorpus.CLASSES);
+	    }
+	}
+    }
+}
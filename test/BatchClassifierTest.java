@@ -0,0 +1,79 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The test documents classified in batches, with one scan of every posting list (see Classifier.process(List)),
+/// get the tags of the exhaustive ranking, even after a batch that failed in the middle of a scan.
+public class BatchClassifierTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+    static int [] trainTags;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/batches"), 26);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+	trainTags = corpus.trainTags(index);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    /// classify all the test documents, "batch" at a time
+    static String classify(kNN.Classifier classifier, int batch) throws IOException {
+	StringBuilder out = new StringBuilder();
+	List<String> docs = Arrays.asList(corpus.testDocs);
+	for (int i=0; i<docs.size(); i+=batch) {
+	    out.append(classifier.process(docs.subList(i, Math.min(i+batch, docs.size()))));
+	}
+	return out.toString();
+    }
+
+    @Test
+    public void batchesOfEverySize() throws IOException {
+	for (int numK : new int[] { 1, 5 }) {
+	    kNN.Classifier classifier = new kNN.Classifier(index, trainTags, numK, Double.NaN, false);
+	    for (int batch : new int[] { 1, 2, 7, TestCorpus.TEST_DOCS }) {
+		corpus.assertTags("K=" + numK + " -batch " + batch, numK, classify(classifier, batch));
+	    }
+	}
+    }
+
+    @Test
+    public void afterAFailedScan() throws IOException {
+	kNN.Classifier classifier = new kNN.Classifier(index, trainTags, 5, Double.NaN, false);
+	final PostingCursor cursor = classifier.cursor;
+	final int [] blocks = { 0 };
+	// a cursor that fails in the middle of the scan of the first batch
+	classifier.cursor = new PostingCursor(index) {
+		public void open(IndexReader.Entry entry) throws IOException {
+		    cursor.open(entry);
+		}
+		public int nextBlock() {
+		    if (++blocks[0] == 30) {
+			throw new IllegalStateException("can't read the postings");
+		    }
+		    int n = cursor.nextBlock();
+		    System.arraycopy(cursor.docs, 0, docs, 0, n);
+		    System.arraycopy(cursor.freqs, 0, freqs, 0, n);
+		    return n;
+		}
+	    };
+	try {
+	    classifier.process(Arrays.asList(corpus.testDocs));
+	    fail("the scan didn't fail");
+	} catch (IllegalStateException e) {
+	    // expected
+	}
+	assertEquals(0, classifier.touchedCount);
+	corpus.assertTags("after a failed batch", 5, classify(classifier, 8));
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The collection statistics and document lengths precomputed by IndexGeneration (see CollectionStats) are
+/// those of the corpus, and those of an index without them (computed from the text file of document lengths),
+/// so the ranking is the exhaustive one either way.
+public class CollectionStatsTest {
+
+    static TestCorpus corpus;
+    static IndexReader precomputed;
+    static IndexReader fromText;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/stats"), 12);
+	precomputed = new IndexReader(corpus.fs, corpus.index("index"));
+	String name = corpus.index("text");
+	assertTrue(new File(name + ".stats").delete());
+	assertTrue(new File(name + ".doclen").delete());
+	fromText = new IndexReader(corpus.fs, name);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	precomputed.close();
+	fromText.close();
+	corpus.close();
+    }
+
+    void assertStats(String what, IndexReader index) {
+	long total = 0;
+	int min = Integer.MAX_VALUE;
+	for (int d=0; d<TestCorpus.NUM_DOCS; d++) {
+	    assertEquals(what + ": length of " + corpus.docIDs[d], corpus.lengths[d], index.dlen[index.docs.find(corpus.docIDs[d])]);
+	    total += corpus.lengths[d];
+	    min = Math.min(min, corpus.lengths[d]);
+	}
+	assertEquals(what, TestCorpus.NUM_DOCS, index.numDocs());
+	assertEquals(what, TestCorpus.NUM_DOCS, index.totalDocCount);
+	assertEquals(what, (double) total / TestCorpus.NUM_DOCS, index.avgDocLen, 1e-12);
+	assertEquals(what, min, index.minDocLen);
+	assertEquals(what, total, index.totalTermCount);
+    }
+
+    @Test
+    public void precomputedStats() {
+	assertStats("precomputed", precomputed);
+    }
+
+    @Test
+    public void statsFromText() {
+	assertStats("from the text file", fromText);
+    }
+
+    @Test
+    public void ranking() throws IOException {
+	for (IndexReader index : new IndexReader[] { precomputed, fromText }) {
+	    for (String model : new String[] { "tfidf", "bm25", "dirichlet", "pivoted" }) {
+		Retrieval.Searcher a = new Retrieval.Searcher(precomputed, 1000, ScoringModel.create(model, precomputed, Double.NaN), false, null);
+		Retrieval.Searcher b = new Retrieval.Searcher(index, 1000, ScoringModel.create(model, index, Double.NaN), false, null);
+		for (String q : corpus.queries) {
+		    if (model.equals("tfidf")) {
+			TestCorpus.assertRanking(q, corpus.reference(q), 1000, b.rank(q), index);
+		    }
+		    // the models that use the lengths score the same
+		    Retrieval.Result r = a.rank(q);
+		    Retrieval.Result s = b.rank(q);
+		    assertArrayEquals(model + " " + q, r.scores, s.scores, 0);
+		}
+	    }
+	}
+    }
+}
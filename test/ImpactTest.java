@@ -0,0 +1,168 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// Score-at-a-time evaluation with the impact lists (see ImpactIndex and QueryEvaluator.scoreAtATime) gives,
+/// without a budget, the exhaustive ranking with every weight quantised to ceil(weight/scale) units of scale;
+/// with a budget, it scores the postings with the largest impacts first and no more than the budget.
+public class ImpactTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+    static ImpactIndex impacts;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/impact"), 28);
+	String name = corpus.index("index", "-impact", "tfidf");
+	index = new IndexReader(corpus.fs, name);
+	impacts = new ImpactIndex(corpus.fs, name);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    /// the quantised weight of a term that occurs rawTF times in a document
+    static int impact(int rawTF, int df) {
+	double w = rawTF * Math.log((1.0+TestCorpus.NUM_DOCS)/(0.5+df));
+	return (int) Math.min(ImpactIndex.LEVELS, Math.max(1, Math.ceil(w / impacts.scale)));
+    }
+
+    /// the ranking of a query line with the quantised weights, added for every occurrence of a term in the query
+    static TestCorpus.Ranking quantised(String line) {
+	HashMap<String, Integer> units = new HashMap<String, Integer>();
+	StringTokenizer st = new StringTokenizer(line);
+	st.nextToken();
+	while (st.hasMoreTokens()) {
+	    LinkedHashMap<String, Integer> list = corpus.postings.get(st.nextToken());
+	    if (list == null) {
+		continue;
+	    }
+	    for (Map.Entry<String, Integer> p : list.entrySet()) {
+		Integer u = units.get(p.getKey());
+		int i = impact(p.getValue(), list.size());
+		units.put(p.getKey(), u == null ? i : u + i);
+	    }
+	}
+	HashMap<String, Double> acc = new HashMap<String, Double>();
+	for (Map.Entry<String, Integer> e : units.entrySet()) {
+	    acc.put(e.getKey(), e.getValue() * impacts.scale);
+	}
+	return TestCorpus.ranking(acc);
+    }
+
+    Retrieval.Searcher searcher(int k, long budget) throws IOException {
+	Retrieval.Searcher searcher = new Retrieval.Searcher(index, k, impacts.model(index), false, null);
+	searcher.impacts = impacts;
+	searcher.postingBudget = budget;
+	return searcher;
+    }
+
+    /// the number of postings of the terms of a query line (once per occurrence of a term)
+    static long postings(String line) {
+	long n = 0;
+	StringTokenizer st = new StringTokenizer(line);
+	st.nextToken();
+	while (st.hasMoreTokens()) {
+	    LinkedHashMap<String, Integer> list = corpus.postings.get(st.nextToken());
+	    n += list == null ? 0 : list.size();
+	}
+	return n;
+    }
+
+    @Test
+    public void withoutBudget() throws IOException {
+	assertEquals("tfidf", impacts.modelName);
+	for (int k : new int[] { 1, 10, 1000 }) {
+	    Retrieval.Searcher searcher = searcher(k, Long.MAX_VALUE);
+	    for (String line : corpus.queries) {
+		TestCorpus.assertRanking("k=" + k + " " + line, quantised(line), k, searcher.rank(line), index);
+	    }
+	    for (String line : corpus.testDocs) {
+		TestCorpus.assertRanking("k=" + k + " " + line, quantised(line), k, searcher.rank(line), index);
+	    }
+	}
+    }
+
+    /// the quantised scores are the exact ones rounded up by less than a unit per term of the query,
+    /// and every posting of the query terms is scored (once for every occurrence of the term in the query)
+    @Test
+    public void quantisation() throws IOException {
+	Retrieval.Searcher searcher = searcher(1000, Long.MAX_VALUE);
+	for (String line : corpus.queries) {
+	    TestCorpus.Ranking exact = corpus.reference(line);
+	    TestCorpus.Ranking quantised = quantised(line);
+	    int terms = new StringTokenizer(line).countTokens() - 1;
+	    assertEquals(exact.byName.keySet(), quantised.byName.keySet());
+	    for (String name : exact.names) {
+		double d = quantised.byName.get(name) - exact.byName.get(name);
+		assertTrue(line + ": " + name, d > -TestCorpus.EPSILON && d < terms * impacts.scale);
+	    }
+	    searcher.rank(line);
+	    assertEquals(line, postings(line), searcher.postingsScored);
+	}
+    }
+
+    /// with a budget, no more postings are scored, and they are those with the largest impacts:
+    /// no document gets more than its full score, and the best impact of the query is always scored
+    @Test
+    public void withBudget() throws IOException {
+	for (long budget : new long[] { 1, 10, 100 }) {
+	    Retrieval.Searcher searcher = searcher(1000, budget);
+	    for (String line : corpus.testDocs) {
+		Retrieval.Result r = searcher.rank(line);
+		assertTrue(searcher.postingsScored <= Math.min(budget, postings(line)));
+		TestCorpus.Ranking full = quantised(line);
+		int best = 0;
+		StringTokenizer st = new StringTokenizer(line);
+		st.nextToken();
+		while (st.hasMoreTokens()) {
+		    LinkedHashMap<String, Integer> list = corpus.postings.get(st.nextToken());
+		    if (list != null) {
+			for (int tf : list.values()) {
+			    best = Math.max(best, impact(tf, list.size()));
+			}
+		    }
+		}
+		assertTrue(r.docs.length > 0);
+		assertTrue(line, r.scores[0] >= best * impacts.scale - TestCorpus.EPSILON);
+		for (int i=0; i<r.docs.length; i++) {
+		    String name = index.docs.name(r.docs[i]);
+		    assertTrue(line + ": " + name, r.scores[i] <= full.byName.get(name) + TestCorpus.EPSILON);
+		}
+	    }
+	}
+    }
+
+    @Test
+    public void outputOfRetrieval() throws IOException {
+	String [] lines = TestCorpus.retrieval("-impact", corpus.path("index"), corpus.path("queries.txt")).split("\n");
+	HashMap<String, List<String>> byQuery = new HashMap<String, List<String>>();
+	for (String line : lines) {
+	    String qid = line.substring(0, line.indexOf(' '));
+	    if (!byQuery.containsKey(qid)) {
+		byQuery.put(qid, new ArrayList<String>());
+	    }
+	    byQuery.get(qid).add(line);
+	}
+	for (String q : corpus.queries) {
+	    String qid = q.substring(0, q.indexOf(' '));
+	    List<String> results = byQuery.containsKey(qid) ? byQuery.get(qid) : new ArrayList<String>();
+	    String [] names = new String[results.size()];
+	    double [] scores = new double[results.size()];
+	    for (int i=0; i<names.length; i++) {
+		String [] f = results.get(i).split(" ");
+		names[i] = f[1];
+		scores[i] = Double.parseDouble(f[2]);
+	    }
+	    TestCorpus.assertRanking("Retrieval -impact " + qid, quantised(q), 1000, names, scores);
+	}
+    }
+}
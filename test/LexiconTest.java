@@ -0,0 +1,82 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The terms looked up in the sorted lexicon file (see Lexicon) have the statistics of the collection,
+/// so the ranking is the exhaustive one.
+public class LexiconTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/lexicon"), 10);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    @Test
+    public void everyTerm() {
+	assertEquals(corpus.postings.size(), index.lex.size());
+	long total = 0;
+	for (Map.Entry<String, LinkedHashMap<String, Integer>> term : corpus.postings.entrySet()) {
+	    IndexReader.Entry entry = index.getEntry(term.getKey());
+	    assertNotNull(term.getKey(), entry);
+	    int count = 0;
+	    int maxTF = 0;
+	    for (int c : term.getValue().values()) {
+		count += c;
+		maxTF = Math.max(maxTF, c);
+	    }
+	    assertEquals(term.getKey(), term.getValue().size(), entry.df);
+	    assertEquals(term.getKey(), count, entry.count);
+	    assertEquals(term.getKey(), maxTF, entry.maxTF);
+	    total += count;
+	}
+	assertEquals(total, index.lex.totalTermCount);
+    }
+
+    @Test
+    public void missingTerms() {
+	// before the first term, after the last one, between two terms, and prefixes of terms
+	for (String term : new String[] { "", "a", TestCorpus.UNKNOWN, "t", "t1", "t100", "t1000a", "t10005", "u" }) {
+	    if (!corpus.postings.containsKey(term)) {
+		assertNull(term, index.getEntry(term));
+	    }
+	}
+	assertNull(index.getEntry(corpus.postings.firstKey() + "\u00e9"));
+	assertNull(index.getEntry(corpus.postings.lastKey() + "0"));
+    }
+
+    @Test
+    public void scanInOrder() throws IOException {
+	Iterator<Map.Entry<String, LinkedHashMap<String, Integer>>> terms = corpus.postings.entrySet().iterator();
+	Lexicon.Scanner s = index.lex.scan();
+	while (s.next()) {
+	    assertTrue(terms.hasNext());
+	    Map.Entry<String, LinkedHashMap<String, Integer>> term = terms.next();
+	    assertEquals(term.getKey(), s.term);
+	    assertEquals(term.getValue().size(), s.entry.df);
+	    assertEquals(index.getEntry(s.term).pos, s.entry.pos);
+	}
+	assertFalse(terms.hasNext());
+    }
+
+    @Test
+    public void ranking() throws IOException {
+	Retrieval.Searcher searcher = new Retrieval.Searcher(index, 1000, Double.NaN, false);
+	for (String q : corpus.queries) {
+	    TestCorpus.assertRanking(q, corpus.reference(q), 1000, searcher.rank(q), index);
+	}
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The LSH index (see MinHashIndex) has the band keys of the MinHash signatures of the sets of terms of the
+/// documents, and kNN -lsh lets only the labeled candidates that share a band key and a term with a test
+/// document vote, or every labeled document when there are fewer than K candidates.
+public class MinHashTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+    static MinHashIndex wide; // a few bands of two rows: from none to a few dozen candidates per test document
+    static MinHashIndex narrow; // one band of many rows: hardly any test document has a candidate
+    static int [] trainTags;
+    static HashMap<String, List<String>> termsOf = new HashMap<String, List<String>>(); // docID -> its distinct terms
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/lsh"), 30);
+	String name = corpus.index("index", "-bands", "4", "-rows", "2");
+	index = new IndexReader(corpus.fs, name);
+	wide = new MinHashIndex(corpus.fs, name);
+	narrow = new MinHashIndex(corpus.fs, corpus.index("narrow", "-bands", "1", "-rows", "32"));
+	trainTags = corpus.trainTags(index);
+	for (Map.Entry<String, LinkedHashMap<String, Integer>> term : corpus.postings.entrySet()) {
+	    for (String docID : term.getValue().keySet()) {
+		if (!termsOf.containsKey(docID)) {
+		    termsOf.put(docID, new ArrayList<String>());
+		}
+		termsOf.get(docID).add(term.getKey());
+	    }
+	}
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    /// the band keys of a set of terms
+    static int [] keys(MinHashIndex lsh, Collection<String> terms) {
+	String [] t = terms.toArray(new String[terms.size()]);
+	int [] keys = new int[lsh.bands];
+	lsh.keys(t, t.length, new int[lsh.bands * lsh.rows], keys);
+	return keys;
+    }
+
+    /// the distinct terms of a test document that are in the collection
+    static Set<String> terms(String testDoc) {
+	TreeSet<String> terms = new TreeSet<String>();
+	StringTokenizer st = new StringTokenizer(testDoc);
+	st.nextToken();
+	while (st.hasMoreTokens()) {
+	    String term = st.nextToken();
+	    if (corpus.postings.containsKey(term)) {
+		terms.add(term);
+	    }
+	}
+	return terms;
+    }
+
+    /// the labeled documents that share the key of a band with a test document
+    static Set<String> candidates(MinHashIndex lsh, String testDoc) {
+	int [] keys = keys(lsh, terms(testDoc));
+	HashSet<String> candidates = new HashSet<String>();
+	for (int d=0; d<TestCorpus.NUM_DOCS; d++) {
+	    if (corpus.tags[d] < 0) {
+		continue;
+	    }
+	    int [] docKeys = keys(lsh, termsOf.get(corpus.docIDs[d]));
+	    for (int b=0; b<lsh.bands; b++) {
+		if (docKeys[b] == keys[b]) {
+		    candidates.add(corpus.docIDs[d]);
+		}
+	    }
+	}
+	return candidates;
+    }
+
+    /// every document has the keys of the signature of its terms, whatever the order of the terms
+    @Test
+    public void signatures() {
+	for (MinHashIndex lsh : new MinHashIndex[] { wide, narrow }) {
+	    assertEquals(TestCorpus.NUM_DOCS, lsh.numDocs);
+	    for (int b=0; b<lsh.bands; b++) {
+		assertEquals(TestCorpus.NUM_DOCS, lsh.buckets[b].length);
+		for (long entry : lsh.buckets[b]) {
+		    int key = (int) (entry >> 32);
+		    int docID = (int) entry;
+		    List<String> terms = new ArrayList<String>(termsOf.get(index.docs.name(docID)));
+		    assertEquals(index.docs.name(docID), key, keys(lsh, terms)[b]);
+		    Collections.reverse(terms);
+		    assertEquals(index.docs.name(docID), key, keys(lsh, terms)[b]);
+		    assertTrue(lsh.first(b, key) < lsh.buckets[b].length);
+		    assertEquals(key, (int) (lsh.buckets[b][lsh.first(b, key)] >> 32));
+		}
+	    }
+	}
+    }
+
+    /// the tags of the test documents: the candidates that match a term vote when there are at least K of them,
+    /// the labeled documents of the exhaustive ranking otherwise
+    @Test
+    public void candidatesOrExactScoring() throws IOException {
+	int withCandidates = 0;
+	int fallbacks = 0;
+	for (MinHashIndex lsh : new MinHashIndex[] { wide, narrow }) {
+	    for (int numK : new int[] { 1, 5, 15 }) {
+		kNN.Classifier classifier = new kNN.Classifier(index, trainTags, numK, Double.NaN, false);
+		classifier.lsh = lsh;
+		for (String t : corpus.testDocs) {
+		    Set<String> candidates = candidates(lsh, t);
+		    Integer tag;
+		    if (candidates.size() >= numK) {
+			tag = corpus.referenceTag(corpus.reference(t), candidates, numK);
+			withCandidates++;
+		    } else {
+			// including when there are some candidates, but fewer than K
+			tag = corpus.referenceTag(t, numK);
+			fallbacks += candidates.isEmpty() ? 0 : 1;
+		    }
+		    String out = classifier.process(t);
+		    if (tag != null) {
+			assertEquals("bands=" + lsh.bands + " K=" + numK + " " + t, tag + " " + t.substring(0, t.indexOf(' ')) + "\n", out);
+		    }
+		}
+	    }
+	}
+	assertTrue(withCandidates > 0);
+	assertTrue(fallbacks > 0); // with some candidates
+    }
+
+    /// with one band of many rows, the test documents have too few candidates and get the exact tags
+    @Test
+    public void fallbackOfKNN() throws IOException {
+	String train = corpus.path("train.txt");
+	String test = corpus.path("test.txt");
+	corpus.assertTags("kNN -lsh", 5, TestCorpus.kNN("-lsh", corpus.path("narrow"), train, test, "5"));
+	assertEquals(TestCorpus.kNN(corpus.path("narrow"), train, test, "5"),
+		     TestCorpus.kNN("-lsh", corpus.path("narrow"), train, test, "5"));
+    }
+
+    @Test
+    public void outputOfKNN() throws IOException {
+	String train = corpus.path("train.txt");
+	String test = corpus.path("test.txt");
+	kNN.Classifier classifier = new kNN.Classifier(index, trainTags, 5, Double.NaN, false);
+	classifier.lsh = wide;
+	StringBuilder expected = new StringBuilder();
+	for (String t : corpus.testDocs) {
+	    expected.append(classifier.process(t));
+	}
+	assertEquals(expected.toString(), TestCorpus.kNN("-lsh", corpus.path("index"), train, test, "5"));
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The off-heap tables (see TermHash and DocTable) find the same terms and documents as the lexicon and the
+/// names they index, so an index built with -hash ranks the documents as the original Retrieval did.
+public class OffHeapTablesTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+    static IndexReader hashed;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/offheap"), 20);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+	hashed = new IndexReader(corpus.fs, corpus.index("hashed", "-hash"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	hashed.close();
+	corpus.close();
+    }
+
+    static void assertSameEntry(String term, IndexReader.Entry a, IndexReader.Entry b) {
+	assertNotNull(term, b);
+	assertEquals(term, a.df, b.df);
+	assertEquals(term, a.count, b.count);
+	assertEquals(term, a.pos, b.pos);
+	assertEquals(term, a.length, b.length);
+	assertEquals(term, a.maxTF, b.maxTF);
+    }
+
+    @Test
+    public void termHash() {
+	assertNotNull(hashed.termHash);
+	assertNull(index.termHash);
+	for (String term : corpus.postings.keySet()) {
+	    assertSameEntry(term, hashed.lex.get(term), hashed.termHash.get(term));
+	    assertSameEntry(term, index.getEntry(term), hashed.getEntry(term));
+	}
+	for (String term : new String[] { "", TestCorpus.UNKNOWN, "t", "t1", "t1000a", "\u00e9t\u00e9" }) {
+	    if (!corpus.postings.containsKey(term)) {
+		assertNull(term, hashed.termHash.get(term));
+	    }
+	}
+    }
+
+    @Test
+    public void docTable() {
+	assertEquals(TestCorpus.NUM_DOCS, hashed.docs.size());
+	HashSet<String> names = new HashSet<String>();
+	for (int d=0; d<hashed.docs.size(); d++) {
+	    String name = hashed.docs.name(d);
+	    assertTrue(name, names.add(name));
+	    assertEquals(name, d, hashed.docs.find(name));
+	}
+	assertEquals(new HashSet<String>(Arrays.asList(corpus.docIDs)), names);
+	assertEquals(-1, hashed.docs.find("doc" + TestCorpus.NUM_DOCS));
+	assertEquals(-1, hashed.docs.find(""));
+	assertEquals(-1, hashed.docs.find("doc01"));
+    }
+
+    @Test
+    public void ranking() throws IOException {
+	for (boolean wand : new boolean[] { false, true }) {
+	    Retrieval.Searcher searcher = new Retrieval.Searcher(hashed, 1000, Double.NaN, wand);
+	    for (String q : corpus.queries) {
+		TestCorpus.assertRanking("wand=" + wand + " " + q, corpus.reference(q), 1000, searcher.rank(q), hashed);
+	    }
+	}
+	corpus.assertOutput("Retrieval", 1000, TestCorpus.retrieval(corpus.path("hashed"), corpus.path("queries.txt")));
+	corpus.assertTags("kNN", 5, TestCorpus.kNN(corpus.path("hashed"), corpus.path("train.txt"), corpus.path("test.txt"), "5"));
+    }
+}
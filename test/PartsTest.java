@@ -0,0 +1,160 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.fs.Path;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// An index built from the part-* files of a raw inverted index (see IndexGeneration.convertAll and
+/// IndexMerger) has the terms, the counts and the rankings of the index built from a single file, however
+/// the postings are split between the parts.
+public class PartsTest {
+
+    static TestCorpus corpus;
+    static IndexReader single;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/parts"), 38);
+	single = new IndexReader(corpus.fs, corpus.index("index"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	single.close();
+	corpus.close();
+    }
+
+    /// write the postings to "parts" files in the directory "name": the posting of document d for term number t
+    /// goes to the part part(t, d); a posting may also be split in two, with the counts adding up to its count
+    static File parts(String name, int parts, boolean split, Partition partition) throws IOException {
+	File dir = new File(corpus.path(name));
+	dir.mkdirs();
+	StringBuilder [] lines = new StringBuilder[parts];
+	List<List<String>> files = new ArrayList<List<String>>();
+	for (int p=0; p<parts; p++) {
+	    files.add(new ArrayList<String>());
+	}
+	int t = 0;
+	for (Map.Entry<String, LinkedHashMap<String, Integer>> term : corpus.postings.entrySet()) {
+	    for (int p=0; p<parts; p++) {
+		lines[p] = new StringBuilder();
+	    }
+	    int d = 0;
+	    for (Map.Entry<String, Integer> posting : term.getValue().entrySet()) {
+		int count = posting.getValue();
+		int p = partition.part(t, d++, parts);
+		if (split && count > 1) {
+		    int q = (p + 1) % parts;
+		    append(lines[q], posting.getKey(), count / 2);
+		    count -= count / 2;
+		}
+		append(lines[p], posting.getKey(), count);
+	    }
+	    for (int p=0; p<parts; p++) {
+		if (lines[p].length() > 0) {
+		    files.get(p).add(term.getKey() + "\t" + lines[p]);
+		}
+	    }
+	    t++;
+	}
+	for (int p=0; p<parts; p++) {
+	    TestCorpus.write(new File(dir, String.format("part-%05d", p)), files.get(p).toArray(new String[0]));
+	}
+	// files that are not parts are left out
+	TestCorpus.write(new File(dir, "_SUCCESS"), new String[0]);
+	return dir;
+    }
+
+    static void append(StringBuilder line, String docID, int count) {
+	line.append(line.length() > 0 ? " " : "").append(docID).append(' ').append(count);
+    }
+
+    interface Partition {
+	int part(int term, int doc, int parts);
+    }
+
+    /// every term in one part, as with several reducers
+    static final Partition BY_TERM = new Partition() {
+	    public int part(int term, int doc, int parts) {
+		return term % parts;
+	    }
+	};
+
+    /// the postings of a term in every part
+    static final Partition BY_POSTING = new Partition() {
+	    public int part(int term, int doc, int parts) {
+		return (term + doc) % parts;
+	    }
+	};
+
+    /// an index built from parts is the same as the single index, up to the numbers of the documents
+    void assertSameIndex(String what, IndexReader index) throws IOException {
+	assertEquals(what, single.numDocs(), index.numDocs());
+	assertEquals(what, single.lex.size(), index.lex.size());
+	assertEquals(what, single.totalTermCount, index.totalTermCount);
+	assertEquals(what, single.totalDocCount, index.totalDocCount);
+	for (int d=0; d<index.numDocs(); d++) {
+	    int s = single.docs.find(index.docs.name(d));
+	    assertTrue(what, s >= 0);
+	    assertEquals(what, single.dlen[s], index.dlen[d]);
+	}
+	Lexicon.Scanner a = single.lex.scan();
+	Lexicon.Scanner b = index.lex.scan();
+	while (a.next()) {
+	    assertTrue(what, b.next());
+	    assertEquals(what, a.term, b.term);
+	    assertEquals(what + " " + a.term, a.entry.df, b.entry.df);
+	    assertEquals(what + " " + a.term, a.entry.count, b.entry.count);
+	    assertEquals(what + " " + a.term, a.entry.maxTF, b.entry.maxTF);
+	}
+	assertFalse(what, b.next());
+
+	for (boolean wand : new boolean[] { false, true }) {
+	    Retrieval.Searcher searcher = new Retrieval.Searcher(index, 1000, Double.NaN, wand);
+	    for (String q : corpus.queries) {
+		TestCorpus.assertRanking(what + " wand=" + wand + " " + q, corpus.reference(q), 1000, searcher.rank(q), index);
+	    }
+	    for (String t : corpus.testDocs) {
+		TestCorpus.assertRanking(what + " wand=" + wand + " " + t, corpus.reference(t), 1000, searcher.rank(t), index);
+	    }
+	}
+    }
+
+    @Test
+    public void severalParts() throws IOException {
+	Object [][] layouts = {
+	    { "byterm", 4, false, BY_TERM },
+	    { "byposting", 3, false, BY_POSTING },
+	    { "split", 5, true, BY_POSTING },
+	    { "onepart", 1, false, BY_TERM },
+	};
+	for (Object [] layout : layouts) {
+	    String name = (String) layout[0];
+	    File raw = parts(name + ".raw", (Integer) layout[1], (Boolean) layout[2], (Partition) layout[3]);
+	    for (String threads : new String[] { "1", "3" }) {
+		String indexName = corpus.index(raw, name + threads, "-t", threads);
+		IndexReader index = new IndexReader(corpus.fs, indexName);
+		try {
+		    assertSameIndex(name + " -t " + threads, index);
+		} finally {
+		    index.close();
+		}
+		// the indexes of the parts are deleted once they are merged
+		for (int p=0; p<(Integer) layout[1]; p++) {
+		    assertFalse(corpus.fs.exists(new Path(indexName + ".seg" + p + ".pos")));
+		}
+	    }
+	}
+    }
+
+    /// the tags of kNN with an index built from parts
+    @Test
+    public void tags() throws IOException {
+	String index = corpus.index(parts("tags.raw", 4, true, BY_POSTING), "tags", "-t", "2");
+	corpus.assertTags("kNN", 5, TestCorpus.kNN(index, corpus.path("train.txt"), corpus.path("test.txt"), "5"));
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The posting lists and the results taken from the caches (see PostingCache and ResultCache) are those of
+/// the index, whatever the budget, so the ranking is the exhaustive one.
+public class PostingCacheTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/cache"), 14);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.setPostingCache(null);
+	index.close();
+	corpus.close();
+    }
+
+    @Test
+    public void budget() {
+	PostingCache cache = new PostingCache(PostingCache.bytes(100) + PostingCache.bytes(50));
+	Object owner = new Object();
+	assertFalse(cache.admits(101 + 50 + PostingCache.OVERHEAD / 8));
+	assertTrue(cache.admits(100));
+
+	// a list larger than the budget is never kept
+	cache.put(owner, 0, new PostingCache.Postings(new int[200], new int[200]));
+	assertNull(cache.get(owner, 0));
+	assertEquals(0, cache.bytes);
+
+	// the least recently used lists make room for a new one
+	cache.put(owner, 1, new PostingCache.Postings(new int[100], new int[100]));
+	cache.put(owner, 2, new PostingCache.Postings(new int[50], new int[50]));
+	assertNotNull(cache.get(owner, 1));
+	cache.put(owner, 3, new PostingCache.Postings(new int[50], new int[50]));
+	assertNull(cache.get(owner, 2));
+	assertNotNull(cache.get(owner, 1));
+	assertNotNull(cache.get(owner, 3));
+	assertEquals(1, cache.evictions);
+	assertEquals(PostingCache.bytes(100) + PostingCache.bytes(50), cache.bytes);
+
+	// the lists of another index are other lists
+	assertNull(cache.get(new Object(), 1));
+    }
+
+    @Test
+    public void rankingWithPostingCache() throws IOException {
+	int longest = 0;
+	for (LinkedHashMap<String, Integer> list : corpus.postings.values()) {
+	    longest = Math.max(longest, list.size());
+	}
+	// nothing fits, a few short lists fit, some of the lists fit, everything fits
+	for (long budget : new long[] { 0, PostingCache.bytes(3), PostingCache.bytes(longest / 2), 1L << 30 }) {
+	    PostingCache cache = new PostingCache(budget);
+	    index.setPostingCache(cache);
+	    try {
+		for (boolean wand : new boolean[] { false, true }) {
+		    for (int k : new int[] { 3, 1000 }) {
+			Retrieval.Searcher searcher = new Retrieval.Searcher(index, k, Double.NaN, wand);
+			// twice, so that the lists come from the cache the second time
+			for (int round=0; round<2; round++) {
+			    for (String q : corpus.queries) {
+				TestCorpus.assertRanking("budget=" + budget + " wand=" + wand + " k=" + k + " " + q,
+							 corpus.reference(q), k, searcher.rank(q), index);
+			    }
+			    for (String t : corpus.testDocs) {
+				TestCorpus.assertRanking("budget=" + budget + " wand=" + wand + " k=" + k + " " + t,
+							 corpus.reference(t), k, searcher.rank(t), index);
+			    }
+			}
+		    }
+		}
+		assertTrue(cache.bytes <= budget);
+		for (PostingCache.Postings p : cache.lists.values()) {
+		    assertTrue(p.bytes() <= budget);
+		}
+		if (budget >= PostingCache.bytes(longest)) {
+		    assertEquals(cache.lists.size(), cache.misses);
+		    assertTrue(cache.hits > 0);
+		}
+	    } finally {
+		index.setPostingCache(null);
+	    }
+	}
+    }
+
+    @Test
+    public void tagsWithPostingCache() throws IOException {
+	String index = corpus.path("index");
+	String train = corpus.path("train.txt");
+	String test = corpus.path("test.txt");
+	corpus.assertTags("kNN -cache", 5, TestCorpus.kNN("-cache", "1", index, train, test, "5"));
+	corpus.assertTags("kNN -cache -wand", 5, TestCorpus.kNN("-cache", "1", "-wand", index, train, test, "5"));
+    }
+
+    @Test
+    public void rankingWithResultCache() throws IOException {
+	// one cache for queries with different k: the results of one k are never those of another
+	ResultCache<Retrieval.Result> results = new ResultCache<Retrieval.Result>(10);
+	ScoringModel model = ScoringModel.create("tfidf", index, Double.NaN);
+	Retrieval.Searcher [] searchers = {
+	    new Retrieval.Searcher(index, 2, model, false, results),
+	    new Retrieval.Searcher(index, 1000, model, true, results)
+	};
+	for (int round=0; round<3; round++) {
+	    for (String q : corpus.queries) {
+		for (Retrieval.Searcher searcher : searchers) {
+		    int k = searcher.topK.capacity();
+		    TestCorpus.assertRanking("k=" + k + " " + q, corpus.reference(q), k, searcher.rank(q), index);
+
+		    // the same terms in another order are the same query
+		    List<String> terms = new ArrayList<String>(Arrays.asList(q.split(" ")));
+		    String qid = terms.remove(0);
+		    Collections.reverse(terms);
+		    StringBuilder reversed = new StringBuilder(qid);
+		    for (String term : terms) {
+			reversed.append(' ').append(term);
+		    }
+		    long hits = results.hits;
+		    TestCorpus.assertRanking("k=" + k + " " + reversed, corpus.reference(q), k, searcher.rank(reversed.toString()), index);
+		    assertEquals(hits + 1, results.hits);
+		}
+	    }
+	}
+    }
+}
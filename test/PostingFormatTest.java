@@ -0,0 +1,121 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The compressed block postings (see PostingFormat) give back the postings they were written with,
+/// and the index built by IndexGeneration ranks the documents as the original Retrieval did.
+public class PostingFormatTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/format"), 2);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    @Test
+    public void blocksRoundTrip() throws IOException {
+	Random random = new Random(3);
+	for (int n : new int[] { 1, 5, 127, 128, 129, 1000 }) {
+	    int [] docs = new int[n];
+	    int [] freqs = new int[n];
+	    int doc = random.nextInt(10);
+	    for (int i=0; i<n; i++) {
+		doc += 1 + (i % 50 == 7 ? random.nextInt(1 << 28) : random.nextInt(300)); // some gaps take 4 or 5 bytes
+		docs[i] = doc;
+		freqs[i] = 1 + (i % 13 == 0 ? random.nextInt(100000) : random.nextInt(3));
+	    }
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+	    PostingFormat.writePostings(out, docs, freqs, n, PostingFormat.DEFAULT_BLOCK_SIZE, new ByteArrayOutputStream());
+	    out.close();
+
+	    // read every block
+	    ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+	    int [] blockDocs = new int[PostingFormat.DEFAULT_BLOCK_SIZE];
+	    int [] blockFreqs = new int[PostingFormat.DEFAULT_BLOCK_SIZE];
+	    int last = 0;
+	    for (int start=0; start<n; start+=PostingFormat.DEFAULT_BLOCK_SIZE) {
+		int len = Math.min(PostingFormat.DEFAULT_BLOCK_SIZE, n - start);
+		assertEquals(docs[start+len-1], PostingFormat.peekBlockLast(buf, last));
+		last = PostingFormat.readBlock(buf, last, len, blockDocs, blockFreqs);
+		assertArrayEquals(Arrays.copyOfRange(docs, start, start+len), Arrays.copyOf(blockDocs, len));
+		assertArrayEquals(Arrays.copyOfRange(freqs, start, start+len), Arrays.copyOf(blockFreqs, len));
+	    }
+	    assertFalse(buf.hasRemaining());
+
+	    // skip every block but the last
+	    buf = ByteBuffer.wrap(bytes.toByteArray());
+	    last = 0;
+	    int start = 0;
+	    for (; start + PostingFormat.DEFAULT_BLOCK_SIZE < n; start += PostingFormat.DEFAULT_BLOCK_SIZE) {
+		last = PostingFormat.peekBlockLast(buf, last);
+		PostingFormat.skipBlock(buf);
+	    }
+	    last = PostingFormat.readBlock(buf, last, n - start, blockDocs, blockFreqs);
+	    assertEquals(docs[n-1], last);
+	    assertEquals(docs[start], blockDocs[0]);
+	}
+    }
+
+    @Test
+    public void postingsOfEveryTerm() throws IOException {
+	PostingCursor cursor = index.openCursor();
+	for (Map.Entry<String, LinkedHashMap<String, Integer>> term : corpus.postings.entrySet()) {
+	    IndexReader.Entry entry = index.getEntry(term.getKey());
+	    assertNotNull(term.getKey(), entry);
+	    assertEquals(term.getKey(), term.getValue().size(), entry.df);
+
+	    // block by block
+	    HashMap<String, Integer> found = new HashMap<String, Integer>();
+	    cursor.open(entry);
+	    int prev = -1;
+	    for (int n; (n = cursor.nextBlock()) > 0; ) {
+		for (int i=0; i<n; i++) {
+		    assertTrue(term.getKey() + ": postings sorted by document", cursor.docs[i] > prev);
+		    prev = cursor.docs[i];
+		    found.put(index.docs.name(cursor.docs[i]), cursor.freqs[i]);
+		}
+	    }
+	    assertEquals(term.getKey(), term.getValue(), found);
+
+	    // document at a time, skipping to every other document
+	    cursor.open(entry);
+	    int [] docs = new int[entry.df];
+	    int n = 0;
+	    while (cursor.next() != PostingCursor.END) {
+		docs[n++] = cursor.doc;
+	    }
+	    assertEquals(entry.df, n);
+	    cursor.open(entry);
+	    for (int i=0; i<n; i+=2) {
+		assertEquals(docs[i], cursor.advance(docs[i] - (i > 0 && docs[i-1] < docs[i] - 1 ? 1 : 0)));
+		assertEquals((int) term.getValue().get(index.docs.name(docs[i])), cursor.freq);
+	    }
+	    assertEquals(PostingCursor.END, cursor.advance(Integer.MAX_VALUE - 1));
+	}
+	assertNull(index.getEntry(TestCorpus.UNKNOWN));
+    }
+
+    @Test
+    public void rankingOfTheIndex() throws IOException {
+	Retrieval.Searcher searcher = new Retrieval.Searcher(index, 1000, Double.NaN, false);
+	for (String q : corpus.queries) {
+	    TestCorpus.Ranking expected = corpus.reference(q);
+	    TestCorpus.assertRanking(q, expected, 1000, searcher.rank(q), index);
+	}
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The postings of a PostingListWritable are sorted by the UTF-8 bytes of their document IDs, as Text
+/// sorts them, and are the same after write() and readFields(), into a new list or one that is reused.
+public class PostingListWritableTest {
+
+    Random random = new Random(36);
+
+    /// document IDs whose UTF-8 bytes are not in the order of their chars: a character above the
+    /// surrogates is before a supplementary character in a String, after it in UTF-8
+    static final String [] PREFIXES = { "doc", "Doc", "d\u00e9", "\uffe0", "\ud83d\ude00", "" };
+
+    /// a posting: its document ID and its count
+    static class Posting {
+	final String docID;
+	final int count;
+
+	Posting(String docID, int count) {
+	    this.docID = docID;
+	    this.count = count;
+	}
+    }
+
+    /// by UTF-8 bytes, unsigned, as Text
+    static final Comparator<Posting> BYTES = new Comparator<Posting>() {
+	public int compare(Posting a, Posting b) {
+	    try {
+		byte [] x = a.docID.getBytes("UTF-8");
+		byte [] y = b.docID.getBytes("UTF-8");
+		return new Text(x).compareTo(new Text(y));
+	    } catch (UnsupportedEncodingException e) {
+		throw new RuntimeException(e);
+	    }
+	}
+    };
+
+    List<Posting> postings(int n, int distinct) {
+	List<Posting> list = new ArrayList<Posting>();
+	for (int i=0; i<n; i++) {
+	    list.add(new Posting(PREFIXES[random.nextInt(PREFIXES.length)] + random.nextInt(distinct),
+				 1 + random.nextInt(random.nextBoolean() ? 3 : 100000)));
+	}
+	return list;
+    }
+
+    static PostingListWritable writable(List<Posting> postings) {
+	PostingListWritable list = new PostingListWritable();
+	for (Posting p : postings) {
+	    list.add(p.docID, p.count);
+	}
+	return list;
+    }
+
+    static void assertPostings(String what, List<Posting> expected, PostingListWritable list) {
+	assertEquals(what, expected.size(), list.size());
+	StringBuilder text = new StringBuilder();
+	for (int i=0; i<expected.size(); i++) {
+	    assertEquals(what + ": " + i, expected.get(i).docID, list.docID(i));
+	    assertEquals(what + ": " + i, expected.get(i).count, list.count(i));
+	    text.append(expected.get(i).docID).append(' ').append(expected.get(i).count).append(' ');
+	}
+	assertEquals(what, text.toString(), list.toString());
+    }
+
+    /// already sorted, reversed, random, sorted runs one after the other; ties keep their order
+    @Test
+    public void sort() {
+	for (int n : new int[] { 0, 1, 2, 3, 10, 1000, 20000 }) {
+	    for (int runs : new int[] { 0, 1, 2, 5, n }) {
+		List<Posting> postings = new ArrayList<Posting>();
+		if (runs == 0) {
+		    postings = postings(n, Math.max(1, n / 3));
+		} else {
+		    for (int r=0; r<runs; r++) {
+			List<Posting> run = postings(n / runs + (r < n % runs ? 1 : 0), Math.max(1, n));
+			Collections.sort(run, BYTES);
+			postings.addAll(run);
+		    }
+		}
+		List<Posting> expected = new ArrayList<Posting>(postings);
+		Collections.sort(expected, BYTES); // stable
+		PostingListWritable list = writable(postings);
+		list.sort();
+		assertPostings("n=" + n + " runs=" + runs, expected, list);
+
+		// and nothing moves in a sorted list
+		list.sort();
+		assertPostings("n=" + n + " runs=" + runs + " sorted again", expected, list);
+
+		Collections.reverse(postings);
+		expected = new ArrayList<Posting>(postings);
+		Collections.sort(expected, BYTES);
+		list = writable(postings);
+		list.sort();
+		assertPostings("n=" + n + " runs=" + runs + " reversed", expected, list);
+	    }
+	}
+    }
+
+    /// a list read into the same object, larger, then smaller, then empty, then larger again
+    @Test
+    public void roundTrip() throws IOException {
+	PostingListWritable read = new PostingListWritable();
+	read.add("left over", 7);
+	for (int n : new int[] { 5, 3000, 10, 0, 1, 50000, 2 }) {
+	    List<Posting> postings = postings(n, 100 * n + 1);
+	    PostingListWritable list = writable(postings);
+	    DataOutputBuffer out = new DataOutputBuffer();
+	    list.write(out);
+	    DataInputBuffer in = new DataInputBuffer();
+	    in.reset(out.getData(), out.getLength());
+	    read.readFields(in);
+	    assertEquals(out.getLength(), in.getPosition());
+	    assertPostings("n=" + n, postings, read);
+	    assertPostings("new list n=" + n, postings, readNew(out));
+
+	    // the list read is written the same way
+	    DataOutputBuffer again = new DataOutputBuffer();
+	    read.write(again);
+	    assertArrayEquals(Arrays.copyOf(out.getData(), out.getLength()), Arrays.copyOf(again.getData(), again.getLength()));
+
+	    // postings added after readFields() go after those read
+	    read.add("added", 3);
+	    postings.add(new Posting("added", 3));
+	    assertPostings("n=" + n + " and one more", postings, read);
+	}
+    }
+
+    static PostingListWritable readNew(DataOutputBuffer out) throws IOException {
+	DataInputBuffer in = new DataInputBuffer();
+	in.reset(out.getData(), out.getLength());
+	PostingListWritable list = new PostingListWritable();
+	list.readFields(in);
+	return list;
+    }
+
+    /// the reducer (and combiner) of InvertedIndex appends the lists of a term, which Hadoop gives in a
+    /// reused object, and sorts them
+    @Test
+    public void reducer() throws IOException {
+	List<Posting> all = new ArrayList<Posting>();
+	final List<DataOutputBuffer> values = new ArrayList<DataOutputBuffer>();
+	for (int v=0; v<20; v++) {
+	    List<Posting> run = postings(random.nextInt(300), 100000);
+	    Collections.sort(run, BYTES);
+	    all.addAll(run);
+	    DataOutputBuffer out = new DataOutputBuffer();
+	    writable(run).write(out);
+	    values.add(out);
+	}
+	Collections.sort(all, BYTES);
+	final PostingListWritable value = new PostingListWritable();
+	Iterator<PostingListWritable> it = new Iterator<PostingListWritable>() {
+	    int next = 0;
+
+	    public boolean hasNext() {
+		return next < values.size();
+	    }
+
+	    public PostingListWritable next() {
+		try {
+		    DataInputBuffer in = new DataInputBuffer();
+		    in.reset(values.get(next).getData(), values.get(next).getLength());
+		    next++;
+		    value.readFields(in);
+		    return value;
+		} catch (IOException e) {
+		    throw new RuntimeException(e);
+		}
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+	final List<PostingListWritable> output = new ArrayList<PostingListWritable>();
+	new InvertedIndex.Reduce().reduce(new Text("term"), it, new OutputCollector<Text, PostingListWritable>() {
+		public void collect(Text key, PostingListWritable list) {
+		    assertEquals("term", key.toString());
+		    output.add(list);
+		}
+	    }, Reporter.NULL);
+	assertEquals(1, output.size());
+	assertPostings("reduced", all, output.get(0));
+    }
+}
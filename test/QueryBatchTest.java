@@ -0,0 +1,80 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The queries run on several threads (see QueryBatch) give the same output, in the same order,
+/// as on a single thread, and that output is the exhaustive ranking.
+public class QueryBatchTest {
+
+    static TestCorpus corpus;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/batch"), 6);
+	corpus.index("index");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+	corpus.close();
+    }
+
+    /// the lines come out in the order of the input whatever the order in which the threads finish
+    @Test
+    public void linesInOrder() throws IOException {
+	StringBuilder input = new StringBuilder();
+	StringBuilder expected = new StringBuilder();
+	for (int i=0; i<500; i++) {
+	    input.append("line").append(i).append('\n');
+	    expected.append("line").append(i).append(" done\n");
+	}
+	for (int threads : new int[] { 1, 2, 8 }) {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    PrintStream out = new PrintStream(bytes, true);
+	    QueryBatch.run(new BufferedReader(new StringReader(input.toString())), out, threads, new QueryBatch.WorkerFactory() {
+		    public QueryBatch.Worker newWorker() {
+			return new QueryBatch.Worker() {
+			    Random random = new Random();
+			    public String process(String line) {
+				if (random.nextInt(10) == 0) {
+				    try {
+					Thread.sleep(1);
+				    } catch (InterruptedException e) {
+				    }
+				}
+				return line + " done\n";
+			    }
+			};
+		    }
+		});
+	    assertEquals("threads=" + threads, expected.toString(), bytes.toString());
+	}
+    }
+
+    @Test
+    public void retrievalOnThreads() throws IOException {
+	String index = corpus.path("index");
+	String queries = corpus.path("queries.txt");
+	String single = TestCorpus.retrieval(index, queries);
+	corpus.assertOutput("Retrieval", 1000, single);
+	assertEquals(single, TestCorpus.retrieval("-t", "4", index, queries));
+	assertEquals(single, TestCorpus.retrieval("-t", "4", "-wand", index, queries));
+    }
+
+    @Test
+    public void kNNOnThreads() throws IOException {
+	String index = corpus.path("index");
+	String train = corpus.path("train.txt");
+	String test = corpus.path("test.txt");
+	for (String numK : new String[] { "1", "5" }) {
+	    String single = TestCorpus.kNN(index, train, test, numK);
+	    assertTrue(corpus.assertTags("kNN K=" + numK, Integer.parseInt(numK), single) > TestCorpus.TEST_DOCS / 2);
+	    assertEquals(single, TestCorpus.kNN("-t", "4", index, train, test, numK));
+	    assertEquals(single, TestCorpus.kNN("-t", "3", "-batch", "4", index, train, test, numK));
+	}
+    }
+}
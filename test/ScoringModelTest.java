@@ -0,0 +1,147 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The scoring models (see ScoringModel), with their constants precomputed per term and per document,
+/// rank the documents as their formulas computed straight from the corpus; tfidf is the original ranking.
+public class ScoringModelTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/models"), 16);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    /// the ranking of a query line with the formula of a model, added for every occurrence of a term in the query
+    TestCorpus.Ranking reference(String model, double param, String line) {
+	int numDocs = TestCorpus.NUM_DOCS;
+	HashMap<String, Integer> length = new HashMap<String, Integer>();
+	long total = 0;
+	for (int d=0; d<numDocs; d++) {
+	    length.put(corpus.docIDs[d], corpus.lengths[d]);
+	    total += corpus.lengths[d];
+	}
+	double avgDocLen = (double) total / numDocs;
+
+	HashMap<String, Double> acc = new HashMap<String, Double>();
+	int qlen = 0;
+	StringTokenizer st = new StringTokenizer(line);
+	st.nextToken();
+	while (st.hasMoreTokens()) {
+	    LinkedHashMap<String, Integer> list = corpus.postings.get(st.nextToken());
+	    if (list == null) {
+		continue;
+	    }
+	    qlen++;
+	    int df = list.size();
+	    long count = 0;
+	    for (int c : list.values()) {
+		count += c;
+	    }
+	    for (Map.Entry<String, Integer> p : list.entrySet()) {
+		int tf = p.getValue();
+		int len = length.get(p.getKey());
+		double w;
+		if (model.equals("tfidf")) {
+		    w = tf * Math.log((1.0+numDocs)/(0.5+df));
+		} else if (model.equals("bm25")) {
+		    double idf = Math.log(1 + (numDocs - df + 0.5)/(df + 0.5));
+		    w = idf * tf*(1.2+1) / (tf + 1.2*(1 - param + param*len/avgDocLen));
+		} else if (model.equals("dirichlet")) {
+		    w = Math.log(1 + tf/(param*count/total));
+		} else {
+		    w = (1 + Math.log(1 + Math.log(tf))) / ((1-param) + param*len/avgDocLen) * Math.log((numDocs+1.0)/df);
+		}
+		Double s = acc.get(p.getKey());
+		acc.put(p.getKey(), s == null ? w : s + w);
+	    }
+	}
+	if (model.equals("dirichlet")) {
+	    for (Map.Entry<String, Double> e : acc.entrySet()) {
+		e.setValue(e.getValue() + qlen*Math.log(param/(param + length.get(e.getKey()))));
+	    }
+	}
+	return TestCorpus.ranking(acc);
+    }
+
+    @Test
+    public void tfidfIsTheOriginalRanking() throws IOException {
+	for (String q : corpus.queries) {
+	    assertArrayEquals(q, corpus.reference(q).scores, reference("tfidf", 0, q).scores, 1e-9);
+	}
+    }
+
+    @Test
+    public void everyModel() throws IOException {
+	double [][] params = { { 0.5 }, { 0.75, 0.3, 1 }, { 2000, 100 }, { 0.2, 0.5 } };
+	for (int m=0; m<ScoringModel.NAMES.length; m++) {
+	    String name = ScoringModel.NAMES[m];
+	    for (double param : params[m]) {
+		// the default parameter when none is given
+		ScoringModel model = ScoringModel.create(name, index, param == params[m][0] ? Double.NaN : param);
+		assertEquals(name, param, model.param(), 0);
+		assertEquals(name, model.toString());
+		for (boolean wand : new boolean[] { false, true }) {
+		    for (int k : new int[] { 1, 10, 1000 }) {
+			Retrieval.Searcher searcher = new Retrieval.Searcher(index, k, model, wand, null);
+			for (String q : corpus.queries) {
+			    TestCorpus.assertRanking(name + " " + param + " wand=" + wand + " k=" + k + " " + q,
+						     reference(name, param, q), k, searcher.rank(q), index);
+			}
+			for (String t : corpus.testDocs) {
+			    TestCorpus.assertRanking(name + " " + param + " wand=" + wand + " k=" + k + " " + t,
+						     reference(name, param, t), k, searcher.rank(t), index);
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    @Test
+    public void tagsOfEveryModel() throws IOException {
+	String index = corpus.path("index");
+	String train = corpus.path("train.txt");
+	String test = corpus.path("test.txt");
+	corpus.assertTags("kNN -model tfidf", 5, TestCorpus.kNN("-model", "tfidf", index, train, test, "5"));
+	// the other models classify the same way with and without WAND
+	for (String name : ScoringModel.NAMES) {
+	    assertEquals(name, TestCorpus.kNN("-model", name, index, train, test, "5"),
+			 TestCorpus.kNN("-model", name, "-wand", index, train, test, "5"));
+	}
+    }
+
+    /// a collection of more than 2^31 tokens
+    @Test
+    public void largeCollection() throws IOException {
+	long total = index.totalTermCount;
+	index.totalTermCount = 5L << 31;
+	try {
+	    ScoringModel model = ScoringModel.create("dirichlet", index, Double.NaN);
+	    String term = corpus.postings.firstKey();
+	    IndexReader.Entry entry = index.getEntry(term);
+	    double w = model.term(entry, 1).weight(1, 0);
+	    assertEquals(Math.log(1 + (5.0 * (1L << 31))/(2000.0 * entry.count)), w, 1e-12);
+	} finally {
+	    index.totalTermCount = total;
+	}
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownModel() throws IOException {
+	ScoringModel.create("lm", index, Double.NaN);
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.*;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The server (see SearchServer) answers the requests with the results and the tags of Retrieval and kNN,
+/// whether the lines are evaluated in batches or one at a time, and when a line of a batch fails, only
+/// its request gets an error.
+public class SearchServerTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+    static int [] trainTags;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/server"), 32);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+	trainTags = corpus.trainTags(index);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    /// a Classifier that counts its batches, and those that failed
+    static class CountingClassifier extends kNN.Classifier {
+	int batches = 0;
+	int failures = 0;
+
+	CountingClassifier() throws IOException {
+	    super(SearchServerTest.index, trainTags, 5, Double.NaN, false);
+	}
+
+	public String process(List<String> lines) throws IOException {
+	    batches++;
+	    try {
+		return super.process(lines);
+	    } catch (RuntimeException e) {
+		failures++;
+		throw e;
+	    }
+	}
+    }
+
+    /// a Batcher with one thread and a classifier, which waits long enough to get the lines in one batch
+    static Batcher batcher(final CountingClassifier classifier, int batch) throws IOException {
+	return new Batcher(new QueryBatch.WorkerFactory() {
+		public QueryBatch.Worker newWorker() {
+		    return classifier;
+		}
+	    }, 1, batch, 200 * 1000000L);
+    }
+
+    static class Batcher extends SearchServer.Batcher {
+	Batcher(QueryBatch.WorkerFactory factory, int threads, int batch, long wait) throws IOException {
+	    super(factory, threads, batch, wait);
+	}
+
+	/// submit the lines and wait for all of them
+	SearchServer.Request [] run(List<String> lines) throws InterruptedException {
+	    SearchServer.Request [] requests = new SearchServer.Request[lines.size()];
+	    for (int i=0; i<requests.length; i++) {
+		requests[i] = new SearchServer.Request(lines.get(i));
+	    }
+	    queue.addAll(Arrays.asList(requests));
+	    for (SearchServer.Request r : requests) {
+		r.done.await();
+	    }
+	    return requests;
+	}
+    }
+
+    @Test
+    public void batches() throws Exception {
+	for (int batch : new int[] { 1, 7, TestCorpus.TEST_DOCS }) {
+	    CountingClassifier classifier = new CountingClassifier();
+	    StringBuilder out = new StringBuilder();
+	    for (SearchServer.Request r : batcher(classifier, batch).run(Arrays.asList(corpus.testDocs))) {
+		assertNull(r.error);
+		out.append(r.output);
+	    }
+	    corpus.assertTags("-batch " + batch, 5, out.toString());
+	    assertTrue(batch == 1 ? classifier.batches == 0 : classifier.batches > 0);
+	    assertEquals(0, classifier.failures);
+	}
+    }
+
+    /// a line without a DocumentID fails its batch: the lines are classified again one at a time,
+    /// and only that line gets the error
+    @Test
+    public void fallbackAfterAnError() throws Exception {
+	List<String> lines = new ArrayList<String>(Arrays.asList(corpus.testDocs));
+	int bad = 13;
+	lines.add(bad, "");
+	CountingClassifier classifier = new CountingClassifier();
+	SearchServer.Request [] requests = batcher(classifier, lines.size()).run(lines);
+	assertEquals(1, classifier.batches);
+	assertEquals(1, classifier.failures);
+	assertNull(requests[bad].output);
+	assertNotNull(requests[bad].error);
+	StringBuilder out = new StringBuilder();
+	for (int i=0; i<requests.length; i++) {
+	    if (i != bad) {
+		assertNull(requests[i].error);
+		out.append(requests[i].output);
+	    }
+	}
+	corpus.assertTags("after a failed batch", 5, out.toString());
+
+	// and the next batch is classified in one go
+	StringBuilder next = new StringBuilder();
+	for (SearchServer.Request r : batcher(classifier, lines.size()).run(Arrays.asList(corpus.testDocs))) {
+	    next.append(r.output);
+	}
+	assertEquals(2, classifier.batches);
+	corpus.assertTags("the next batch", 5, next.toString());
+    }
+
+    /// the response of a request, "status\nbody"
+    static String request(String url, String body) throws IOException {
+	HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+	if (body != null) {
+	    c.setDoOutput(true);
+	    OutputStream out = c.getOutputStream();
+	    out.write(body.getBytes("UTF-8"));
+	    out.close();
+	}
+	int status = c.getResponseCode();
+	InputStream in = status == 200 ? c.getInputStream() : c.getErrorStream();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	byte [] buf = new byte[8192];
+	for (int n; (n = in.read(buf)) > 0; ) {
+	    bytes.write(buf, 0, n);
+	}
+	in.close();
+	return status + "\n" + bytes.toString("UTF-8");
+    }
+
+    @Test
+    public void http() throws Exception {
+	final ScoringModel model = ScoringModel.create("tfidf", index, Double.NaN);
+	HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+	server.createContext("/search", new SearchServer.Handler(new SearchServer.Batcher(new QueryBatch.WorkerFactory() {
+		public QueryBatch.Worker newWorker() {
+		    return new Retrieval.Searcher(index, 1000, model, false, null);
+		}
+	    }, 2, 16, 1000000)));
+	server.createContext("/classify", new SearchServer.Handler(new SearchServer.Batcher(new QueryBatch.WorkerFactory() {
+		public QueryBatch.Worker newWorker() {
+		    return new kNN.Classifier(index, trainTags, 5, model, false, null);
+		}
+	    }, 2, 16, 1000000)));
+	server.start();
+	try {
+	    String url = "http://localhost:" + server.getAddress().getPort();
+	    StringBuilder body = new StringBuilder();
+	    for (String q : corpus.queries) {
+		body.append(q).append("\n\n");
+	    }
+	    String [] r = request(url + "/search", body.toString()).split("\n", 2);
+	    assertEquals("200", r[0]);
+	    corpus.assertOutput("POST /search", 1000, r[1]);
+
+	    body.setLength(0);
+	    for (String t : corpus.testDocs) {
+		body.append(t).append("\n");
+	    }
+	    r = request(url + "/classify", body.toString()).split("\n", 2);
+	    assertEquals("200", r[0]);
+	    corpus.assertTags("POST /classify", 5, r[1]);
+
+	    String t = corpus.testDocs[0];
+	    for (int i=1; corpus.referenceTag(t, 5) == null; i++) {
+		t = corpus.testDocs[i];
+	    }
+	    r = request(url + "/classify?q=" + URLEncoder.encode(t, "UTF-8"), null).split("\n", 2);
+	    assertEquals("200", r[0]);
+	    assertEquals(corpus.referenceTag(t, 5) + " " + t.substring(0, t.indexOf(' ')) + "\n", r[1]);
+
+	    assertEquals("400", request(url + "/search", "\n").split("\n", 2)[0]);
+	} finally {
+	    server.stop(0);
+	}
+    }
+}
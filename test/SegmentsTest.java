@@ -0,0 +1,134 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// An index built a few documents at a time by IndexUpdate, as segments merged in the background
+/// (see Segments and IndexMerger), ranks the documents as the original Retrieval did on the whole collection.
+public class SegmentsTest {
+
+    static final int UPDATES = 5;
+
+    static TestCorpus corpus;
+    static String updated;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/segments"), 24);
+
+	// the documents, as the input of InvertedIndex: docID followed by its words (in any order)
+	StringBuilder [] docs = new StringBuilder[TestCorpus.NUM_DOCS];
+	HashMap<String, Integer> number = new HashMap<String, Integer>();
+	for (int d=0; d<TestCorpus.NUM_DOCS; d++) {
+	    docs[d] = new StringBuilder(corpus.docIDs[d]);
+	    number.put(corpus.docIDs[d], d);
+	}
+	for (Map.Entry<String, LinkedHashMap<String, Integer>> term : corpus.postings.entrySet()) {
+	    for (Map.Entry<String, Integer> p : term.getValue().entrySet()) {
+		for (int i=0; i<p.getValue(); i++) {
+		    docs[number.get(p.getKey())].append(' ').append(term.getKey());
+		}
+	    }
+	}
+
+	// a few updates, with some documents that are already in the index
+	updated = corpus.path("updated");
+	PrintStream out = System.out;
+	System.setOut(new PrintStream(new ByteArrayOutputStream()));
+	try {
+	    int per = TestCorpus.NUM_DOCS / UPDATES;
+	    for (int u=0; u<UPDATES; u++) {
+		String [] lines = new String[per + (u > 0 ? 5 : 0)];
+		for (int i=0; i<per; i++) {
+		    lines[i] = docs[u*per + i].toString();
+		}
+		for (int i=per; i<lines.length; i++) {
+		    lines[i] = docs[i - per].toString();
+		}
+		File file = new File(corpus.path("update" + u + ".txt"));
+		TestCorpus.write(file, lines);
+		IndexUpdate.main(new String[] { "-f", "2", updated, file.getPath() });
+	    }
+	} finally {
+	    System.setOut(out);
+	}
+    }
+
+    @AfterClass
+    public static void tearDown() {
+	corpus.close();
+    }
+
+    @Test
+    public void ranking() throws IOException {
+	IndexReader index = new IndexReader(corpus.fs, updated);
+	try {
+	    assertNotNull(index.segments);
+	    assertEquals(TestCorpus.NUM_DOCS, index.numDocs());
+	    assertEquals(TestCorpus.NUM_DOCS, index.totalDocCount);
+	    for (int d=0; d<TestCorpus.NUM_DOCS; d++) {
+		assertEquals(corpus.lengths[d], index.dlen[index.docs.find(corpus.docIDs[d])]);
+	    }
+	    for (Map.Entry<String, LinkedHashMap<String, Integer>> term : corpus.postings.entrySet()) {
+		assertEquals(term.getKey(), term.getValue().size(), index.getEntry(term.getKey()).df);
+	    }
+	    for (boolean wand : new boolean[] { false, true }) {
+		for (int k : new int[] { 10, 1000 }) {
+		    Retrieval.Searcher searcher = new Retrieval.Searcher(index, k, Double.NaN, wand);
+		    for (String q : corpus.queries) {
+			TestCorpus.assertRanking("wand=" + wand + " k=" + k + " " + q, corpus.reference(q), k, searcher.rank(q), index);
+		    }
+		}
+	    }
+	} finally {
+	    index.close();
+	}
+    }
+
+    /// the documents keep the order in which they were added, whatever the merges
+    @Test
+    public void documentOrder() throws IOException {
+	IndexReader index = new IndexReader(corpus.fs, updated);
+	try {
+	    for (int d=0; d<TestCorpus.NUM_DOCS; d++) {
+		assertEquals(corpus.docIDs[d], index.docs.name(d));
+	    }
+	} finally {
+	    index.close();
+	}
+    }
+
+    /// only adjacent segments of the same tier are merged
+    @Test
+    public void adjacentMerges() throws IOException {
+	IndexUpdate update = new IndexUpdate(corpus.fs, corpus.path("policy"), 2);
+	try {
+	    int small = 10;
+	    int large = IndexUpdate.MIN_SEGMENT * 2; // tier 1
+	    assertNull(update.findMerge(segments(small, large, small)));
+	    assertNull(update.findMerge(segments(large, small, large, small)));
+	    assertArrayEquals(new int[] { 1, 2 }, update.findMerge(segments(large, small, small)));
+	    assertArrayEquals(new int[] { 2, 3 }, update.findMerge(segments(small, large, small, small, large, large)));
+	    assertArrayEquals(new int[] { 0, 1 }, update.findMerge(segments(large, large, small)));
+	} finally {
+	    update.close();
+	}
+    }
+
+    /// a list of segments with these numbers of documents
+    static Segments segments(int... numDocs) {
+	Segments list = new Segments("policy");
+	for (int i=0; i<numDocs.length; i++) {
+	    list.add(i, "policy_" + i, numDocs[i]);
+	}
+	return list;
+    }
+
+    @Test
+    public void tags() throws IOException {
+	corpus.assertTags("kNN", 5, TestCorpus.kNN(updated, corpus.path("train.txt"), corpus.path("test.txt"), "5"));
+    }
+}
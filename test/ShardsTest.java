@@ -0,0 +1,124 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// A collection split into shards of documents (see Shards) and evaluated by scatter-gather (see ShardCoordinator)
+/// gives the exhaustive ranking of the whole collection: every shard scores with the statistics of all the shards,
+/// and the merged top k are those of the collection.
+public class ShardsTest {
+
+    static final int SHARDS = 3;
+
+    static TestCorpus corpus;
+    static String sharded;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/shards"), 22);
+	corpus.index("index");
+	sharded = corpus.index("sharded", "-shards", Integer.toString(SHARDS));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+	corpus.close();
+    }
+
+    /// the shards have all the documents once, and score them as the whole collection does
+    @Test
+    public void everyShard() throws IOException {
+	HashSet<String> names = new HashSet<String>();
+	for (int s=0; s<SHARDS; s++) {
+	    IndexReader shard = new IndexReader(corpus.fs, sharded + ".shard" + s);
+	    try {
+		assertTrue(shard.numDocs() > 0);
+		for (int d=0; d<shard.numDocs(); d++) {
+		    assertTrue(shard.docs.name(d), names.add(shard.docs.name(d)));
+		}
+		assertEquals(TestCorpus.NUM_DOCS, shard.totalDocCount);
+		for (Map.Entry<String, LinkedHashMap<String, Integer>> term : corpus.postings.entrySet()) {
+		    IndexReader.Entry entry = shard.getEntry(term.getKey());
+		    assertNotNull(term.getKey(), entry);
+		    assertEquals(term.getKey(), term.getValue().size(), entry.stats().df);
+		}
+
+		// the ranking of a shard is the reference ranking restricted to its documents
+		Retrieval.Searcher searcher = new Retrieval.Searcher(shard, 1000, Double.NaN, false);
+		for (String q : corpus.queries) {
+		    TestCorpus.Ranking all = corpus.reference(q);
+		    HashMap<String, Double> own = new HashMap<String, Double>();
+		    for (String name : all.names) {
+			if (shard.docs.find(name) >= 0) {
+			    own.put(name, all.byName.get(name));
+			}
+		    }
+		    TestCorpus.assertRanking("shard" + s + " " + q, TestCorpus.ranking(own), 1000, searcher.rank(q), shard);
+		}
+	    } finally {
+		shard.close();
+	    }
+	}
+	assertEquals(new HashSet<String>(Arrays.asList(corpus.docIDs)), names);
+    }
+
+    /// the whole sharded index opened as one index
+    @Test
+    public void shardsAsOneIndex() throws IOException {
+	IndexReader index = new IndexReader(corpus.fs, sharded);
+	try {
+	    assertEquals(TestCorpus.NUM_DOCS, index.numDocs());
+	    for (boolean wand : new boolean[] { false, true }) {
+		Retrieval.Searcher searcher = new Retrieval.Searcher(index, 10, Double.NaN, wand);
+		for (String q : corpus.queries) {
+		    TestCorpus.assertRanking("wand=" + wand + " " + q, corpus.reference(q), 10, searcher.rank(q), index);
+		}
+	    }
+	} finally {
+	    index.close();
+	}
+    }
+
+    @Test
+    public void retrievalOnShards() throws IOException {
+	String queries = corpus.path("queries.txt");
+	for (String mode : new String[] { "local", "procs" }) {
+	    corpus.assertOutput("Retrieval -shards " + mode, 1000, TestCorpus.retrieval("-shards", mode, sharded, queries));
+	    corpus.assertOutput("Retrieval -shards " + mode + " -wand -t 2", 1000,
+				TestCorpus.retrieval("-shards", mode, "-wand", "-t", "2", sharded, queries));
+	}
+	// the other models merge the same scores as without shards
+	for (String model : new String[] { "bm25", "dirichlet" }) {
+	    String whole = TestCorpus.retrieval("-model", model, corpus.path("index"), queries);
+	    String merged = TestCorpus.retrieval("-model", model, "-shards", "local", sharded, queries);
+	    assertEquals(model, scores(whole), scores(merged));
+	}
+    }
+
+    /// the scores of the output of Retrieval, by query, best first
+    static List<String> scores(String output) {
+	List<String> scores = new ArrayList<String>();
+	for (String line : output.split("\n")) {
+	    String [] f = line.split(" ");
+	    scores.add(f[0] + " " + f[2]);
+	}
+	return scores;
+    }
+
+    @Test
+    public void kNNOnShards() throws IOException {
+	String train = corpus.path("train.txt");
+	String test = corpus.path("test.txt");
+	for (String numK : new String[] { "1", "5" }) {
+	    String whole = TestCorpus.kNN(corpus.path("index"), train, test, numK);
+	    for (String mode : new String[] { "local", "procs" }) {
+		String merged = TestCorpus.kNN("-shards", mode, sharded, train, test, numK);
+		corpus.assertTags("kNN -shards " + mode + " K=" + numK, Integer.parseInt(numK), merged);
+		assertEquals(whole, merged);
+	    }
+	}
+    }
+}
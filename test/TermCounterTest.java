@@ -0,0 +1,196 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// The terms counted on the bytes of a line (see TermCounter and InvertedIndex.MapClass) are those of a
+/// StringTokenizer on its String, with the same counts, with or without lowercasing and stopwords.
+public class TermCounterTest {
+
+    static final String SEPARATORS = " \t\n\r\f";
+
+    /// characters of the terms: a few letters, and characters that are not separators for StringTokenizer
+    /// (a vertical tab, a no-break space, an em space, accented letters, a CJK ideograph)
+    static final String LETTERS = "abcABCxyZ\u000b\u00a0\u2003\u00e9\u00c9\u00fc\u4e2d";
+
+    Random random = new Random(34);
+
+    /// a random text of about "terms" terms among "vocabulary", with runs of separators (and some at the ends)
+    String text(int terms, int vocabulary) {
+	StringBuilder t = new StringBuilder();
+	for (int i=0; i<terms; i++) {
+	    int runs = random.nextInt(3) + (i == 0 ? 0 : 1);
+	    for (int j=0; j<runs; j++) {
+		t.append(SEPARATORS.charAt(random.nextInt(SEPARATORS.length())));
+	    }
+	    t.append(term(random.nextInt(vocabulary)));
+	}
+	if (random.nextBoolean()) {
+	    t.append(SEPARATORS.charAt(random.nextInt(SEPARATORS.length())));
+	}
+	return t.toString();
+    }
+
+    /// term number w: its digits in base LETTERS.length(), so every term is different
+    static String term(int w) {
+	StringBuilder t = new StringBuilder();
+	do {
+	    t.append(LETTERS.charAt(w % LETTERS.length()));
+	    w /= LETTERS.length();
+	} while (w > 0);
+	return t.toString();
+    }
+
+    /// only the ASCII letters A-Z are lowercased
+    static String lowercase(String term) {
+	StringBuilder t = new StringBuilder(term);
+	for (int i=0; i<t.length(); i++) {
+	    char c = t.charAt(i);
+	    if (c >= 'A' && c <= 'Z') {
+		t.setCharAt(i, (char) (c + ('a' - 'A')));
+	    }
+	}
+	return t.toString();
+    }
+
+    /// the counts of the terms of a text with a StringTokenizer, in the order they first occur
+    static LinkedHashMap<String, Integer> reference(String text, boolean lower, Set<String> stopwords) {
+	LinkedHashMap<String, Integer> counts = new LinkedHashMap<String, Integer>();
+	StringTokenizer st = new StringTokenizer(text);
+	while (st.hasMoreTokens()) {
+	    String term = lower ? lowercase(st.nextToken()) : st.nextToken();
+	    if (!stopwords.contains(term)) {
+		Integer c = counts.get(term);
+		counts.put(term, c == null ? 1 : c + 1);
+	    }
+	}
+	return counts;
+    }
+
+    /// the counts of a TermCounter, by term number
+    static LinkedHashMap<String, Integer> counts(TermCounter counter) throws IOException {
+	LinkedHashMap<String, Integer> counts = new LinkedHashMap<String, Integer>();
+	for (int i=0; i<counter.size(); i++) {
+	    String term = new String(counter.bytes(), counter.start(i), counter.length(i), "UTF-8");
+	    assertNull(term, counts.put(term, counter.count(i)));
+	}
+	return counts;
+    }
+
+    static int total(Map<String, Integer> counts) {
+	int total = 0;
+	for (int c : counts.values()) {
+	    total += c;
+	}
+	return total;
+    }
+
+    /// one counter for documents of every size, so its tables grow and are rehashed, then are cleared for
+    /// smaller documents
+    @Test
+    public void sameAsStringTokenizer() throws IOException {
+	TermCounter counter = new TermCounter();
+	byte [] absent = "\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9".getBytes("UTF-8");
+	for (int terms : new int[] { 0, 1, 5, 100, 20000, 3, 0, 1000, 40, 50000, 2 }) {
+	    String text = text(terms, Math.max(1, terms / 2));
+	    LinkedHashMap<String, Integer> expected = reference(text, false, Collections.<String>emptySet());
+	    byte [] b = ("  doc " + text + " \n").getBytes("UTF-8");
+	    counter.clear();
+	    counter.addAll(b, 6, b.length - 8);
+	    assertEquals(expected, counts(counter));
+	    assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(counts(counter).keySet()));
+	    assertEquals(total(expected), counter.total());
+	    int i = 0;
+	    for (String term : expected.keySet()) {
+		byte [] t = term.getBytes("UTF-8");
+		assertEquals(term, i++, counter.find(t, 0, t.length));
+	    }
+	    assertEquals(-1, counter.find(absent, 0, absent.length));
+	}
+    }
+
+    @Test
+    public void separators() {
+	byte [] b = "\t\r doc1\f term\u000bterm \n".getBytes();
+	int start = TermCounter.skipSeparators(b, 0, b.length);
+	assertEquals(3, start);
+	assertEquals(7, TermCounter.skipTerm(b, start, b.length));
+	assertEquals(b.length, TermCounter.skipSeparators(b, b.length - 2, b.length));
+	TermCounter counter = new TermCounter();
+	counter.addAll(b, 7, b.length - 7);
+	assertEquals(1, counter.size());
+	assertEquals(9, counter.length(0));
+    }
+
+    /// the stopwords of a file, read as InvertedIndex -stop does, lowercased with -lower
+    @Test
+    public void lowercaseAndStopwords() throws IOException {
+	File file = new File("target/test-corpus/stopwords.txt").getAbsoluteFile();
+	file.getParentFile().mkdirs();
+	List<String> words = new ArrayList<String>();
+	for (int w=0; w<300; w+=7) {
+	    words.add(term(w));
+	}
+	Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+	for (String w : words) {
+	    out.write(w + (random.nextBoolean() ? "\n" : " \t"));
+	}
+	out.close();
+
+	for (boolean lower : new boolean[] { false, true }) {
+	    HashSet<String> stopwords = new HashSet<String>();
+	    for (String w : words) {
+		stopwords.add(lower ? lowercase(w) : w);
+	    }
+	    TermCounter counter = new TermCounter();
+	    counter.setLowercase(lower);
+	    counter.setStopwords(InvertedIndex.readStopwords(new JobConf(), file.getPath(), lower));
+	    for (int terms : new int[] { 10, 1000, 5000, 20 }) {
+		String text = text(terms, 400);
+		byte [] b = text.getBytes("UTF-8");
+		counter.clear();
+		counter.addAll(b, 0, b.length);
+		LinkedHashMap<String, Integer> expected = reference(text, lower, stopwords);
+		assertEquals("lowercase=" + lower, expected, counts(counter));
+		assertEquals(total(expected), counter.total());
+	    }
+	}
+    }
+
+    /// the mapper emits every distinct term of a line once, with the document ID and the count
+    @Test
+    public void mapper() throws IOException {
+	JobConf job = new JobConf();
+	job.setBoolean(InvertedIndex.LOWERCASE, true);
+	InvertedIndex.MapClass mapper = new InvertedIndex.MapClass();
+	mapper.configure(job);
+	final LinkedHashMap<String, Integer> emitted = new LinkedHashMap<String, Integer>();
+	final String [] docID = new String[1];
+	OutputCollector<Text, PostingListWritable> output = new OutputCollector<Text, PostingListWritable>() {
+	    public void collect(Text word, PostingListWritable postings) {
+		assertEquals(1, postings.size());
+		docID[0] = postings.docID(0);
+		assertNull(emitted.put(word.toString(), postings.count(0)));
+	    }
+	};
+	Text line = new Text();
+	for (int terms : new int[] { 3000, 0, 50 }) {
+	    String text = text(terms, 500);
+	    emitted.clear();
+	    docID[0] = null;
+	    line.set("\t d\u00e9c" + terms + " " + text);
+	    mapper.map(new LongWritable(0), line, output, Reporter.NULL);
+	    assertEquals(reference(text, true, Collections.<String>emptySet()), emitted);
+	    assertEquals(terms == 0 ? null : "d\u00e9c" + terms, docID[0]);
+	}
+    }
+}
@@ -0,0 +1,413 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import static org.junit.Assert.*;
+
+
+/// This class is a small collection for the tests: a few hundred documents with their words, written as
+/// InvertedIndex writes a raw inverted index (raw.txt, and index.dlen as ComputeDocLen writes it), with a
+/// training list, test documents and queries, in the formats of Retrieval and kNN.
+///
+/// It also ranks the documents the way the original Retrieval did, straight from the words of the documents:
+/// every document that contains a term of the query gets rawTF * log((1+N)/(0.5+df)) for every occurrence of
+/// the term in the query, and the documents are sorted by decreasing score (see reference()). Whatever the
+/// format of the index and the way the queries are evaluated, the results must be those documents, with
+/// those scores up to the rounding of the additions (see assertRanking()). The exact order of documents with
+/// the same score was never defined, so it isn't checked.
+///
+/// The same seed always gives the same files.
+public class TestCorpus {
+
+    static final int NUM_DOCS = 400;
+    static final int VOCABULARY = 600;
+    static final int CLASSES = 4; // the tags of the labeled documents
+    static final int QUERIES = 40;
+    static final int TEST_DOCS = 40;
+
+    /// the largest relative difference between two scores that are the same, up to the order of the additions
+    static final double EPSILON = 1e-9;
+
+    /// a term that is in no document
+    static final String UNKNOWN = "zzz";
+
+    File dir;
+    FileSystem fs;
+    Random random;
+    double [] zipf; // cumulative probability of words 0, 1, 2, ...
+
+    String [] docIDs = new String[NUM_DOCS];
+    int [] tags = new int[NUM_DOCS]; // -1 for the documents that are not in the training list
+    int [] lengths = new int[NUM_DOCS];
+    TreeMap<String, LinkedHashMap<String, Integer>> postings = new TreeMap<String, LinkedHashMap<String, Integer>>(); // term -> docID -> count
+    String [] queries = new String[QUERIES];
+    String [] testDocs = new String[TEST_DOCS];
+
+    PrintStream err; // the standard error, silenced while the collection is used
+
+    /// generate the collection into "dir" (which is emptied first)
+    TestCorpus(File dir, long seed) throws IOException {
+	this.dir = dir.getAbsoluteFile();
+	delete(this.dir);
+	this.dir.mkdirs();
+	fs = FileSystem.getLocal(new Configuration());
+	random = new Random(seed);
+	zipf = new double[VOCABULARY];
+	double sum = 0;
+	for (int i=0; i<VOCABULARY; i++) {
+	    sum += 1.0 / (i+1);
+	    zipf[i] = sum;
+	}
+	for (int i=0; i<VOCABULARY; i++) {
+	    zipf[i] /= sum;
+	}
+
+	// Retrieval and kNN report every query on the standard error (until close())
+	err = System.err;
+	System.setErr(new PrintStream(new OutputStream() {
+		public void write(byte [] b, int off, int len) {}
+		public void write(int b) {}
+	    }));
+
+	for (int d=0; d<NUM_DOCS; d++) {
+	    docIDs[d] = "doc" + d;
+	    tags[d] = d % 5 == 4 ? -1 : d % CLASSES;
+	    String [] words = document(d % CLASSES, 5 + random.nextInt(60));
+	    lengths[d] = words.length;
+	    for (String w : words) {
+		LinkedHashMap<String, Integer> list = postings.get(w);
+		if (list == null) {
+		    list = new LinkedHashMap<String, Integer>();
+		    postings.put(w, list);
+		}
+		Integer c = list.get(docIDs[d]);
+		list.put(docIDs[d], c == null ? 1 : c + 1);
+	    }
+	}
+	for (int i=0; i<QUERIES; i++) {
+	    // 1 to 4 words, sometimes twice the same word, or a word that is in no document
+	    StringBuilder q = new StringBuilder("q" + i);
+	    for (String w : document(random.nextInt(CLASSES), 1 + random.nextInt(4))) {
+		q.append(' ').append(w);
+	    }
+	    if (i % 7 == 3) {
+		q.append(' ').append(q.substring(q.lastIndexOf(" ") + 1));
+	    }
+	    if (i % 11 == 5) {
+		q.append(' ').append(UNKNOWN);
+	    }
+	    queries[i] = q.toString();
+	}
+	for (int i=0; i<TEST_DOCS; i++) {
+	    StringBuilder t = new StringBuilder("test" + i);
+	    for (String w : document(random.nextInt(CLASSES), 10 + random.nextInt(40))) {
+		t.append(' ').append(w);
+	    }
+	    testDocs[i] = t.toString();
+	}
+
+	// the raw inverted index, sorted by term: term \t docID count docID count ...
+	PrintWriter raw = new PrintWriter(new FileWriter(new File(this.dir, "raw.txt")));
+	for (Map.Entry<String, LinkedHashMap<String, Integer>> term : postings.entrySet()) {
+	    StringBuilder line = new StringBuilder(term.getKey()).append('\t');
+	    String sep = "";
+	    for (Map.Entry<String, Integer> p : term.getValue().entrySet()) {
+		line.append(sep).append(p.getKey()).append(' ').append(p.getValue());
+		sep = " ";
+	    }
+	    raw.println(line);
+	}
+	raw.close();
+	PrintWriter dlen = new PrintWriter(new FileWriter(new File(this.dir, "index.dlen")));
+	PrintWriter train = new PrintWriter(new FileWriter(new File(this.dir, "train.txt")));
+	for (int d=0; d<NUM_DOCS; d++) {
+	    dlen.println(docIDs[d] + "\t" + lengths[d]);
+	    if (tags[d] >= 0) {
+		train.println(tags[d] + " " + docIDs[d]);
+	    }
+	}
+	dlen.close();
+	train.close();
+	write(new File(this.dir, "queries.txt"), queries);
+	write(new File(this.dir, "test.txt"), testDocs);
+    }
+
+    /// restore the standard error (call it in the @AfterClass of the test)
+    void close() {
+	System.setErr(err);
+    }
+
+    /// the name of word i
+    static String word(int i) {
+	return "t" + (1000 + i);
+    }
+
+    /// the words of a document of a class: mostly from a Zipf distribution, a fifth from the words of the class
+    String [] document(int tag, int len) {
+	String [] words = new String[len];
+	for (int i=0; i<len; i++) {
+	    if (random.nextInt(5) == 0) {
+		words[i] = word(50 + (random.nextInt(40) * CLASSES + tag) % (VOCABULARY - 50));
+	    } else {
+		int w = Arrays.binarySearch(zipf, random.nextDouble());
+		words[i] = word(Math.min(w < 0 ? -w-1 : w, VOCABULARY-1));
+	    }
+	}
+	return words;
+    }
+
+    static void write(File file, String [] lines) throws IOException {
+	PrintWriter out = new PrintWriter(new FileWriter(file));
+	for (String t : lines) {
+	    out.println(t);
+	}
+	out.close();
+    }
+
+    static void delete(File file) {
+	File [] files = file.listFiles();
+	if (files != null) {
+	    for (File f : files) {
+		delete(f);
+	    }
+	}
+	file.delete();
+    }
+
+    /// the path of a file of the collection
+    String path(String name) {
+	return new File(dir, name).getPath();
+    }
+
+    /// build the index "name" of the collection with IndexGeneration and these options (e.g., "-hash"),
+    /// and return its name (including the path)
+    String index(String name, String... options) throws IOException {
+	return index(new File(dir, "raw.txt"), name, options);
+    }
+
+    /// build the index "name" from another raw inverted index (a file or a directory of part-* files)
+    String index(File raw, String name, String... options) throws IOException {
+	String indexName = path(name);
+	if (!name.equals("index")) {
+	    // IndexGeneration reads the document lengths from IndexFileName.dlen by default
+	    copy(new File(dir, "index.dlen"), new File(indexName + ".dlen"));
+	}
+	List<String> args = new ArrayList<String>(Arrays.asList(options));
+	args.add(raw.getPath());
+	args.add(indexName);
+	PrintStream out = System.out;
+	System.setOut(new PrintStream(new ByteArrayOutputStream()));
+	try {
+	    IndexGeneration.main(args.toArray(new String[args.size()]));
+	} finally {
+	    System.setOut(out);
+	}
+	return indexName;
+    }
+
+    static void copy(File from, File to) throws IOException {
+	InputStream in = new FileInputStream(from);
+	OutputStream out = new FileOutputStream(to);
+	byte [] buf = new byte[8192];
+	for (int n; (n = in.read(buf)) > 0; ) {
+	    out.write(buf, 0, n);
+	}
+	in.close();
+	out.close();
+    }
+
+    /// the standard output of Retrieval.main(args)
+    static String retrieval(String... args) throws IOException {
+	PrintStream out = System.out;
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	System.setOut(new PrintStream(bytes, true));
+	try {
+	    Retrieval.main(args);
+	} finally {
+	    System.setOut(out);
+	}
+	return bytes.toString();
+    }
+
+    /// the standard output of kNN.main(args)
+    static String kNN(String... args) throws IOException {
+	PrintStream out = System.out;
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	System.setOut(new PrintStream(bytes, true));
+	try {
+	    kNN.main(args);
+	} finally {
+	    System.setOut(out);
+	}
+	return bytes.toString();
+    }
+
+    /// the tags of the training documents, by document number in "index" (see kNN)
+    int [] trainTags(IndexReader index) throws IOException {
+	return kNN.loadTrainTags(fs, new Path(path("train.txt")), index);
+    }
+
+
+    /// the documents that match a query, best first, with their scores
+    static class Ranking {
+	String [] names;
+	double [] scores;
+	HashMap<String, Double> byName = new HashMap<String, Double>();
+    }
+
+    /// the ranking of the original Retrieval for a line "QueryID term1 term2 ..." (or a test document of kNN)
+    Ranking reference(String line) {
+	HashMap<String, Double> acc = new HashMap<String, Double>();
+	StringTokenizer st = new StringTokenizer(line);
+	st.nextToken();
+	while (st.hasMoreTokens()) {
+	    LinkedHashMap<String, Integer> list = postings.get(st.nextToken());
+	    if (list == null) {
+		continue;
+	    }
+	    double idf = Math.log((1.0+NUM_DOCS)/(0.5+list.size()));
+	    for (Map.Entry<String, Integer> p : list.entrySet()) {
+		Double s = acc.get(p.getKey());
+		double w = p.getValue()*idf;
+		acc.put(p.getKey(), s == null ? w : s + w);
+	    }
+	}
+	return ranking(acc);
+    }
+
+    /// the documents with these scores, best first
+    static Ranking ranking(final HashMap<String, Double> acc) {
+	Ranking r = new Ranking();
+	r.names = acc.keySet().toArray(new String[acc.size()]);
+	Arrays.sort(r.names, new Comparator<String>() {
+		public int compare(String a, String b) {
+		    return Double.compare(acc.get(b), acc.get(a));
+		}
+	    });
+	r.scores = new double[r.names.length];
+	for (int i=0; i<r.names.length; i++) {
+	    r.scores[i] = acc.get(r.names[i]);
+	}
+	r.byName = acc;
+	return r;
+    }
+
+    /// the tag of the original kNN for a test document: the numK best labeled documents of the reference ranking
+    /// vote, and the smallest of the tags with the most votes wins (-1 without any labeled document)
+    /// returns null when the last neighbor has the same score as the next labeled document, since either could vote
+    Integer referenceTag(String testDoc, int numK) {
+	return referenceTag(reference(testDoc), null, numK);
+    }
+
+    /// the tag the numK best labeled documents of a ranking vote for, among the documents "among" only if it isn't
+    /// null (null if the numK-th is tied with the next one)
+    Integer referenceTag(Ranking r, Set<String> among, int numK) {
+	int [] counts = new int[kNN.TOTALCLASS];
+	int n = 0;
+	double last = 0;
+	HashMap<String, Integer> tagOf = new HashMap<String, Integer>();
+	for (int d=0; d<NUM_DOCS; d++) {
+	    tagOf.put(docIDs[d], tags[d]);
+	}
+	for (int i=0; i<r.names.length; i++) {
+	    int tag = tagOf.get(r.names[i]);
+	    if (tag < 0 || among != null && !among.contains(r.names[i])) {
+		continue;
+	    }
+	    if (n == numK) {
+		if (same(last, r.scores[i])) {
+		    return null;
+		}
+		break;
+	    }
+	    counts[tag]++;
+	    last = r.scores[i];
+	    n++;
+	}
+	int maxClass = -1;
+	int maxCount = 0;
+	for (int j=0; j<counts.length; j++) {
+	    if (counts[j] > maxCount) {
+		maxCount = counts[j];
+		maxClass = j;
+	    }
+	}
+	return maxClass;
+    }
+
+    static boolean same(double a, double b) {
+	return Math.abs(a - b) <= EPSILON * Math.max(1, Math.abs(a));
+    }
+
+    /// check that the top k results of a query (names[i] with scores[i], best first) are those of the reference ranking
+    static void assertRanking(String what, Ranking expected, int k, String [] names, double [] scores) {
+	int n = Math.min(k, expected.names.length);
+	assertEquals(what + ": number of results", n, names.length);
+	HashSet<String> seen = new HashSet<String>();
+	for (int i=0; i<n; i++) {
+	    assertTrue(what + ": " + names[i] + " is ranked twice", seen.add(names[i]));
+	    Double score = expected.byName.get(names[i]);
+	    assertNotNull(what + ": " + names[i] + " doesn't match the query", score);
+	    assertTrue(what + ": score of " + names[i] + " " + scores[i] + " instead of " + score, same(score, scores[i]));
+	    assertTrue(what + ": score at rank " + (i+1) + " " + scores[i] + " instead of " + expected.scores[i],
+		       same(expected.scores[i], scores[i]));
+	}
+    }
+
+    /// the same for the Result of a Retrieval.Searcher on "index"
+    static void assertRanking(String what, Ranking expected, int k, Retrieval.Result r, IndexReader index) {
+	String [] names = new String[r.docs.length];
+	for (int i=0; i<names.length; i++) {
+	    names[i] = index.docs.name(r.docs[i]);
+	}
+	assertRanking(what, expected, k, names, r.scores);
+    }
+
+    /// check the output of Retrieval (lines "QueryID docID score", in the order of the queries) for all the queries
+    void assertOutput(String what, int k, String output) {
+	HashMap<String, List<String []>> results = new LinkedHashMap<String, List<String []>>();
+	for (String line : output.split("\n")) {
+	    if (line.length() > 0) {
+		String [] f = line.split(" ");
+		List<String []> list = results.get(f[0]);
+		if (list == null) {
+		    list = new ArrayList<String []>();
+		    results.put(f[0], list);
+		}
+		list.add(f);
+	    }
+	}
+	for (String q : queries) {
+	    String qid = q.substring(0, q.indexOf(' '));
+	    List<String []> list = results.containsKey(qid) ? results.get(qid) : new ArrayList<String []>();
+	    String [] names = new String[list.size()];
+	    double [] scores = new double[list.size()];
+	    for (int i=0; i<names.length; i++) {
+		names[i] = list.get(i)[1];
+		scores[i] = Double.parseDouble(list.get(i)[2]);
+	    }
+	    assertRanking(what + " " + qid, reference(q), k, names, scores);
+	}
+    }
+
+    /// check the output of kNN (lines "tag DocumentID", in the order of the test documents)
+    /// and return the number of test documents whose reference tag is defined
+    int assertTags(String what, int numK, String output) {
+	String [] lines = output.split("\n");
+	assertEquals(what + ": number of test documents", TEST_DOCS, lines.length);
+	int checked = 0;
+	for (int i=0; i<TEST_DOCS; i++) {
+	    String [] f = lines[i].split(" ");
+	    assertEquals(what + ": test document " + i, "test" + i, f[1]);
+	    Integer tag = referenceTag(testDocs[i], numK);
+	    if (tag != null) {
+		assertEquals(what + ": tag of test" + i, tag.intValue(), Integer.parseInt(f[0]));
+		checked++;
+	    }
+	}
+	return checked;
+    }
+}
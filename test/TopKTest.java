@@ -0,0 +1,83 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+
+/// Selecting the top k with a bounded heap (see TopK) gives the first k documents of the exhaustive ranking.
+public class TopKTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/topk"), 4);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    /// the heap against sorting all the documents, with many ties
+    @Test
+    public void sameAsFullSort() {
+	Random random = new Random(5);
+	for (int k : new int[] { 0, 1, 2, 10, 100, 500 }) {
+	    TopK topK = new TopK(k);
+	    for (int round=0; round<20; round++) {
+		int n = random.nextInt(300);
+		final double [] all = new double[n];
+		Integer [] order = new Integer[n];
+		for (int d=0; d<n; d++) {
+		    all[d] = random.nextInt(20) / 4.0;
+		    order[d] = d;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+			    int c = Double.compare(all[b], all[a]);
+			    return c != 0 ? c : a.compareTo(b);
+			}
+		    });
+		// offered in a random order
+		List<Integer> offered = new ArrayList<Integer>(Arrays.asList(order));
+		Collections.shuffle(offered, random);
+		topK.clear();
+		for (int d : offered) {
+		    assertEquals(topK.accepts(d, all[d]), topK.offer(d, all[d]));
+		}
+		int m = topK.sort();
+		assertEquals(Math.min(k, n), m);
+		for (int i=0; i<m; i++) {
+		    assertEquals("k=" + k + " rank " + i, (int) order[i], topK.docs[i]);
+		    assertEquals(all[order[i]], topK.scores[i], 0);
+		}
+	    }
+	}
+    }
+
+    @Test
+    public void topOfTheRanking() throws IOException {
+	for (int k : new int[] { 1, 3, 10, 1000 }) {
+	    Retrieval.Searcher searcher = new Retrieval.Searcher(index, k, Double.NaN, false);
+	    for (String q : corpus.queries) {
+		Retrieval.Result r = searcher.rank(q);
+		TestCorpus.assertRanking("k=" + k + " " + q, corpus.reference(q), k, r, index);
+		// documents with the same score come by document number
+		for (int i=1; i<r.docs.length; i++) {
+		    assertTrue(r.scores[i-1] > r.scores[i] || r.docs[i-1] < r.docs[i]);
+		}
+	    }
+	}
+    }
+
+    @Test
+    public void outputOfRetrieval() throws IOException {
+	corpus.assertOutput("Retrieval", 1000, TestCorpus.retrieval(corpus.path("index"), corpus.path("queries.txt")));
+    }
+}
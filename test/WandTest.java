@@ -0,0 +1,47 @@
+import java.io.*;
+
+import org.junit.*;
+
+
+/// The documents skipped by WAND (see QueryEvaluator) are never among the top k of the exhaustive ranking.
+public class WandTest {
+
+    static TestCorpus corpus;
+    static IndexReader index;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+	corpus = new TestCorpus(new File("target/test-corpus/wand"), 8);
+	index = new IndexReader(corpus.fs, corpus.index("index"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+	index.close();
+	corpus.close();
+    }
+
+    @Test
+    public void sameTopK() throws IOException {
+	for (int k : new int[] { 1, 2, 5, 10, 50, 1000 }) {
+	    Retrieval.Searcher searcher = new Retrieval.Searcher(index, k, Double.NaN, true);
+	    for (String q : corpus.queries) {
+		TestCorpus.assertRanking("WAND k=" + k + " " + q, corpus.reference(q), k, searcher.rank(q), index);
+	    }
+	    // long queries: the test documents
+	    for (String t : corpus.testDocs) {
+		TestCorpus.assertRanking("WAND k=" + k + " " + t, corpus.reference(t), k, searcher.rank(t), index);
+	    }
+	}
+    }
+
+    @Test
+    public void sameTags() throws IOException {
+	String index = corpus.path("index");
+	String train = corpus.path("train.txt");
+	String test = corpus.path("test.txt");
+	for (String numK : new String[] { "1", "5", "15" }) {
+	    corpus.assertTags("kNN -wand K=" + numK, Integer.parseInt(numK), TestCorpus.kNN("-wand", index, train, test, numK));
+	}
+    }
+}